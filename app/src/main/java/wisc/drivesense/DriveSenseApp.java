@@ -9,8 +9,12 @@ import com.android.volley.toolbox.Volley;
 import com.splunk.mint.Mint;
 
 import wisc.drivesense.database.DatabaseHelper;
-import wisc.drivesense.httpTools.TripMetadataDownloadRequest;
-import wisc.drivesense.httpTools.TripUploadRequest;
+import wisc.drivesense.database.StorageManager;
+import wisc.drivesense.httpTools.RequestCoordinator;
+import wisc.drivesense.httpTools.SyncJobService;
+import wisc.drivesense.triprecorder.DrivingDetectionService;
+import wisc.drivesense.triprecorder.RecordingPipeline;
+import wisc.drivesense.utility.Clock;
 
 /**
  * Created by Alex Sherman on 11/23/2016.
@@ -24,6 +28,8 @@ public class DriveSenseApp extends Application {
     private static Context context;
     private static RequestQueue requestQueue = null;
     private static DatabaseHelper dbHelper = null;
+    private static RequestCoordinator requestCoordinator = null;
+    private static RecordingPipeline recordingPipeline = null;
 
     @Override
     public void onCreate() {
@@ -34,6 +40,9 @@ public class DriveSenseApp extends Application {
         Mint.initAndStartSession(this, "28d86904");
         context = getApplicationContext();
 
+        // Start and stop trips by detecting driving, if enabled
+        DrivingDetectionService.update(context);
+
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
@@ -41,10 +50,12 @@ public class DriveSenseApp extends Application {
                 // catches cases like the app crashed during a trip
                 DBHelper().finalizeLiveTrips();
 
-                // Attempt to upload any unsent trips
-                TripUploadRequest.Start(context);
-                TripMetadataDownloadRequest update = new TripMetadataDownloadRequest(DBHelper().getCurrentUser());
-                RequestQueue().add(update);
+                // Attempt to upload any unsent trips and refresh the trip list once a network is available
+                SyncJobService.requestUpload(context, false);
+                SyncJobService.requestDownload(context);
+
+                // Remove old raw sensor data and traces of deleted trips
+                StorageManager.schedule(context);
                 return null;
             }
         }.execute();
@@ -57,6 +68,18 @@ public class DriveSenseApp extends Application {
         }
         return requestQueue;
     }
+    public static synchronized RequestCoordinator RequestCoordinator() {
+        if (requestCoordinator == null) {
+            requestCoordinator = new RequestCoordinator(Clock.SYSTEM);
+        }
+        return requestCoordinator;
+    }
+    public static synchronized RecordingPipeline RecordingPipeline() {
+        if (recordingPipeline == null) {
+            recordingPipeline = new RecordingPipeline(context);
+        }
+        return recordingPipeline;
+    }
     public static synchronized DatabaseHelper DBHelper() {
         if(dbHelper == null)
             dbHelper = new DatabaseHelper(context);
@@ -35,11 +35,10 @@ import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.R;
 import wisc.drivesense.activity.history.HistoryActivity;
 import wisc.drivesense.activity.history.TripViewActivity;
+import wisc.drivesense.triprecorder.RecordingSnapshot;
 import wisc.drivesense.triprecorder.TripService;
 import wisc.drivesense.user.UserActivity;
-import wisc.drivesense.utility.GsonSingleton;
 import wisc.drivesense.utility.Trace;
-import wisc.drivesense.utility.TraceMessage;
 import wisc.drivesense.utility.Trip;
 import wisc.drivesense.utility.Units;
 
@@ -64,6 +63,7 @@ public class MainActivity extends AppCompatActivity {
     private TimerTask elapsedTimeUpdater;
     private boolean metricUnits;
     private Handler noGPSHandler = new Handler();
+    private long lastGPSTime = 0;
 
 
     @Override
@@ -106,7 +106,7 @@ public class MainActivity extends AppCompatActivity {
         //only reset displays to 0 on resume if a trip is not being recorded
         if(boundTripService == null || boundTripService.getCurtrip() == null)
             resetNumericalDisplays();
-        LocalBroadcastManager.getInstance(this).registerReceiver(mTraceMessageReceiver, new IntentFilter("sensor"));
+        LocalBroadcastManager.getInstance(this).registerReceiver(mTraceMessageReceiver, new IntentFilter(TripService.RECORDING_SNAPSHOT));
         LocalBroadcastManager.getInstance(this).registerReceiver(mRecordingStatusChangedReciever, new IntentFilter(TripService.TRIP_STATUS_CHANGE));
         bindTripService();
         updateButton();
@@ -352,26 +352,25 @@ public class MainActivity extends AppCompatActivity {
     };
 
     /**
-     * where we get the sensor data
+     * where we get the state of the trip, at most a few times a second
      */
     private BroadcastReceiver mTraceMessageReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String message = intent.getStringExtra("trace");
-            Trace trace = GsonSingleton.fromJson(message, TraceMessage.class).value;
+            RecordingSnapshot snapshot = RecordingSnapshot.fromIntent(intent);
             if (boundTripService != null && boundTripService.getCurtrip() != null) {
-                if (trace instanceof Trace.GPS) {
-                    sendToRealTimeMapFragment(trace);
+                if (snapshot.gps != null && snapshot.gps.time != lastGPSTime) {
+                    lastGPSTime = snapshot.gps.time;
+                    sendToRealTimeMapFragment(snapshot.gps);
                     resetGPSTimeout();
-                    Units.userFacingDouble speed = Units.speed(((Trace.GPS) trace).speed, metricUnits);
+                    Units.userFacingDouble speed = Units.speed(snapshot.gps.speed, metricUnits);
                     tvSpeed.setText(String.format("%.1f", speed.value));
                     tvSpeedUnit.setText(speed.unitName);
-                    Units.userFacingDouble distance = Units.largeDistance(boundTripService.getCurtrip().getDistance(), metricUnits);
+                    Units.userFacingDouble distance = Units.largeDistance(snapshot.distance, metricUnits);
                     tvTotalDistance.setText(String.format("%.2f",  distance.value));
                     tvTotalDistanceUnit.setText(distance.unitName);
-                } else if (trace instanceof Trace.Accel) {
-                    tvTilt.setText(String.format("%.0f", boundTripService.getCurtrip().getTilt()) + (char) 0x00B0);
                 }
+                tvTilt.setText(String.format("%.0f", snapshot.tilt) + (char) 0x00B0);
             }
         }
     };
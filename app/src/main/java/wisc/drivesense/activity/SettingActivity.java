@@ -10,6 +10,7 @@ import android.provider.Settings;
 import android.support.v7.app.AppCompatActivity;
 
 import wisc.drivesense.R;
+import wisc.drivesense.triprecorder.DrivingDetectionService;
 import wisc.drivesense.utility.Constants;
 
 public class SettingActivity extends AppCompatActivity {
@@ -28,6 +29,12 @@ public class SettingActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        DrivingDetectionService.update(this);
+    }
+
     public static boolean getAutoStart(Context context) {
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
         return sharedPref.getBoolean("pref_auto_start", context.getResources().getBoolean(R.bool.auto_start_default));
@@ -38,6 +45,11 @@ public class SettingActivity extends AppCompatActivity {
         return sharedPref.getBoolean("pref_auto_stop", context.getResources().getBoolean(R.bool.auto_stop_default));
     }
 
+    public static boolean getDetectDriving(Context context) {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPref.getBoolean("pref_detect_driving", context.getResources().getBoolean(R.bool.detect_driving_default));
+    }
+
     public static boolean getEndTripAuto(Context context) {
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
         return sharedPref.getBoolean("end_trip_inactivity", context.getResources().getBoolean(R.bool.default_end_trip_inactivity));
@@ -76,6 +88,25 @@ public class SettingActivity extends AppCompatActivity {
         return sharedPref.getBoolean("wifi_only", true);
     }
 
+    /**
+     * @param context
+     * @return number of days synced raw sensor data (everything but GPS) is kept, -1 to keep it forever
+     */
+    public static int getImuRetentionDays(Context context) {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        return Integer.parseInt(sharedPref.getString("imu_retention_days", context.getResources().getString(R.string.imu_retention_days_default)));
+    }
+
+    /**
+     * @param context
+     * @return maximum size of the trip database in bytes
+     */
+    public static long getStorageBudget(Context context) {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        long megabytes = Long.parseLong(sharedPref.getString("storage_budget_mb", context.getResources().getString(R.string.storage_budget_mb_default)));
+        return megabytes * 1024 * 1024;
+    }
+
     public static class SettingsFragment extends PreferenceFragment {
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
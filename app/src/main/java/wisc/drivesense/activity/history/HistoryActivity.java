@@ -2,6 +2,7 @@ package wisc.drivesense.activity.history;
 
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -19,16 +20,21 @@ import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.R;
-import wisc.drivesense.httpTools.TripMetadataDownloadRequest;
-import wisc.drivesense.httpTools.TripUploadRequest;
+import wisc.drivesense.httpTools.SyncJobService;
+import wisc.drivesense.httpTools.SyncListener;
+import wisc.drivesense.httpTools.TripChangesRequest;
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.DrivingEvent;
 import wisc.drivesense.utility.Trip;
 
 public class HistoryActivity extends AppCompatActivity {
@@ -71,9 +77,7 @@ public class HistoryActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.refresh:
-                Toast.makeText(this,"Refreshing trips from DriveSense server.", Toast.LENGTH_SHORT).show();
-                TripMetadataDownloadRequest update = new TripMetadataDownloadRequest(DriveSenseApp.DBHelper().getCurrentUser());
-                DriveSenseApp.RequestQueue().add(update);
+                refresh();
                 return true;
 
             default:
@@ -84,6 +88,35 @@ public class HistoryActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Refresh the trip list right away, unlike the background sync it does not wait for the
+     * battery or a backoff. A failed refresh is left to the background sync.
+     */
+    private void refresh() {
+        DriveSenseToken user = DriveSenseApp.DBHelper().getCurrentUser();
+        if(user == null) {
+            Toast.makeText(this, "Log in to refresh trips from DriveSense server.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(this, "Refreshing trips from DriveSense server.", Toast.LENGTH_SHORT).show();
+        TripChangesRequest.Start(user, new SyncListener() {
+            @Override
+            public void onSyncFinished(boolean success) {
+                if(isFinishing()) return;
+                if(!success) {
+                    Toast.makeText(HistoryActivity.this, "Could not reach DriveSense server.", Toast.LENGTH_SHORT).show();
+                    SyncJobService.requestDownload(HistoryActivity.this);
+                    return;
+                }
+                //fragments only load their trips when they are created
+                int month = mViewPager.getCurrentItem();
+                mMonthSearchPagerAdapter = new MonthSearchPagerAdapter(getSupportFragmentManager());
+                mViewPager.setAdapter(mMonthSearchPagerAdapter);
+                mViewPager.setCurrentItem(month, false);
+            }
+        });
+    }
+
     private static Calendar startOfMonth() {
         Calendar cal = Calendar.getInstance();
         cal.set(Calendar.DAY_OF_MONTH, 1);
@@ -143,6 +176,20 @@ public class HistoryActivity extends AppCompatActivity {
 
         private ArrayAdapter<Trip> adapter_ = null;
         List<Trip> trips_ = null;
+        private TextView summary_ = null;
+
+        private class AsyncEventCounter extends AsyncTask<Long, Void, Map<DrivingEvent.Type, Integer>> {
+            protected Map<DrivingEvent.Type, Integer> doInBackground(Long ... range) {
+                return DriveSenseApp.DBHelper().countDrivingEvents(range[0], range[1]);
+            }
+
+            protected void onPostExecute(Map<DrivingEvent.Type, Integer> events) {
+                if(!isAdded()) return;
+                summary_.setText(getString(R.string.events_summary, events.get(DrivingEvent.Type.HARD_BRAKE),
+                        events.get(DrivingEvent.Type.HARD_ACCEL), events.get(DrivingEvent.Type.SHARP_TURN),
+                        events.get(DrivingEvent.Type.SWERVE)));
+            }
+        }
 
         public View onCreateView(LayoutInflater inflater,
                                  ViewGroup container, Bundle savedInstanceState) {
@@ -160,6 +207,9 @@ public class HistoryActivity extends AppCompatActivity {
             trips_ = DriveSenseApp.DBHelper().loadTrips("starttime >= "+calToUnix(start)+" and starttime < "+calToUnix(end) +" and status=2");
             adapter_ = new TripHistoryListAdapter(this.getContext(), trips_);
 
+            summary_ = (TextView)rootView.findViewById(R.id.eventSummary);
+            new AsyncEventCounter().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, calToUnix(start), calToUnix(end));
+
             listView.setAdapter(adapter_);
 
             listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -187,7 +237,7 @@ public class HistoryActivity extends AppCompatActivity {
                             Trip trip = adapter_.getItem(position);
                             DriveSenseApp.DBHelper().deleteTrip(trip.guid.toString());
                             adapter_.remove(trip);
-                            TripUploadRequest.Start(view.getContext());
+                            SyncJobService.requestUpload(view.getContext(), false);
                         }
                     });
                     showPlace.setNegativeButton("CANCEL", new DialogInterface.OnClickListener() {
@@ -39,6 +39,7 @@ import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 import wisc.drivesense.R;
+import wisc.drivesense.utility.DrivingEvent;
 import wisc.drivesense.utility.Trace;
 import wisc.drivesense.utility.Trip;
 
@@ -55,6 +56,7 @@ public class SingleTripMapFragment extends Fragment implements OnMapReadyCallbac
 
     private GoogleMap map_ = null;
     private Trip trip_ = null;
+    private List<DrivingEvent> events_ = new ArrayList<>();
 
     @Nullable
     @Override
@@ -85,6 +87,13 @@ public class SingleTripMapFragment extends Fragment implements OnMapReadyCallbac
         trip_ = trip;
     }
 
+    /**
+     * @param events of the trip, drawn over the route in brake mode
+     */
+    public void setEvents(List<DrivingEvent> events) {
+        events_ = events;
+    }
+
     @Override
     public void onMapReady(GoogleMap map) {
         map_ = map;
@@ -235,14 +244,8 @@ public class SingleTripMapFragment extends Fragment implements OnMapReadyCallbac
                 //score
                 bitmapDescriptor = bitmapDescriptors.get(Math.min((int)(10.0 - point.score), colors.length - 1));
             } else {
-                //brake behaviors
-                double brake = point.brake;
-                if(brake < 0) {
-                    bitmapDescriptor = bitmapDescriptors.get(3);
-                    //bitmapDescriptor =  BitmapDescriptorFactory.fromResource(R.drawable.attention_24);
-                } else {
-                    bitmapDescriptor = bitmapDescriptors.get(0);
-                }
+                //the route, the driving events go over it
+                bitmapDescriptor = bitmapDescriptors.get(0);
             }
 
             MarkerOptions markerOptions = new MarkerOptions().position(new LatLng(point.lat, point.lng)).icon(bitmapDescriptor);
@@ -250,6 +253,10 @@ public class SingleTripMapFragment extends Fragment implements OnMapReadyCallbac
             builder.include(marker.getPosition());
         }
 
+        if(index == 4) {
+            plotEvents();
+        }
+
         // market the starting and ending points
         LatLng start = trip_.getStartPoint();
         MarkerOptions startOptions = new MarkerOptions().position(start).icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN));
@@ -268,6 +275,20 @@ public class SingleTripMapFragment extends Fragment implements OnMapReadyCallbac
         });
     }
 
+    /**
+     * hard brakes in red, hard accelerations in yellow, sharp turns in blue and swerves in magenta
+     */
+    private void plotEvents() {
+        int [] colors = {Color.RED, Color.YELLOW, Color.BLUE, Color.MAGENTA};
+        List<BitmapDescriptor> bitmapDescriptors = producePoints(colors);
+        for (DrivingEvent event : events_) {
+            if(event.lat == 0 && event.lng == 0) continue;
+            MarkerOptions markerOptions = new MarkerOptions().position(new LatLng(event.lat, event.lng))
+                    .icon(bitmapDescriptors.get(event.type.ordinal())).title(event.type.toString());
+            map_.addMarker(markerOptions);
+        }
+    }
+
     @OnClick({R.id.radioButtonBrake, R.id.radioButtonSpeed})
     public void onRadioButtonClicked(View view) {
         // Is the button now checked?
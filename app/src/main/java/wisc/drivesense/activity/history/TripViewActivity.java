@@ -23,6 +23,7 @@ import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.RadioButton;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
@@ -45,6 +46,9 @@ import butterknife.ButterKnife;
 import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.R;
 import wisc.drivesense.activity.SettingActivity;
+import wisc.drivesense.httpTools.SyncListener;
+import wisc.drivesense.httpTools.TripTraceDownloadRequest;
+import wisc.drivesense.utility.DrivingEvent;
 import wisc.drivesense.utility.Trace;
 import wisc.drivesense.utility.Trip;
 import wisc.drivesense.utility.Units;
@@ -92,10 +96,34 @@ public class TripViewActivity extends AppCompatActivity {
             }
         });
 
-        new AsyncTripLoader().execute(trip_.guid);
+        DriveSenseApp.DBHelper().markTripOpened(trip_.guid);
+        if(DriveSenseApp.DBHelper().isTripDownloaded(trip_.guid)) {
+            new AsyncTripLoader().execute(trip_.guid);
+        } else {
+            //only the metadata of this trip is on the device, get the traces first
+            Toast.makeText(this, "Downloading trip from DriveSense server.", Toast.LENGTH_SHORT).show();
+            TripTraceDownloadRequest.fetchNow(trip_, DriveSenseApp.DBHelper().getCurrentUser(), new SyncListener() {
+                @Override
+                public void onSyncFinished(final boolean success) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(isFinishing()) return;
+                            if(success) {
+                                new AsyncTripLoader().execute(trip_.guid);
+                            } else {
+                                Toast.makeText(TripViewActivity.this, "Could not download the trip, check your Internet connection.", Toast.LENGTH_LONG).show();
+                            }
+                        }
+                    });
+                }
+            });
+        }
     }
 
     private class AsyncTripLoader extends AsyncTask<String, Void, List<Trace.Trip>> {
+        private List<DrivingEvent> events;
+
         protected List<Trace.Trip> doInBackground(String ... uuids) {
             int count = uuids.length;
             if(count!=1)
@@ -103,6 +131,7 @@ public class TripViewActivity extends AppCompatActivity {
 
             String uuid = uuids[0];
             List<Trace.Trip> points = DriveSenseApp.DBHelper().getGPSPoints(uuid);
+            events = DriveSenseApp.DBHelper().getDrivingEvents(uuid);
             return points;
         }
         protected void onPostExecute(List<Trace.Trip> result) {
@@ -113,6 +142,7 @@ public class TripViewActivity extends AppCompatActivity {
             if(mapFrag!= null)
             {
                 mapFrag.setTrip(trip_);
+                mapFrag.setEvents(events);
                 mapFrag.populateMap();
             }
 
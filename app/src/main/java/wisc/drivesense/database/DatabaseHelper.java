@@ -9,16 +9,27 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.FlightRecord;
 import wisc.drivesense.utility.GsonSingleton;
 import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceBatch;
 import wisc.drivesense.utility.TraceMessage;
 import wisc.drivesense.utility.Trip;
+import wisc.drivesense.utility.TripCheckpoint;
 import wisc.drivesense.utility.TripMetadata;
+import wisc.drivesense.utility.TripSyncState;
 
 
 public class DatabaseHelper extends SQLiteOpenHelper {
@@ -28,44 +39,119 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Database Version
     private static final String DATABASE_NAME = "drivesense.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 11;
 
     // Table Names
     private static final String TABLE_USER = "user";
     private static final String TABLE_TRIP = "trip";
     private static final String TABLE_TRACE = "trace";
+    private static final String TABLE_TRIP_SYNC = "tripsync";
+    private static final String TABLE_FLIGHT_RECORD = "flightrecord";
+    private static final String TABLE_DRIVING_EVENT = "drivingevent";
+
+    // Type name of the GPS (Trace.Trip) rows, the only traces uploaded over cellular
+    private static final String TYPE_GPS = GsonSingleton.typeNameLookup.get(Trace.Trip.class);
+    // Raw sensor rows that may be removed from the device once the server has them
+    private static final String RAW_SENSOR_TYPES = "('" + GsonSingleton.typeNameLookup.get(Trace.Accel.class)
+            + "','" + GsonSingleton.typeNameLookup.get(Trace.Gyro.class)
+            + "','" + GsonSingleton.typeNameLookup.get(Trace.Magnetometer.class)
+            + "','" + GsonSingleton.typeNameLookup.get(Trace.Rotation.class)
+            + "','" + GsonSingleton.typeNameLookup.get(Trace.Orientation.class) + "')";
 
     // Table Create Statements
+    // synccursor: position in the server's trip change feed, null until the first full sync
     private static final String CREATE_TABLE_USER = "CREATE TABLE IF NOT EXISTS "
-            + TABLE_USER + "(email TEXT, firstname TEXT, lastname TEXT, dstoken TEXT);";
+            + TABLE_USER + "(email TEXT, firstname TEXT, lastname TEXT, dstoken TEXT, synccursor TEXT);";
 
     // Synced flag on a trip ONLY indicates that the metadata for the trip has been synced
     // Trips with unsynced traces still need to be found by looking at those flags
     // uuid is used to uniquely identify a trip, it is the REAL primary key
     // it is used both on the server and device
+    // shed: json of the samples dropped by type while recording under load, see IngestQueue
     private static final String CREATE_TABLE_TRIP = "CREATE TABLE IF NOT EXISTS "
             + TABLE_TRIP + "(id INTEGER PRIMARY KEY AUTOINCREMENT, uuid TEXT, starttime INTEGER, endtime INTEGER,"
-            + " distance REAL, score REAL, status INTEGER, synced INTEGER, email TEXT);";
+            + " distance REAL, score REAL, status INTEGER, synced INTEGER, email TEXT, shed TEXT);";
 
+    // batch: number of the upload batch the row was sent in, null until it is first sent, see UploadLedger
     private static final String CREATE_TABLE_TRACE= "CREATE TABLE IF NOT EXISTS "
             + TABLE_TRACE + "(id INTEGER PRIMARY KEY AUTOINCREMENT, tripid INTEGER, type TEXT, value TEXT, synced INTEGER,"
+            + " batch INTEGER, FOREIGN KEY(tripid) REFERENCES "+TABLE_TRIP+"(id));";
+
+    // One row per trip summarizing what still has to be sent to the server, so picking the next
+    // upload never scans the trace table. It is updated in the same transaction as trace inserts
+    // and acknowledgements.
+    // dirty: trip metadata changed since it was last synced
+    // unsentgps: number of unsent Trace.Trip rows, unsentimu: number of all other unsent rows
+    // lastsent: highest trace id acknowledged by the server
+    // fetched: traces of a trip from the server stored so far, -1 once all traces are on the device.
+    // A trip with fetched >= 0 is a placeholder, listed in the history with its traces downloaded on demand
+    // lastopened: last time the trip was viewed, used to evict traces of cold trips
+    // nextbatch: number of the next upload batch of the trip
+    // checkpoint: TripCheckpoint of a trip being recorded, null once it ended
+    private static final String CREATE_TABLE_TRIP_SYNC = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_TRIP_SYNC + "(tripid INTEGER PRIMARY KEY, dirty INTEGER, unsentgps INTEGER, unsentimu INTEGER,"
+            + " lastsent INTEGER, fetched INTEGER NOT NULL DEFAULT -1, lastopened INTEGER NOT NULL DEFAULT 0,"
+            + " nextbatch INTEGER NOT NULL DEFAULT 0, checkpoint TEXT,"
             + " FOREIGN KEY(tripid) REFERENCES "+TABLE_TRIP+"(id));";
 
+    // Full rate raw sensor samples around an event of a trip, see FlightRecorder
+    // time: of the trigger, samples: FlightRecord.encode
+    private static final String CREATE_TABLE_FLIGHT_RECORD = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_FLIGHT_RECORD + "(id INTEGER PRIMARY KEY AUTOINCREMENT, tripid INTEGER, reason TEXT, time INTEGER,"
+            + " triggers INTEGER, samples BLOB, FOREIGN KEY(tripid) REFERENCES "+TABLE_TRIP+"(id));";
+
+    // Hard brakes, accelerations, turns and swerves of a trip, see DrivingEvent. Written while recording
+    // and with the traces of a download, so the map and the history never parse traces to find them
+    // type: DrivingEvent.Type name, source: DrivingEvent.SENSORS or GPS
+    private static final String CREATE_TABLE_DRIVING_EVENT = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_DRIVING_EVENT + "(id INTEGER PRIMARY KEY AUTOINCREMENT, tripid INTEGER, type TEXT, starttime INTEGER,"
+            + " endtime INTEGER, lat REAL, lng REAL, peak REAL, severity REAL, source INTEGER,"
+            + " FOREIGN KEY(tripid) REFERENCES "+TABLE_TRIP+"(id));";
+    // read by cursorToEvent, qualified for the joins with the trip table
+    private static final String EVENT_COLUMNS = TABLE_DRIVING_EVENT + ".type, " + TABLE_DRIVING_EVENT + ".starttime, "
+            + TABLE_DRIVING_EVENT + ".endtime, lat, lng, peak, severity, source";
+
     //Index Create
     private static final String CREATE_INDEX_TRACE="CREATE INDEX IF NOT EXISTS i1 ON "+ TABLE_TRACE +"(tripid,type)";
     private static final String CREATE_INDEX2_TRACE="CREATE INDEX IF NOT EXISTS i2 ON "+ TABLE_TRACE +" (synced)";
+    private static final String CREATE_INDEX_TRIP_UUID="CREATE INDEX IF NOT EXISTS t1 ON "+ TABLE_TRIP +" (uuid)";
+    private static final String CREATE_INDEX_TRIP_SYNC_DIRTY="CREATE INDEX IF NOT EXISTS s1 ON "+ TABLE_TRIP_SYNC +" (dirty)";
+    private static final String CREATE_INDEX_TRIP_SYNC_GPS="CREATE INDEX IF NOT EXISTS s2 ON "+ TABLE_TRIP_SYNC +" (unsentgps)";
+    private static final String CREATE_INDEX_TRIP_SYNC_IMU="CREATE INDEX IF NOT EXISTS s3 ON "+ TABLE_TRIP_SYNC +" (unsentimu)";
+    // events of a trip in order, and of all trips in a time range by type
+    private static final String CREATE_INDEX_EVENT_TRIP="CREATE INDEX IF NOT EXISTS e1 ON "+ TABLE_DRIVING_EVENT +" (tripid, starttime)";
+    private static final String CREATE_INDEX_EVENT_TIME="CREATE INDEX IF NOT EXISTS e2 ON "+ TABLE_DRIVING_EVENT +" (starttime, type)";
+
+    // Build the summary for databases created before the tripsync table existed (version 1)
+    private static final String POPULATE_TRIP_SYNC = "INSERT INTO " + TABLE_TRIP_SYNC
+            + " (tripid, dirty, unsentgps, unsentimu, lastsent) SELECT id, synced = 0,"
+            + " (SELECT count(*) FROM " + TABLE_TRACE + " WHERE tripid = trip.id AND synced = 0 AND type = '" + TYPE_GPS + "'),"
+            + " (SELECT count(*) FROM " + TABLE_TRACE + " WHERE tripid = trip.id AND synced = 0 AND type != '" + TYPE_GPS + "'),"
+            + " IFNULL((SELECT max(id) FROM " + TABLE_TRACE + " WHERE tripid = trip.id AND synced = 1), 0)"
+            + " FROM " + TABLE_TRIP + ";";
 
     private static final String DROP_TABLE = "DROP TABLE ";
+    private static final Type SHED_TYPE = new TypeToken<Map<String, Integer>>(){}.getType();
 
     private SQLiteDatabase wdb;
     private  SQLiteDatabase rdb;
 
+    // the user only changes on login and logout, avoids a query and a JWT parse per call
+    private DriveSenseToken currentUser = null;
+    private boolean currentUserLoaded = false;
+
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         wdb = this.getWritableDatabase();
         rdb = this.getReadableDatabase();
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // only takes effect for a database without tables, existing ones are converted by StorageManager
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE_TRIP);
@@ -73,20 +159,88 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_TRACE);
         db.execSQL(CREATE_INDEX_TRACE);
         db.execSQL(CREATE_INDEX2_TRACE);
+        db.execSQL(CREATE_INDEX_TRIP_UUID);
+        createTripSyncTable(db);
+        db.execSQL(CREATE_TABLE_FLIGHT_RECORD);
+        createDrivingEventTable(db);
+    }
+
+    private void createDrivingEventTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_DRIVING_EVENT);
+        db.execSQL(CREATE_INDEX_EVENT_TRIP);
+        db.execSQL(CREATE_INDEX_EVENT_TIME);
+    }
+
+    private void createTripSyncTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_TRIP_SYNC);
+        db.execSQL(CREATE_INDEX_TRIP_SYNC_DIRTY);
+        db.execSQL(CREATE_INDEX_TRIP_SYNC_GPS);
+        db.execSQL(CREATE_INDEX_TRIP_SYNC_IMU);
     }
 
     /**
      * this method is called when DATABASE_VERSION is changed
      * for example, we change DATABASE_VERSION from 2 to 3
      * @oldVersion is 2 and @newVersion is 3
+     * Every step migrates the schema in place so recorded trips are kept
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.d(TAG, "Dropping tables for upgrade");
-        db.execSQL(DROP_TABLE+TABLE_TRACE+";");
-        db.execSQL(DROP_TABLE+TABLE_TRIP+";");
-        db.execSQL(DROP_TABLE+TABLE_USER+";");
-        onCreate(db);
+        Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if(oldVersion < 2) {
+            createTripSyncTable(db);
+            db.execSQL(POPULATE_TRIP_SYNC);
+        }
+        if(oldVersion < 3) {
+            db.execSQL(CREATE_INDEX_TRIP_UUID);
+        }
+        if(oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE_USER + " ADD COLUMN synccursor TEXT");
+        }
+        //version 1 databases got the current tripsync table above
+        if(oldVersion >= 2 && oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + TABLE_TRIP_SYNC + " ADD COLUMN fetched INTEGER NOT NULL DEFAULT -1");
+        }
+        if(oldVersion >= 2 && oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + TABLE_TRIP_SYNC + " ADD COLUMN lastopened INTEGER NOT NULL DEFAULT 0");
+        }
+        if(oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + TABLE_TRACE + " ADD COLUMN batch INTEGER");
+        }
+        if(oldVersion >= 2 && oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + TABLE_TRIP_SYNC + " ADD COLUMN nextbatch INTEGER NOT NULL DEFAULT 0");
+        }
+        if(oldVersion >= 2 && oldVersion < 8) {
+            db.execSQL("ALTER TABLE " + TABLE_TRIP_SYNC + " ADD COLUMN checkpoint TEXT");
+        }
+        if(oldVersion < 9) {
+            db.execSQL("ALTER TABLE " + TABLE_TRIP + " ADD COLUMN shed TEXT");
+        }
+        if(oldVersion < 10) {
+            db.execSQL(CREATE_TABLE_FLIGHT_RECORD);
+        }
+        if(oldVersion < 11) {
+            createDrivingEventTable(db);
+            indexRecordedBraking(db);
+        }
+    }
+
+    /**
+     * Index the hard braking of the trips on the device, only the GPS rows that have it are parsed
+     */
+    private void indexRecordedBraking(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT tripid, value FROM " + TABLE_TRACE + " WHERE type = ? and value LIKE ?",
+                new String[]{TYPE_GPS, "%\"brake\":-%"});
+        int count = 0;
+        while (cursor.moveToNext()) {
+            TraceMessage tm = GsonSingleton.fromJson(cursor.getString(1), TraceMessage.class);
+            if(tm.value instanceof Trace.Trip && ((Trace.Trip) tm.value).brake < 0) {
+                indexDrivingEvent(db, cursor.getLong(0), DrivingEvent.fromBraking((Trace.Trip) tm.value));
+                count++;
+            }
+        }
+        cursor.close();
+        Log.d(TAG, "Indexed " + count + " hard brakes of recorded trips");
     }
 
     @Override
@@ -121,7 +275,30 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             //return;
             values.put("email", "");
         }
-        wdb.insert(TABLE_TRIP, null, values);
+        wdb.beginTransaction();
+        long tripid = wdb.insert(TABLE_TRIP, null, values);
+        insertTripSync(tripid, true);
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
+    }
+
+    private void insertTripSync(long tripid, boolean dirty) {
+        ContentValues values = new ContentValues();
+        values.put("tripid", tripid);
+        values.put("dirty", dirty);
+        values.put("unsentgps", 0);
+        values.put("unsentimu", 0);
+        values.put("lastsent", 0);
+        wdb.insert(TABLE_TRIP_SYNC, null, values);
+    }
+
+    /**
+     * Flag the metadata of a trip as changed locally, so it is picked up by the next upload
+     * @param uuid
+     */
+    private void markTripDirty(String uuid) {
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET dirty = 1 WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?)", new Object[]{uuid});
     }
 
 
@@ -134,16 +311,86 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param traceids
      */
     public void markTracesSynced(Long[] traceids) {
-        ContentValues values = new ContentValues();
-        values.put("synced", 1);
-        StringBuilder sb = new StringBuilder();
-        String delim = "";
-        for (Long i : traceids) {
-            sb.append(delim).append(i);
-            delim = ",";
+        if(traceids.length == 0) {
+            return;
+        }
+        wdb.beginTransaction();
+        try {
+            TripSyncSummary.sent(new SyncRows(), traceids);
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    /**
+     * Send traces again that the server turned out not to have, see TripRepairRequest
+     * @param traceids
+     */
+    public void markTracesUnsynced(Long[] traceids) {
+        if(traceids.length == 0) {
+            return;
+        }
+        wdb.beginTransaction();
+        try {
+            TripSyncSummary.unsent(new SyncRows(), traceids);
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    /**
+     * The synced flag of trace rows and the unsent counts in tripsync
+     */
+    private class SyncRows implements TripSyncSummary.Table {
+
+        private String rowids(Long[] traceids) {
+            StringBuilder sb = new StringBuilder();
+            String delim = "";
+            for (Long i : traceids) {
+                sb.append(delim).append(i);
+                delim = ",";
+            }
+            return "rowid IN (" + sb.toString() + ")";
+        }
+
+        @Override
+        public List<TripSyncSummary.Group> group(Long[] traceids, boolean synced) {
+            //a lookup by rowid
+            String countQuery = "SELECT tripid, type = '" + TYPE_GPS + "', count(*), max(id) FROM " + TABLE_TRACE
+                    + " WHERE synced = " + (synced ? 1 : 0) + " and " + rowids(traceids) + " GROUP BY tripid, type = '" + TYPE_GPS + "'";
+            Cursor cursor = wdb.rawQuery(countQuery, null);
+            List<TripSyncSummary.Group> groups = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                groups.add(new TripSyncSummary.Group(cursor.getLong(0), cursor.getInt(1) != 0, cursor.getInt(2), cursor.getLong(3)));
+            }
+            cursor.close();
+            return groups;
+        }
+
+        @Override
+        public void setSynced(Long[] traceids, boolean synced) {
+            ContentValues values = new ContentValues();
+            values.put("synced", synced ? 1 : 0);
+            if(!synced) {
+                //the server does not have them, they go out in a new batch
+                values.putNull("batch");
+            }
+            wdb.update(TABLE_TRACE, values, rowids(traceids), null);
+        }
+
+        @Override
+        public void addUnsent(long tripid, int gps, int imu) {
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET unsentgps = max(0, unsentgps + ?), unsentimu = max(0, unsentimu + ?)"
+                    + " WHERE tripid = ?", new Object[]{gps, imu, tripid});
+        }
+
+        @Override
+        public void acknowledged(long tripid, long last) {
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET lastsent = max(lastsent, ?) WHERE tripid = ?",
+                    new Object[]{last, tripid});
         }
-        String whereClause = "rowid IN (" + sb.toString() +")";
-        wdb.update(TABLE_TRACE, values, whereClause, null);
     }
 
     /**
@@ -155,7 +402,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void markTripSynced(String uuid) {
         ContentValues values = new ContentValues();
         values.put("synced", 1);
+        wdb.beginTransaction();
         wdb.update(TABLE_TRIP, values, "uuid='" + uuid + "'", null);
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET dirty = 0 WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?)", new Object[]{uuid});
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
     }
 
     private List<TraceMessage> cursorToTraces(Cursor cursor) {
@@ -174,57 +426,219 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Return a list of trips for the current user that have unsent traces in the traces table
+     * Trips with changed metadata that is sent without traces, deleted trips never send their traces
+     * @param limit maximum number of trips to return
+     */
+    public List<Trip> getTripsWithDirtyMetadata(int limit) {
+        return getTripsToSync(TABLE_TRIP_SYNC + ".dirty = 1 and (status = " + TripMetadata.DELETED
+                + " or " + TABLE_TRIP_SYNC + ".unsentgps = 0)", limit);
+    }
+
+    /**
+     * Finalized trips with unsent GPS traces
+     * @param limit maximum number of trips to return
+     */
+    public List<Trip> getTripsWithUnsentGPS(int limit) {
+        return getTripsToSync(TABLE_TRIP_SYNC + ".unsentgps > 0 and status = " + TripMetadata.FINALIZED, limit);
+    }
+
+    /**
+     * Finalized trips whose GPS traces are all sent but that have other unsent traces
+     * @param limit maximum number of trips to return
+     */
+    public List<Trip> getTripsWithUnsentIMU(int limit) {
+        return getTripsToSync(TABLE_TRIP_SYNC + ".unsentimu > 0 and " + TABLE_TRIP_SYNC + ".unsentgps = 0 and status = "
+                + TripMetadata.FINALIZED, limit);
+    }
+
+    /**
+     * Return trips for the current user that still have something to sync, oldest first.
+     * Only the tripsync summary is consulted, the trace table is never scanned.
      * Does not include trips marked "live" (status=1). Those are only uploaded once finalized.
      *
-     * @param vitalOnly Only include "important" unsent traces, to save data. (GPS only if TRUE)
-     * @return list of Trips with traces marked as unsent in the database
+     * @param pending condition on the tripsync row
+     * @param limit maximum number of trips to return
      */
-    public List<Trip> getTripsWithUnsentTraces(boolean vitalOnly) {
+    private List<Trip> getTripsToSync(String pending, int limit) {
         DriveSenseToken user = this.getCurrentUser();
-        String traceType = "";
-        if(vitalOnly) traceType = " and type='"+GsonSingleton.typeNameLookup.get(Trace.Trip.class)+"'";
-
-        String selectQuery = "SELECT " + TABLE_TRIP + ".* FROM "+TABLE_TRIP+" INNER JOIN "
-                +"(SELECT tripid FROM "+TABLE_TRACE+" WHERE synced=0 "+traceType+" GROUP BY tripid) as A "+
-                "ON " + TABLE_TRIP + ".`id`=`A`.`tripid`";
-        if(user == null) {
-            selectQuery += " WHERE email = ''";
-
-        } else {
-            selectQuery += " WHERE (email = '" + user.email + "' or email = '')";
-        }
-        selectQuery += "and status != 1";
+        String selectQuery = "SELECT " + TABLE_TRIP + ".* FROM " + TABLE_TRIP_SYNC + " INNER JOIN " + TABLE_TRIP
+                + " ON " + TABLE_TRIP + ".id = " + TABLE_TRIP_SYNC + ".tripid"
+                + " WHERE (" + pending + ") and " + userFilter(user) + " and status != 1"
+                + " ORDER BY " + TABLE_TRIP + ".id LIMIT " + limit;
         List<Trip> trips = new ArrayList<Trip>();
         Cursor cursor = rdb.rawQuery(selectQuery, null);
-        cursor.moveToFirst();
-        if(cursor.getCount() == 0) {
-            return trips;
+        while (cursor.moveToNext()) {
+            trips.add(constructTripByCursor(cursor));
         }
-        do {
-            Trip trip = constructTripByCursor(cursor);
-            trips.add(trip);
-        } while (cursor.moveToNext());
         cursor.close();
         return trips;
     }
 
     /**
-     *
+     * @param user current user, may be null
+     * @return where clause restricting trips to the ones visible to the user
+     */
+    private static String userFilter(DriveSenseToken user) {
+        if(user == null) {
+            return "email = ''";
+        }
+        return "(email = '" + user.email + "' or email = '')";
+    }
+
+    /**
+     * The next batch of unsent traces of a trip to upload. A batch that was sent before and never
+     * acknowledged is returned again with the same rows and number, see TraceBatchNumbering
      * @param uuid
      * @param limit
      * @param vitalOnly Only include "important" unsent traces, to save data. (GPS only)
-     * @return
+     * @return null if no traces are left to send
      */
-    public List<TraceMessage> getUnsentTraces(String uuid, int limit, boolean vitalOnly) {
-        String typeQuery = "";
-        if(vitalOnly) {
-            typeQuery = " and trace.type = '" + GsonSingleton.typeNameLookup.get(Trace.Trip.class)+"'";
+    public TraceBatch getUnsentBatch(String uuid, int limit, boolean vitalOnly) {
+        long tripid = getTripId(uuid);
+        if(tripid < 0) return null;
+        wdb.beginTransaction();
+        try {
+            TraceBatch batch = TraceBatchNumbering.next(new TraceRows(tripid), limit, vitalOnly);
+            wdb.setTransactionSuccessful();
+            return batch;
+        } finally {
+            wdb.endTransaction();
         }
-        String selectQuery = "SELECT  " + TABLE_TRACE + ".* FROM " + TABLE_TRIP + " INNER JOIN " + TABLE_TRACE
-                + " on trace.tripid = trip.id WHERE trace.synced = 0"
-                + typeQuery+" and trip.uuid = '" + uuid +"' LIMIT "+limit;
+    }
+
+    /**
+     * Number traces of the trip being recorded right before they are sent
+     * @param uuid
+     * @param traces traces with their row ids
+     * @return the number of the batch
+     */
+    public int numberTraceBatch(String uuid, List<TraceMessage> traces) {
+        long tripid = getTripId(uuid);
+        wdb.beginTransaction();
+        try {
+            int seq = TraceBatchNumbering.number(new TraceRows(tripid), traces);
+            wdb.setTransactionSuccessful();
+            return seq;
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    /**
+     * The trace rows of a trip and its next batch number in tripsync
+     */
+    private class TraceRows implements TraceBatchNumbering.Rows {
+        private final long tripid;
+
+        TraceRows(long tripid) {
+            this.tripid = tripid;
+        }
+
+        @Override
+        public Integer lowestPendingBatch(boolean vitalOnly) {
+            String pending = " WHERE tripid = " + tripid + " and synced = 0 and batch IS NOT NULL";
+            String typeQuery = vitalOnly ? " and batch NOT IN (SELECT batch FROM " + TABLE_TRACE + pending
+                    + " and type != '" + TYPE_GPS + "')" : "";
+            Cursor cursor = wdb.rawQuery("SELECT min(batch) FROM " + TABLE_TRACE + pending + typeQuery, null);
+            Integer seq = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getInt(0) : null;
+            cursor.close();
+            return seq;
+        }
+
+        @Override
+        public List<TraceMessage> pendingRows(int seq) {
+            Cursor cursor = wdb.rawQuery("SELECT * FROM " + TABLE_TRACE + " WHERE tripid = " + tripid
+                    + " and synced = 0 and batch = " + seq + " ORDER BY id", null);
+            List<TraceMessage> traces = cursorToTraces(cursor);
+            cursor.close();
+            return traces;
+        }
+
+        @Override
+        public List<TraceMessage> newRows(int limit, boolean vitalOnly) {
+            String typeQuery = vitalOnly ? " and type = '" + TYPE_GPS + "'" : "";
+            Cursor cursor = wdb.rawQuery("SELECT * FROM " + TABLE_TRACE + " WHERE tripid = " + tripid
+                    + " and synced = 0 and batch IS NULL" + typeQuery + " ORDER BY id LIMIT " + limit, null);
+            List<TraceMessage> traces = cursorToTraces(cursor);
+            cursor.close();
+            return traces;
+        }
+
+        @Override
+        public int nextBatch() {
+            Cursor cursor = wdb.rawQuery("SELECT nextbatch FROM " + TABLE_TRIP_SYNC + " WHERE tripid = " + tripid, null);
+            int seq = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            cursor.close();
+            return seq;
+        }
+
+        @Override
+        public void number(List<TraceMessage> rows, int seq) {
+            StringBuilder sb = new StringBuilder();
+            String delim = "";
+            for (TraceMessage tm : rows) {
+                sb.append(delim).append(tm.rowid);
+                delim = ",";
+            }
+            wdb.execSQL("UPDATE " + TABLE_TRACE + " SET batch = " + seq + " WHERE rowid IN (" + sb.toString() + ")");
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET nextbatch = " + (seq + 1) + " WHERE tripid = " + tripid);
+        }
+    }
+
+    /**
+     * @return numbers of the batches of the current user's trips that were sent but never acknowledged, by trip uuid
+     */
+    public Map<String, List<Integer>> getPendingBatches() {
+        String selectQuery = "SELECT DISTINCT uuid, batch FROM " + TABLE_TRACE + " INNER JOIN " + TABLE_TRIP
+                + " ON trace.tripid = trip.id WHERE trace.synced = 0 and batch IS NOT NULL and "
+                + userFilter(this.getCurrentUser()) + " ORDER BY uuid, batch";
         Cursor cursor = rdb.rawQuery(selectQuery, null);
+        Map<String, List<Integer>> pending = new HashMap<>();
+        while (cursor.moveToNext()) {
+            List<Integer> batches = pending.get(cursor.getString(0));
+            if(batches == null) {
+                batches = new ArrayList<>();
+                pending.put(cursor.getString(0), batches);
+            }
+            batches.add(cursor.getInt(1));
+        }
+        cursor.close();
+        return pending;
+    }
+
+    /**
+     * Mark the traces of a batch the server turned out to have as synced
+     * @param uuid
+     * @param seq
+     */
+    public void markBatchSynced(String uuid, int seq) {
+        Cursor cursor = rdb.rawQuery("SELECT trace.id FROM " + TABLE_TRACE + " INNER JOIN " + TABLE_TRIP
+                + " ON trace.tripid = trip.id WHERE trip.uuid = ? and batch = ? and trace.synced = 0",
+                new String[]{uuid, String.valueOf(seq)});
+        Long[] traceids = new Long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            traceids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        markTracesSynced(traceids);
+    }
+
+    private long getTripId(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT id FROM " + TABLE_TRIP + " WHERE uuid = ?", new String[]{uuid});
+        long tripid = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        cursor.close();
+        return tripid;
+    }
+
+    /**
+     * @param uuid
+     * @param type type name of the traces, see GsonSingleton.typeNameLookup
+     * @return all traces of the type with their row ids
+     */
+    public List<TraceMessage> getTraces(String uuid, String type) {
+        String selectQuery = "SELECT  " + TABLE_TRACE + ".* FROM " + TABLE_TRIP + " INNER JOIN " + TABLE_TRACE
+                + " on trace.tripid = trip.id WHERE type = ? and trip.uuid = ? ORDER BY trace.id ASC";
+        Cursor cursor = rdb.rawQuery(selectQuery, new String[]{type, uuid});
         List<TraceMessage> res = cursorToTraces(cursor);
         cursor.close();
         return res;
@@ -289,11 +703,230 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Store the state of the trip being recorded, see TripCheckpoint
+     * @param uuid
+     * @param checkpoint json of the TripCheckpoint, null once the trip ended
+     */
+    public void saveCheckpoint(String uuid, String checkpoint) {
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET checkpoint = ? WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?)", new Object[]{checkpoint, uuid});
+    }
+
+    /**
+     * @param uuid
+     * @return the last checkpoint of a trip being recorded, null for trips recorded before checkpoints
+     */
+    public TripCheckpoint loadCheckpoint(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT checkpoint FROM " + TABLE_TRIP_SYNC + " INNER JOIN " + TABLE_TRIP
+                + " ON " + TABLE_TRIP + ".id = " + TABLE_TRIP_SYNC + ".tripid WHERE uuid = ?", new String[]{uuid});
+        String json = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+        return json == null ? null : TripCheckpoint.fromJson(json);
+    }
+
+    /**
+     * Store the samples the recording had to drop, see IngestQueue
+     * @param uuid
+     * @param shed number of samples by type name
+     */
+    public void saveShedCounts(String uuid, Map<String, Integer> shed) {
+        wdb.execSQL("UPDATE " + TABLE_TRIP + " SET shed = ? WHERE uuid = ?", new Object[]{GsonSingleton.toJson(shed), uuid});
+    }
+
+    /**
+     * @param uuid
+     * @return number of samples dropped while recording by type name, empty if none were
+     */
+    public Map<String, Integer> getShedCounts(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT shed FROM " + TABLE_TRIP + " WHERE uuid = ?", new String[]{uuid});
+        String json = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+        Map<String, Integer> shed = new TreeMap<>();
+        if(json != null) {
+            Map<String, Integer> stored = GsonSingleton.gson().fromJson(json, SHED_TYPE);
+            shed.putAll(stored);
+        }
+        return shed;
+    }
+
+    /**
+     * @param uuid
+     * @param record full rate samples around an event of the trip
+     */
+    public void insertFlightRecord(String uuid, FlightRecord record) {
+        wdb.execSQL("INSERT INTO " + TABLE_FLIGHT_RECORD + " (tripid, reason, time, triggers, samples) SELECT id, ?, ?, ?, ? FROM "
+                + TABLE_TRIP + " WHERE uuid = ?", new Object[]{record.reason, record.time, record.triggers, record.encode(), uuid});
+    }
+
+    /**
+     * @param uuid
+     * @return flight records of the trip in the order of their triggers
+     */
+    public List<FlightRecord> getFlightRecords(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT reason, time, triggers, samples FROM " + TABLE_FLIGHT_RECORD + " WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?) ORDER BY time", new String[]{uuid});
+        List<FlightRecord> records = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            FlightRecord record = FlightRecord.decode(cursor.getString(0), cursor.getLong(1), cursor.getBlob(3));
+            record.triggers = cursor.getInt(2);
+            records.add(record);
+        }
+        cursor.close();
+        return records;
+    }
+
+    /**
+     * Store an event of the trip, or merge it into the one of the same type it overlaps, see DrivingEvent.merge
+     * @param uuid
+     * @param event
+     */
+    public void insertDrivingEvent(String uuid, DrivingEvent event) {
+        long tripid = getTripId(uuid);
+        if(tripid < 0) return;
+        wdb.beginTransaction();
+        try {
+            indexDrivingEvent(wdb, tripid, event);
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    private static void indexDrivingEvent(SQLiteDatabase db, long tripid, DrivingEvent event) {
+        DrivingEventIndex.index(new EventRows(db, tripid), event);
+    }
+
+    /**
+     * The driving events of a trip in the drivingevent table
+     */
+    private static class EventRows implements DrivingEventIndex.Events {
+        private final SQLiteDatabase db;
+        private final long tripid;
+        //row of the event firstOverlapping returned
+        private long id = -1;
+
+        EventRows(SQLiteDatabase db, long tripid) {
+            this.db = db;
+            this.tripid = tripid;
+        }
+
+        @Override
+        public DrivingEvent firstOverlapping(DrivingEvent event) {
+            Cursor cursor = db.rawQuery("SELECT id, " + EVENT_COLUMNS + " FROM " + TABLE_DRIVING_EVENT
+                    + " WHERE tripid = ? and starttime <= ? and endtime >= ? and type = ? ORDER BY id LIMIT 1", new String[]{
+                    String.valueOf(tripid), String.valueOf(event.overlapUntil()),
+                    String.valueOf(event.overlapFrom()), event.type.name()});
+            DrivingEvent existing = cursor.moveToFirst() ? cursorToEvent(cursor, 1) : null;
+            id = existing != null ? cursor.getLong(0) : -1;
+            cursor.close();
+            return existing;
+        }
+
+        @Override
+        public void insert(DrivingEvent event) {
+            ContentValues values = eventValues(event);
+            values.put("tripid", tripid);
+            values.put("type", event.type.name());
+            db.insert(TABLE_DRIVING_EVENT, null, values);
+        }
+
+        @Override
+        public void update(DrivingEvent existing) {
+            db.update(TABLE_DRIVING_EVENT, eventValues(existing), "id = " + id, null);
+        }
+    }
+
+    private static ContentValues eventValues(DrivingEvent event) {
+        ContentValues values = new ContentValues();
+        values.put("starttime", event.start);
+        values.put("endtime", event.end);
+        values.put("lat", event.lat);
+        values.put("lng", event.lng);
+        values.put("peak", event.peak);
+        values.put("severity", event.severity);
+        values.put("source", event.source);
+        return values;
+    }
+
+    private static DrivingEvent cursorToEvent(Cursor cursor, int first) {
+        DrivingEvent event = new DrivingEvent(DrivingEvent.Type.valueOf(cursor.getString(first)), cursor.getLong(first + 1),
+                cursor.getLong(first + 2), cursor.getFloat(first + 5), cursor.getFloat(first + 6));
+        event.lat = cursor.getFloat(first + 3);
+        event.lng = cursor.getFloat(first + 4);
+        event.source = cursor.getInt(first + 7);
+        return event;
+    }
+
+    /**
+     * @param uuid
+     * @return events of the trip in the order they started, for the map
+     */
+    public List<DrivingEvent> getDrivingEvents(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT " + EVENT_COLUMNS + " FROM " + TABLE_DRIVING_EVENT + " WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?) ORDER BY starttime", new String[]{uuid});
+        List<DrivingEvent> events = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            DrivingEvent event = cursorToEvent(cursor, 0);
+            event.trip = uuid;
+            events.add(event);
+        }
+        cursor.close();
+        return events;
+    }
+
+    private String eventRange(long from, long until) {
+        return " FROM " + TABLE_DRIVING_EVENT + " INNER JOIN " + TABLE_TRIP + " ON " + TABLE_TRIP + ".id = "
+                + TABLE_DRIVING_EVENT + ".tripid WHERE " + TABLE_DRIVING_EVENT + ".starttime >= " + from + " and "
+                + TABLE_DRIVING_EVENT + ".starttime < " + until + " and status = " + TripMetadata.FINALIZED
+                + " and " + userFilter(getCurrentUser());
+    }
+
+    /**
+     * @param from ms
+     * @param until ms, not included
+     * @return events of the current user's finished trips that started in the range, in the order they started
+     */
+    public List<DrivingEvent> getDrivingEvents(long from, long until) {
+        Cursor cursor = rdb.rawQuery("SELECT uuid, " + EVENT_COLUMNS + eventRange(from, until)
+                + " ORDER BY " + TABLE_DRIVING_EVENT + ".starttime", null);
+        List<DrivingEvent> events = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            DrivingEvent event = cursorToEvent(cursor, 1);
+            event.trip = cursor.getString(0);
+            events.add(event);
+        }
+        cursor.close();
+        return events;
+    }
+
+    /**
+     * @param from ms
+     * @param until ms, not included
+     * @return number of events of each type of the current user's finished trips in the range, for the history
+     */
+    public Map<DrivingEvent.Type, Integer> countDrivingEvents(long from, long until) {
+        Cursor cursor = rdb.rawQuery("SELECT type, count(*)" + eventRange(from, until) + " GROUP BY type", null);
+        Map<DrivingEvent.Type, Integer> counts = new EnumMap<>(DrivingEvent.Type.class);
+        for (DrivingEvent.Type type : DrivingEvent.Type.values()) {
+            counts.put(type, 0);
+        }
+        while (cursor.moveToNext()) {
+            counts.put(DrivingEvent.Type.valueOf(cursor.getString(0)), cursor.getInt(1));
+        }
+        cursor.close();
+        return counts;
+    }
+
     public void deleteTrip(String uuid) {
         ContentValues values = new ContentValues();
         values.put("status", TripMetadata.DELETED);
         values.put("synced", false);
+        wdb.beginTransaction();
         wdb.update(TABLE_TRIP, values, "uuid='" + uuid + "'", null);
+        markTripDirty(uuid);
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
     }
 
     /**
@@ -309,6 +942,29 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         wdb.update(TABLE_TRIP, values, "status = " + Trip.LIVE, null);
     }
 
+    /**
+     * Load the sync state of all trips of the current user in one query,
+     * used to reconcile the local trips with the list from the server
+     * @return sync states keyed by trip uuid
+     */
+    public Map<String, TripSyncState> loadTripSyncStates() {
+        DriveSenseToken user = this.getCurrentUser();
+        String selectQuery = "SELECT uuid, synced, status, distance, IFNULL(fetched, -1) FROM " + TABLE_TRIP + " LEFT JOIN " + TABLE_TRIP_SYNC
+                + " ON " + TABLE_TRIP + ".id = " + TABLE_TRIP_SYNC + ".tripid WHERE " + userFilter(user);
+        Cursor cursor = rdb.rawQuery(selectQuery, null);
+        Map<String, TripSyncState> states = new HashMap<>(Math.max(16, cursor.getCount() * 2));
+        while (cursor.moveToNext()) {
+            TripSyncState state = new TripSyncState();
+            state.synced = cursor.getInt(1) == 1;
+            state.status = cursor.getInt(2);
+            state.distance = cursor.getDouble(3);
+            state.complete = cursor.getLong(4) < 0;
+            states.put(cursor.getString(0), state);
+        }
+        cursor.close();
+        return states;
+    }
+
     /**
      * Update a whole list of trips at once with the metadata in this list.
      * Performs sparse updates (ignoring null values)
@@ -351,7 +1007,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put("score", trip.getScore());
         values.put("distance", trip.getDistance());
         values.put("status", trip.getStatus());
+        wdb.beginTransaction();
         wdb.update(TABLE_TRIP, values, "uuid='" + trip.guid + "'", null);
+        markTripDirty(trip.guid);
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
     }
 
     /**
@@ -370,13 +1030,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         DriveSenseToken user = this.getCurrentUser();
         List<Trip> trips = new ArrayList<>();
-        String selectQuery;
-        if(user == null) {
-            selectQuery = "SELECT  * FROM " + TABLE_TRIP + " WHERE email = ''";
-
-        } else {
-            selectQuery = "SELECT  * FROM " + TABLE_TRIP + " WHERE (email = '" + user.email + "' or email = '')";
-        }
+        String selectQuery = "SELECT  * FROM " + TABLE_TRIP + " WHERE " + userFilter(user);
         if(whereClause != null)
             selectQuery += " and " + whereClause;
         selectQuery += " order by starttime desc;";
@@ -399,16 +1053,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     /**
      * @return DriveSense token used for HTTP request, null if no user logs in
      */
-    public DriveSenseToken getCurrentUser() {
-        DriveSenseToken user;
+    public synchronized DriveSenseToken getCurrentUser() {
+        if(currentUserLoaded) {
+            return currentUser;
+        }
+        DriveSenseToken user = null;
         String selectQuery = "SELECT  email, firstname, lastname, dstoken FROM " + TABLE_USER;
         Cursor cursor = rdb.rawQuery(selectQuery, null);
-        if(cursor.getCount() == 0) {
-            return null;
+        if(cursor.moveToFirst()) {
+            user = DriveSenseToken.InstantiateFromJWT(cursor.getString(3));
         }
-        cursor.moveToFirst();
-        user = DriveSenseToken.InstantiateFromJWT(cursor.getString(3));
         cursor.close();
+        currentUser = user;
+        currentUserLoaded = true;
         return user;
     }
 
@@ -418,7 +1075,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * remove it upon log out
      * @param token
      */
-    public void userLogin(DriveSenseToken token) {
+    public synchronized void userLogin(DriveSenseToken token) {
         userLogout();
         ContentValues values = new ContentValues();
         values.put("email", token.email);
@@ -431,11 +1088,181 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         ContentValues tripEmail = new ContentValues();
         tripEmail.put("email", token.email);
         wdb.update(TABLE_TRIP, tripEmail, "email=''", null);
+        currentUserLoaded = false;
     }
 
-    public void userLogout() {
+    public synchronized void userLogout() {
         Log.d(TAG, "user logout processing in database");
         wdb.delete(TABLE_USER, null, null);
+        currentUserLoaded = false;
+    }
+
+    /**
+     * @return cursor returned by the last trip change request, null if the next sync has to be a full one
+     */
+    public String getSyncCursor() {
+        String cursorValue = null;
+        Cursor cursor = rdb.rawQuery("SELECT synccursor FROM " + TABLE_USER, null);
+        if(cursor.moveToFirst()) {
+            cursorValue = cursor.getString(0);
+        }
+        cursor.close();
+        return cursorValue;
+    }
+
+    /**
+     * Store the change cursor of the logged in user
+     * @param cursor null to force a full sync next time
+     */
+    public void setSyncCursor(String cursor) {
+        ContentValues values = new ContentValues();
+        if(cursor == null) {
+            values.putNull("synccursor");
+        } else {
+            values.put("synccursor", cursor);
+        }
+        wdb.update(TABLE_USER, values, null, null);
+    }
+
+    ////////////////////////////////////////For Storage Management///////////////////////////////////////////////////
+
+    /**
+     * Remove traces, flight records and driving events of deleted trips once the deletion has been synced to the server.
+     * The trip row itself is kept so the deletion is not downloaded again.
+     * @param limit maximum number of rows removed in this call, keeps the write transaction short
+     * @return number of rows removed, 0 when nothing is left
+     */
+    public int purgeDeletedTripTraces(int limit) {
+        String deleted = "SELECT id FROM " + TABLE_TRIP + " WHERE status = " + TripMetadata.DELETED + " and synced = 1";
+        wdb.beginTransaction();
+        int count = wdb.delete(TABLE_TRACE, "id IN (SELECT id FROM " + TABLE_TRACE + " WHERE tripid IN (" + deleted + ") LIMIT " + limit + ")", null);
+        wdb.delete(TABLE_FLIGHT_RECORD, "tripid IN (" + deleted + ")", null);
+        wdb.delete(TABLE_DRIVING_EVENT, "tripid IN (" + deleted + ")", null);
+        if(count > 0) {
+            //nothing of these trips is going to be uploaded anymore
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET unsentgps = 0, unsentimu = 0 WHERE tripid IN (" + deleted + ")");
+        }
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
+        return count;
+    }
+
+    /**
+     * Remove synced raw sensor rows (everything but GPS) of finished trips, oldest trips first.
+     * The oldest trip that has any is picked from the trip table, then its rows are removed through
+     * index i1, so a call never sorts the trace rows inside the write transaction.
+     * @param endedBefore only trips that ended before this time (ms) are considered
+     * @param limit maximum number of rows removed in this call
+     * @return number of rows removed, 0 when nothing is left
+     */
+    public int purgeSyncedSensorTraces(long endedBefore, int limit) {
+        String rawSensorRows = " and " + TABLE_TRACE + ".type IN " + RAW_SENSOR_TYPES + " and " + TABLE_TRACE + ".synced = 1";
+        Cursor cursor = rdb.rawQuery("SELECT id FROM " + TABLE_TRIP + " WHERE status != " + TripMetadata.LIVE
+                + " and endtime < " + endedBefore + " and EXISTS (SELECT 1 FROM " + TABLE_TRACE + " WHERE "
+                + TABLE_TRACE + ".tripid = " + TABLE_TRIP + ".id" + rawSensorRows + ") ORDER BY endtime ASC LIMIT 1", null);
+        if(!cursor.moveToFirst()) {
+            cursor.close();
+            return 0;
+        }
+        long tripid = cursor.getLong(0);
+        cursor.close();
+        return wdb.delete(TABLE_TRACE, "id IN (SELECT id FROM " + TABLE_TRACE + " WHERE tripid = " + tripid
+                + rawSensorRows + " LIMIT " + limit + ")", null);
+    }
+
+    /**
+     * Turn the least recently used trip whose traces are all on the server back into a placeholder.
+     * Its traces are then removed by purgePlaceholderTraces and downloaded again when the trip is opened.
+     * @return 1 if a trip was evicted, 0 if there is none left to evict
+     */
+    public int evictColdestTrip() {
+        String selectQuery = "SELECT tripid FROM " + TABLE_TRIP_SYNC + " INNER JOIN " + TABLE_TRIP
+                + " ON " + TABLE_TRIP + ".id = " + TABLE_TRIP_SYNC + ".tripid"
+                + " WHERE fetched = -1 and dirty = 0 and unsentgps = 0 and unsentimu = 0 and status = " + TripMetadata.FINALIZED
+                + " ORDER BY max(lastopened, IFNULL(endtime, 0)) ASC LIMIT 1";
+        Cursor cursor = rdb.rawQuery(selectQuery, null);
+        if(!cursor.moveToFirst()) {
+            cursor.close();
+            return 0;
+        }
+        long tripid = cursor.getLong(0);
+        cursor.close();
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET fetched = 0 WHERE tripid = ?", new Object[]{tripid});
+        return 1;
+    }
+
+    /**
+     * Remove traces of evicted trips
+     * @param limit maximum number of rows removed in this call
+     * @return number of rows removed, 0 when nothing is left
+     */
+    public int purgePlaceholderTraces(int limit) {
+        String placeholders = "SELECT tripid FROM " + TABLE_TRIP_SYNC + " WHERE fetched = 0";
+        return wdb.delete(TABLE_TRACE, "id IN (SELECT id FROM " + TABLE_TRACE + " WHERE tripid IN (" + placeholders + ") LIMIT " + limit + ")", null);
+    }
+
+    public boolean hasLiveTrip() {
+        Cursor cursor = rdb.rawQuery("SELECT count(*) FROM " + TABLE_TRIP + " WHERE status = " + TripMetadata.LIVE, null);
+        cursor.moveToFirst();
+        boolean live = cursor.getLong(0) > 0;
+        cursor.close();
+        return live;
+    }
+
+    private long pragmaLong(String pragma) {
+        Cursor cursor = rdb.rawQuery("PRAGMA " + pragma, null);
+        long value = 0;
+        if(cursor.moveToFirst()) {
+            value = cursor.getLong(0);
+        }
+        cursor.close();
+        return value;
+    }
+
+    /**
+     * @return size of the database file in bytes, including free pages
+     */
+    public long getDatabaseBytes() {
+        return pragmaLong("page_count") * pragmaLong("page_size");
+    }
+
+    /**
+     * @return bytes used by live data, the part of the database counted against the storage budget
+     */
+    public long getUsedBytes() {
+        return (pragmaLong("page_count") - pragmaLong("freelist_count")) * pragmaLong("page_size");
+    }
+
+    public boolean isIncrementalVacuum() {
+        return pragmaLong("auto_vacuum") == 2;
+    }
+
+    /**
+     * Databases created before auto_vacuum was configured need one full VACUUM to switch mode.
+     * This rewrites the whole file, so it must not run while a trip is being recorded.
+     * @return true if incremental vacuum is available afterwards
+     */
+    public boolean enableIncrementalVacuum() {
+        if(isIncrementalVacuum()) {
+            return true;
+        }
+        Log.d(TAG, "Converting database to incremental vacuum");
+        wdb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        wdb.execSQL("VACUUM");
+        return isIncrementalVacuum();
+    }
+
+    /**
+     * Return up to pages free pages to the file system
+     * @param pages
+     * @return number of free pages left afterwards
+     */
+    public long incrementalVacuum(int pages) {
+        //the pragma returns one row per step, it only runs while the cursor is read
+        Cursor cursor = wdb.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        while (cursor.moveToNext()) { }
+        cursor.close();
+        return pragmaLong("freelist_count");
     }
 
     ////////////////////////////////////////For Trip Downloading///////////////////////////////////////////////////
@@ -448,7 +1275,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @throws Exception
      */
     public long[] insertSensorData(String tripUUID, List<TraceMessage> tmList, boolean synced) throws Exception {
-        long[] insertIDs = new long[tmList.size()];
         String selectQuery = "SELECT id FROM " + TABLE_TRIP + " WHERE uuid = '" + tripUUID + "';";
         Cursor cursor = rdb.rawQuery(selectQuery, null);
         cursor.moveToFirst();
@@ -457,8 +1283,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         int tripID = cursor.getInt(0);
         cursor.close();
         wdb.beginTransaction();
+        long[] insertIDs = insertTraces(tripID, tmList, synced);
+        wdb.setTransactionSuccessful();
+        wdb.endTransaction();
+        return insertIDs;
+    }
+
+    /**
+     * Insert traces of a trip, must be called inside a transaction. Hard braking in the GPS rows is
+     * indexed as driving events
+     * @return ids of the inserted rows
+     */
+    private long[] insertTraces(long tripID, List<TraceMessage> tmList, boolean synced) {
+        long[] insertIDs = new long[tmList.size()];
+        int gpsCount = 0;
         for (int i = 0; i < tmList.size(); i++) {
             TraceMessage tm = tmList.get(i);
+            if(TYPE_GPS.equals(tm.type)) gpsCount++;
+            if(tm.value instanceof Trace.Trip && ((Trace.Trip) tm.value).brake < 0) {
+                indexDrivingEvent(wdb, tripID, DrivingEvent.fromBraking((Trace.Trip) tm.value));
+            }
             ContentValues values = new ContentValues();
             values.put("synced", synced);
             values.put("value", GsonSingleton.toJson(tm));
@@ -469,44 +1313,210 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             //and that is what we want to return
             insertIDs[i] = rowid;
         }
-        wdb.setTransactionSuccessful();
-        wdb.endTransaction();
+        if(!synced) {
+            TripSyncSummary.inserted(new SyncRows(), tripID, gpsCount, tmList.size() - gpsCount);
+        }
         return insertIDs;
     }
 
     /**
-     * Insert a trip download (ONLY) from the server and all of its traces in one single transaction.
-     * If any parts fails, the whole thing will be rolled back.
+     * Start storing the traces of a trip from the server (ONLY), creating the trip if there is no placeholder for it.
+     * Traces stored by an earlier, interrupted download of the same trip are kept, see getFetchedCount.
      * @param trip
-     * @param tmList
+     * @return id of the trip row, -1 if the trip is already complete on the device
      */
-    public void insertTripAndTraces(TripMetadata trip, List<TraceMessage> tmList) {
+    public long beginTripDownload(TripMetadata trip) {
+        long tripid = -1;
         wdb.beginTransaction();
-        ContentValues values = new ContentValues();
-        values.put("uuid", trip.guid.toString());
-        //TODO: Starttime and endtime should be optionally stored. Only needed when custom values are set
-        if(tmList.size() > 0){
-            values.put("starttime", tmList.get(0).value.time);
-            values.put("endtime", tmList.get(tmList.size()-1).value.time);
+        try {
+            Cursor cursor = wdb.rawQuery("SELECT " + TABLE_TRIP + ".id, " + TABLE_TRIP_SYNC + ".fetched FROM " + TABLE_TRIP
+                    + " LEFT JOIN " + TABLE_TRIP_SYNC + " ON " + TABLE_TRIP_SYNC + ".tripid = " + TABLE_TRIP + ".id"
+                    + " WHERE uuid = ?", new String[]{trip.guid});
+            boolean exists = cursor.moveToFirst();
+            long fetched = exists && !cursor.isNull(1) ? cursor.getLong(1) : -1;
+            if(exists) tripid = cursor.getLong(0);
+            cursor.close();
+
+            if(exists) {
+                if(fetched < 0) {
+                    return -1;
+                }
+                if(fetched == 0) {
+                    //traces an eviction has not removed yet, the download starts from scratch
+                    wdb.delete(TABLE_TRACE, "tripid = " + tripid, null);
+                    wdb.setTransactionSuccessful();
+                }
+                return tripid;
+            }
+            ContentValues values = new ContentValues();
+            values.put("uuid", trip.guid);
+            values.put("distance", trip.distance);
+            values.put("status", trip.status);
+            values.put("synced", 1);
+            DriveSenseToken user = this.getCurrentUser();
+            if(user != null) {
+                values.put("email", user.email);
+            }
+            tripid = wdb.insert(TABLE_TRIP, null, values);
+            insertTripSync(tripid, false);
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET fetched = 0 WHERE tripid = ?", new Object[]{tripid});
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
         }
+        return tripid;
+    }
 
-        values.put("distance", trip.distance);
-        values.put("status", trip.status);
-        values.put("synced", 1);
+    /**
+     * @param tripid id returned by beginTripDownload
+     * @return number of traces of the trip stored so far, where the download continues
+     */
+    public long getFetchedCount(long tripid) {
+        long fetched = 0;
+        Cursor cursor = rdb.rawQuery("SELECT fetched FROM " + TABLE_TRIP_SYNC + " WHERE tripid = " + tripid, null);
+        if(cursor.moveToFirst()) {
+            fetched = Math.max(0, cursor.getLong(0));
+        }
+        cursor.close();
+        return fetched;
+    }
+
+    /**
+     * @return metadata of the current user's trips whose download was interrupted, including by the app being killed
+     */
+    public List<TripMetadata> getPartialDownloads() {
+        return loadPlaceholders("fetched > 0", Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param startedAfter only trips started after this time
+     * @param limit
+     * @return the most recent trips whose traces are not on the device
+     */
+    public List<TripMetadata> getRecentPlaceholders(long startedAfter, int limit) {
+        return loadPlaceholders("fetched >= 0 and status = " + TripMetadata.FINALIZED + " and starttime > " + startedAfter, limit);
+    }
+
+    private List<TripMetadata> loadPlaceholders(String where, int limit) {
         DriveSenseToken user = this.getCurrentUser();
-        if(user != null) {
-            values.put("email", user.email);
+        String selectQuery = "SELECT uuid, status, distance FROM " + TABLE_TRIP + " INNER JOIN " + TABLE_TRIP_SYNC
+                + " ON " + TABLE_TRIP_SYNC + ".tripid = " + TABLE_TRIP + ".id"
+                + " WHERE " + userFilter(user) + " and " + where + " ORDER BY starttime DESC LIMIT " + limit;
+        List<TripMetadata> trips = new ArrayList<>();
+        Cursor cursor = rdb.rawQuery(selectQuery, null);
+        while (cursor.moveToNext()) {
+            TripMetadata trip = new TripMetadata();
+            trip.guid = cursor.getString(0);
+            trip.status = cursor.getInt(1);
+            trip.distance = cursor.getDouble(2);
+            trips.add(trip);
         }
-        wdb.insert(TABLE_TRIP, null, values);
+        cursor.close();
+        return trips;
+    }
 
+    /**
+     * Add trips known from the server without their traces, so they are listed right away.
+     * The traces are downloaded when the trip is opened or prefetched.
+     * @param trips metadata from the server
+     */
+    public void insertTripPlaceholders(List<TripMetadata> trips) {
+        if(trips.size() == 0) return;
+        DriveSenseToken user = this.getCurrentUser();
+        wdb.beginTransaction();
         try {
-            insertSensorData(trip.guid, tmList, true);
+            for (TripMetadata trip : trips) {
+                //stored meanwhile by a trace download of the same trip
+                Cursor cursor = wdb.rawQuery("SELECT id FROM " + TABLE_TRIP + " WHERE uuid = ?", new String[]{trip.guid});
+                boolean exists = cursor.moveToFirst();
+                cursor.close();
+                if(exists) continue;
+                ContentValues values = new ContentValues();
+                values.put("uuid", trip.guid);
+                values.put("starttime", trip.starttime);
+                values.put("endtime", trip.endtime);
+                values.put("distance", trip.distance);
+                values.put("status", trip.status);
+                values.put("synced", 1);
+                if(user != null) {
+                    values.put("email", user.email);
+                }
+                long tripid = wdb.insert(TABLE_TRIP, null, values);
+                insertTripSync(tripid, false);
+                wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET fetched = 0 WHERE tripid = ?", new Object[]{tripid});
+            }
             wdb.setTransactionSuccessful();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.d(TAG, "Something went wrong inserting traces for a downloaded trip. Rolling back.");
+        } finally {
+            wdb.endTransaction();
         }
-        wdb.endTransaction();
+    }
+
+    /**
+     * @param uuid
+     * @return true if all traces of the trip are on the device
+     */
+    public boolean isTripDownloaded(String uuid) {
+        Cursor cursor = rdb.rawQuery("SELECT fetched FROM " + TABLE_TRIP_SYNC + " INNER JOIN " + TABLE_TRIP
+                + " ON " + TABLE_TRIP + ".id = " + TABLE_TRIP_SYNC + ".tripid WHERE uuid = ?", new String[]{uuid});
+        boolean downloaded = !cursor.moveToFirst() || cursor.getLong(0) < 0;
+        cursor.close();
+        return downloaded;
+    }
+
+    /**
+     * Record that the user viewed a trip, recently viewed trips are evicted last
+     * @param uuid
+     */
+    public void markTripOpened(String uuid) {
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET lastopened = ? WHERE tripid IN (SELECT id FROM "
+                + TABLE_TRIP + " WHERE uuid = ?)", new Object[]{System.currentTimeMillis(), uuid});
+    }
+
+    /**
+     * Store the next chunk of traces of a trip being downloaded
+     * @param tripid id returned by beginTripDownload
+     * @param tmList traces in the order they were received
+     */
+    public void insertDownloadedTraces(long tripid, List<TraceMessage> tmList) {
+        if(tmList.size() == 0) return;
+        wdb.beginTransaction();
+        try {
+            insertTraces(tripid, tmList, true);
+            wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET fetched = fetched + ? WHERE tripid = ?",
+                    new Object[]{tmList.size(), tripid});
+            //TODO: Starttime and endtime should be optionally stored. Only needed when custom values are set
+            wdb.execSQL("UPDATE " + TABLE_TRIP + " SET starttime = IFNULL(starttime, ?), endtime = ? WHERE id = ?",
+                    new Object[]{tmList.get(0).value.time, tmList.get(tmList.size() - 1).value.time, tripid});
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    /**
+     * Store traces of a trip that only the server had, see TripRepairRequest
+     * @param uuid
+     * @param tmList
+     */
+    public void insertRepairedTraces(String uuid, List<TraceMessage> tmList) {
+        if(tmList.size() == 0) return;
+        long tripid = getTripId(uuid);
+        if(tripid < 0) return;
+        wdb.beginTransaction();
+        try {
+            insertTraces(tripid, tmList, true);
+            wdb.setTransactionSuccessful();
+        } finally {
+            wdb.endTransaction();
+        }
+    }
+
+    /**
+     * Mark a downloaded trip complete, it becomes visible
+     * @param tripid id returned by beginTripDownload
+     */
+    public void finishTripDownload(long tripid) {
+        wdb.execSQL("UPDATE " + TABLE_TRIP_SYNC + " SET fetched = -1 WHERE tripid = ?", new Object[]{tripid});
     }
 
 }
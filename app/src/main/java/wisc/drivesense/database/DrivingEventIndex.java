@@ -0,0 +1,42 @@
+package wisc.drivesense.database;
+
+import wisc.drivesense.utility.DrivingEvent;
+
+/**
+ * How an event is stored with the events of its trip: merged into the first one of the same type
+ * it overlaps, see DrivingEvent.merge, or added. DatabaseHelper keeps the events in the drivingevent table.
+ */
+public class DrivingEventIndex {
+
+    /**
+     * The stored events of one trip
+     */
+    public interface Events {
+        /**
+         * @return the first stored event of the type that starts by event.overlapUntil() and ends
+         * from event.overlapFrom() on, null if there is none
+         */
+        DrivingEvent firstOverlapping(DrivingEvent event);
+
+        void insert(DrivingEvent event);
+
+        /**
+         * Store the changed event in place of the one firstOverlapping returned
+         */
+        void update(DrivingEvent existing);
+    }
+
+    /**
+     * @return true if anything was stored
+     */
+    public static boolean index(Events events, DrivingEvent event) {
+        DrivingEvent existing = events.firstOverlapping(event);
+        if(existing == null) {
+            events.insert(event);
+            return true;
+        }
+        if(!existing.merge(event)) return false;
+        events.update(existing);
+        return true;
+    }
+}
@@ -0,0 +1,226 @@
+package wisc.drivesense.database;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import wisc.drivesense.DriveSenseApp;
+import wisc.drivesense.activity.SettingActivity;
+
+/**
+ * Keeps the trace table within the storage budget.
+ * Nothing is removed from the trace table by the rest of the app, so this runs a list of retention
+ * policies in the background, each deleting rows in small batches so trip recording is never
+ * blocked for long, and then hands free pages back with incremental vacuum.
+ */
+public class StorageManager {
+    private static final String TAG = "StorageManager";
+
+    //rows removed per write transaction
+    private static final int BATCH_SIZE = 500;
+    //pages returned to the file system per vacuum step
+    private static final int VACUUM_PAGES = 256;
+    //pause between batches, lets the trace storage worker get the database
+    private static final long BATCH_PAUSE_MS = 50;
+    private static final long DAY_MS = 24L * 3600 * 1000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+    private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private static final Metrics metrics = new Metrics();
+
+    /**
+     * A retention rule. purge is called repeatedly until it returns 0.
+     */
+    public interface Policy {
+        String name();
+        /**
+         * @param db
+         * @param limit maximum number of rows to remove in this step
+         * @return number of rows removed
+         */
+        int purge(DatabaseHelper db, int limit);
+    }
+
+    /**
+     * Progress and results of the storage manager, readable from any thread
+     */
+    public static class Metrics {
+        public volatile boolean running;
+        public volatile String currentPolicy;
+        public volatile long rowsDeleted;
+        public volatile long bytesFreed;
+        public volatile long databaseBytes;
+        public volatile long lastRunTime;
+        public volatile long lastRunDuration;
+    }
+
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Purge traces of trips deleted by the user once the server knows about the deletion
+     */
+    public static class DeletedTripPolicy implements Policy {
+        public String name() { return "deleted trips"; }
+        public int purge(DatabaseHelper db, int limit) {
+            return db.purgeDeletedTripTraces(limit);
+        }
+    }
+
+    /**
+     * Drop synced raw sensor rows of trips older than the retention period, GPS is kept
+     */
+    public static class SensorRetentionPolicy implements Policy {
+        private final long endedBefore;
+        public SensorRetentionPolicy(int days) {
+            endedBefore = System.currentTimeMillis() - days * DAY_MS;
+        }
+        public String name() { return "sensor retention"; }
+        public int purge(DatabaseHelper db, int limit) {
+            return db.purgeSyncedSensorTraces(endedBefore, limit);
+        }
+    }
+
+    /**
+     * Drop the oldest synced raw sensor rows until the database fits in the budget
+     */
+    public static class BudgetPolicy implements Policy {
+        private final long budget;
+        public BudgetPolicy(long budget) {
+            this.budget = budget;
+        }
+        public String name() { return "storage budget"; }
+        public int purge(DatabaseHelper db, int limit) {
+            if(db.getUsedBytes() <= budget) {
+                return 0;
+            }
+            return db.purgeSyncedSensorTraces(Long.MAX_VALUE, limit);
+        }
+    }
+
+    /**
+     * When dropping raw sensor rows was not enough, drop the traces of the least recently viewed
+     * trips that are all on the server. They stay listed and are downloaded again when opened.
+     */
+    public static class ColdTripPolicy implements Policy {
+        private final long budget;
+        public ColdTripPolicy(long budget) {
+            this.budget = budget;
+        }
+        public String name() { return "cold trips"; }
+        public int purge(DatabaseHelper db, int limit) {
+            int removed = db.purgePlaceholderTraces(limit);
+            if(removed > 0 || db.getUsedBytes() <= budget) {
+                return removed;
+            }
+            return db.evictColdestTrip();
+        }
+    }
+
+    /**
+     * Build the policies from the user's settings
+     * @param context
+     * @return
+     */
+    public static List<Policy> policies(Context context) {
+        List<Policy> policies = new ArrayList<>();
+        policies.add(new DeletedTripPolicy());
+        int days = SettingActivity.getImuRetentionDays(context);
+        if(days >= 0) {
+            policies.add(new SensorRetentionPolicy(days));
+        }
+        long budget = SettingActivity.getStorageBudget(context);
+        policies.add(new BudgetPolicy(budget));
+        policies.add(new ColdTripPolicy(budget));
+        return policies;
+    }
+
+    /**
+     * Run the storage manager in the background, does nothing if a run is already queued
+     * @param context
+     */
+    public static void schedule(Context context) {
+        if(!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final List<Policy> policies = policies(context);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                try {
+                    StorageManager.run(DriveSenseApp.DBHelper(), policies);
+                } catch (Exception e) {
+                    Log.e(TAG, "Storage management failed");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private static void run(DatabaseHelper db, List<Policy> policies) throws InterruptedException {
+        metrics.running = true;
+        try {
+            runPolicies(db, policies);
+        } finally {
+            metrics.currentPolicy = null;
+            metrics.running = false;
+        }
+    }
+
+    private static void runPolicies(DatabaseHelper db, List<Policy> policies) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long sizeBefore = db.getDatabaseBytes();
+
+        for (Policy policy : policies) {
+            metrics.currentPolicy = policy.name();
+            int removed;
+            long total = 0;
+            while ((removed = policy.purge(db, BATCH_SIZE)) > 0) {
+                total += removed;
+                metrics.rowsDeleted += removed;
+                Thread.sleep(BATCH_PAUSE_MS);
+            }
+            Log.d(TAG, "Policy " + policy.name() + " removed " + total + " rows");
+        }
+
+        metrics.currentPolicy = "vacuum";
+        boolean incremental = db.isIncrementalVacuum();
+        //switching an old database over rewrites the whole file, wait until no trip is recorded
+        if(!incremental && !db.hasLiveTrip()) {
+            incremental = db.enableIncrementalVacuum();
+        }
+        if(incremental) {
+            while (db.incrementalVacuum(VACUUM_PAGES) > 0) {
+                metrics.databaseBytes = db.getDatabaseBytes();
+                Thread.sleep(BATCH_PAUSE_MS);
+            }
+        }
+
+        long sizeAfter = db.getDatabaseBytes();
+        metrics.databaseBytes = sizeAfter;
+        metrics.bytesFreed += Math.max(0, sizeBefore - sizeAfter);
+        metrics.lastRunTime = start;
+        metrics.lastRunDuration = System.currentTimeMillis() - start;
+        Log.d(TAG, "Freed " + (sizeBefore - sizeAfter) + " bytes in " + metrics.lastRunDuration + " ms, database is " + sizeAfter + " bytes");
+    }
+}
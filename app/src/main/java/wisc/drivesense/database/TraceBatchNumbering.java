@@ -0,0 +1,80 @@
+package wisc.drivesense.database;
+
+import java.util.List;
+
+import wisc.drivesense.utility.TraceBatch;
+import wisc.drivesense.utility.TraceMessage;
+
+/**
+ * How the unsent traces of a trip are numbered into batches, see UploadLedger. A batch that was
+ * sent and never acknowledged is returned again, with all its rows and its number, before anything
+ * new is taken. A GPS only upload passes over pending batches that hold other rows, they wait for
+ * a window that may send sensor data. New rows get the next number of the trip, which is never
+ * handed out twice. DatabaseHelper keeps the rows in the trace table and the next number in tripsync.
+ */
+public class TraceBatchNumbering {
+
+    /**
+     * The traces of one trip, queried inside a transaction
+     */
+    public interface Rows {
+        /**
+         * @param vitalOnly only batches whose rows that are not synced are all GPS
+         * @return lowest batch number of the rows that are not synced, null if none is numbered
+         */
+        Integer lowestPendingBatch(boolean vitalOnly);
+
+        /**
+         * @return rows of the batch that are not synced, by row id
+         */
+        List<TraceMessage> pendingRows(int seq);
+
+        /**
+         * @param limit
+         * @param vitalOnly only GPS rows
+         * @return the first rows that are neither synced nor numbered, by row id
+         */
+        List<TraceMessage> newRows(int limit, boolean vitalOnly);
+
+        /**
+         * @return the number the next batch of the trip gets
+         */
+        int nextBatch();
+
+        /**
+         * Store the number with the rows and seq + 1 as the next number of the trip
+         */
+        void number(List<TraceMessage> rows, int seq);
+    }
+
+    /**
+     * @param rows
+     * @param limit most new rows in a batch, a pending batch is returned whole
+     * @param vitalOnly only GPS rows are taken, pending batches with other rows are left for later
+     * @return null if nothing is left to send
+     */
+    public static TraceBatch next(Rows rows, int limit, boolean vitalOnly) {
+        TraceBatch batch = new TraceBatch();
+        Integer pending = rows.lowestPendingBatch(vitalOnly);
+        if(pending != null) {
+            //the server may already have it as sent
+            batch.seq = pending;
+            batch.traces = rows.pendingRows(pending);
+            return batch;
+        }
+        batch.traces = rows.newRows(limit, vitalOnly);
+        if(batch.traces.isEmpty()) return null;
+        batch.seq = number(rows, batch.traces);
+        return batch;
+    }
+
+    /**
+     * Give traces of the trip being recorded the next number right before they are sent
+     * @return the number of the batch
+     */
+    public static int number(Rows rows, List<TraceMessage> traces) {
+        int seq = rows.nextBatch();
+        rows.number(traces, seq);
+        return seq;
+    }
+}
@@ -0,0 +1,79 @@
+package wisc.drivesense.database;
+
+import java.util.List;
+
+/**
+ * How the unsent counts in the tripsync row of a trip follow its trace rows. Only rows that go
+ * from unsent to sent or back move the counts, so a batch acknowledged twice or rows marked
+ * unsent that were never sent leave them as they are. DatabaseHelper keeps the counts in tripsync.
+ */
+public class TripSyncSummary {
+
+    /**
+     * Trace rows of one trip, either GPS or everything else
+     */
+    public static class Group {
+        public final long tripid;
+        public final boolean gps;
+        public final int count;
+        //highest trace id of the rows
+        public final long last;
+
+        public Group(long tripid, boolean gps, int count, long last) {
+            this.tripid = tripid;
+            this.gps = gps;
+            this.count = count;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The trace table and the summary, changed inside one transaction
+     */
+    public interface Table {
+        /**
+         * @return the rows of traceids with the synced flag, by trip and whether they are GPS
+         */
+        List<Group> group(Long[] traceids, boolean synced);
+
+        void setSynced(Long[] traceids, boolean synced);
+
+        /**
+         * Add to the unsent counts of the trip, a count never goes below 0
+         */
+        void addUnsent(long tripid, int gps, int imu);
+
+        /**
+         * @param last highest trace id of the trip the server has, kept if it is higher already
+         */
+        void acknowledged(long tripid, long last);
+    }
+
+    /**
+     * New trace rows of a trip that are not on the server
+     */
+    public static void inserted(Table table, long tripid, int gps, int imu) {
+        table.addUnsent(tripid, gps, imu);
+    }
+
+    /**
+     * The server acknowledged the rows
+     */
+    public static void sent(Table table, Long[] traceids) {
+        for (Group group : table.group(traceids, false)) {
+            table.addUnsent(group.tripid, group.gps ? -group.count : 0, group.gps ? 0 : -group.count);
+            table.acknowledged(group.tripid, group.last);
+        }
+        table.setSynced(traceids, true);
+    }
+
+    /**
+     * The server turned out not to have the rows, they are sent again
+     */
+    public static void unsent(Table table, Long[] traceids) {
+        for (Group group : table.group(traceids, true)) {
+            table.addUnsent(group.tripid, group.gps ? group.count : 0, group.gps ? 0 : group.count);
+        }
+        table.setSynced(traceids, false);
+    }
+}
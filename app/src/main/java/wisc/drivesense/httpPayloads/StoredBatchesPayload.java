@@ -0,0 +1,12 @@
+package wisc.drivesense.httpPayloads;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers of trace batches by trip guid. The device sends the batches it never got an
+ * acknowledgement for, the server answers with the ones it has stored.
+ */
+public class StoredBatchesPayload {
+    public Map<String, List<Integer>> batches;
+}
@@ -0,0 +1,11 @@
+package wisc.drivesense.httpPayloads;
+
+import java.util.List;
+
+/**
+ * Response to a TripBatchPayload
+ */
+public class TripBatchAck {
+    //guids of the trips the server stored, the others are sent again later
+    public List<String> accepted;
+}
@@ -0,0 +1,10 @@
+package wisc.drivesense.httpPayloads;
+
+import java.util.List;
+
+/**
+ * Several trips uploaded in one request, each with its metadata and a batch of traces
+ */
+public class TripBatchPayload {
+    public List<TripPayload> trips;
+}
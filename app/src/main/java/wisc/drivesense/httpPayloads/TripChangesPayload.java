@@ -0,0 +1,17 @@
+package wisc.drivesense.httpPayloads;
+
+import java.util.List;
+
+import wisc.drivesense.utility.TripMetadata;
+
+/**
+ * Response of the trip change feed
+ */
+public class TripChangesPayload {
+    //position to send as "since" in the next request
+    public String cursor;
+    //true if the server could not serve changes since the cursor sent, trips is then the full list
+    public boolean reset;
+    //trips created, updated or deleted since the cursor sent
+    public List<TripMetadata> trips;
+}
@@ -1,5 +1,6 @@
 package wisc.drivesense.httpPayloads;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import wisc.drivesense.utility.TraceMessage;
@@ -12,4 +13,19 @@ import wisc.drivesense.utility.TripMetadata;
 
 public class TripPayload extends TripMetadata {
     public List<TraceMessage> traces;
+    // number of the batch of traces per trip, null without traces, see UploadLedger
+    public Integer seq;
+    // row id of each trace on the device, the seq of the trace if it went out in the live stream.
+    // The server skips traces of the trip it already stored, see LiveTripStream
+    public List<Long> traceIds;
+
+    /**
+     * Set traceIds from the traces, right before the payload is sent
+     */
+    public void withTraceIds() {
+        traceIds = new ArrayList<>(traces.size());
+        for (TraceMessage tm : traces) {
+            traceIds.add(tm.rowid);
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package wisc.drivesense.httpTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import wisc.drivesense.utility.TraceMessage;
+
+/**
+ * Downloads the traces of a trip page by page starting at an offset, so an interrupted
+ * download continues where it stopped. Several pages are fetched at once when bandwidth allows,
+ * they are always stored in order so the stored traces are a prefix of the trip.
+ */
+public class ChunkedTraceDownload {
+
+    public interface PageSource {
+        /**
+         * @param start index of the first trace
+         * @param limit maximum number of traces
+         * @return traces from start on, fewer than limit at the end of the trip
+         */
+        List<TraceMessage> fetch(long start, int limit) throws IOException;
+    }
+
+    public interface PageSink {
+        /**
+         * Store the next page, must persist the progress along with the traces
+         */
+        void store(List<TraceMessage> page) throws IOException;
+    }
+
+    //pages arriving faster than this allow more pages at once, slower ones fewer
+    private static final long FAST_PAGE_MS = 2000;
+    private static final long SLOW_PAGE_MS = 8000;
+
+    private final PageSource source;
+    private final PageSink sink;
+    private final int pageSize;
+    private final ExecutorService executor;
+
+    /**
+     * @param source
+     * @param sink
+     * @param pageSize traces per request
+     * @param executor runs the requests of a parallel download, null to fetch one page at a time
+     */
+    public ChunkedTraceDownload(PageSource source, PageSink sink, int pageSize, ExecutorService executor) {
+        this.source = source;
+        this.sink = sink;
+        this.pageSize = pageSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts with one page at a time and requests more pages at once while they arrive quickly
+     * @param start number of traces already stored
+     * @param maxParallel maximum number of pages requested at once
+     * @return number of traces stored in total, including start
+     * @throws IOException if a page could not be fetched, the pages before it are stored
+     */
+    public long download(long start, int maxParallel) throws IOException {
+        long stored = start;
+        int parallel = 1;
+        while (true) {
+            long windowStart = System.currentTimeMillis();
+            List<Future<List<TraceMessage>>> window = new ArrayList<>(parallel);
+            if(parallel > 1 && executor != null) {
+                for (int i = 0; i < parallel; i++) {
+                    final long offset = stored + (long) i * pageSize;
+                    window.add(executor.submit(new Callable<List<TraceMessage>>() {
+                        @Override
+                        public List<TraceMessage> call() throws IOException {
+                            return source.fetch(offset, pageSize);
+                        }
+                    }));
+                }
+            }
+            try {
+                for (int i = 0; i < parallel; i++) {
+                    List<TraceMessage> page = window.isEmpty() ? source.fetch(stored, pageSize) : get(window.get(i));
+                    if(page.size() > 0) {
+                        sink.store(page);
+                        stored += page.size();
+                    }
+                    //a short page is the end of the trip, a longer one means the server sent the rest at once
+                    if(page.size() != pageSize) return stored;
+                }
+            } finally {
+                for (Future<List<TraceMessage>> future : window) {
+                    future.cancel(true);
+                }
+            }
+            long perPage = (System.currentTimeMillis() - windowStart) / parallel;
+            if(perPage < FAST_PAGE_MS) {
+                parallel = Math.min(maxParallel, parallel * 2);
+            } else if(perPage > SLOW_PAGE_MS) {
+                parallel = Math.max(1, parallel / 2);
+            }
+        }
+    }
+
+    private static List<TraceMessage> get(Future<List<TraceMessage>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package wisc.drivesense.httpTools;
 
+import android.util.Log;
+
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 import wisc.drivesense.user.DriveSenseToken;
 import wisc.drivesense.utility.GsonSingleton;
@@ -17,11 +19,39 @@ import wisc.drivesense.utility.GsonSingleton;
 
 public abstract class CompressedGSONRequest<T> extends GsonRequest<T> {
     private final String TAG = "CompressedGSONRequest";
+    //sent with every trace upload once this client has a dictionary, the newest version it has
+    private static final String ACCEPT_DICTIONARY_HEADER = "X-Trace-Dictionary-Accept";
+    //in a response the version the server will accept, in a request the version the body was deflated with
+    private static final String DICTIONARY_HEADER = "X-Trace-Dictionary";
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    //dictionary version the server last said it accepts, 0 until it says so
+    private static volatile int serverDictionary = 0;
+
+    //dictionary this request is deflated with, 0 for gzip
+    private int dictionaryVersion = -1;
+
     public CompressedGSONRequest(int method, String url, Object body, Class<T> responseClass, DriveSenseToken dsToken) {
         super(method, url, body, responseClass);
         this.dsToken = dsToken;
     }
 
+    /**
+     * Requests whose bodies are mostly traces opt in to deflating with a preset trace dictionary,
+     * which is used once the server has announced that it has the same version
+     */
+    protected boolean usesTraceDictionary() {
+        return false;
+    }
+
+    private synchronized int getDictionaryVersion() {
+        if(dictionaryVersion < 0) {
+            int version = usesTraceDictionary() ? Math.min(serverDictionary, TraceDictionary.VERSION) : 0;
+            dictionaryVersion = TraceDictionary.get(version) != null ? version : 0;
+        }
+        return dictionaryVersion;
+    }
+
     public String getBodyContentType()
     {
         return "application/json";
@@ -31,26 +61,59 @@ public abstract class CompressedGSONRequest<T> extends GsonRequest<T> {
     public Map<String, String> getHeaders() throws AuthFailureError {
 
         HashMap<String, String> headers = new HashMap<>(super.getHeaders());
-        headers.put("Content-Encoding", "gzip");
+        int version = getDictionaryVersion();
+        if(version > 0) {
+            headers.put("Content-Encoding", "deflate");
+            headers.put(DICTIONARY_HEADER, Integer.toString(version));
+        } else {
+            headers.put("Content-Encoding", "gzip");
+        }
+        if(usesTraceDictionary() && TraceDictionary.VERSION > 0) {
+            headers.put(ACCEPT_DICTIONARY_HEADER, Integer.toString(TraceDictionary.VERSION));
+        }
         return headers;
     }
 
+    /**
+     * @return the body before compression
+     */
+    protected String toJson() {
+        return GsonSingleton.toJson(payload);
+    }
+
     @Override
     public byte[] getBody() {
-        String json = GsonSingleton.toJson(payload);
-        byte[] jsonBytes = json.getBytes();
-
-        ByteArrayOutputStream os = new ByteArrayOutputStream(jsonBytes.length);
-        try {
-            GZIPOutputStream gos = new GZIPOutputStream(os);
-            gos.write(jsonBytes);
-            gos.close();
-            os.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        byte[] output = os.toByteArray();
+        byte[] jsonBytes = toJson().getBytes();
+        int version = getDictionaryVersion();
+        byte[] output = version > 0 ? PayloadCompression.deflate(jsonBytes, TraceDictionary.get(version)) : PayloadCompression.gzip(jsonBytes);
         //Log.d(TAG, "Compressed payload from "+jsonBytes.length + " bytes to "+output.length+" bytes, a compression ratio of "+output.length/(float)jsonBytes.length);
         return output;
     }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        if(usesTraceDictionary() && response.headers != null) {
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                if(DICTIONARY_HEADER.equalsIgnoreCase(header.getKey())) {
+                    try {
+                        serverDictionary = Integer.parseInt(header.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        serverDictionary = 0;
+                    }
+                }
+            }
+        }
+        return super.parseNetworkResponse(response);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        //the server dropped the dictionary, send gzip until it announces one again
+        if(volleyError.networkResponse != null && volleyError.networkResponse.statusCode == HTTP_UNSUPPORTED_MEDIA_TYPE
+                && getDictionaryVersion() > 0) {
+            Log.d(TAG, "Server rejected dictionary " + getDictionaryVersion() + ", falling back to gzip");
+            serverDictionary = 0;
+        }
+        return super.parseNetworkError(volleyError);
+    }
 }
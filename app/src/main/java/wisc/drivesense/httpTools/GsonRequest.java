@@ -90,9 +90,11 @@ public abstract class GsonRequest<T> extends Request<T> implements Response.List
     @Override
     protected Response<T> parseNetworkResponse(NetworkResponse response) {
         try {
+            long start = System.currentTimeMillis();
             String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
-            return (Response<T>)Response.success(GsonSingleton.fromJson(json, responseType),
-                    HttpHeaderParser.parseCacheHeaders(response));
+            T parsed = (T) GsonSingleton.fromJson(json, responseType);
+            Log.d(TAG, getUrl() + ": " + response.data.length + " bytes parsed in " + (System.currentTimeMillis() - start) + " ms");
+            return (Response<T>)Response.success(parsed, HttpHeaderParser.parseCacheHeaders(response));
         } catch (UnsupportedEncodingException e) {
             return Response.error(new ParseError(e));
         } catch (JsonSyntaxException e) {
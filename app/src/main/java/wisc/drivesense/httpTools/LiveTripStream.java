@@ -0,0 +1,411 @@
+package wisc.drivesense.httpTools;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Clock;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.TraceMessage;
+
+/**
+ * Streams the GPS points of the trip being recorded over one long running chunked HTTP POST,
+ * a JSON line per point sent as soon as it arrives, instead of a new request per batch.
+ * A point's seq is its row id on the device, so it only grows within a trip, also when the
+ * trip is resumed with a new stream, and it is the id the batch uploads send in TripPayload.traceIds.
+ * The server answers with a chunked response of one line per stored point holding its seq,
+ * acknowledging every point up to it, which gives the end-to-end latency of each point.
+ *
+ * When the connection drops or stalls the points without acknowledgement are handed back
+ * through Listener.onFallback to be uploaded as a batch, and offer refuses points until a
+ * new connection may be tried after RECONNECT_MS. The server may have stored some of them
+ * without its acknowledgement getting through, it skips the trace ids of the batch it already has.
+ */
+public class LiveTripStream {
+    private static final String TAG = "LiveTripStream";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    //a point not acknowledged after this long means the stream stalled
+    static final long ACK_TIMEOUT_MS = 10000;
+    static final long RECONNECT_MS = 30 * 1000;
+    private static final Object END = new Object();
+
+    public interface Listener {
+        /**
+         * The server stored the points, called on the reading thread
+         */
+        void onAcknowledged(List<TraceMessage> traces);
+
+        /**
+         * The stream dropped, the points have to be uploaded another way
+         */
+        void onFallback(List<TraceMessage> traces);
+    }
+
+    private static class Pending {
+        final long seq;
+        final TraceMessage trace;
+        final double distance;
+        final long queued;
+
+        Pending(long seq, TraceMessage trace, double distance, long queued) {
+            this.seq = seq;
+            this.trace = trace;
+            this.distance = distance;
+            this.queued = queued;
+        }
+    }
+
+    //one line of the request body
+    private static class Frame {
+        long seq;
+        double distance;
+        TraceMessage trace;
+    }
+
+    private final URL url;
+    private final DriveSenseToken dsToken;
+    private final String guid;
+    private final Listener listener;
+    private final Clock clock;
+
+    private final LinkedBlockingQueue<Object> outbox = new LinkedBlockingQueue<>();
+    //sent and not acknowledged, by seq
+    private final Map<Long, Pending> unacked = new LinkedHashMap<>();
+    private final SyncQueue.Stats latency = new SyncQueue.Stats();
+    private volatile long retryAt = 0;
+    private volatile boolean stopped = false;
+
+    private Thread writer;
+    private volatile Socket socket;
+    private OutputStream out;
+    private Thread reader;
+
+    public LiveTripStream(String url, DriveSenseToken dsToken, String guid, Listener listener, Clock clock) throws IOException {
+        this.url = new URL(url);
+        this.dsToken = dsToken;
+        this.guid = guid;
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    public synchronized void start() {
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /**
+     * Send a point of the trip, points are offered in the order of their row ids
+     * @param tm a stored point
+     * @param distance distance of the trip so far
+     * @return false if the stream is down, the caller uploads the point as a batch
+     */
+    public synchronized boolean offer(TraceMessage tm, double distance) {
+        if(stopped || clock.currentTimeMillis() < retryAt) return false;
+        outbox.add(new Pending(tm.rowid, tm, distance, clock.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * End the request after the points offered so far, points the server does not
+     * acknowledge in time are handed to Listener.onFallback
+     */
+    public void stop() {
+        synchronized (this) {
+            if(stopped) return;
+            stopped = true;
+        }
+        outbox.add(END);
+        try {
+            writer.join(2 * ACK_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * @return time from offering a point until the server acknowledged it
+     */
+    public SyncQueue.Stats getLatency() {
+        synchronized (latency) {
+            SyncQueue.Stats copy = new SyncQueue.Stats();
+            copy.count = latency.count;
+            copy.totalLatency = latency.totalLatency;
+            copy.maxLatency = latency.maxLatency;
+            return copy;
+        }
+    }
+
+    private void write() {
+        while (true) {
+            Object next;
+            try {
+                next = outbox.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if(next == END) {
+                finish();
+                return;
+            }
+            if(socket != null && stalled()) {
+                fail(new IOException("no acknowledgement for " + ACK_TIMEOUT_MS + " ms"));
+            }
+            if(next == null) continue;
+            Pending p = (Pending) next;
+            synchronized (unacked) {
+                unacked.put(p.seq, p);
+            }
+            try {
+                if(socket == null) connect();
+                Frame frame = new Frame();
+                frame.seq = p.seq;
+                frame.distance = p.distance;
+                frame.trace = p.trace;
+                byte[] line = (GsonSingleton.toJson(frame) + "\n").getBytes("UTF-8");
+                out.write((Integer.toHexString(line.length) + "\r\n").getBytes("US-ASCII"));
+                out.write(line);
+                out.write("\r\n".getBytes("US-ASCII"));
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private boolean stalled() {
+        synchronized (unacked) {
+            Iterator<Pending> it = unacked.values().iterator();
+            return it.hasNext() && clock.currentTimeMillis() - it.next().queued > ACK_TIMEOUT_MS;
+        }
+    }
+
+    private void connect() throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(url.getHost(), port), CONNECT_TIMEOUT_MS);
+        if("https".equals(url.getProtocol())) {
+            s = secure(s, port);
+        }
+        //points are small and latency matters more than packets
+        s.setTcpNoDelay(true);
+        StringBuilder request = new StringBuilder();
+        request.append("POST ").append(url.getPath()).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\n");
+        if(dsToken != null) {
+            request.append("Authorization: JWT ").append(dsToken.jwt).append("\r\n");
+        }
+        request.append("X-Trip-Guid: ").append(guid).append("\r\n");
+        request.append("Content-Type: application/x-ndjson\r\n");
+        request.append("Transfer-Encoding: chunked\r\n\r\n");
+        out = s.getOutputStream();
+        out.write(request.toString().getBytes("US-ASCII"));
+        out.flush();
+        socket = s;
+        final InputStream in = new BufferedInputStream(s.getInputStream());
+        final Socket connection = s;
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(in);
+                } catch (IOException e) {
+                    if(!connection.isClosed()) Log.d(TAG, "Reading acknowledgements failed. " + e.toString());
+                }
+                if(!stopped) {
+                    //the server ended the response, the next point falls back
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        //closing anyway
+                    }
+                }
+            }
+        }, TAG + " acks");
+        reader.start();
+        Log.d(TAG, "Streaming trip " + guid);
+    }
+
+    /**
+     * TLS over the connected socket, the token only goes out once the certificate is for the host
+     */
+    private Socket secure(Socket plain, int port) throws IOException {
+        SSLSocket s = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plain, url.getHost(), port, true);
+        try {
+            s.startHandshake();
+            if(!HttpsURLConnection.getDefaultHostnameVerifier().verify(url.getHost(), s.getSession())) {
+                throw new SSLPeerUnverifiedException("certificate is not for " + url.getHost());
+            }
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        return s;
+    }
+
+    /**
+     * Parse the response, a line with a seq for every acknowledgement
+     */
+    private void read(InputStream in) throws IOException {
+        String status = readLine(in);
+        if(status == null || !status.matches("HTTP/1\\.[01] 200.*")) {
+            throw new IOException("Server returned " + status);
+        }
+        boolean chunked = false;
+        String header;
+        while ((header = readLine(in)) != null && !header.isEmpty()) {
+            if(header.toLowerCase().startsWith("transfer-encoding:") && header.toLowerCase().contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int size = Integer.MAX_VALUE;
+            if(chunked) {
+                String sizeLine = readLine(in);
+                if(sizeLine == null) return;
+                int ext = sizeLine.indexOf(';');
+                size = Integer.parseInt((ext < 0 ? sizeLine : sizeLine.substring(0, ext)).trim(), 16);
+                if(size == 0) return;
+            }
+            for (int i = 0; i < size; i++) {
+                int b = in.read();
+                if(b == -1) return;
+                if(b == '\n') {
+                    acknowledge(Long.parseLong(line.toString("US-ASCII").trim()));
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+            if(chunked) readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if(b != '\r') line.write(b);
+        }
+        if(b == -1 && line.size() == 0) return null;
+        return line.toString("US-ASCII");
+    }
+
+    private void acknowledge(long seq) {
+        List<TraceMessage> acked = new ArrayList<>();
+        long now = clock.currentTimeMillis();
+        synchronized (unacked) {
+            Iterator<Pending> it = unacked.values().iterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                if(p.seq > seq) break;
+                it.remove();
+                acked.add(p.trace);
+                synchronized (latency) {
+                    long waited = now - p.queued;
+                    latency.count++;
+                    latency.totalLatency += waited;
+                    latency.maxLatency = Math.max(latency.maxLatency, waited);
+                }
+            }
+        }
+        if(!acked.isEmpty()) listener.onAcknowledged(acked);
+    }
+
+    /**
+     * End the request body and wait for the remaining acknowledgements
+     */
+    private void finish() {
+        if(socket != null) {
+            try {
+                out.write("0\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+                reader.join(ACK_TIMEOUT_MS);
+            } catch (IOException e) {
+                Log.d(TAG, "Ending the stream failed. " + e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        close();
+        fallback();
+        Log.d(TAG, "Stream of trip " + guid + " ended, latency " + getLatency().getMeanLatency() + " ms mean, "
+                + getLatency().maxLatency + " ms max");
+    }
+
+    private void fail(IOException e) {
+        Log.d(TAG, "Stream of trip " + guid + " dropped, falling back to batch upload. " + e.toString());
+        retryAt = clock.currentTimeMillis() + RECONNECT_MS;
+        close();
+        fallback();
+    }
+
+    private void close() {
+        if(socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+        socket = null;
+        out = null;
+    }
+
+    /**
+     * Hand every point that isn't acknowledged back to the listener, in order
+     */
+    private void fallback() {
+        List<TraceMessage> left = new ArrayList<>();
+        synchronized (unacked) {
+            for (Pending p : unacked.values()) {
+                left.add(p.trace);
+            }
+            unacked.clear();
+        }
+        synchronized (this) {
+            List<Object> waiting = new ArrayList<>();
+            outbox.drainTo(waiting);
+            for (Object o : waiting) {
+                if(o instanceof Pending) {
+                    left.add(((Pending) o).trace);
+                } else {
+                    outbox.add(o);
+                }
+            }
+        }
+        if(!left.isEmpty()) listener.onFallback(left);
+    }
+}
@@ -0,0 +1,77 @@
+package wisc.drivesense.httpTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of upload bodies. Plain gzip, or zlib deflate primed with a preset dictionary
+ * so that even a body of a few traces does not have to spell out every key name.
+ */
+public class PayloadCompression {
+
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length);
+        try {
+            GZIPOutputStream gos = new GZIPOutputStream(os);
+            gos.write(data);
+            gos.close();
+            os.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * @param data
+     * @param dictionary preset dictionary, the receiver needs the same one
+     * @return zlib stream, its header carries the Adler-32 checksum of the dictionary
+     */
+    public static byte[] deflate(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                os.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return os.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reverse of deflate, as done by the server
+     * @throws DataFormatException if the data is corrupt or was compressed with another dictionary
+     */
+    public static byte[] inflate(byte[] data, byte[] dictionary) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0) {
+                    if(inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                    } else if(inflater.needsInput()) {
+                        throw new DataFormatException("Truncated stream");
+                    }
+                }
+                os.write(buffer, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
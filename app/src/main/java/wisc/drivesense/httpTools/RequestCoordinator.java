@@ -0,0 +1,139 @@
+package wisc.drivesense.httpTools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wisc.drivesense.utility.Clock;
+
+/**
+ * Runs at most one request per key at a time, the key being the endpoint and the trip or user it is for.
+ * A caller asking for work that is already in flight waits for the same result instead of sending
+ * a duplicate request.
+ */
+public class RequestCoordinator {
+
+    public interface Callback<T> {
+        /**
+         * @param result result of the request, null if it failed or has none
+         * @param success false if the request failed
+         */
+        void onComplete(T result, boolean success);
+    }
+
+    public interface Call<T> {
+        /**
+         * Start the request, done must be called exactly once when it finishes
+         */
+        void start(Callback<T> done);
+    }
+
+    /**
+     * Snapshot of a request in flight
+     */
+    public static class InFlight {
+        public final String key;
+        public final long startTime;
+        public final int waiters;
+
+        InFlight(String key, long startTime, int waiters) {
+            this.key = key;
+            this.startTime = startTime;
+            this.waiters = waiters;
+        }
+    }
+
+    private class Flight<T> implements Callback<T> {
+        final String key;
+        final long startTime;
+        final List<Callback<T>> waiters = new ArrayList<>();
+        boolean done = false;
+
+        Flight(String key, long startTime) {
+            this.key = key;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void onComplete(T result, boolean success) {
+            finish(this, result, success);
+        }
+    }
+
+    private final Map<String, Flight<?>> flights = new HashMap<>();
+    private final Clock clock;
+
+    public RequestCoordinator(Clock clock) {
+        this.clock = clock;
+    }
+
+    public static String key(String endpoint, String id) {
+        return endpoint + "#" + id;
+    }
+
+    /**
+     * Start a request unless one with the same key is in flight
+     * @param key see key(String, String)
+     * @param call starts the request, not used if the caller joins a request in flight
+     * @param waiter told when the request finishes, may be null
+     * @return true if the request was started, false if the caller joined the one in flight
+     */
+    @SuppressWarnings("unchecked")
+    public <T> boolean submit(String key, Call<T> call, Callback<T> waiter) {
+        Flight<T> flight;
+        synchronized (this) {
+            flight = (Flight<T>) flights.get(key);
+            if(flight != null) {
+                if(waiter != null) flight.waiters.add(waiter);
+                return false;
+            }
+            flight = new Flight<>(key, clock.currentTimeMillis());
+            if(waiter != null) flight.waiters.add(waiter);
+            flights.put(key, flight);
+        }
+        try {
+            call.start(flight);
+        } catch (RuntimeException e) {
+            flight.onComplete(null, false);
+            throw e;
+        }
+        return true;
+    }
+
+    private <T> void finish(Flight<T> flight, T result, boolean success) {
+        List<Callback<T>> waiters;
+        synchronized (this) {
+            if(flight.done) return;
+            flight.done = true;
+            flights.remove(flight.key);
+            waiters = new ArrayList<>(flight.waiters);
+        }
+        for (Callback<T> waiter : waiters) {
+            waiter.onComplete(result, success);
+        }
+    }
+
+    public synchronized boolean isInFlight(String key) {
+        return flights.containsKey(key);
+    }
+
+    /**
+     * @return the requests in flight right now, oldest first
+     */
+    public synchronized List<InFlight> getInFlight() {
+        List<InFlight> inFlight = new ArrayList<>(flights.size());
+        for (Flight<?> flight : flights.values()) {
+            inFlight.add(new InFlight(flight.key, flight.startTime, flight.waiters.size()));
+        }
+        Collections.sort(inFlight, new Comparator<InFlight>() {
+            @Override
+            public int compare(InFlight a, InFlight b) {
+                return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+            }
+        });
+        return inFlight;
+    }
+}
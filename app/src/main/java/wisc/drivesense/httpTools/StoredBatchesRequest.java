@@ -0,0 +1,39 @@
+package wisc.drivesense.httpTools;
+
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import wisc.drivesense.httpPayloads.StoredBatchesPayload;
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Constants;
+
+/**
+ * Asks the server which pending trace batches it already stored before the backlog is uploaded,
+ * see UploadLedger. If the server can't be asked the batches are simply sent again.
+ */
+class StoredBatchesRequest extends GsonRequest<StoredBatchesPayload> {
+    private static final String TAG = "StoredBatchesRequest";
+
+    private final UploadLedger ledger;
+    private final StoredBatchesPayload query;
+
+    StoredBatchesRequest(UploadLedger ledger, StoredBatchesPayload query, DriveSenseToken dsToken) {
+        super(Request.Method.POST, Constants.kStoredBatchesURL, query, StoredBatchesPayload.class, dsToken);
+        this.ledger = ledger;
+        this.query = query;
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        Log.d(TAG, "Could not ask for stored batches, pending batches are sent again");
+        TripUploadRequest.onSettled();
+    }
+
+    @Override
+    public void onResponse(StoredBatchesPayload response) {
+        Log.d(TAG, ledger.settle(query, response) + " pending batches were already stored");
+        TripUploadRequest.onSettled();
+    }
+}
@@ -0,0 +1,20 @@
+package wisc.drivesense.httpTools;
+
+/**
+ * Device state that decides what a sync window is allowed to do
+ */
+public interface SyncConstraints {
+    boolean isConnected();
+
+    /**
+     * @return true on WiFi or any other network that is not billed by the byte
+     */
+    boolean isUnmetered();
+
+    boolean isCharging();
+
+    /**
+     * @return battery level between 0 and 100
+     */
+    int getBatteryPercent();
+}
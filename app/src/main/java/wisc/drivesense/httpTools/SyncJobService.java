@@ -0,0 +1,245 @@
+package wisc.drivesense.httpTools;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.util.Log;
+
+import wisc.drivesense.DriveSenseApp;
+import wisc.drivesense.activity.SettingActivity;
+import wisc.drivesense.utility.Clock;
+
+/**
+ * Runs uploads and downloads in windows scheduled with JobScheduler, replaces NetworkStateReceiver
+ * which no longer receives connectivity changes from Android 7.0.
+ * SyncPolicy decides when a window may start and what it does, this service only asks JobScheduler
+ * for the matching constraints and starts the requests.
+ */
+public class SyncJobService extends JobService {
+    private static final String TAG = "SyncJobService";
+    private static final int JOB_ID = 1;
+
+    private static final String PREFS = "sync_policy";
+
+    private static SyncPolicy policy = null;
+    //the window being worked on, null when no job is running
+    private static SyncPolicy.Window currentWindow = null;
+
+    private static synchronized SyncPolicy policy(Context context) {
+        if(policy == null) {
+            policy = new SyncPolicy(Clock.SYSTEM, new PreferenceStore(context.getApplicationContext()));
+        }
+        return policy;
+    }
+
+    /**
+     * Ask for the backlog of unsynced trips to be uploaded
+     * @param context
+     * @param coalesce true at the end of a trip, waits a little so several requests share one window
+     */
+    public static void requestUpload(Context context, boolean coalesce) {
+        policy(context).requestUpload(coalesce);
+        schedule(context);
+    }
+
+    /**
+     * Ask for the trip list to be refreshed from the server in the background, a refresh the user
+     * asked for starts TripChangesRequest right away
+     * @param context
+     */
+    public static void requestDownload(Context context) {
+        policy(context).requestDownload();
+        schedule(context);
+    }
+
+    private static synchronized void schedule(Context context) {
+        //scheduling the job again would stop the running one, it is scheduled when the window finishes
+        if(currentWindow != null) return;
+        SyncPolicy policy = policy(context);
+        long delay = policy.getDelay();
+        if(delay < 0) return;
+        int network = policy.requiresUnmetered() ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY;
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, SyncJobService.class))
+                .setRequiredNetworkType(network)
+                .setRequiresCharging(policy.requiresCharging())
+                .setMinimumLatency(delay)
+                //the policy is saved as well, the pending work is still there after a reboot
+                .setPersisted(true)
+                .build();
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(job);
+        Log.d(TAG, "Scheduled sync in " + delay + " ms, failures: " + policy.getFailureCount());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final SyncPolicy.Window window;
+        synchronized (SyncJobService.class) {
+            window = policy(this).startWindow(new DeviceConstraints(this), SettingActivity.getWifiOnly(this));
+            if(window.isEmpty()) {
+                schedule(this);
+                return false;
+            }
+            if(DriveSenseApp.DBHelper().getCurrentUser() == null) {
+                //nothing to sync without a user, logging in requests a new window
+                policy(this).finishWindow(window, true, false);
+                return false;
+            }
+            currentWindow = window;
+        }
+        Log.d(TAG, "Starting sync window, upload: " + window.upload + " vitalOnly: " + window.vitalOnly + " download: " + window.download);
+        //start the requests after returning, they may finish right away
+        new Handler().post(new Runnable() {
+            @Override
+            public void run() {
+                new WindowTask(params, window).start();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        synchronized (SyncJobService.class) {
+            if(currentWindow != null) {
+                Log.d(TAG, "Sync window stopped by the system");
+                policy(this).cancelWindow(currentWindow);
+                currentWindow = null;
+            }
+        }
+        TripUploadRequest.StopBacklog();
+        schedule(this);
+        return false;
+    }
+
+    /**
+     * Runs the requests of one window and closes it once all of them have finished
+     */
+    private class WindowTask implements SyncListener {
+        private final JobParameters params;
+        private final SyncPolicy.Window window;
+        private int remaining = 0;
+        private boolean success = true;
+
+        WindowTask(JobParameters params, SyncPolicy.Window window) {
+            this.params = params;
+            this.window = window;
+            if(window.upload) remaining++;
+            if(window.download) remaining++;
+        }
+
+        void start() {
+            Context context = getApplicationContext();
+            if(window.upload) {
+                TripUploadRequest.StartBacklog(context, window.vitalOnly, this);
+            }
+            if(window.download) {
+                TripChangesRequest.Start(DriveSenseApp.DBHelper().getCurrentUser(), this);
+            }
+        }
+
+        @Override
+        public void onSyncFinished(boolean ok) {
+            synchronized (SyncJobService.class) {
+                //the window was stopped, its work has already been requested again
+                if(currentWindow != window) return;
+                success &= ok;
+                if(--remaining > 0) return;
+                boolean sensorDataLeft = window.upload && window.vitalOnly
+                        && !DriveSenseApp.DBHelper().getTripsWithUnsentIMU(1).isEmpty();
+                policy(getApplicationContext()).finishWindow(window, success, sensorDataLeft);
+                currentWindow = null;
+            }
+            Log.d(TAG, "Sync window finished, success: " + success);
+            jobFinished(params, false);
+            schedule(getApplicationContext());
+        }
+    }
+
+    /**
+     * Keeps the policy state in shared preferences
+     */
+    private static class PreferenceStore implements SyncPolicy.Store {
+        private final Context context;
+
+        PreferenceStore(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public SyncPolicy.State load() {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+            if(!prefs.contains("windowTime")) return null;
+            SyncPolicy.State state = new SyncPolicy.State();
+            state.uploadPending = prefs.getBoolean("uploadPending", false);
+            state.downloadPending = prefs.getBoolean("downloadPending", false);
+            state.sensorPending = prefs.getBoolean("sensorPending", false);
+            state.windowTime = prefs.getLong("windowTime", -1);
+            state.failures = prefs.getInt("failures", 0);
+            state.backoffUntil = prefs.getLong("backoffUntil", 0);
+            state.deferredForNetwork = prefs.getBoolean("deferredForNetwork", false);
+            state.deferredForBattery = prefs.getBoolean("deferredForBattery", false);
+            state.deferredForLowBattery = prefs.getBoolean("deferredForLowBattery", false);
+            return state;
+        }
+
+        @Override
+        public void save(SyncPolicy.State state) {
+            context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                    .putBoolean("uploadPending", state.uploadPending)
+                    .putBoolean("downloadPending", state.downloadPending)
+                    .putBoolean("sensorPending", state.sensorPending)
+                    .putLong("windowTime", state.windowTime)
+                    .putInt("failures", state.failures)
+                    .putLong("backoffUntil", state.backoffUntil)
+                    .putBoolean("deferredForNetwork", state.deferredForNetwork)
+                    .putBoolean("deferredForBattery", state.deferredForBattery)
+                    .putBoolean("deferredForLowBattery", state.deferredForLowBattery)
+                    .apply();
+        }
+    }
+
+    /**
+     * Current network and battery state
+     */
+    private static class DeviceConstraints implements SyncConstraints {
+        private boolean connected = false;
+        private boolean unmetered = false;
+        private boolean charging = false;
+        private int battery = 100;
+
+        DeviceConstraints(Context context) {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo ni = cm.getActiveNetworkInfo();
+            connected = ni != null && ni.isConnected();
+            unmetered = connected && !cm.isActiveNetworkMetered();
+
+            //sticky broadcast, no receiver is registered
+            Intent status = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if(status != null) {
+                int state = status.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+                charging = state == BatteryManager.BATTERY_STATUS_CHARGING || state == BatteryManager.BATTERY_STATUS_FULL;
+                int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if(level >= 0 && scale > 0) {
+                    battery = level * 100 / scale;
+                }
+            }
+        }
+
+        public boolean isConnected() { return connected; }
+        public boolean isUnmetered() { return unmetered; }
+        public boolean isCharging() { return charging; }
+        public int getBatteryPercent() { return battery; }
+    }
+}
@@ -0,0 +1,11 @@
+package wisc.drivesense.httpTools;
+
+/**
+ * Callback for the end of a piece of sync work started by SyncJobService
+ */
+public interface SyncListener {
+    /**
+     * @param success false if a request failed and the work should be retried later
+     */
+    void onSyncFinished(boolean success);
+}
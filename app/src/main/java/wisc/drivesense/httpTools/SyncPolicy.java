@@ -0,0 +1,272 @@
+package wisc.drivesense.httpTools;
+
+import wisc.drivesense.utility.Clock;
+
+/**
+ * Decides when deferred sync windows run and what each window is allowed to do.
+ * Uploads requested at the end of a trip are coalesced into one window, failures back off
+ * exponentially, GPS goes out on any network, raw sensor data waits for an unmetered network
+ * and enough battery, and downloads are skipped on low battery.
+ *
+ * This class only keeps state, SyncJobService turns its decisions into JobScheduler jobs and
+ * keeps the state across processes.
+ */
+public class SyncPolicy {
+    //delay used to merge uploads requested at the end of trips into one window
+    public static final long COALESCE_DELAY = 60 * 1000;
+    public static final long MIN_BACKOFF = 30 * 1000;
+    public static final long MAX_BACKOFF = 60 * 60 * 1000;
+    //below this level and not charging, only GPS is uploaded and nothing is downloaded
+    public static final int LOW_BATTERY_PERCENT = 15;
+    //raw sensor data is only uploaded when charging or above this level
+    public static final int SENSOR_UPLOAD_BATTERY_PERCENT = 30;
+
+    /**
+     * The work granted to one sync window
+     */
+    public static class Window {
+        public boolean upload;
+        //only GPS traces may be uploaded
+        public boolean vitalOnly;
+        public boolean download;
+
+        public boolean isEmpty() {
+            return !upload && !download;
+        }
+    }
+
+    /**
+     * Everything the policy knows, kept by a Store so that pending work and the backoff outlive the process
+     */
+    public static class State {
+        public boolean uploadPending = false;
+        public boolean downloadPending = false;
+        //raw sensor data left behind by a GPS only window
+        public boolean sensorPending = false;
+        //earliest time the next window may start, -1 if nothing was requested
+        public long windowTime = -1;
+
+        public int failures = 0;
+        public long backoffUntil = 0;
+
+        //why work was held back in the last window
+        public boolean deferredForNetwork = false;
+        public boolean deferredForBattery = false;
+        public boolean deferredForLowBattery = false;
+
+        State copy() {
+            State copy = new State();
+            copy.uploadPending = uploadPending;
+            copy.downloadPending = downloadPending;
+            copy.sensorPending = sensorPending;
+            copy.windowTime = windowTime;
+            copy.failures = failures;
+            copy.backoffUntil = backoffUntil;
+            copy.deferredForNetwork = deferredForNetwork;
+            copy.deferredForBattery = deferredForBattery;
+            copy.deferredForLowBattery = deferredForLowBattery;
+            return copy;
+        }
+    }
+
+    /**
+     * Where the state is saved, SyncJobService keeps it in shared preferences
+     */
+    public interface Store {
+        /**
+         * @return the state saved last, null if there is none
+         */
+        State load();
+
+        void save(State state);
+    }
+
+    private final Clock clock;
+    private final Store store;
+    private final State state;
+    //the window being worked on, its work is saved as pending until it finishes
+    private Window running = null;
+
+    /**
+     * A policy that forgets its state with the process
+     */
+    public SyncPolicy(Clock clock) {
+        this(clock, null);
+    }
+
+    /**
+     * @param store the saved state is picked up and every change is saved, may be null
+     */
+    public SyncPolicy(Clock clock, Store store) {
+        this.clock = clock;
+        this.store = store;
+        State saved = store == null ? null : store.load();
+        this.state = saved == null ? new State() : saved;
+    }
+
+    private void save() {
+        if(store == null) return;
+        State saved = state.copy();
+        if(running != null) {
+            //a process that dies in the middle of the window runs it again
+            saved.uploadPending |= running.upload;
+            saved.downloadPending |= running.download;
+            if(saved.windowTime < 0) saved.windowTime = clock.currentTimeMillis();
+        }
+        store.save(saved);
+    }
+
+    /**
+     * @param coalesce true to wait COALESCE_DELAY so that following requests share the window,
+     *                 false to run as soon as possible
+     */
+    public synchronized void requestUpload(boolean coalesce) {
+        state.uploadPending = true;
+        long now = clock.currentTimeMillis();
+        requestWindow(coalesce ? now + COALESCE_DELAY : now);
+        save();
+    }
+
+    public synchronized void requestDownload() {
+        state.downloadPending = true;
+        requestWindow(clock.currentTimeMillis());
+        save();
+    }
+
+    private void requestWindow(long time) {
+        if(state.windowTime < 0 || time < state.windowTime) {
+            state.windowTime = time;
+        }
+    }
+
+    public synchronized boolean hasPendingWork() {
+        return state.uploadPending || state.downloadPending || state.sensorPending;
+    }
+
+    /**
+     * @return milliseconds until the next window may start, 0 if it may start now, -1 if nothing is pending
+     */
+    public synchronized long getDelay() {
+        if(!hasPendingWork()) {
+            return -1;
+        }
+        long start = Math.max(state.windowTime, state.backoffUntil);
+        return Math.max(0, start - clock.currentTimeMillis());
+    }
+
+    /**
+     * @return true if pending work could run as soon as the window starts
+     */
+    private boolean runnable() {
+        return state.uploadPending
+                || (state.sensorPending && !state.deferredForNetwork && !state.deferredForBattery)
+                || (state.downloadPending && !state.deferredForLowBattery);
+    }
+
+    /**
+     * @return true if the pending work is sensor data waiting for an unmetered network
+     */
+    public synchronized boolean requiresUnmetered() {
+        return !runnable() && state.sensorPending && state.deferredForNetwork && !state.downloadPending;
+    }
+
+    /**
+     * @return true if the pending work is waiting for the charger
+     */
+    public synchronized boolean requiresCharging() {
+        return !runnable() && ((state.sensorPending && state.deferredForBattery) || (state.downloadPending && state.deferredForLowBattery));
+    }
+
+    public synchronized int getFailureCount() {
+        return state.failures;
+    }
+
+    /**
+     * Open a window and take the pending work that the current constraints allow
+     * @param constraints current device state
+     * @param wifiOnly user setting restricting sensor data to unmetered networks
+     * @return the work to do, empty if the window has to wait
+     */
+    public synchronized Window startWindow(SyncConstraints constraints, boolean wifiOnly) {
+        Window window = new Window();
+        if(getDelay() != 0 || !constraints.isConnected()) {
+            return window;
+        }
+        boolean charging = constraints.isCharging();
+        int battery = constraints.getBatteryPercent();
+        state.deferredForNetwork = wifiOnly && !constraints.isUnmetered();
+        state.deferredForBattery = !charging && battery < SENSOR_UPLOAD_BATTERY_PERCENT;
+        state.deferredForLowBattery = !charging && battery < LOW_BATTERY_PERCENT;
+        boolean sensorAllowed = !state.deferredForNetwork && !state.deferredForBattery;
+
+        if(state.uploadPending || (state.sensorPending && sensorAllowed)) {
+            window.upload = true;
+            window.vitalOnly = !sensorAllowed;
+            state.uploadPending = false;
+            if(sensorAllowed) {
+                state.sensorPending = false;
+            }
+        }
+        if(state.downloadPending && !state.deferredForLowBattery) {
+            window.download = true;
+            state.downloadPending = false;
+        }
+        state.windowTime = hasPendingWork() ? clock.currentTimeMillis() : -1;
+        running = window.isEmpty() ? null : window;
+        save();
+        return window;
+    }
+
+    /**
+     * Give up a window that was interrupted, its work is requested again without backing off
+     * @param window
+     */
+    public synchronized void cancelWindow(Window window) {
+        state.uploadPending |= window.upload;
+        state.downloadPending |= window.download;
+        if(hasPendingWork()) {
+            requestWindow(clock.currentTimeMillis());
+        }
+        running = null;
+        save();
+    }
+
+    /**
+     * Close a window
+     * @param window the window returned by startWindow
+     * @param success false if any request of the window failed, the work is retried after a backoff
+     * @param sensorDataLeft true if raw sensor data is still waiting after a GPS only window
+     */
+    public synchronized void finishWindow(Window window, boolean success, boolean sensorDataLeft) {
+        long now = clock.currentTimeMillis();
+        if(success) {
+            state.failures = 0;
+            state.backoffUntil = 0;
+        } else {
+            state.failures++;
+            state.backoffUntil = now + getBackoff(state.failures);
+            state.uploadPending |= window.upload;
+            state.downloadPending |= window.download;
+        }
+        if(sensorDataLeft) {
+            state.sensorPending = true;
+        }
+        if(hasPendingWork()) {
+            requestWindow(now);
+        }
+        running = null;
+        save();
+    }
+
+    /**
+     * @param failures number of consecutive failed windows
+     * @return time to wait before the next attempt
+     */
+    public static long getBackoff(int failures) {
+        if(failures <= 0) {
+            return 0;
+        }
+        //MIN_BACKOFF << 20 is far above MAX_BACKOFF already
+        return Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 20));
+    }
+}
@@ -0,0 +1,298 @@
+package wisc.drivesense.httpTools;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import wisc.drivesense.utility.Clock;
+
+/**
+ * Orders trip uploads by how urgent they are. Points of the trip being recorded always go first
+ * and have a request slot of their own, so a backlog of past trips never delays them.
+ * The other classes are served by priority, but a job gains one class of priority for every
+ * agingStep it waits, so raw sensor data is not starved by a steady stream of GPS uploads.
+ * At most one job per trip is in flight, so the traces of a trip reach the server in order.
+ * A job that failed can be queued again ahead of the later jobs of its trip, after a delay. Until it
+ * is started again no other job of the trip is, whatever its class.
+ *
+ * This class only keeps state, TripUploadRequest sends the jobs it hands out.
+ */
+public class SyncQueue<T> {
+
+    public enum Priority {
+        //points of the trip being recorded
+        LIVE_GPS,
+        //deletions and other metadata changes of past trips
+        METADATA,
+        //GPS traces of finalized trips
+        TRIP_GPS,
+        //raw sensor data, only queued in windows that allow it
+        IMU
+    }
+
+    public static class Job<T> {
+        public final Priority priority;
+        public final String guid;
+        public final T value;
+        final long enqueued;
+        //set once the job failed, it is not started before then and nothing is merged into it
+        long notBefore = 0;
+        //times it was queued again by retry
+        public int failures = 0;
+
+        Job(Priority priority, String guid, T value, long enqueued) {
+            this.priority = priority;
+            this.guid = guid;
+            this.value = value;
+            this.enqueued = enqueued;
+        }
+    }
+
+    /**
+     * Time from queueing a job until it completed, per class
+     */
+    public static class Stats {
+        public int count;
+        public long totalLatency;
+        public long maxLatency;
+
+        public long getMeanLatency() {
+            return count == 0 ? 0 : totalLatency / count;
+        }
+    }
+
+    private final Clock clock;
+    private final int maxInFlight;
+    private final long agingStep;
+
+    private final Map<Priority, LinkedList<Job<T>>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, Stats> stats = new EnumMap<>(Priority.class);
+    private final List<Job<T>> inFlight = new ArrayList<>();
+    //trips with a job in flight
+    private final Set<String> busy = new HashSet<>();
+    //failed job of a trip waiting to be started again, by trip
+    private final Map<String, Job<T>> retrying = new HashMap<>();
+
+    /**
+     * @param clock
+     * @param maxInFlight requests in flight at once, one of them is kept for LIVE_GPS
+     * @param agingStep waiting time that makes up for one class of priority
+     */
+    public SyncQueue(Clock clock, int maxInFlight, long agingStep) {
+        if(maxInFlight < 2) {
+            throw new IllegalArgumentException("At least one slot besides the live slot is needed");
+        }
+        this.clock = clock;
+        this.maxInFlight = maxInFlight;
+        this.agingStep = agingStep;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new LinkedList<Job<T>>());
+            stats.put(priority, new Stats());
+        }
+    }
+
+    /**
+     * @param priority
+     * @param guid trip the job belongs to
+     * @param value
+     * @return false if a job of the same class for the trip is already waiting
+     */
+    public synchronized boolean offer(Priority priority, String guid, T value) {
+        if(find(priority, guid) != null) return false;
+        queues.get(priority).addLast(new Job<>(priority, guid, value, clock.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * @return the job of the class for the trip that has not been started yet, null if there is none
+     */
+    public synchronized Job<T> find(Priority priority, String guid) {
+        for (Job<T> job : queues.get(priority)) {
+            if(job.guid.equals(guid) && job.notBefore == 0) return job;
+        }
+        return null;
+    }
+
+    /**
+     * Take the next job to send, it counts as in flight until finish is called
+     * @return null if nothing may be started right now
+     */
+    public synchronized Job<T> poll() {
+        if(inFlight.size() >= maxInFlight) return null;
+        long now = clock.currentTimeMillis();
+        Job<T> next = first(queues.get(Priority.LIVE_GPS), now);
+        //past trips never take the last slot, it is kept for live points
+        if(next == null && backlogInFlight() < maxInFlight - 1) {
+            double best = Double.MAX_VALUE;
+            for (Priority priority : Priority.values()) {
+                if(priority == Priority.LIVE_GPS) continue;
+                Job<T> job = first(queues.get(priority), now);
+                if(job == null) continue;
+                double rank = priority.ordinal() - (double) (now - job.enqueued) / agingStep;
+                if(rank < best) {
+                    best = rank;
+                    next = job;
+                }
+            }
+        }
+        if(next == null) return null;
+        take(next);
+        return next;
+    }
+
+    private void take(Job<T> job) {
+        queues.get(job.priority).remove(job);
+        retrying.remove(job.guid);
+        inFlight.add(job);
+        busy.add(job.guid);
+    }
+
+    /**
+     * Take a job to send in the same request as one handed out by poll, no slot is needed for it
+     * @param job in flight
+     * @return the next job of the same class whose trip has nothing in flight, null if there is none
+     */
+    public synchronized Job<T> pollWith(Job<T> job) {
+        if(!inFlight.contains(job)) return null;
+        Job<T> next = first(queues.get(job.priority), clock.currentTimeMillis());
+        if(next == null) return null;
+        take(next);
+        return next;
+    }
+
+    /**
+     * Return a job handed out by poll or pollWith that was not sent, it is the next of its class again
+     */
+    public synchronized void putBack(Job<T> job) {
+        if(!inFlight.remove(job)) return;
+        busy.remove(job.guid);
+        queues.get(job.priority).addFirst(job);
+    }
+
+    private int backlogInFlight() {
+        int count = 0;
+        for (Job<T> job : inFlight) {
+            if(job.priority != Priority.LIVE_GPS) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the oldest job of the queue whose trip has nothing in flight or waiting to be retried
+     */
+    private Job<T> first(LinkedList<Job<T>> queue, long now) {
+        for (Job<T> job : queue) {
+            if(busy.contains(job.guid)) continue;
+            Job<T> failed = retrying.get(job.guid);
+            //the other jobs of the trip wait for it, in every class
+            if(failed != null && (failed != job || job.notBefore > now)) continue;
+            return job;
+        }
+        return null;
+    }
+
+    /**
+     * A job handed out by poll completed, successfully or not
+     */
+    public synchronized void finish(Job<T> job) {
+        if(!inFlight.remove(job)) return;
+        busy.remove(job.guid);
+        long latency = clock.currentTimeMillis() - job.enqueued;
+        Stats s = stats.get(job.priority);
+        s.count++;
+        s.totalLatency += latency;
+        s.maxLatency = Math.max(s.maxLatency, latency);
+    }
+
+    /**
+     * A job handed out by poll failed, queue it again ahead of the later jobs of its trip
+     * @param job in flight
+     * @param delay time before it may be started again
+     */
+    public synchronized void retry(Job<T> job, long delay) {
+        if(!inFlight.remove(job)) return;
+        busy.remove(job.guid);
+        job.notBefore = clock.currentTimeMillis() + delay;
+        job.failures++;
+        queues.get(job.priority).addFirst(job);
+        retrying.put(job.guid, job);
+    }
+
+    /**
+     * Drop the job of the trip waiting to be retried, the later jobs of the trip may start
+     * @return the job, null if none of the trip was waiting
+     */
+    public synchronized Job<T> dropRetry(String guid) {
+        Job<T> job = retrying.remove(guid);
+        if(job != null) queues.get(job.priority).remove(job);
+        return job;
+    }
+
+    /**
+     * Drop the waiting jobs of every class, LIVE_GPS too
+     */
+    public synchronized void clear() {
+        for (Priority priority : Priority.values()) {
+            queues.get(priority).clear();
+        }
+        retrying.clear();
+    }
+
+    /**
+     * Drop the waiting jobs of every class except LIVE_GPS
+     */
+    public synchronized void clearBacklog() {
+        for (Priority priority : Priority.values()) {
+            if(priority != Priority.LIVE_GPS) queues.get(priority).clear();
+        }
+        Iterator<Job<T>> it = retrying.values().iterator();
+        while (it.hasNext()) {
+            if(it.next().priority != Priority.LIVE_GPS) it.remove();
+        }
+    }
+
+    /**
+     * @return number of jobs waiting or in flight in every class except LIVE_GPS
+     */
+    public synchronized int backlogSize() {
+        int size = 0;
+        for (Priority priority : Priority.values()) {
+            if(priority != Priority.LIVE_GPS) size += queues.get(priority).size();
+        }
+        return size + backlogInFlight();
+    }
+
+    public synchronized int size(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * @return copy of the latency statistics of the class
+     */
+    public synchronized Stats getStats(Priority priority) {
+        Stats s = stats.get(priority);
+        Stats copy = new Stats();
+        copy.count = s.count;
+        copy.totalLatency = s.totalLatency;
+        copy.maxLatency = s.maxLatency;
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Priority priority : Priority.values()) {
+            Stats s = stats.get(priority);
+            if(sb.length() > 0) sb.append(", ");
+            sb.append(priority).append(": ").append(queues.get(priority).size()).append(" waiting, ")
+                    .append(s.count).append(" sent, mean ").append(s.getMeanLatency()).append(" ms, max ").append(s.maxLatency).append(" ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package wisc.drivesense.httpTools;
+
+/**
+ * Preset dictionaries for deflating upload bodies, see PayloadCompression.
+ * A version is never changed once released, the server keeps every version it accepts.
+ * Versions are built with TraceDictionaryBuilder, in the test sources, from upload bodies
+ * exported from real drives. None is released yet, so uploads are gzipped.
+ */
+public class TraceDictionary {
+    //newest version this client has, 0 while there is none
+    public static final int VERSION = 0;
+
+    /**
+     * @param version
+     * @return the dictionary, null if this client does not have the version
+     */
+    public static byte[] get(int version) {
+        //a released version is added here, case 1: return V1.getBytes("UTF-8")
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+package wisc.drivesense.httpTools;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash tree over the traces of one type of a trip, used to find the traces the device and the
+ * server disagree on without sending either trace set. A trace is identified by its time.
+ * Traces are grouped into blocks of BLOCK_MS by time, so a missing trace only changes its own block,
+ * and node (level, index) covers blocks [index * 2^level, (index + 1) * 2^level).
+ *
+ * The server computes the same hashes: a block hashes to the first 8 bytes, big endian, of the
+ * SHA-1 of its sorted distinct times as 8 byte big endian values, a parent to the first 8 bytes
+ * of the SHA-1 of its two children, left first, and a node without traces is EMPTY.
+ */
+public class TraceMerkleTree {
+    public static final long BLOCK_MS = 10 * 1000;
+    public static final long EMPTY = 0;
+    //enough levels for a node to cover years of blocks
+    private static final int MAX_LEVEL = 32;
+
+    /**
+     * The other side of the comparison
+     */
+    public interface Remote {
+        /**
+         * @return the hash of every node, EMPTY for nodes without traces
+         */
+        long[] hashes(int level, long[] indexes) throws IOException;
+
+        /**
+         * @return times of all traces in the blocks
+         */
+        long[] times(long[] blocks) throws IOException;
+    }
+
+    /**
+     * Traces only one side has, by time
+     */
+    public static class Diff {
+        public final List<Long> missingLocally = new ArrayList<>();
+        public final List<Long> missingRemotely = new ArrayList<>();
+        public int roundTrips = 0;
+
+        public boolean isEmpty() {
+            return missingLocally.isEmpty() && missingRemotely.isEmpty();
+        }
+    }
+
+    //sorted times per block
+    private final Map<Long, long[]> blocks = new HashMap<>();
+    //hashes of the nodes with traces, per level
+    private final List<Map<Long, Long>> levels = new ArrayList<>();
+    private long firstBlock = Long.MAX_VALUE;
+    private long lastBlock = Long.MIN_VALUE;
+
+    /**
+     * @param times times of the traces, in any order
+     */
+    public TraceMerkleTree(long[] times) {
+        Map<Long, List<Long>> grouped = new HashMap<>();
+        for (long time : times) {
+            long block = block(time);
+            List<Long> list = grouped.get(block);
+            if(list == null) {
+                list = new ArrayList<>();
+                grouped.put(block, list);
+            }
+            list.add(time);
+            firstBlock = Math.min(firstBlock, block);
+            lastBlock = Math.max(lastBlock, block);
+        }
+        Map<Long, Long> leaves = new HashMap<>();
+        for (Map.Entry<Long, List<Long>> entry : grouped.entrySet()) {
+            long[] all = new long[entry.getValue().size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = entry.getValue().get(i);
+            }
+            Arrays.sort(all);
+            //a trace stored twice is still one trace
+            int distinct = 0;
+            for (int i = 0; i < all.length; i++) {
+                if(i == 0 || all[i] != all[i - 1]) all[distinct++] = all[i];
+            }
+            long[] sorted = Arrays.copyOf(all, distinct);
+            blocks.put(entry.getKey(), sorted);
+            leaves.put(entry.getKey(), digest(sorted));
+        }
+        levels.add(leaves);
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            Map<Long, Long> children = levels.get(level - 1);
+            Map<Long, Long> parents = new HashMap<>();
+            for (Long index : children.keySet()) {
+                long parent = index >> 1;
+                if(!parents.containsKey(parent)) {
+                    parents.put(parent, digest(new long[]{hash(children, parent << 1), hash(children, (parent << 1) + 1)}));
+                }
+            }
+            levels.add(parents);
+        }
+    }
+
+    public static long block(long time) {
+        return time >= 0 ? time / BLOCK_MS : (time - BLOCK_MS + 1) / BLOCK_MS;
+    }
+
+    private static long hash(Map<Long, Long> level, long index) {
+        Long hash = level.get(index);
+        return hash == null ? EMPTY : hash;
+    }
+
+    public long hash(int level, long index) {
+        return hash(levels.get(level), index);
+    }
+
+    public long[] hashes(int level, long[] indexes) {
+        long[] hashes = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            hashes[i] = hash(level, indexes[i]);
+        }
+        return hashes;
+    }
+
+    /**
+     * @return sorted times of all traces in the blocks
+     */
+    public long[] times(long[] blockIndexes) {
+        List<Long> times = new ArrayList<>();
+        for (long block : blockIndexes) {
+            long[] t = blocks.get(block);
+            if(t == null) continue;
+            for (long time : t) {
+                times.add(time);
+            }
+        }
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Compare with the remote tree top down, one round trip per level, then exchange the times
+     * of the traces in the blocks that differ
+     * @param remote
+     * @param startTime start of the range to compare, the local traces are always included
+     * @param endTime end of the range to compare
+     * @return
+     * @throws IOException
+     */
+    public Diff compare(Remote remote, long startTime, long endTime) throws IOException {
+        Diff diff = new Diff();
+        long first = Math.min(block(startTime), firstBlock);
+        long last = Math.max(block(endTime), lastBlock);
+        if(first > last) return diff;
+        int level = 0;
+        while ((first >> level) != (last >> level)) {
+            level++;
+        }
+        long[] nodes = {first >> level};
+        while (true) {
+            long[] remoteHashes = remote.hashes(level, nodes);
+            diff.roundTrips++;
+            List<Long> mismatched = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++) {
+                if(remoteHashes[i] != hash(level, nodes[i])) mismatched.add(nodes[i]);
+            }
+            if(mismatched.isEmpty()) return diff;
+            if(level == 0) {
+                nodes = new long[mismatched.size()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = mismatched.get(i);
+                }
+                break;
+            }
+            level--;
+            nodes = new long[mismatched.size() * 2];
+            for (int i = 0; i < mismatched.size(); i++) {
+                nodes[2 * i] = mismatched.get(i) << 1;
+                nodes[2 * i + 1] = (mismatched.get(i) << 1) + 1;
+            }
+        }
+
+        long[] remoteTimes = remote.times(nodes);
+        diff.roundTrips++;
+        long[] localTimes = times(nodes);
+        int i = 0, j = 0;
+        while (i < localTimes.length || j < remoteTimes.length) {
+            if(j == remoteTimes.length || (i < localTimes.length && localTimes[i] < remoteTimes[j])) {
+                diff.missingRemotely.add(localTimes[i++]);
+            } else if(i == localTimes.length || remoteTimes[j] < localTimes[i]) {
+                diff.missingLocally.add(remoteTimes[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return diff;
+    }
+
+    private static long digest(long[] values) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8];
+            for (long value : values) {
+                for (int i = 0; i < 8; i++) {
+                    buffer[i] = (byte) (value >>> (56 - 8 * i));
+                }
+                sha1.update(buffer);
+            }
+            byte[] hash = sha1.digest();
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (hash[i] & 0xff);
+            }
+            //EMPTY is reserved for nodes without traces
+            return result == EMPTY ? 1 : result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
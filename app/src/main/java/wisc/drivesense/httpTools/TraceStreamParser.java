@@ -0,0 +1,57 @@
+package wisc.drivesense.httpTools;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+/**
+ * Reads a JSON array of traces one element at a time and hands them out in chunks,
+ * so memory use depends on the chunk size and not on the length of the trip
+ */
+public class TraceStreamParser {
+
+    public interface ChunkHandler {
+        /**
+         * @param chunk traces in the order they were read, not used by the parser afterwards
+         */
+        void onChunk(List<TraceMessage> chunk) throws IOException;
+    }
+
+    /**
+     * @param in response body, a JSON array of traces
+     * @param type class of the array elements
+     * @param chunkSize maximum number of traces per chunk
+     * @param handler receives every chunk before the next one is read
+     * @return number of traces read
+     * @throws IOException
+     */
+    public static long parse(Reader in, Class<? extends Trace> type, int chunkSize, ChunkHandler handler) throws IOException {
+        Gson gson = GsonSingleton.gson();
+        JsonReader reader = new JsonReader(in);
+        List<TraceMessage> chunk = new ArrayList<>(chunkSize);
+        long count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Trace trace = gson.fromJson(reader, type);
+            chunk.add(new TraceMessage(trace));
+            count++;
+            if(chunk.size() == chunkSize) {
+                handler.onChunk(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        reader.endArray();
+        if(chunk.size() > 0) {
+            handler.onChunk(chunk);
+        }
+        return count;
+    }
+}
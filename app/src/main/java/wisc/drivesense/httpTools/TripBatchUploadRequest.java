@@ -0,0 +1,59 @@
+package wisc.drivesense.httpTools;
+
+import android.util.Log;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import java.util.Collections;
+import java.util.List;
+
+import wisc.drivesense.httpPayloads.TripBatchAck;
+import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Constants;
+
+/**
+ * Uploads several trips of the backlog in one request. The server acknowledges every trip
+ * on its own, trips it did not store are sent again in a later window.
+ */
+class TripBatchUploadRequest extends CompressedGSONRequest<TripBatchAck> {
+    private static final String TAG = "TripBatchUploadRequest";
+
+    private final TripBatcher batcher;
+    private final List<SyncQueue.Job<TripPayload>> jobs;
+
+    TripBatchUploadRequest(TripBatcher batcher, List<SyncQueue.Job<TripPayload>> jobs, DriveSenseToken dsToken) {
+        super(Request.Method.POST, Constants.kTripBatchURL, null, TripBatchAck.class, dsToken);
+        this.batcher = batcher;
+        this.jobs = jobs;
+        //every trip in the batch carries its batch number, the server stores each once
+        this.setRetryPolicy(new DefaultRetryPolicy(TripUploadRequest.TIMEOUT_MS, 1, 1f));
+    }
+
+    @Override
+    protected boolean usesTraceDictionary() {
+        return true;
+    }
+
+    @Override
+    protected String toJson() {
+        return batcher.toJson();
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        Log.d(TAG, "Upload of " + batcher.size() + " trips failed");
+        TripUploadRequest.onUploaded(jobs, Collections.<TripPayload>emptyList());
+    }
+
+    @Override
+    public void onResponse(TripBatchAck response) {
+        List<TripPayload> accepted = batcher.accepted(response);
+        if(accepted.size() < batcher.size()) {
+            Log.d(TAG, "Server stored " + accepted.size() + " of " + batcher.size() + " trips");
+        }
+        TripUploadRequest.onUploaded(jobs, accepted);
+    }
+}
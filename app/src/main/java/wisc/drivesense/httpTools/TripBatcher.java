@@ -0,0 +1,75 @@
+package wisc.drivesense.httpTools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import wisc.drivesense.httpPayloads.TripBatchAck;
+import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.utility.GsonSingleton;
+
+/**
+ * Packs trip payloads into the body of one upload until a byte budget is reached.
+ * Every trip is serialized once when it is added, so the budget holds for the exact body sent.
+ */
+public class TripBatcher {
+    private static final String HEAD = "{\"trips\":[";
+    private static final String TAIL = "]}";
+
+    private final int budget;
+    private final StringBuilder json = new StringBuilder(HEAD);
+    private final List<TripPayload> trips = new ArrayList<>();
+
+    /**
+     * @param budget maximum body size in bytes, a single trip larger than that is still sent on its own
+     */
+    public TripBatcher(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param trip
+     * @return false if the trip does not fit, it is then not part of the batch
+     */
+    public boolean add(TripPayload trip) {
+        String tripJson = GsonSingleton.toJson(trip);
+        int size = json.length() + (trips.isEmpty() ? 0 : 1) + tripJson.length() + TAIL.length();
+        if(!trips.isEmpty() && size > budget) {
+            return false;
+        }
+        if(!trips.isEmpty()) json.append(',');
+        json.append(tripJson);
+        trips.add(trip);
+        return true;
+    }
+
+    public List<TripPayload> getTrips() {
+        return trips;
+    }
+
+    public int size() {
+        return trips.size();
+    }
+
+    /**
+     * @return the body, a serialized TripBatchPayload
+     */
+    public String toJson() {
+        return json.toString() + TAIL;
+    }
+
+    /**
+     * @param ack response of the server, null if it sent none
+     * @return the trips of the batch the server stored
+     */
+    public List<TripPayload> accepted(TripBatchAck ack) {
+        List<TripPayload> accepted = new ArrayList<>();
+        if(ack == null || ack.accepted == null) return accepted;
+        Set<String> guids = new HashSet<>(ack.accepted);
+        for (TripPayload trip : trips) {
+            if(guids.contains(trip.guid)) accepted.add(trip);
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,109 @@
+package wisc.drivesense.httpTools;
+
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.android.volley.VolleyError;
+
+import wisc.drivesense.DriveSenseApp;
+import wisc.drivesense.httpPayloads.TripChangesPayload;
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Constants;
+
+/**
+ * Incremental trip metadata sync. Asks the server only for trips changed since the cursor
+ * stored with the user, without a cursor the server answers with every trip and a new cursor.
+ * Falls back to the full TripMetadataDownloadRequest when the server has no change feed.
+ */
+public class TripChangesRequest extends GsonRequest<TripChangesPayload> {
+    private static final String TAG = "TripChangesRequest";
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private final String cursor;
+    private final SyncListener listener;
+    private int statusCode = -1;
+
+    /**
+     * @param dsToken
+     * @param listener told once the changes have been applied or the request failed, may be null
+     */
+    public static void Start(final DriveSenseToken dsToken, final SyncListener listener) {
+        //a refresh already in flight for the user is joined, two reconciles at once would insert the same trips twice
+        String key = RequestCoordinator.key(Constants.kTripChangesURL, dsToken == null ? null : dsToken.email);
+        boolean started = DriveSenseApp.RequestCoordinator().submit(key, new RequestCoordinator.Call<Void>() {
+            @Override
+            public void start(final RequestCoordinator.Callback<Void> done) {
+                String cursor = DriveSenseApp.DBHelper().getSyncCursor();
+                DriveSenseApp.RequestQueue().add(new TripChangesRequest(cursor, dsToken, new SyncListener() {
+                    @Override
+                    public void onSyncFinished(boolean success) {
+                        done.onComplete(null, success);
+                    }
+                }));
+            }
+        }, listener == null ? null : new RequestCoordinator.Callback<Void>() {
+            @Override
+            public void onComplete(Void result, boolean success) {
+                listener.onSyncFinished(success);
+            }
+        });
+        if(!started) {
+            Log.d(TAG, "Trip refresh already in flight, waiting for it");
+        }
+    }
+
+    private TripChangesRequest(String cursor, DriveSenseToken dsToken, SyncListener listener) {
+        super(Method.GET, cursor == null ? Constants.kTripChangesURL : Constants.kTripChangesURL + "?since=" + Uri.encode(cursor),
+                null, TripChangesPayload.class, dsToken);
+        this.cursor = cursor;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onResponse(final TripChangesPayload response) {
+        if(response.reset && cursor != null) {
+            Log.d(TAG, "Server reset the change cursor, doing a full sync");
+        }
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... voids) {
+                try {
+                    if(response.trips != null) {
+                        TripMetadataDownloadRequest.reconcile(response.trips, dsToken);
+                    }
+                    //only move the cursor once the changes are stored
+                    DriveSenseApp.DBHelper().setSyncCursor(response.cursor);
+                    return true;
+                } catch (Exception e) {
+                    //the listener is still told, it completes the refresh others joined
+                    Log.e(TAG, "Applying the trip changes failed. " + e.toString());
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                if(listener != null) listener.onSyncFinished(success);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        if(volleyError.networkResponse != null) {
+            statusCode = volleyError.networkResponse.statusCode;
+        }
+        return super.parseNetworkError(volleyError);
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        if(statusCode == HTTP_NOT_FOUND) {
+            Log.d(TAG, "No change feed on the server, downloading all trips");
+            DriveSenseApp.RequestQueue().add(new TripMetadataDownloadRequest(dsToken, listener));
+        } else if(listener != null) {
+            listener.onSyncFinished(false);
+        }
+    }
+}
@@ -7,14 +7,15 @@ import com.android.volley.VolleyError;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.user.DriveSenseToken;
 import wisc.drivesense.utility.Constants;
-import wisc.drivesense.utility.Trip;
 import wisc.drivesense.utility.TripMetadata;
+import wisc.drivesense.utility.TripSyncState;
 
 /**
  * Created by peter on 2/10/17.
@@ -24,45 +25,79 @@ import wisc.drivesense.utility.TripMetadata;
 public class TripMetadataDownloadRequest extends GsonRequest<List<TripMetadata>> {
     private static final Type responseType = new TypeToken<List<TripMetadata>>(){}.getType();
     private static final String TAG = "TripMetadataDownloadRequest";
+    //traces of trips started in the last PREFETCH_DAYS are downloaded before they are opened, at most PREFETCH_COUNT
+    private static final int PREFETCH_DAYS = 7;
+    private static final int PREFETCH_COUNT = 5;
+
+    private final SyncListener listener;
 
     public TripMetadataDownloadRequest(DriveSenseToken dsToken) {
+        this(dsToken, null);
+    }
+
+    /**
+     * @param dsToken
+     * @param listener told once the trip list has been processed or the request failed, may be null
+     */
+    public TripMetadataDownloadRequest(DriveSenseToken dsToken, SyncListener listener) {
         super(Method.GET, Constants.kAllTripsURL, null, responseType, dsToken);
+        this.listener = listener;
     }
 
     @Override
     public void onResponse(List<TripMetadata> response) {
-        new AsyncTask<TripMetadata, Void, Void>() {
+        new AsyncTask<TripMetadata, Void, Boolean>() {
             @Override
-            protected Void doInBackground(TripMetadata... tripMetadatas) {
-                List<TripMetadata> toUpdate = new ArrayList<>();
-                for (TripMetadata tripResp : tripMetadatas) {
-                    //only store trips locally if they are not live
-                    if(tripResp.status != TripMetadata.LIVE) {
-                        Trip currentTrip = DriveSenseApp.DBHelper().getTrip(tripResp.guid);
-                        if (currentTrip == null && tripResp.status == TripMetadata.FINALIZED) {
-                            //download the traces for the trip
-                            // there is no meta data on the device, it stores the meta data after traces have successfully been downloaded
-                            Log.d(TAG, "Download traces for trip: " + tripResp.guid);
-                            //pass trip metadata in, TripTraceDownloadRequest will store it along with traces after download
-                            TripTraceDownloadRequest currentRequest = new TripTraceDownloadRequest(Constants.kTripTracesURL, tripResp, dsToken);
-                            DriveSenseApp.RequestQueue().add(currentRequest);
-                        } else if (currentTrip != null && currentTrip.getSynced()) {
-                            //only update a trip's data if it's synced
-                            //only meta data update if the trip already in current device
-                            toUpdate.add(tripResp);
-                        } //otherwise do nothing if the trip is not synced
-                    }
+            protected Boolean doInBackground(TripMetadata... tripMetadatas) {
+                try {
+                    reconcile(Arrays.asList(tripMetadatas), dsToken);
+                    return true;
+                } catch (Exception e) {
+                    //the listener is still told, it completes the refresh others joined
+                    Log.e(TAG, "Applying the trip list failed. " + e.toString());
+                    return false;
                 }
-                Log.d(TAG, "Updating "+toUpdate.size()+ " trips in the database.");
-                DriveSenseApp.DBHelper().updateTrips(toUpdate);
-                Log.d(TAG, "Done processing list of trips from server");
-                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                if(listener != null) listener.onSyncFinished(success);
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,response.toArray(new TripMetadata[response.size()]));
     }
 
+    /**
+     * Apply trips from the server to the local database and download the traces of new trips.
+     * Runs on a background thread.
+     * @param trips the full trip list or only the trips changed since the last sync
+     * @param dsToken
+     */
+    static void reconcile(List<TripMetadata> trips, DriveSenseToken dsToken) {
+        long start = System.currentTimeMillis();
+        Map<String, TripSyncState> local = DriveSenseApp.DBHelper().loadTripSyncStates();
+        long loaded = System.currentTimeMillis();
+        TripReconciler.Result result = TripReconciler.reconcile(trips, local);
+        long diffed = System.currentTimeMillis();
+
+        Log.d(TAG, "Updating "+result.toUpdate.size()+ " trips in the database.");
+        DriveSenseApp.DBHelper().updateTrips(result.toUpdate);
+        //new trips are listed right away, their traces are downloaded when opened or prefetched
+        DriveSenseApp.DBHelper().insertTripPlaceholders(result.missing);
+        //the traces of these trips differ between device and server
+        TripRepairRequest.enqueue(result.diverged, dsToken);
+        Log.d(TAG, "Reconciled " + trips.size() + " server trips with " + local.size() + " local trips: "
+                + result.missing.size() + " new, " + result.toUpdate.size() + " updated, " + result.diverged.size() + " diverged, " + result.unchanged + " unchanged, " + result.skipped + " skipped."
+                + " load " + (loaded - start) + " ms, diff " + (diffed - loaded) + " ms, store " + (System.currentTimeMillis() - diffed) + " ms");
+
+        //the trips the user is most likely to open next
+        long recent = System.currentTimeMillis() - PREFETCH_DAYS * 24L * 3600 * 1000;
+        TripTraceDownloadRequest.enqueue(DriveSenseApp.DBHelper().getRecentPlaceholders(recent, PREFETCH_COUNT), dsToken);
+        //continue downloads interrupted earlier, also when the app was killed
+        TripTraceDownloadRequest.enqueue(DriveSenseApp.DBHelper().getPartialDownloads(), dsToken);
+    }
+
     @Override
     public void onErrorResponse(VolleyError error) {
-
+        if(listener != null) listener.onSyncFinished(false);
     }
 }
@@ -0,0 +1,76 @@
+package wisc.drivesense.httpTools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import wisc.drivesense.utility.TripMetadata;
+import wisc.drivesense.utility.TripSyncState;
+
+/**
+ * Compares the trip list from the server with the trips on the device.
+ * The local trips are passed in as a hash index so the whole list is diffed
+ * without a database query per server trip.
+ */
+public class TripReconciler {
+    private static final double DISTANCE_EPSILON = 1e-6;
+
+    public static class Result {
+        // finalized trips that are not on the device yet
+        public final List<TripMetadata> missing = new ArrayList<>();
+        // synced trips whose metadata changed on the server
+        public final List<TripMetadata> toUpdate = new ArrayList<>();
+        // finalized trips fully on the device whose distance differs from the server's,
+        // the distance follows from the GPS traces so the trace sets differ. They are not in
+        // toUpdate, TripRepairRequest takes the server's distance once the traces are repaired
+        public final List<TripMetadata> diverged = new ArrayList<>();
+        public int unchanged = 0;
+        // live trips, trips with local changes and trips deleted before reaching the device
+        public int skipped = 0;
+    }
+
+    /**
+     * @param serverTrips trip list from the server
+     * @param local sync states of the local trips keyed by uuid, see DatabaseHelper.loadTripSyncStates
+     * @return
+     */
+    public static Result reconcile(List<TripMetadata> serverTrips, Map<String, TripSyncState> local) {
+        Result result = new Result();
+        for (TripMetadata trip : serverTrips) {
+            //only store trips locally if they are not live
+            if(trip.guid == null || trip.status == null || trip.status == TripMetadata.LIVE) {
+                result.skipped++;
+                continue;
+            }
+            TripSyncState state = local.get(trip.guid);
+            if(state == null) {
+                // there is no meta data on the device, it is stored as a placeholder until the traces are downloaded
+                if(trip.status == TripMetadata.FINALIZED) {
+                    result.missing.add(trip);
+                } else {
+                    result.skipped++;
+                }
+            } else if(!state.synced) {
+                //local changes win until they are uploaded
+                result.skipped++;
+            } else if(diverged(trip, state)) {
+                result.diverged.add(trip);
+            } else if(changed(trip, state)) {
+                result.toUpdate.add(trip);
+            } else {
+                result.unchanged++;
+            }
+        }
+        return result;
+    }
+
+    private static boolean diverged(TripMetadata trip, TripSyncState state) {
+        return state.complete && trip.status == TripMetadata.FINALIZED && state.status == TripMetadata.FINALIZED
+                && trip.distance != null && Math.abs(trip.distance - state.distance) > DISTANCE_EPSILON;
+    }
+
+    private static boolean changed(TripMetadata trip, TripSyncState state) {
+        if(trip.status != null && trip.status != state.status) return true;
+        return trip.distance != null && Math.abs(trip.distance - state.distance) > DISTANCE_EPSILON;
+    }
+}
@@ -0,0 +1,221 @@
+package wisc.drivesense.httpTools;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import wisc.drivesense.DriveSenseApp;
+import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+import wisc.drivesense.utility.TripMetadata;
+
+/**
+ * Repairs the GPS traces of a trip that differ between the device and the server, found by
+ * comparing TraceMerkleTree hashes. Traces only the server has are downloaded, traces only
+ * the device has are marked unsent and go out with the next upload window. The local distance
+ * is only replaced by the server's once the server has every trace of the device.
+ */
+public class TripRepairRequest implements Runnable {
+    private static final String TAG = "TripRepairRequest";
+    private static final int TIMEOUT_MS = 10000;
+    private static final String TYPE = GsonSingleton.typeNameLookup.get(Trace.Trip.class);
+
+    //repairs are rare, one at a time is enough
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final TripMetadata trip;
+    private final DriveSenseToken dsToken;
+    private final RequestCoordinator.Callback<Void> done;
+
+    /**
+     * Repair the traces of the trips in the background, trips already being repaired are skipped
+     * @param trips
+     * @param dsToken
+     */
+    public static void enqueue(List<TripMetadata> trips, final DriveSenseToken dsToken) {
+        for (final TripMetadata trip : trips) {
+            DriveSenseApp.RequestCoordinator().submit(RequestCoordinator.key(Constants.kTraceHashesURL, trip.guid),
+                    new RequestCoordinator.Call<Void>() {
+                        @Override
+                        public void start(RequestCoordinator.Callback<Void> done) {
+                            executor.execute(new TripRepairRequest(trip, dsToken, done));
+                        }
+                    }, null);
+        }
+    }
+
+    private TripRepairRequest(TripMetadata trip, DriveSenseToken dsToken, RequestCoordinator.Callback<Void> done) {
+        this.trip = trip;
+        this.dsToken = dsToken;
+        this.done = done;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        boolean success = false;
+        try {
+            repair();
+            success = true;
+        } catch (Exception e) {
+            Log.d(TAG, "Repairing trip " + trip.guid + " failed. " + e.toString());
+        }
+        done.onComplete(null, success);
+    }
+
+    private void repair() throws IOException {
+        List<TraceMessage> local = DriveSenseApp.DBHelper().getTraces(trip.guid, TYPE);
+        if(local.isEmpty() && (trip.starttime == null || trip.endtime == null)) return;
+        long[] times = new long[local.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = local.get(i).value.time;
+        }
+        TraceMerkleTree tree = new TraceMerkleTree(times);
+        long start = trip.starttime != null ? trip.starttime : Long.MAX_VALUE;
+        long end = trip.endtime != null ? trip.endtime : Long.MIN_VALUE;
+        TraceMerkleTree.Diff diff = tree.compare(new TraceMerkleTree.Remote() {
+            @Override
+            public long[] hashes(int level, long[] indexes) throws IOException {
+                HashRequest request = new HashRequest();
+                request.guid = trip.guid;
+                request.type = TYPE;
+                request.level = level;
+                request.indexes = indexes;
+                return GsonSingleton.fromJson(post(Constants.kTraceHashesURL, request), HashResponse.class).hashes;
+            }
+
+            @Override
+            public long[] times(long[] blocks) throws IOException {
+                TimesRequest request = new TimesRequest();
+                request.guid = trip.guid;
+                request.type = TYPE;
+                request.blocks = blocks;
+                return GsonSingleton.fromJson(post(Constants.kTraceTimesURL, request), TimesResponse.class).times;
+            }
+        }, start, end);
+
+        if(!diff.missingLocally.isEmpty()) {
+            DriveSenseApp.DBHelper().insertRepairedTraces(trip.guid, fetchTraces(diff.missingLocally));
+        }
+        if(!diff.missingRemotely.isEmpty()) {
+            Set<Long> missing = new HashSet<>(diff.missingRemotely);
+            List<Long> rowids = new ArrayList<>();
+            for (TraceMessage tm : local) {
+                if(missing.contains(tm.value.time)) rowids.add(tm.rowid);
+            }
+            DriveSenseApp.DBHelper().markTracesUnsynced(rowids.toArray(new Long[rowids.size()]));
+        } else {
+            //the server has every trace of the device, its distance covers them all
+            DriveSenseApp.DBHelper().updateTrip(trip);
+        }
+        Log.d(TAG, "Repaired trip " + trip.guid + " in " + diff.roundTrips + " round trips: " + diff.missingLocally.size()
+                + " traces downloaded, " + diff.missingRemotely.size() + " to upload");
+    }
+
+    private HttpURLConnection open(String url, Object body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if(dsToken != null) {
+            connection.setRequestProperty("Authorization", "JWT ".concat(dsToken.jwt));
+        }
+        OutputStream out = connection.getOutputStream();
+        out.write(GsonSingleton.toJson(body).getBytes("UTF-8"));
+        out.close();
+        int status = connection.getResponseCode();
+        if(status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Server returned " + status);
+        }
+        return connection;
+    }
+
+    private String post(String url, Object body) throws IOException {
+        HttpURLConnection connection = open(url, body);
+        try {
+            Reader in = new InputStreamReader(new BufferedInputStream(connection.getInputStream()), "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            in.close();
+            return sb.toString();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private List<TraceMessage> fetchTraces(List<Long> times) throws IOException {
+        TraceRequest request = new TraceRequest();
+        request.guid = trip.guid;
+        request.type = TYPE;
+        request.times = times;
+        HttpURLConnection connection = open(Constants.kTripTracesURL, request);
+        try {
+            final List<TraceMessage> traces = new ArrayList<>();
+            Reader in = new InputStreamReader(new BufferedInputStream(connection.getInputStream()), "UTF-8");
+            try {
+                TraceStreamParser.parse(in, Trace.Trip.class, times.size(), new TraceStreamParser.ChunkHandler() {
+                    @Override
+                    public void onChunk(List<TraceMessage> chunk) {
+                        traces.addAll(chunk);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            return traces;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static class HashRequest {
+        String guid;
+        String type;
+        int level;
+        long[] indexes;
+    }
+
+    private static class HashResponse {
+        long[] hashes;
+    }
+
+    private static class TimesRequest {
+        String guid;
+        String type;
+        long[] blocks;
+    }
+
+    private static class TimesResponse {
+        long[] times;
+    }
+
+    //traces of a trip by time, instead of the offset range used by TripTraceDownloadRequest
+    private static class TraceRequest {
+        String guid;
+        String type;
+        List<Long> times;
+    }
+}
@@ -1,17 +1,25 @@
 package wisc.drivesense.httpTools;
 
-import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 
-import com.android.volley.VolleyError;
-import com.google.gson.reflect.TypeToken;
-
-import java.lang.reflect.Type;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Constants;
 import wisc.drivesense.utility.GsonSingleton;
 import wisc.drivesense.utility.Trace;
 import wisc.drivesense.utility.TraceMessage;
@@ -19,52 +27,209 @@ import wisc.drivesense.utility.TripMetadata;
 
 /**
  * Created by peter on 2/8/17.
+ *
+ * Downloads the traces of a trip page by page from the offset reached so far and writes every page
+ * to the database as it arrives, instead of buffering the whole trip in memory like a Volley request would.
  */
 
-public class TripTraceDownloadRequest extends GsonRequest<List<Trace.Trip>> {
-    private TripMetadata trip;
-    private static final Type responseType = new TypeToken<List<Trace.Trip>>(){}.getType();
+public class TripTraceDownloadRequest implements Runnable {
+    private static final String TAG = "TripTraceDownloadRequest";
 
-    public TripTraceDownloadRequest(String url, TripMetadata trip, DriveSenseToken dsToken) {
-        super(Method.POST, url, new TraceRequest(trip.guid, Trace.Trip.class), responseType, dsToken);
-        this.trip = trip;
+    //trace downloads in flight at once, a large refresh would otherwise hold many connections
+    //and database writers at the same time
+    private static final int MAX_CONCURRENT = 2;
+    //traces per request, each page is stored in one write transaction
+    private static final int PAGE_SIZE = 2000;
+    //pages of one trip requested at once when bandwidth allows
+    private static final int MAX_PARALLEL_PAGES = 3;
+    private static final int TIMEOUT_MS = 10000;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT);
+    private static final ExecutorService pageExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT * MAX_PARALLEL_PAGES);
+    //downloads waiting for a free slot, trips opened by the user go first
+    private static final Deque<TripTraceDownloadRequest> pending = new ArrayDeque<>();
+    private static int active = 0;
+
+    private final TripMetadata trip;
+    private final DriveSenseToken dsToken;
+    private final RequestCoordinator.Callback<Void> done;
+
+    /**
+     * Download the traces of trips in the background, at most MAX_CONCURRENT at a time.
+     * Trips pending or in flight are not downloaded again.
+     * @param trips metadata of the trips, stored along with the traces
+     * @param dsToken
+     */
+    public static void enqueue(List<TripMetadata> trips, DriveSenseToken dsToken) {
+        for (TripMetadata trip : trips) {
+            submit(trip, dsToken, false, null);
+        }
     }
 
-    @Override
-    public void onErrorResponse(VolleyError error) {
-        Log.d(TAG, "Downloading traces for trip "+trip.guid+" failed. "+error.toString());
+    /**
+     * Download the traces of a trip the user is waiting for, ahead of the background downloads
+     * @param trip
+     * @param dsToken
+     * @param listener called on the download thread once the traces are stored or the download failed
+     */
+    public static void fetchNow(TripMetadata trip, DriveSenseToken dsToken, final SyncListener listener) {
+        submit(trip, dsToken, true, new RequestCoordinator.Callback<Void>() {
+            @Override
+            public void onComplete(Void result, boolean success) {
+                listener.onSyncFinished(success);
+            }
+        });
+    }
+
+    private static void submit(final TripMetadata trip, final DriveSenseToken dsToken, final boolean first, RequestCoordinator.Callback<Void> waiter) {
+        boolean started = DriveSenseApp.RequestCoordinator().submit(key(trip.guid), new RequestCoordinator.Call<Void>() {
+            @Override
+            public void start(RequestCoordinator.Callback<Void> done) {
+                Log.d(TAG, "Download traces for " + (first ? "opened " : "") + "trip: " + trip.guid);
+                TripTraceDownloadRequest request = new TripTraceDownloadRequest(trip, dsToken, done);
+                synchronized (TripTraceDownloadRequest.class) {
+                    if(first) {
+                        pending.addFirst(request);
+                    } else {
+                        pending.addLast(request);
+                    }
+                }
+            }
+        }, waiter);
+        synchronized (TripTraceDownloadRequest.class) {
+            if(!started && first) {
+                moveToFront(trip.guid);
+            }
+            startNext();
+        }
+    }
+
+    private static String key(String guid) {
+        return RequestCoordinator.key(Constants.kTripTracesURL, guid);
+    }
+
+    private static void moveToFront(String guid) {
+        for (TripTraceDownloadRequest request : pending) {
+            if(request.trip.guid.equals(guid)) {
+                pending.remove(request);
+                pending.addFirst(request);
+                return;
+            }
+        }
+    }
+
+    private static synchronized void startNext() {
+        while (active < MAX_CONCURRENT && !pending.isEmpty()) {
+            active++;
+            executor.execute(pending.pollFirst());
+        }
+    }
+
+    private TripTraceDownloadRequest(TripMetadata trip, DriveSenseToken dsToken, RequestCoordinator.Callback<Void> done) {
+        this.trip = trip;
+        this.dsToken = dsToken;
+        this.done = done;
     }
 
     @Override
-    public void onResponse(final List<Trace.Trip> response) {
-        //Log.d(TAG, response.toString());
-        new AsyncTask<Void, Void, Void>() {
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        boolean success = false;
+        try {
+            download();
+            success = true;
+        } catch (Exception e) {
+            //the traces stored so far are kept, the download resumes with the next sync
+            Log.d(TAG, "Downloading traces for trip "+trip.guid+" failed. "+e.toString());
+        }
+        synchronized (TripTraceDownloadRequest.class) {
+            active--;
+            startNext();
+        }
+        done.onComplete(null, success);
+    }
 
+    private void download() throws IOException {
+        final long tripid = DriveSenseApp.DBHelper().beginTripDownload(trip);
+        if(tripid < 0) {
+            Log.d(TAG, "Trip " + trip.guid + " is already on the device");
+            return;
+        }
+        long fetched = DriveSenseApp.DBHelper().getFetchedCount(tripid);
+        if(fetched > 0) {
+            Log.d(TAG, "Resuming download of trip " + trip.guid + " at trace " + fetched);
+        }
+        long start = System.currentTimeMillis();
+        ChunkedTraceDownload download = new ChunkedTraceDownload(new ChunkedTraceDownload.PageSource() {
             @Override
-            protected Void doInBackground(Void... voids) {
-                List<TraceMessage> tmList = new ArrayList<>(response.size());
-                for (int i = 0; i < response.size(); i++) {
-                    tmList.add(new TraceMessage(response.get(i)));
-                }
-                try {
-                    Log.d(TAG, "Inserting trip and traces for "+trip.guid);
-                    DriveSenseApp.DBHelper().insertTripAndTraces(trip, tmList);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                return null;
+            public List<TraceMessage> fetch(long offset, int limit) throws IOException {
+                return fetchPage(offset, limit);
+            }
+        }, new ChunkedTraceDownload.PageSink() {
+            @Override
+            public void store(List<TraceMessage> page) {
+                //progress is stored in the same transaction as the traces
+                DriveSenseApp.DBHelper().insertDownloadedTraces(tripid, page);
+            }
+        }, PAGE_SIZE, pageExecutor);
+        long count = download.download(fetched, MAX_PARALLEL_PAGES);
+        DriveSenseApp.DBHelper().finishTripDownload(tripid);
+        Log.d(TAG, "Stored " + (count - fetched) + " traces for trip " + trip.guid + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Request one page of traces, the response is read as it arrives
+     * @param offset index of the first trace
+     * @param limit maximum number of traces
+     * @return
+     * @throws IOException
+     */
+    private List<TraceMessage> fetchPage(long offset, int limit) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(Constants.kTripTracesURL).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if(dsToken != null) {
+                connection.setRequestProperty("Authorization", "JWT ".concat(dsToken.jwt));
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null);
+            OutputStream out = connection.getOutputStream();
+            out.write(GsonSingleton.toJson(new TraceRequest(trip.guid, offset, limit, Trace.Trip.class)).getBytes("UTF-8"));
+            out.close();
 
+            int status = connection.getResponseCode();
+            if(status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server returned " + status);
+            }
+            final List<TraceMessage> page = new ArrayList<>();
+            Reader in = new InputStreamReader(new BufferedInputStream(connection.getInputStream()), "UTF-8");
+            try {
+                TraceStreamParser.parse(in, Trace.Trip.class, limit, new TraceStreamParser.ChunkHandler() {
+                    @Override
+                    public void onChunk(List<TraceMessage> chunk) {
+                        page.addAll(chunk);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            return page;
+        } finally {
+            connection.disconnect();
+        }
     }
 
     private static class TraceRequest {
         String guid;
-        int start;
+        long start;
+        int limit;
         String type;
-        public TraceRequest(String guid, Class<? extends Trace> type) {
+        public TraceRequest(String guid, long start, int limit, Class<? extends Trace> type) {
             this.guid=guid;
-            this.start=0;
+            this.start=start;
+            this.limit=limit;
             this.type=GsonSingleton.typeNameLookup.get(type);
         }
     }
@@ -1,23 +1,30 @@
 package wisc.drivesense.httpTools;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkInfo;
 import android.util.Log;
 
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Request;
 import com.android.volley.VolleyError;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import wisc.drivesense.DriveSenseApp;
-import wisc.drivesense.activity.SettingActivity;
+import wisc.drivesense.httpPayloads.StoredBatchesPayload;
 import wisc.drivesense.httpPayloads.TripPayload;
 import wisc.drivesense.user.DriveSenseToken;
+import wisc.drivesense.utility.Clock;
 import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.TraceBatch;
 import wisc.drivesense.utility.Trip;
+import wisc.drivesense.utility.TripMetadata;
 
+import static wisc.drivesense.utility.Constants.kBatchUploadBytes;
 import static wisc.drivesense.utility.Constants.kBatchUploadCount;
 
 /**
@@ -25,100 +32,292 @@ import static wisc.drivesense.utility.Constants.kBatchUploadCount;
  */
 
 public class TripUploadRequest extends CompressedGSONRequest<TripPayload> {
-    private static volatile boolean running = false;
-    private static volatile int failureCount = 0;
-    private static final int FAILURE_THRESHOLD = 10;
     private static final String TAG = "TripUploadRequest";
+    //requests in flight at once, one of them is kept for points of the trip being recorded
+    private static final int MAX_IN_FLIGHT = 2;
+    //a waiting upload gains one class of priority for every minute it waits
+    private static final long AGING_STEP = 60 * 1000;
+    //trips of one class looked up at a time once the queued backlog is sent
+    private static final int BACKLOG_BATCH = 50;
+    //a failed batch of the trip being recorded is sent again after this long, twice as long every time
+    private static final long LIVE_RETRY_MS = 5000;
+    //then it is left to the backlog, which sends it again with the same number once the trip ended
+    private static final int LIVE_RETRIES = 4;
+    static final int TIMEOUT_MS = 10000;
 
-    private Context context;
+    private static final SyncQueue<TripPayload> queue = new SyncQueue<>(Clock.SYSTEM, MAX_IN_FLIGHT, AGING_STEP);
+
+    private static final UploadLedger ledger = new UploadLedger(new UploadLedger.Store() {
+        @Override
+        public Map<String, List<Integer>> getPendingBatches() {
+            return DriveSenseApp.DBHelper().getPendingBatches();
+        }
+
+        @Override
+        public void markBatchSynced(String guid, int seq) {
+            DriveSenseApp.DBHelper().markBatchSynced(guid, seq);
+        }
+    });
+    //set while the server is asked which pending batches it has, the backlog waits for the answer
+    private static boolean settling = false;
+
+    //set while SyncJobService has a window uploading the backlog of past trips
+    private static SyncListener backlogListener = null;
+    private static boolean backlogVitalOnly = false;
+
+    private final SyncQueue.Job<TripPayload> job;
 
     /**
-     * Start an upload of a trip payload that may or may not contain
-     * the entire trip's points. Must indicate that an upload is in progress
-     * so that race conditions don't occur
+     * Queue an upload of a batch of points of the trip being recorded. It goes out ahead of
+     * the backlog, batches that pile up while the previous one is in flight are sent together.
+     * A batch that failed goes out again first, with its number.
      * @param payload
      */
     public static synchronized void Start(TripPayload payload, Context context) {
-        if(!running) {
-            DriveSenseToken user = DriveSenseApp.DBHelper().getCurrentUser();
-            if(user == null) return;
-            running = true;
-            TripUploadRequest currentRequest = new TripUploadRequest(Request.Method.POST, Constants.kTripURL, payload, user, context);
-            DriveSenseApp.RequestQueue().add(currentRequest);
+        SyncQueue.Job<TripPayload> waiting = queue.find(SyncQueue.Priority.LIVE_GPS, payload.guid);
+        if(waiting != null) {
+            waiting.value.traces.addAll(payload.traces);
+            waiting.value.distance = payload.distance;
+        } else {
+            queue.offer(SyncQueue.Priority.LIVE_GPS, payload.guid, payload);
         }
+        pump();
+    }
+
+    /**
+     * The trip stopped recording, a live batch of it waiting to be sent again is left to the backlog
+     * @param guid
+     */
+    public static synchronized void EndLive(String guid) {
+        SyncQueue.Job<TripPayload> dropped = queue.dropRetry(guid);
+        if(dropped != null) {
+            Log.d(TAG, "Leaving live batch " + dropped.value.seq + " of trip " + guid + " to the backlog");
+            pump();
+        }
+    }
+
+    private static boolean isRecording(String guid) {
+        Trip trip = DriveSenseApp.DBHelper().getTrip(guid);
+        return trip != null && trip.getStatus() == TripMetadata.LIVE;
     }
 
     /**
-     * Start an upload of any past trips that aren't synced.
-     * Must not start if an existing live upload is in progress.
+     * Upload past trips that aren't synced until none are left: metadata changes first,
+     * then GPS traces, then raw sensor data. Live uploads keep going out in between.
+     * Only called by SyncJobService, which decides whether raw sensor data may be sent.
      * @param context
+     * @param vitalOnly only upload metadata and GPS traces
+     * @param listener told when nothing is left or a request failed
+     */
+    public static synchronized void StartBacklog(Context context, boolean vitalOnly, SyncListener listener) {
+        backlogListener = listener;
+        backlogVitalOnly = vitalOnly;
+        DriveSenseToken user = DriveSenseApp.DBHelper().getCurrentUser();
+        StoredBatchesPayload query = user == null || settling ? null : ledger.query();
+        if(query != null) {
+            settling = true;
+            DriveSenseApp.RequestQueue().add(new StoredBatchesRequest(ledger, query, user));
+        }
+        pump();
+    }
+
+    /**
+     * The server told which pending batches it has, or could not be asked
+     */
+    static synchronized void onSettled() {
+        settling = false;
+        pump();
+    }
+
+    /**
+     * Stop uploading the backlog after the requests in flight, the listener is not called
+     */
+    public static synchronized void StopBacklog() {
+        backlogListener = null;
+        queue.clearBacklog();
+    }
 
+    /**
+     * Send every queued upload there is a free slot for, and look up more past trips
+     * once the queued ones are sent
+     */
+    private static synchronized void pump() {
+        DriveSenseToken user = DriveSenseApp.DBHelper().getCurrentUser();
+        if(user == null) {
+            //logged out while uploads were queued, live ones too
+            queue.clear();
+            finishBacklog(true);
+            return;
+        }
+        while (true) {
+            SyncQueue.Job<TripPayload> job;
+            while ((job = queue.poll()) != null) {
+                if(job.value != null) {
+                    //a retried batch keeps its number, the server may have it already
+                    if(job.value.seq == null) {
+                        job.value.seq = DriveSenseApp.DBHelper().numberTraceBatch(job.guid, job.value.traces);
+                    }
+                    job.value.withTraceIds();
+                    DriveSenseApp.RequestQueue().add(new TripUploadRequest(Request.Method.POST, Constants.kTripURL, job.value, user, job));
+                    continue;
+                }
+                TripPayload payload = backlogPayload(job);
+                if(payload == null) {
+                    queue.finish(job);
+                    continue;
+                }
+                //short trips of the same class go out together, up to the byte budget
+                TripBatcher batcher = new TripBatcher(kBatchUploadBytes);
+                batcher.add(payload);
+                List<SyncQueue.Job<TripPayload>> jobs = new ArrayList<>();
+                jobs.add(job);
+                SyncQueue.Job<TripPayload> next;
+                while ((next = queue.pollWith(job)) != null) {
+                    TripPayload nextPayload = backlogPayload(next);
+                    if(nextPayload == null) {
+                        queue.finish(next);
+                    } else if(batcher.add(nextPayload)) {
+                        jobs.add(next);
+                    } else {
+                        queue.putBack(next);
+                        break;
+                    }
+                }
+                if(jobs.size() == 1) {
+                    DriveSenseApp.RequestQueue().add(new TripUploadRequest(Request.Method.POST, Constants.kTripURL, payload, user, job));
+                } else {
+                    DriveSenseApp.RequestQueue().add(new TripBatchUploadRequest(batcher, jobs, user));
+                }
+            }
+            if(backlogListener == null || settling || queue.backlogSize() > 0) return;
+            if(!fillBacklog()) {
+                finishBacklog(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue past trips from the sync summary
+     * @return false if nothing is left to upload
      */
-    public static synchronized void Start(Context context) {
-        if(!running && context != null) {
-            boolean wifi = wifiConnected(context) || !SettingActivity.getWifiOnly(context);
-
-            //create a list of trips with either unsynced metadata or unsent traces.
-            List<Trip> trips = DriveSenseApp.DBHelper().loadTrips("synced = 0 and status != 1");
-            List<Trip> unsent = DriveSenseApp.DBHelper().getTripsWithUnsentTraces(!wifi);
-            Log.d(TAG, "Found "+trips.size()+" trips with unsynced metadata and "+unsent.size()+" trips with unsent traces");
-            trips.addAll(unsent);
-            if(trips.size() == 0) return;
-            TripPayload payload = new TripPayload();
-            Trip trip = trips.get(0);
-            payload.guid = trip.guid.toString();
-            payload.distance = trip.getDistance();
-            payload.traces = DriveSenseApp.DBHelper().getUnsentTraces(payload.guid, kBatchUploadCount, !wifi);
-            payload.status = trip.getStatus();
-
-            Start(payload, context);
+    private static boolean fillBacklog() {
+        long lookupStart = System.currentTimeMillis();
+        boolean queued = false;
+        for (Trip trip : DriveSenseApp.DBHelper().getTripsWithDirtyMetadata(BACKLOG_BATCH)) {
+            queued |= queue.offer(SyncQueue.Priority.METADATA, trip.guid.toString(), null);
+        }
+        for (Trip trip : DriveSenseApp.DBHelper().getTripsWithUnsentGPS(BACKLOG_BATCH)) {
+            queued |= queue.offer(SyncQueue.Priority.TRIP_GPS, trip.guid.toString(), null);
+        }
+        if(!backlogVitalOnly) {
+            for (Trip trip : DriveSenseApp.DBHelper().getTripsWithUnsentIMU(BACKLOG_BATCH)) {
+                queued |= queue.offer(SyncQueue.Priority.IMU, trip.guid.toString(), null);
+            }
         }
+        Log.d(TAG, "Looked up trips to sync in " + (System.currentTimeMillis() - lookupStart) + " ms");
+        return queued;
     }
 
     /**
-     * Return true if the device is currently connected to WiFi
-     * @param context Current application context
-     * @return true if connected to WiFi
+     * Read the next batch of a past trip from the database, only once it is about to be sent
+     * @return null if the trip no longer exists
      */
-    private static boolean wifiConnected(Context context) {
-        ConnectivityManager connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo ni =  connManager.getActiveNetworkInfo();
-        boolean wifi = false;
-        if (ni != null && ni.getType() == ConnectivityManager.TYPE_WIFI && ni.isConnected())
-            wifi = true;
-        return wifi;
+    private static TripPayload backlogPayload(SyncQueue.Job<TripPayload> job) {
+        Trip trip = DriveSenseApp.DBHelper().getTrip(job.guid);
+        if(trip == null) return null;
+        TripPayload payload = new TripPayload();
+        payload.guid = job.guid;
+        payload.distance = trip.getDistance();
+        payload.status = trip.getStatus();
+        TraceBatch batch = null;
+        if(job.priority != SyncQueue.Priority.METADATA) {
+            batch = DriveSenseApp.DBHelper().getUnsentBatch(job.guid, kBatchUploadCount, job.priority == SyncQueue.Priority.TRIP_GPS);
+        }
+        if(batch != null) {
+            payload.traces = batch.traces;
+            payload.seq = batch.seq;
+            payload.withTraceIds();
+        } else {
+            payload.traces = new ArrayList<>();
+        }
+        return payload;
     }
 
+    private static synchronized void finishBacklog(boolean success) {
+        SyncListener listener = backlogListener;
+        backlogListener = null;
+        if(listener != null) {
+            Log.d(TAG, "Upload queue: " + queue);
+            listener.onSyncFinished(success);
+        }
+    }
 
-    private TripUploadRequest(int method, String url, TripPayload body, DriveSenseToken dsToken, Context context) {
+    private TripUploadRequest(int method, String url, TripPayload body, DriveSenseToken dsToken, SyncQueue.Job<TripPayload> job) {
         super(method, url, body, TripPayload.class, dsToken);
-        this.context = context.getApplicationContext();
+        this.job = job;
+        //numbered batches are stored once, so a timed out upload can be sent again right away
+        this.setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, 1, 1f));
+    }
+
+    @Override
+    protected boolean usesTraceDictionary() {
+        return true;
     }
 
-    private synchronized void onComplete() {
-        running = false;
-        if(failureCount < FAILURE_THRESHOLD)
-            Start(context);
+    /**
+     * Mark what the server stored as synced and send whatever is next
+     * @param jobs the jobs sent in one request
+     * @param accepted payloads the server stored, the traces they carried are marked as synced
+     */
+    static void onUploaded(List<SyncQueue.Job<TripPayload>> jobs, List<TripPayload> accepted) {
+        Set<String> stored = new HashSet<>();
+        for (TripPayload payload : accepted) {
+            Long[] traceids = new Long[payload.traces.size()];
+            for (int i = 0; i < traceids.length; i++) {
+                traceids[i] = payload.traces.get(i).rowid;
+            }
+            DriveSenseApp.DBHelper().markTracesSynced(traceids);
+
+            // Mark trip synced. Note that this does not mean all traces have been synced, just metadata
+            DriveSenseApp.DBHelper().markTripSynced(payload.guid);
+            stored.add(payload.guid);
+        }
+        synchronized (TripUploadRequest.class) {
+            boolean backlogFailed = false;
+            for (SyncQueue.Job<TripPayload> job : jobs) {
+                if(stored.contains(job.guid)) {
+                    queue.finish(job);
+                } else if(job.priority == SyncQueue.Priority.LIVE_GPS) {
+                    //sent again before the later batches of the live trip, it does not end the window
+                    if(job.failures < LIVE_RETRIES && isRecording(job.guid)) {
+                        queue.retry(job, LIVE_RETRY_MS << job.failures);
+                    } else {
+                        //its rows stay numbered and unsent
+                        Log.d(TAG, "Leaving live batch " + job.value.seq + " of trip " + job.guid + " to the backlog");
+                        queue.finish(job);
+                    }
+                } else {
+                    queue.finish(job);
+                    backlogFailed = true;
+                }
+            }
+            if(backlogFailed) {
+                queue.clearBacklog();
+                finishBacklog(false);
+            }
+            pump();
+        }
     }
 
     @Override
     public void onErrorResponse(VolleyError error) {
-        onComplete();
-        failureCount ++;
+        Log.d(TAG, "Upload of trip " + ((TripPayload)payload).guid + " failed");
+        onUploaded(Collections.singletonList(job), Collections.<TripPayload>emptyList());
     }
 
     @Override
     public void onResponse(TripPayload response) {
-        failureCount = 0;
-        Long[] traceids = new Long[((TripPayload)payload).traces.size()];
-
-        for (int i = 0; i < traceids.length; i++) {
-            traceids[i] = ((TripPayload)payload).traces.get(i).rowid;
-        }
-        DriveSenseApp.DBHelper().markTracesSynced(traceids);
-
-        // Mark trip synced. Note that this does not mean all traces have been synced, just metadata
-        DriveSenseApp.DBHelper().markTripSynced(((TripPayload)payload).guid);
-        onComplete();
+        onUploaded(Collections.singletonList(job), Collections.singletonList((TripPayload) payload));
     }
 }
@@ -0,0 +1,68 @@
+package wisc.drivesense.httpTools;
+
+import java.util.List;
+import java.util.Map;
+
+import wisc.drivesense.httpPayloads.StoredBatchesPayload;
+
+/**
+ * Makes trace uploads safe to repeat. Every batch of traces of a trip gets the next number of
+ * the trip before it is first sent and keeps rows and number until the server acknowledges it,
+ * so the server stores a batch it receives twice only once.
+ * A batch whose response was lost is pending. Before pending batches are sent again the server
+ * is asked which of them it already has, those are marked synced and not uploaded again.
+ */
+public class UploadLedger {
+
+    /**
+     * Where the batches are kept, the trace table on the device
+     */
+    public interface Store {
+        /**
+         * @return numbers of the batches that were sent but never acknowledged, by trip guid
+         */
+        Map<String, List<Integer>> getPendingBatches();
+
+        void markBatchSynced(String guid, int seq);
+    }
+
+    private final Store store;
+
+    public UploadLedger(Store store) {
+        this.store = store;
+    }
+
+    /**
+     * @return what to ask the server, null if no batch is pending
+     */
+    public StoredBatchesPayload query() {
+        Map<String, List<Integer>> pending = store.getPendingBatches();
+        if(pending.isEmpty()) return null;
+        StoredBatchesPayload query = new StoredBatchesPayload();
+        query.batches = pending;
+        return query;
+    }
+
+    /**
+     * Mark the pending batches the server has as synced, the others are sent again
+     * @param query
+     * @param answer
+     * @return number of batches that are not sent again
+     */
+    public int settle(StoredBatchesPayload query, StoredBatchesPayload answer) {
+        if(answer == null || answer.batches == null) return 0;
+        int settled = 0;
+        for (Map.Entry<String, List<Integer>> entry : query.batches.entrySet()) {
+            List<Integer> stored = answer.batches.get(entry.getKey());
+            if(stored == null) continue;
+            for (Integer seq : entry.getValue()) {
+                //only batches that were asked about, the answer may be stale
+                if(stored.contains(seq)) {
+                    store.markBatchSynced(entry.getKey(), seq);
+                    settled++;
+                }
+            }
+        }
+        return settled;
+    }
+}
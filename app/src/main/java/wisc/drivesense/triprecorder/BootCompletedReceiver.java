@@ -0,0 +1,17 @@
+package wisc.drivesense.triprecorder;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Alarms do not survive a reboot or an update of the app, and nothing else starts the app until
+ * the user opens it. Starts DrivingDetectionService again if detection is enabled.
+ */
+public class BootCompletedReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        DrivingDetectionService.update(context);
+    }
+}
@@ -0,0 +1,18 @@
+package wisc.drivesense.triprecorder;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * The alarm for the next window of DrivingDetectionService. The alarm only keeps the phone awake
+ * until onReceive returns, so the service is started holding a wake lock that it releases once
+ * the window has its own.
+ */
+public class DrivingDetectionAlarmReceiver extends WakefulBroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        startWakefulService(context, new Intent(context, DrivingDetectionService.class));
+    }
+}
@@ -0,0 +1,256 @@
+package wisc.drivesense.triprecorder;
+
+import android.Manifest;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.Log;
+
+import wisc.drivesense.activity.SettingActivity;
+import wisc.drivesense.utility.Trace;
+
+/**
+ * Starts and stops trips when the DrivingDetector says the phone is driving, without a power
+ * connection. Between windows nothing is registered and an alarm wakes the service up for the
+ * next one, the accelerometer and a coarse fix are only on for the window.
+ *
+ * Trips the detector did not start, by hand or by power connection, are left alone.
+ */
+public class DrivingDetectionService extends Service implements SensorEventListener, LocationListener, DrivingDetector.Listener {
+    private static final String TAG = "DrivingDetection";
+    private static final long REPORT_INTERVAL_MS = 60 * 60 * 1000;
+
+    private SensorManager sensorManager;
+    private LocationManager locationManager;
+    private PowerManager.WakeLock wakeLock;
+    private HandlerThread thread;
+    private Handler handler;
+    private DrivingDetector detector;
+    private boolean listening = false;
+    private long windowStart = 0;
+    //cpu time of the detection since the last report
+    private long cpuMillis = 0;
+    private long lastReport = 0;
+    private boolean recording = false;
+    private boolean startedTrip = false;
+
+    /**
+     * Start or stop detection to match the setting
+     * @param context
+     */
+    public static void update(Context context) {
+        Intent intent = new Intent(context, DrivingDetectionService.class);
+        if(SettingActivity.getDetectDriving(context)) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        wakeLock = ((PowerManager) getSystemService(POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        detector = new DrivingDetector(this);
+        lastReport = SystemClock.elapsedRealtime();
+        LocalBroadcastManager.getInstance(this).registerReceiver(mRecordingStatusChangedReceiver, new IntentFilter(TripService.TRIP_STATUS_CHANGE));
+    }
+
+    /**
+     * Called by update and by DrivingDetectionAlarmReceiver before every window
+     */
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        if(!SettingActivity.getDetectDriving(this)) {
+            if(intent != null) WakefulBroadcastReceiver.completeWakefulIntent(intent);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startWindow.run();
+                //the window holds its own wake lock now
+                if(intent != null) WakefulBroadcastReceiver.completeWakefulIntent(intent);
+            }
+        });
+        return START_STICKY;
+    }
+
+    private final Runnable startWindow = new Runnable() {
+        @Override
+        public void run() {
+            if(listening) return;
+            listening = true;
+            windowStart = SystemClock.elapsedRealtime();
+            wakeLock.acquire(DrivingDetector.WINDOW_MS * 2);
+            Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            sensorManager.registerListener(DrivingDetectionService.this, accelerometer, DrivingDetector.WINDOW_PERIOD_US, handler);
+            if(detector.needsLocation() && ActivityCompat.checkSelfPermission(DrivingDetectionService.this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                    && locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+                locationManager.requestSingleUpdate(LocationManager.NETWORK_PROVIDER, DrivingDetectionService.this, thread.getLooper());
+            }
+            handler.postDelayed(endWindow, DrivingDetector.WINDOW_MS);
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            long start = SystemClock.currentThreadTimeMillis();
+            stopListening();
+            DrivingDetector.Window window = detector.endWindow(System.currentTimeMillis(), SystemClock.elapsedRealtime() - windowStart);
+            Log.d(TAG, "Window " + window + ", " + detector.getState());
+            schedule(detector.getInterval());
+            cpuMillis += SystemClock.currentThreadTimeMillis() - start;
+            if(SystemClock.elapsedRealtime() - lastReport > REPORT_INTERVAL_MS) {
+                Log.d(TAG, detector.report() + ", cpu " + cpuMillis + " ms in the last hour");
+                cpuMillis = 0;
+                lastReport = SystemClock.elapsedRealtime();
+            }
+            if(wakeLock.isHeld()) wakeLock.release();
+        }
+    };
+
+    private void stopListening() {
+        if(!listening) return;
+        listening = false;
+        sensorManager.unregisterListener(this);
+        if(ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            locationManager.removeUpdates(this);
+        }
+    }
+
+    private PendingIntent alarmIntent() {
+        return PendingIntent.getBroadcast(this, 0, new Intent(this, DrivingDetectionAlarmReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Wake the phone for the next window, inexact so it can go with other alarms
+     * @param delay
+     */
+    private void schedule(long delay) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay, alarmIntent());
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "Stop driving detection. " + detector.report());
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mRecordingStatusChangedReceiver);
+        ((AlarmManager) getSystemService(Context.ALARM_SERVICE)).cancel(alarmIntent());
+        handler.removeCallbacksAndMessages(null);
+        stopListening();
+        if(wakeLock.isHeld()) wakeLock.release();
+        thread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        Trace.Accel accel = new Trace.Accel();
+        accel.time = System.currentTimeMillis();
+        accel.x = event.values[0];
+        accel.y = event.values[1];
+        accel.z = event.values[2];
+        detector.onAccel(accel);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        Trace.GPS fix = new Trace.GPS();
+        fix.time = location.getTime();
+        fix.lat = (float) location.getLatitude();
+        fix.lng = (float) location.getLongitude();
+        fix.speed = location.hasSpeed() ? location.getSpeed() : 0;
+        detector.onLocation(fix);
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+
+    }
+
+    /**
+     * On the detection thread
+     */
+    @Override
+    public void onDrivingStarted(long time) {
+        Log.d(TAG, "Driving detected. " + detector.report());
+        if(recording) return;
+        startedTrip = true;
+        Intent intent = new Intent(this, TripService.class);
+        intent.putExtra(TripService.START_IMMEDIATELY, true);
+        startService(intent);
+    }
+
+    @Override
+    public void onDrivingStopped(long time) {
+        Log.d(TAG, "Driving ended. " + detector.report());
+        if(!startedTrip) return;
+        startedTrip = false;
+        Intent intent = new Intent(this, TripService.class);
+        intent.putExtra(TripService.STOP_IMMEDIATELY, true);
+        startService(intent);
+    }
+
+    private BroadcastReceiver mRecordingStatusChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, final Intent intent) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recording = intent.getBooleanExtra("recording", false);
+                    if(!recording) startedTrip = false;
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,202 @@
+package wisc.drivesense.triprecorder;
+
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.Trip;
+
+/**
+ * Decides from short windows of accelerometer samples and coarse location fixes whether the
+ * phone is in a driving car, while no trip is recorded. DrivingDetectionService wakes up every
+ * getInterval(), listens for WINDOW_MS and hands what it got to the detector.
+ *
+ * A window is classified on the variance of the accelerometer magnitude and the speed:
+ * - a phone lying still barely varies, a walking one varies a lot, a car vibrates in between
+ * - a coarse fix is only asked for when the accelerometer looks like a car or while driving,
+ *   a speed above DRIVING_SPEED is a car, below WALKING_SPEED is not, in between it may be
+ *   slow traffic
+ * Driving starts after START_WINDOWS driving windows in a row and stops once there was none
+ * for STOP_MS, or after STOP_WALKING_WINDOWS walking windows in a row.
+ *
+ * Memory is bounded, a window keeps running sums and nothing else. Times are those of the traces.
+ */
+public class DrivingDetector {
+
+    public enum State {
+        IDLE,
+        DRIVING
+    }
+
+    public enum Window {
+        STILL,
+        WALKING,
+        //vibrates like a car, but without a speed to tell
+        VEHICLE,
+        DRIVING,
+        NOT_DRIVING
+    }
+
+    public interface Listener {
+        void onDrivingStarted(long time);
+        void onDrivingStopped(long time);
+    }
+
+    public static final long WINDOW_MS = 5 * 1000;
+    //accelerometer period while listening
+    public static final int WINDOW_PERIOD_US = 50 * 1000;
+    //between windows with nothing going on
+    public static final long IDLE_INTERVAL_MS = 60 * 1000;
+    //between windows while a start is being confirmed
+    public static final long CONFIRM_INTERVAL_MS = 10 * 1000;
+    //between windows while a trip is recorded
+    public static final long DRIVING_INTERVAL_MS = 30 * 1000;
+    static final int START_WINDOWS = 3;
+    static final int STOP_WALKING_WINDOWS = 2;
+    static final long STOP_MS = 5 * 60 * 1000;
+    //(m/s^2)^2
+    static final double STILL_VARIANCE = 0.002;
+    static final double WALKING_VARIANCE = 1.0;
+    //m/s, about 20 and 5 km/h
+    static final double DRIVING_SPEED = 5.5;
+    static final double WALKING_SPEED = 1.5;
+    //a fix this old doesn't tell the speed of the window
+    static final long MAX_FIX_AGE_MS = 2 * 60 * 1000;
+    //fixes closer than this are within the accuracy of a coarse location
+    static final double MIN_FIX_DISTANCE = 100;
+
+    private final Listener listener;
+    private State state = State.IDLE;
+    private int drivingWindows = 0;
+    private int walkingWindows = 0;
+    private long lastDriving = -1;
+    private Window last = Window.STILL;
+
+    //the window being collected
+    private int samples = 0;
+    private double sum = 0;
+    private double squares = 0;
+    private double speed = Double.NaN;
+    private Trace.GPS lastFix = null;
+
+    //cost of the detection
+    private long listenedMillis = 0;
+    private int windows = 0;
+    private int fixes = 0;
+
+    public DrivingDetector(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the classification of the last window
+     */
+    public Window getLastWindow() {
+        return last;
+    }
+
+    /**
+     * @return time until the next window should start
+     */
+    public long getInterval() {
+        if(state == State.DRIVING) return DRIVING_INTERVAL_MS;
+        if(drivingWindows > 0 || last == Window.VEHICLE) return CONFIRM_INTERVAL_MS;
+        return IDLE_INTERVAL_MS;
+    }
+
+    /**
+     * @return whether the next window needs a coarse location fix
+     */
+    public boolean needsLocation() {
+        return state == State.DRIVING || drivingWindows > 0 || last == Window.VEHICLE;
+    }
+
+    public void onAccel(Trace.Accel accel) {
+        double magnitude = Math.sqrt(accel.x * accel.x + accel.y * accel.y + accel.z * accel.z);
+        samples++;
+        sum += magnitude;
+        squares += magnitude * magnitude;
+    }
+
+    /**
+     * A coarse location fix, its speed is used if it has one
+     * @param fix
+     */
+    public void onLocation(Trace.GPS fix) {
+        fixes++;
+        if(fix.speed > 0) {
+            speed = fix.speed;
+        } else if(lastFix != null && fix.time - lastFix.time > 0 && fix.time - lastFix.time < MAX_FIX_AGE_MS) {
+            double distance = Trip.distance(lastFix, fix);
+            //a coarse fix moves around by itself, only a long way counts as moving
+            speed = distance < MIN_FIX_DISTANCE ? 0 : distance * 1000 / (fix.time - lastFix.time);
+        }
+        lastFix = fix;
+    }
+
+    /**
+     * Classify what was collected since the last window and start or stop driving
+     * @param time end of the window
+     * @param listened milliseconds the sensors were on for the window
+     * @return the classification of the window
+     */
+    public Window endWindow(long time, long listened) {
+        windows++;
+        listenedMillis += listened;
+        last = classify();
+        samples = 0;
+        sum = 0;
+        squares = 0;
+        speed = Double.NaN;
+
+        if(last == Window.DRIVING) {
+            drivingWindows++;
+            lastDriving = time;
+        } else if(last != Window.VEHICLE) {
+            drivingWindows = 0;
+        }
+        walkingWindows = last == Window.WALKING ? walkingWindows + 1 : 0;
+
+        if(state == State.IDLE && drivingWindows >= START_WINDOWS) {
+            state = State.DRIVING;
+            listener.onDrivingStarted(time);
+        } else if(state == State.DRIVING && (time - lastDriving >= STOP_MS || walkingWindows >= STOP_WALKING_WINDOWS)) {
+            state = State.IDLE;
+            drivingWindows = 0;
+            listener.onDrivingStopped(time);
+        }
+        return last;
+    }
+
+    private Window classify() {
+        //a car on a smooth road with the phone in a mount barely vibrates
+        if(speed >= DRIVING_SPEED) return Window.DRIVING;
+        double variance = 0;
+        if(samples > 1) {
+            double mean = sum / samples;
+            variance = Math.max(0, squares / samples - mean * mean);
+        }
+        if(variance >= WALKING_VARIANCE) return Window.WALKING;
+        if(speed < WALKING_SPEED) return Window.NOT_DRIVING;
+        //no samples at all is as good as still
+        if(variance < STILL_VARIANCE) return Window.STILL;
+        return Window.VEHICLE;
+    }
+
+    public long getListenedMillis() {
+        return listenedMillis;
+    }
+
+    public int getWindows() {
+        return windows;
+    }
+
+    public int getFixes() {
+        return fixes;
+    }
+
+    public String report() {
+        return windows + " windows, sensors on " + listenedMillis / 1000 + " s, " + fixes + " location fixes";
+    }
+}
@@ -0,0 +1,247 @@
+package wisc.drivesense.triprecorder;
+
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.FlightRecord;
+import wisc.drivesense.utility.Trace;
+
+/**
+ * Finds hard brakes, hard accelerations, sharp turns and swerves in the full rate accelerometer
+ * and gyroscope, instead of in the GPS speed once a second like RatingCalculation.
+ *
+ * The samples are turned into the frame of the car: the orientation of the phone takes them to
+ * east, north and up, and the heading of the car, from the last fixes and turned by the yaw rate
+ * in between, splits the horizontal acceleration into along and across the car. Smoothed, each of
+ * them is checked against a threshold with hysteresis, a swerve is a short yaw one way right
+ * after a short one the other way. Without an orientation or a heading, parked for a while or
+ * before the first fixes, nothing is reported.
+ *
+ * The state is a few numbers, a sample costs a handful of multiplications and allocates nothing.
+ * Only the pipeline thread calls it, times are those of the traces.
+ */
+public class DrivingEventDetector {
+    //m/s^2, a little over 0.3 g
+    public static final float BRAKE_THRESHOLD = 3.0f;
+    public static final float ACCEL_THRESHOLD = 2.5f;
+    public static final float TURN_THRESHOLD = 3.5f;
+    //rad/s
+    public static final float SWERVE_THRESHOLD = 0.25f;
+    static final long BRAKE_MIN_MS = 300;
+    static final long ACCEL_MIN_MS = 300;
+    //shorter is a swerve or a pothole
+    static final long TURN_MIN_MS = 1000;
+    static final long SWERVE_MIN_LOBE_MS = 200;
+    static final long SWERVE_MAX_LOBE_MS = 1500;
+    static final long SWERVE_MAX_GAP_MS = 700;
+    //an event ends when the value falls below this part of the threshold
+    private static final float RELEASE = 0.7f;
+    //time constant of the smoothing
+    private static final float SMOOTH_MS = 150;
+    //samples further apart than this are a gap, not a step
+    private static final long MAX_STEP_MS = 100;
+    //slower than this the fixes don't give a heading
+    private static final double MIN_HEADING_SPEED = 3.0;
+    //the heading is kept this long after the last fix that gave one, through a red light
+    //and pulling away from it, but not once parked
+    private static final long HEADING_TIMEOUT_MS = 2 * 60 * 1000;
+
+    public interface Listener {
+        /**
+         * Called on the pipeline thread once the event is over
+         */
+        void onEvent(DrivingEvent event);
+    }
+
+    /**
+     * A value against a threshold, with the time it was beyond it and its peak
+     */
+    private static class Threshold {
+        final DrivingEvent.Type type;
+        final float threshold;
+        final long minMs;
+        boolean active = false;
+        long start;
+        long last;
+        float peak;
+
+        Threshold(DrivingEvent.Type type, float threshold, long minMs) {
+            this.type = type;
+            this.threshold = threshold;
+            this.minMs = minMs;
+        }
+
+        /**
+         * @param magnitude how far the value is in the direction of the event
+         * @param value signed, kept for the peak
+         * @return true once an event long enough is over
+         */
+        boolean update(long time, float magnitude, float value) {
+            if(magnitude >= threshold) {
+                if(!active) {
+                    active = true;
+                    start = time;
+                    peak = 0;
+                }
+                last = time;
+                if(Math.abs(value) > Math.abs(peak)) peak = value;
+                return false;
+            }
+            if(!active || magnitude >= threshold * RELEASE) return false;
+            active = false;
+            return last - start >= minMs;
+        }
+    }
+
+    private final Listener listener;
+    private final Threshold brake = new Threshold(DrivingEvent.Type.HARD_BRAKE, BRAKE_THRESHOLD, BRAKE_MIN_MS);
+    private final Threshold accel = new Threshold(DrivingEvent.Type.HARD_ACCEL, ACCEL_THRESHOLD, ACCEL_MIN_MS);
+    private final Threshold turn = new Threshold(DrivingEvent.Type.SHARP_TURN, TURN_THRESHOLD, TURN_MIN_MS);
+    private final Threshold lobe = new Threshold(DrivingEvent.Type.SWERVE, SWERVE_THRESHOLD, SWERVE_MIN_LOBE_MS);
+
+    //phone to east, north, up, row major
+    private final float[] rotation = new float[9];
+    private boolean oriented = false;
+    //unit vector of the heading, east and north
+    private float headingEast;
+    private float headingNorth;
+    //the heading is known until then
+    private long headingUntil = 0;
+    private Trace.GPS lastFix = null;
+
+    //smoothed, m/s^2 forward and to the left, rad/s to the left
+    private float longitudinal = 0;
+    private float lateral = 0;
+    private float yaw = 0;
+    private long lastAccel = 0;
+    private long lastGyro = 0;
+
+    //the last yaw lobe of a possible swerve, start 0 if none
+    private long lobeStart = 0;
+    private long lobeEnd;
+    private float lobePeak;
+
+    private int events = 0;
+
+    public DrivingEventDetector(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Orientations and fixes, other traces are ignored
+     * @param trace
+     */
+    public void onTrace(Trace trace) {
+        if(trace instanceof Trace.Orientation) {
+            ((Trace.Orientation) trace).toMatrix(rotation);
+            oriented = true;
+        } else if(trace instanceof Trace.Rotation) {
+            //recorded before orientations were quaternions
+            System.arraycopy(((Trace.Rotation) trace).values(), 0, rotation, 0, 9);
+            oriented = true;
+        } else if(trace instanceof Trace.GPS) {
+            onFix((Trace.GPS) trace);
+        }
+    }
+
+    private void onFix(Trace.GPS fix) {
+        if(lastFix != null && fix.time > lastFix.time) {
+            double north = Math.toRadians(fix.lat - lastFix.lat) * Constants.kEarthRadius;
+            double east = Math.toRadians(fix.lng - lastFix.lng) * Constants.kEarthRadius * Math.cos(Math.toRadians(fix.lat));
+            double distance = Math.sqrt(north * north + east * east);
+            if(distance / ((fix.time - lastFix.time) / 1000.0) >= MIN_HEADING_SPEED) {
+                headingEast = (float) (east / distance);
+                headingNorth = (float) (north / distance);
+                headingUntil = fix.time + HEADING_TIMEOUT_MS;
+            }
+        }
+        lastFix = fix;
+    }
+
+    /**
+     * A raw sample, in the order they arrive
+     * @param sensor FlightRecord.ACCEL or GYRO, others are ignored
+     */
+    public void onSample(int sensor, long time, float x, float y, float z) {
+        if(!oriented) return;
+        boolean heading = time <= headingUntil;
+        if(sensor == FlightRecord.ACCEL) {
+            float east = rotation[0] * x + rotation[1] * y + rotation[2] * z;
+            float north = rotation[3] * x + rotation[4] * y + rotation[5] * z;
+            float alpha = alpha(time, lastAccel);
+            lastAccel = time;
+            if(!heading) {
+                //lets the events in progress end
+                longitudinal = lateral = 0;
+            } else {
+                longitudinal += alpha * (east * headingEast + north * headingNorth - longitudinal);
+                lateral += alpha * (north * headingEast - east * headingNorth - lateral);
+            }
+            if(brake.update(time, -longitudinal, longitudinal)) report(brake);
+            if(accel.update(time, longitudinal, longitudinal)) report(accel);
+            if(turn.update(time, Math.abs(lateral), lateral)) report(turn);
+        } else if(sensor == FlightRecord.GYRO) {
+            float up = rotation[6] * x + rotation[7] * y + rotation[8] * z;
+            float alpha = alpha(time, lastGyro);
+            long step = time - lastGyro;
+            lastGyro = time;
+            if(heading && step > 0 && step <= MAX_STEP_MS) {
+                //turn the heading with the car until the next fix
+                float angle = up * step / 1000f;
+                float east = headingEast - headingNorth * angle;
+                float north = headingNorth + headingEast * angle;
+                float norm = (float) Math.sqrt(east * east + north * north);
+                headingEast = east / norm;
+                headingNorth = north / norm;
+            }
+            yaw = heading ? yaw + alpha * (up - yaw) : 0;
+            onYaw(time);
+        }
+    }
+
+    private static float alpha(long time, long last) {
+        long step = time - last;
+        if(step <= 0 || step > MAX_STEP_MS) return 1;
+        return step / (SMOOTH_MS + step);
+    }
+
+    /**
+     * A swerve is two short lobes of the yaw rate, one each way
+     */
+    private void onYaw(long time) {
+        boolean sameWay = !lobe.active || (yaw > 0) == (lobe.peak > 0);
+        if(!lobe.update(time, sameWay ? Math.abs(yaw) : 0, yaw)) {
+            if(!lobe.active && lobeStart != 0 && time - lobeEnd > SWERVE_MAX_GAP_MS) lobeStart = 0;
+            return;
+        }
+        if(lobe.last - lobe.start > SWERVE_MAX_LOBE_MS) {
+            //a turn
+            lobeStart = 0;
+        } else if(lobeStart != 0 && (lobePeak > 0) != (lobe.peak > 0) && lobe.start - lobeEnd <= SWERVE_MAX_GAP_MS) {
+            float peak = Math.abs(lobePeak) > Math.abs(lobe.peak) ? lobePeak : lobe.peak;
+            emit(new DrivingEvent(DrivingEvent.Type.SWERVE, lobeStart, lobe.last, peak, Math.abs(peak) / SWERVE_THRESHOLD));
+            lobeStart = 0;
+        } else {
+            lobeStart = lobe.start;
+            lobeEnd = lobe.last;
+            lobePeak = lobe.peak;
+        }
+    }
+
+    private void report(Threshold threshold) {
+        emit(new DrivingEvent(threshold.type, threshold.start, threshold.last, threshold.peak,
+                Math.abs(threshold.peak) / threshold.threshold));
+    }
+
+    private void emit(DrivingEvent event) {
+        if(lastFix != null) {
+            event.lat = lastFix.lat;
+            event.lng = lastFix.lng;
+        }
+        events++;
+        listener.onEvent(event);
+    }
+
+    public int getEvents() {
+        return events;
+    }
+}
@@ -0,0 +1,176 @@
+package wisc.drivesense.triprecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.FlightRecord;
+
+/**
+ * Keeps the last seconds of raw sensor samples at full rate while the trip stores them
+ * downsampled. When a trigger fires, the samples from PRE_MS before it to POST_MS after it
+ * are handed to the Listener as a FlightRecord, once the samples after it have arrived.
+ * Triggers firing while a record is being taken are counted in it.
+ *
+ * The ring is allocated up front, recording a sample allocates nothing. Triggers are either
+ * checked on every sample, or fired from outside like the hard braking of RatingCalculation.
+ * Only the pipeline thread calls it, times are those of the traces.
+ */
+public class FlightRecorder {
+    public static final long PRE_MS = 10 * 1000;
+    public static final long POST_MS = 5 * 1000;
+    //about 20 seconds of accelerometer and gyroscope at 50 Hz, and the magnetometer
+    public static final int CAPACITY = 2200;
+    //fired for the hard braking branch of RatingCalculation
+    public static final String BRAKING = "braking";
+
+    public interface Trigger {
+        /**
+         * Called for every sample, must not allocate
+         * @return the reason to take a record, null if there is none
+         */
+        String check(int sensor, long time, float x, float y, float z);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the pipeline thread
+         */
+        void onRecord(FlightRecord record);
+    }
+
+    /**
+     * Fires when the accelerometer magnitude is off gravity by more than a threshold,
+     * potholes, curbs and crashes
+     */
+    public static class AccelSpike implements Trigger {
+        public static final String REASON = "spike";
+        private final double threshold;
+
+        /**
+         * @param threshold m/s^2
+         */
+        public AccelSpike(double threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String check(int sensor, long time, float x, float y, float z) {
+            if(sensor != FlightRecord.ACCEL) return null;
+            double magnitude = Math.sqrt(x * x + y * y + z * z);
+            return Math.abs(magnitude - Constants.kEarthGravity) > threshold ? REASON : null;
+        }
+    }
+
+    private final Listener listener;
+    private final long preMs;
+    private final long postMs;
+    private final List<Trigger> triggers = new ArrayList<>();
+
+    //the ring, head is where the next sample goes
+    private final long[] times;
+    private final byte[] sensors;
+    private final float[] values;
+    private int head = 0;
+    private int size = 0;
+
+    //the record being taken, null if none
+    private String reason = null;
+    private long triggered;
+    private int fired;
+    private int records = 0;
+
+    public FlightRecorder(Listener listener) {
+        this(CAPACITY, PRE_MS, POST_MS, listener);
+    }
+
+    public FlightRecorder(int capacity, long preMs, long postMs, Listener listener) {
+        this.listener = listener;
+        this.preMs = preMs;
+        this.postMs = postMs;
+        times = new long[capacity];
+        sensors = new byte[capacity];
+        values = new float[capacity * 3];
+    }
+
+    public void addTrigger(Trigger trigger) {
+        triggers.add(trigger);
+    }
+
+    /**
+     * A raw sensor sample, in the order they arrive
+     * @param sensor FlightRecord.ACCEL, GYRO or MAGNETOMETER
+     */
+    public void record(int sensor, long time, float x, float y, float z) {
+        if(reason != null && time > triggered + postMs) take();
+        times[head] = time;
+        sensors[head] = (byte) sensor;
+        values[head * 3] = x;
+        values[head * 3 + 1] = y;
+        values[head * 3 + 2] = z;
+        head = (head + 1) % times.length;
+        if(size < times.length) size++;
+        for (int i = 0; i < triggers.size(); i++) {
+            String cause = triggers.get(i).check(sensor, time, x, y, z);
+            if(cause != null) fire(cause, time);
+        }
+    }
+
+    /**
+     * Take a record around the time
+     * @param reason
+     * @param time
+     */
+    public void fire(String reason, long time) {
+        if(this.reason != null) {
+            fired++;
+            return;
+        }
+        this.reason = reason;
+        triggered = time;
+        fired = 1;
+    }
+
+    /**
+     * Take the record being taken with the samples that arrived so far, the samples after the
+     * trigger stop coming when the trip ends
+     */
+    public void flush() {
+        if(reason != null) take();
+    }
+
+    private void take() {
+        long from = triggered - preMs;
+        long until = triggered + postMs;
+        //oldest first
+        int oldest = (head - size + times.length) % times.length;
+        int first = -1;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (oldest + i) % times.length;
+            if(times[index] >= from && times[index] <= until) {
+                if(first == -1) first = i;
+                count++;
+            }
+        }
+        FlightRecord record = new FlightRecord(reason, triggered, count);
+        record.triggers = fired;
+        for (int i = 0; i < count; i++) {
+            int index = (oldest + first + i) % times.length;
+            record.times[i] = times[index];
+            record.sensors[i] = sensors[index];
+            System.arraycopy(values, index * 3, record.values, i * 3, 3);
+        }
+        reason = null;
+        records++;
+        listener.onRecord(record);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,133 @@
+package wisc.drivesense.triprecorder;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+/**
+ * Traces waiting for the storage worker, bounded so a stalled database can't take all the memory.
+ * The fuller the queue, the more is shed:
+ * - GPS points are never dropped, they are the trip, and may go past the capacity
+ * - Orientation is dropped from half full on. The driving events were already found in it on the
+ *   pipeline thread and the tilt does not use it, but a dropped sample is lost: the rotation vector
+ *   fuses the gyroscope and can't be computed again from the stored samples
+ * - the other sensors are decimated from three quarters full on, keeping every second sample
+ *   and from seven eighths on every fourth, until the queue is full
+ * Every sample shed is counted by type.
+ */
+public class IngestQueue {
+
+    private final int capacity;
+    private final ArrayDeque<TraceMessage> queue = new ArrayDeque<>();
+    //samples seen per type while decimating, decides which are kept
+    private final Map<String, Integer> seen = new HashMap<>();
+    private final Map<String, Integer> shed = new TreeMap<>();
+    private boolean shedChanged = false;
+
+    public IngestQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Never blocks
+     * @param tm
+     * @return false if the trace was shed
+     */
+    public synchronized boolean offer(TraceMessage tm) {
+        if(!(tm.value instanceof Trace.GPS) && !keep(tm)) {
+            Integer count = shed.get(tm.type);
+            shed.put(tm.type, count == null ? 1 : count + 1);
+            shedChanged = true;
+            return false;
+        }
+        queue.add(tm);
+        notifyAll();
+        return true;
+    }
+
+    private boolean keep(TraceMessage tm) {
+        int size = queue.size();
+        if(size >= capacity) return false;
+        if(tm.value instanceof Trace.Orientation || tm.value instanceof Trace.Rotation) return size < capacity / 2;
+        int keepEvery = size < capacity * 3 / 4 ? 1 : size < capacity * 7 / 8 ? 2 : 4;
+        if(keepEvery == 1) return true;
+        Integer count = seen.get(tm.type);
+        count = count == null ? 0 : count;
+        seen.put(tm.type, count + 1);
+        return count % keepEvery == 0;
+    }
+
+    /**
+     * Move everything queued to the list, waiting for a trace if there is none
+     * @param list
+     * @param timeout milliseconds to wait at most
+     * @return number of traces moved
+     * @throws InterruptedException
+     */
+    public synchronized int drainTo(List<TraceMessage> list, long timeout) throws InterruptedException {
+        if(queue.isEmpty() && timeout > 0) {
+            wait(timeout);
+        }
+        int n = queue.size();
+        list.addAll(queue);
+        queue.clear();
+        return n;
+    }
+
+    /**
+     * Take the latest checkpoint, then move everything queued to the list. In this order every
+     * trace queued before the checkpoint is in the list, a checkpoint set while draining waits
+     * for the next call with the traces queued before it.
+     * @param list
+     * @param timeout milliseconds to wait at most for a trace
+     * @param checkpoint set by the producer after queueing the traces it covers, cleared here
+     * @return the checkpoint to save once the list is stored, null if there is none
+     * @throws InterruptedException
+     */
+    public String drainTo(List<TraceMessage> list, long timeout, AtomicReference<String> checkpoint) throws InterruptedException {
+        String pending = checkpoint.getAndSet(null);
+        drainTo(list, timeout);
+        return pending;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return samples shed so far by type name
+     */
+    public synchronized Map<String, Integer> getShed() {
+        return new TreeMap<>(shed);
+    }
+
+    /**
+     * @return samples shed so far by type name if more were shed since the last call, null otherwise
+     */
+    public synchronized Map<String, Integer> takeShedUpdate() {
+        if(!shedChanged) return null;
+        shedChanged = false;
+        return getShed();
+    }
+
+    /**
+     * Continue counting from what a resumed trip had shed before
+     * @param counts
+     */
+    public synchronized void restoreShed(Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            Integer count = shed.get(entry.getKey());
+            shed.put(entry.getKey(), entry.getValue() + (count == null ? 0 : count));
+        }
+    }
+}
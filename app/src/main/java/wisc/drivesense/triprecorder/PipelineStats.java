@@ -0,0 +1,125 @@
+package wisc.drivesense.triprecorder;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency of every stage of the recording pipeline, in microseconds, and the time the
+ * recording code held the main thread per second of driving
+ */
+public class PipelineStats {
+
+    public enum Stage {
+        //from the sensor event until it reaches the pipeline thread
+        CAPTURE,
+        //tilt, rating and trip of one trace
+        PROCESS,
+        //one database write of the storage worker
+        STORE,
+        //from a snapshot being published until its conflated delivery was due, waiting on purpose
+        CONFLATE,
+        //from the delivery being due until the UI got the snapshot
+        UI
+    }
+
+    /**
+     * Latency of one stage, in microseconds
+     */
+    public static class Latency {
+        public int count;
+        public long total;
+        public long max;
+
+        public long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+    }
+
+    private final Map<Stage, Latency> stages = new EnumMap<>(Stage.class);
+    private long mainThreadNanos = 0;
+    private long firstTrace = -1;
+    private long lastTrace = -1;
+
+    public PipelineStats() {
+        reset();
+    }
+
+    public synchronized void reset() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new Latency());
+        }
+        mainThreadNanos = 0;
+        firstTrace = -1;
+        lastTrace = -1;
+    }
+
+    public synchronized void record(Stage stage, long nanos) {
+        Latency stats = stages.get(stage);
+        long micros = nanos / 1000;
+        stats.count++;
+        stats.total += micros;
+        stats.max = Math.max(stats.max, micros);
+    }
+
+    /**
+     * A snapshot reached the UI
+     * @param published System.nanoTime the snapshot was published at
+     * @param due System.nanoTime its delivery was scheduled for
+     * @param now
+     */
+    public synchronized void delivered(long published, long due, long now) {
+        //published while the delivery was already late, it did not wait for the interval
+        long waited = Math.max(published, due);
+        record(Stage.CONFLATE, waited - published);
+        record(Stage.UI, now - waited);
+    }
+
+    /**
+     * Time spent on the main thread by the recording, whatever the stage
+     * @param nanos
+     */
+    public synchronized void onMainThread(long nanos) {
+        mainThreadNanos += nanos;
+    }
+
+    /**
+     * Extend the driving time to the time of the trace
+     * @param time
+     */
+    public synchronized void drove(long time) {
+        if(firstTrace == -1 || time < firstTrace) firstTrace = time;
+        lastTrace = Math.max(lastTrace, time);
+    }
+
+    public synchronized Latency get(Stage stage) {
+        Latency stats = stages.get(stage);
+        Latency copy = new Latency();
+        copy.count = stats.count;
+        copy.total = stats.total;
+        copy.max = stats.max;
+        return copy;
+    }
+
+    public synchronized long getDrivingMillis() {
+        return firstTrace == -1 ? 0 : lastTrace - firstTrace;
+    }
+
+    /**
+     * @return milliseconds of main thread time per second of driving
+     */
+    public synchronized double getMainThreadPerSecond() {
+        long driving = getDrivingMillis();
+        return driving == 0 ? 0 : mainThreadNanos / 1e6 / (driving / 1000.0);
+    }
+
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            Latency stats = stages.get(stage);
+            sb.append(stage.name().toLowerCase()).append(' ').append(stats.count).append("x ")
+                    .append(stats.getMean()).append(" us mean ").append(stats.max).append(" us max, ");
+        }
+        sb.append(String.format("main thread %.2f ms per second of driving", getMainThreadPerSecond()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package wisc.drivesense.triprecorder;
+
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.window.SlidingStats;
+
+/**
+ * Decides how much of the sensors a recording needs. While TripService has paused the trip
+ * because the car stands still, nothing it records is kept, so the governor goes STATIONARY:
+ * the gyroscope and magnetometer are off, the accelerometer slows down to WATCH_PERIOD_US and
+ * GPS to one fix per GPS_STATIONARY_INTERVAL_MS. Without fixes the slow accelerometer is what
+ * still lets TripService end the trip after its inactivity timeout.
+ * Accelerometer variance, a significant motion trigger or a moving GPS fix bring it back ACTIVE.
+ *
+ * Only the pipeline thread calls it, times are those of the traces.
+ */
+public class PowerGovernor {
+
+    public enum State {
+        ACTIVE,
+        STATIONARY
+    }
+
+    public interface Listener {
+        void onStateChanged(State state);
+    }
+
+    public static final long GPS_STATIONARY_INTERVAL_MS = 30 * 1000;
+    //accelerometer rate while watching for motion
+    public static final int WATCH_PERIOD_US = 1000 * 1000;
+    //time a wake up without the trip resuming is given before going back to STATIONARY
+    static final long WAKE_GRACE_MS = 30 * 1000;
+    //accelerometer magnitude variance, (m/s^2)^2, above which the phone is moving
+    static final double MOTION_VARIANCE = 0.05;
+    static final int MOTION_WINDOW = 5;
+    //m/s, about 7 km/h
+    static final double MOVING_SPEED = 2.0;
+
+    private final Listener listener;
+    private State state = State.ACTIVE;
+    private long wokeAt = 0;
+    private final SlidingStats window = new SlidingStats(MOTION_WINDOW);
+
+    //accounting of the time the sensors were on
+    private long since = -1;
+    private long imuMillis = 0;
+    private long gpsFullMillis = 0;
+    private long gpsSlowMillis = 0;
+    private int wakeUps = 0;
+
+    public PowerGovernor(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Every trace the sensors deliver
+     * @param trace
+     */
+    public void onTrace(Trace trace) {
+        account(trace.time);
+        if(state == State.ACTIVE) return;
+        if(trace instanceof Trace.GPS && ((Trace.GPS) trace).speed >= MOVING_SPEED) {
+            wake(trace.time);
+        } else if(trace instanceof Trace.Accel) {
+            Trace.Accel accel = (Trace.Accel) trace;
+            window.add((float) Math.sqrt(accel.x * accel.x + accel.y * accel.y + accel.z * accel.z));
+            if(window.isFull() && window.getVariance() > MOTION_VARIANCE) wake(trace.time);
+        }
+    }
+
+    /**
+     * Whether TripService keeps what is recorded, after every trace
+     * @param paused
+     * @param time
+     */
+    public void onPaused(boolean paused, long time) {
+        account(time);
+        if(paused && state == State.ACTIVE && time - wokeAt >= WAKE_GRACE_MS) {
+            change(State.STATIONARY, time);
+        } else if(!paused && state == State.STATIONARY) {
+            wake(time);
+        }
+    }
+
+    public void onSignificantMotion(long time) {
+        account(time);
+        if(state == State.STATIONARY) wake(time);
+    }
+
+    private void wake(long time) {
+        wokeAt = time;
+        wakeUps++;
+        change(State.ACTIVE, time);
+    }
+
+    private void change(State next, long time) {
+        account(time);
+        state = next;
+        window.clear();
+        listener.onStateChanged(next);
+    }
+
+    private void account(long time) {
+        if(since != -1 && time > since) {
+            long elapsed = time - since;
+            if(state == State.ACTIVE) {
+                imuMillis += elapsed;
+                gpsFullMillis += elapsed;
+            } else {
+                gpsSlowMillis += elapsed;
+            }
+        }
+        if(since == -1 || time > since) since = time;
+    }
+
+    /**
+     * @return time the gyroscope, magnetometer and full rate accelerometer were on
+     */
+    public long getImuMillis() {
+        return imuMillis;
+    }
+
+    public long getGpsFullMillis() {
+        return gpsFullMillis;
+    }
+
+    public long getGpsSlowMillis() {
+        return gpsSlowMillis;
+    }
+
+    public String report() {
+        return "sensors on " + imuMillis / 1000 + " s, GPS at full rate " + gpsFullMillis / 1000 + " s and slowed down "
+                + gpsSlowMillis / 1000 + " s, woke up " + wakeUps + " times";
+    }
+}
@@ -1,29 +1,47 @@
 package wisc.drivesense.triprecorder;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import wisc.drivesense.utility.Constants;
 import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TripCheckpoint;
 
 
+/**
+ * The tilt of the phone, from the direction of gravity in the smoothed accelerometer.
+ * Orientation traces are deliberately not used. The rotation vector is only on while the sensors
+ * run at full rate, and it is the first thing the IngestQueue sheds. Without it the orientation
+ * comes from the accelerometer and magnetometer anyway. A tilt taken from it would change source
+ * in the middle of a trip and differ between the recording and a replay of the stored traces.
+ */
 public class RealTimeTiltCalculation {
 	private static final String TAG = "RealTimeTiltCalculation";
 	
-	private List<Trace.Accel> window_accelerometer = new LinkedList<Trace.Accel>();
-	private List<Trace.Gyro> window_gyroscope = new LinkedList<Trace.Gyro>();
-	private List<Trace.Rotation> window_rotation_matrix = new LinkedList<Trace.Rotation>();
 	private Trace.Accel curSmoothedAccelerometer = null;
 	private Trace.Gyro curSmoothedGyroscope = null;
-	private final int kWindowSize = 10;
 		
 	private double curTilt = 0.0;
-	
+
 	public double getTilt() {
 		return this.curTilt;
 	}
+
+	/**
+	 * the tilt only needs the filter state
+	 * @param checkpoint
+	 */
+	public void checkpoint(TripCheckpoint checkpoint) {
+		checkpoint.smoothedAccel = curSmoothedAccelerometer;
+		checkpoint.smoothedGyro = curSmoothedGyroscope;
+		checkpoint.curTilt = curTilt;
+	}
+
+	public void resume(TripCheckpoint checkpoint) {
+		curSmoothedAccelerometer = checkpoint.smoothedAccel;
+		curSmoothedGyroscope = checkpoint.smoothedGyro;
+		curTilt = checkpoint.curTilt;
+	}
 	/**
-	 * the only input point
+	 * the only input point, other traces than accelerometer and gyroscope are ignored,
+	 * orientations included
 	 * @param trace
 	 */
 	public void processTrace(Trace trace) {
@@ -31,31 +49,16 @@ public class RealTimeTiltCalculation {
 			onAccelerometerChanged((Trace.Accel)trace);
 		} else if (trace instanceof Trace.Gyro) {
 			onGyroscopeChanged((Trace.Gyro)trace);
-		} else if(trace instanceof Trace.Rotation) {
-			window_rotation_matrix.add((Trace.Rotation)trace);
-			if(window_rotation_matrix.size() > kWindowSize) {
-				window_rotation_matrix.remove(0);
-			}
 		}
 	}
 	
-	
 	private void onGyroscopeChanged(Trace.Gyro gyroscope) {
 		curSmoothedGyroscope = lowpassFilter(curSmoothedGyroscope, gyroscope);
-		window_gyroscope.add(curSmoothedGyroscope);
-		if(window_gyroscope.size() >= kWindowSize) {
-			window_gyroscope.remove(0);
-		}
-		
 	}
 	
 	
 	private void onAccelerometerChanged(Trace.Accel accelerometer) {
 		curSmoothedAccelerometer = lowpassFilter(curSmoothedAccelerometer, accelerometer);
-		window_accelerometer.add(curSmoothedAccelerometer);
-		if(window_accelerometer.size() >= kWindowSize) {
-			window_accelerometer.remove(0);
-		}
 		double x = curSmoothedAccelerometer.x;
 		double z = curSmoothedAccelerometer.z;
 		double angle;
@@ -0,0 +1,290 @@
+package wisc.drivesense.triprecorder;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.FlightRecord;
+import wisc.drivesense.utility.Trace;
+
+/**
+ * The thread every sensor and GPS callback of a recording runs on. SensorService registers
+ * its listeners with the looper of this thread and hands each trace to the Sink, TripService,
+ * on the same thread. The main thread only gets RecordingSnapshots, conflated to one per
+ * UI_INTERVAL_MS. The PowerGovernor of the trip sees every trace first, the FlightRecorder
+ * and the DrivingEventDetector every raw sample before it is downsampled.
+ */
+public class RecordingPipeline {
+    private static final String TAG = "RecordingPipeline";
+    static final long UI_INTERVAL_MS = 200;
+    static final long REPORT_INTERVAL_MS = 60 * 1000;
+    //m/s^2 off gravity, a pothole or a curb
+    static final double SPIKE_THRESHOLD = 8.0;
+    //sensor timestamps further off than this don't use the elapsed realtime clock
+    private static final long MAX_CAPTURE_NANOS = 10L * 1000 * 1000 * 1000;
+    //how long stopping a trip waits for the pipeline thread
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    public interface Sink {
+        /**
+         * Called on the pipeline thread
+         */
+        void onTrace(Trace trace);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final PipelineStats stats = new PipelineStats();
+    private final SnapshotConflator<RecordingSnapshot> ui;
+    private volatile Sink sink = null;
+    private volatile PowerGovernor.Listener powerListener = null;
+    private volatile FlightRecorder.Listener flightListener = null;
+    private volatile DrivingEventDetector.Listener eventListener = null;
+    //only used on the pipeline thread
+    private PowerGovernor governor = newGovernor();
+    private FlightRecorder flightRecorder = newFlightRecorder();
+    private DrivingEventDetector eventDetector = newEventDetector();
+    private long lastReport = 0;
+    //System.nanoTime the running UI delivery was due at, only used on the main thread
+    private long deliveryDue = 0;
+
+    public RecordingPipeline(Context context) {
+        this.context = context;
+        //ahead of storage and uploads, behind drawing the screen
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        ui = new SnapshotConflator<>(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                final long due = System.nanoTime() + UI_INTERVAL_MS * 1000 * 1000;
+                mainHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliveryDue = due;
+                        runnable.run();
+                    }
+                }, UI_INTERVAL_MS);
+            }
+        }, new SnapshotConflator.Consumer<RecordingSnapshot>() {
+            @Override
+            public void accept(RecordingSnapshot snapshot) {
+                deliver(snapshot);
+            }
+        });
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    public Looper getLooper() {
+        return handler.getLooper();
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Only to be used on the pipeline thread
+     */
+    public PowerGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * @param listener applies the state of the governor to the sensors, null once they are off
+     */
+    public void setPowerListener(PowerGovernor.Listener listener) {
+        this.powerListener = listener;
+    }
+
+    private PowerGovernor newGovernor() {
+        return new PowerGovernor(new PowerGovernor.Listener() {
+            @Override
+            public void onStateChanged(PowerGovernor.State state) {
+                PowerGovernor.Listener current = powerListener;
+                if(current != null) current.onStateChanged(state);
+            }
+        });
+    }
+
+    /**
+     * Only to be used on the pipeline thread
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * @param listener stores the flight records of the trip, null once it ended
+     */
+    public void setFlightListener(FlightRecorder.Listener listener) {
+        this.flightListener = listener;
+    }
+
+    private FlightRecorder newFlightRecorder() {
+        FlightRecorder recorder = new FlightRecorder(new FlightRecorder.Listener() {
+            @Override
+            public void onRecord(FlightRecord record) {
+                FlightRecorder.Listener current = flightListener;
+                if(current != null) current.onRecord(record);
+            }
+        });
+        recorder.addTrigger(new FlightRecorder.AccelSpike(SPIKE_THRESHOLD));
+        return recorder;
+    }
+
+    /**
+     * @param listener receives the driving events of the trip, null once it ended
+     */
+    public void setEventListener(DrivingEventDetector.Listener listener) {
+        this.eventListener = listener;
+    }
+
+    private DrivingEventDetector newEventDetector() {
+        return new DrivingEventDetector(new DrivingEventDetector.Listener() {
+            @Override
+            public void onEvent(DrivingEvent event) {
+                DrivingEventDetector.Listener current = eventListener;
+                if(current != null) current.onEvent(event);
+            }
+        });
+    }
+
+    /**
+     * Start the accounting of a new trip, the sensors start at full rate
+     */
+    public void startTrip() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                //after the traces of the last trip that were still queued
+                stats.reset();
+                governor = newGovernor();
+                flightRecorder = newFlightRecorder();
+                eventDetector = newEventDetector();
+                lastReport = 0;
+            }
+        });
+    }
+
+    /**
+     * Stop handing traces and samples to the trip. A flight record still waiting for the samples
+     * after its trigger is taken with those it has, returns once its listener got it.
+     */
+    public void stopTrip() {
+        sink = null;
+        if(Looper.myLooper() == handler.getLooper()) {
+            flightRecorder.flush();
+            return;
+        }
+        final CountDownLatch flushed = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flightRecorder.flush();
+                flushed.countDown();
+            }
+        });
+        try {
+            if(!flushed.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "Pipeline thread busy, the last flight record may be lost");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Log the latencies and the time the sensors were on for the trip that ended
+     */
+    public void reportTrip() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Trip ended. " + stats.report() + ". Power: " + governor.report());
+            }
+        });
+    }
+
+    /**
+     * @param sink receives the traces from now on, null to drop them
+     */
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Hand a trace from a sensor callback to the sink, on the pipeline thread
+     * @param trace
+     * @param capturedNanos SystemClock.elapsedRealtimeNanos of the sensor event, 0 if unknown
+     */
+    public void capture(Trace trace, long capturedNanos) {
+        if(capturedNanos > 0) {
+            long waited = SystemClock.elapsedRealtimeNanos() - capturedNanos;
+            if(waited >= 0 && waited < MAX_CAPTURE_NANOS) measured(PipelineStats.Stage.CAPTURE, waited);
+        }
+        Sink current = sink;
+        if(current == null) return;
+        governor.onTrace(trace);
+        eventDetector.onTrace(trace);
+        long start = System.nanoTime();
+        current.onTrace(trace);
+        measured(PipelineStats.Stage.PROCESS, System.nanoTime() - start);
+        stats.drove(trace.time);
+        if(trace.time - lastReport > REPORT_INTERVAL_MS) {
+            if(lastReport != 0) Log.d(TAG, stats.report());
+            lastReport = trace.time;
+        }
+    }
+
+    /**
+     * A raw sample from a sensor callback, at full rate
+     * @param sensor FlightRecord.ACCEL, GYRO or MAGNETOMETER
+     * @param time
+     * @param values
+     */
+    public void record(int sensor, long time, float[] values) {
+        if(sink == null) return;
+        flightRecorder.record(sensor, time, values[0], values[1], values[2]);
+        eventDetector.onSample(sensor, time, values[0], values[1], values[2]);
+    }
+
+    /**
+     * Show the snapshot, called from any thread
+     * @param snapshot
+     */
+    public void publish(RecordingSnapshot snapshot) {
+        ui.publish(snapshot);
+    }
+
+    /**
+     * Account a stage, and the main thread time if that is where it ran
+     * @param stage
+     * @param nanos
+     */
+    public void measured(PipelineStats.Stage stage, long nanos) {
+        stats.record(stage, nanos);
+        if(Looper.myLooper() == Looper.getMainLooper()) stats.onMainThread(nanos);
+    }
+
+    private void deliver(RecordingSnapshot snapshot) {
+        long start = System.nanoTime();
+        stats.delivered(snapshot.published, deliveryDue, start);
+        LocalBroadcastManager.getInstance(context).sendBroadcastSync(snapshot.toIntent(TripService.RECORDING_SNAPSHOT));
+        stats.onMainThread(System.nanoTime() - start);
+    }
+}
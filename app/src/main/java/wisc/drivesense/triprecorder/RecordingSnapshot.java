@@ -0,0 +1,49 @@
+package wisc.drivesense.triprecorder;
+
+import android.content.Intent;
+
+import wisc.drivesense.utility.Trace;
+
+/**
+ * What the UI shows of the trip being recorded, published by TripService after every trace
+ * and delivered to the main thread conflated
+ */
+public class RecordingSnapshot {
+    public Trace.GPS gps;
+    public double distance;
+    public double tilt;
+    //System.nanoTime when it was published
+    long published;
+
+    public RecordingSnapshot(Trace.GPS gps, double distance, double tilt) {
+        this.gps = gps;
+        this.distance = distance;
+        this.tilt = tilt;
+        this.published = System.nanoTime();
+    }
+
+    public Intent toIntent(String action) {
+        Intent intent = new Intent(action);
+        intent.putExtra("distance", distance);
+        intent.putExtra("tilt", tilt);
+        if(gps != null) {
+            intent.putExtra("time", gps.time);
+            intent.putExtra("lat", gps.lat);
+            intent.putExtra("lng", gps.lng);
+            intent.putExtra("speed", gps.speed);
+        }
+        return intent;
+    }
+
+    public static RecordingSnapshot fromIntent(Intent intent) {
+        Trace.GPS gps = null;
+        if(intent.hasExtra("time")) {
+            gps = new Trace.GPS();
+            gps.time = intent.getLongExtra("time", 0);
+            gps.lat = intent.getFloatExtra("lat", 0);
+            gps.lng = intent.getFloatExtra("lng", 0);
+            gps.speed = intent.getFloatExtra("speed", 0);
+        }
+        return new RecordingSnapshot(gps, intent.getDoubleExtra("distance", 0), intent.getDoubleExtra("tilt", 0));
+    }
+}
@@ -9,25 +9,27 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.app.ActivityCompat;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.utility.Constants;
-import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.FlightRecord;
 import wisc.drivesense.utility.Trace;
-import wisc.drivesense.utility.TraceMessage;
 
-public class SensorService extends Service implements SensorEventListener, LocationListener {
+public class SensorService extends Service implements SensorEventListener, LocationListener, PowerGovernor.Listener {
 
     private final Binder binder_ = null; //new SensorBinder();
     private AtomicBoolean isRunning_ = new AtomicBoolean(false);
@@ -49,13 +51,33 @@ public class SensorService extends Service implements SensorEventListener, Locat
     private boolean mLastMagnetometerSet = false;
 
     private float[] mR = new float[9];
+    private float[] mQ = new float[4];
+    //fuses the sensors into an orientation, null if the phone has none
+    private Sensor rotationVector = null;
 
     private long tLastGyroscope = 0;
     private long tLastAccelerometer = 0;
     private long tLastMagnetometer = 0;
+    private long tLastOrientation = 0;
 
 
     private final String TAG = "Sensor Service";
+    //accelerometer and gyroscope while driving, the FlightRecorder keeps this rate, the trip kRecordingInterval
+    private static final int FULL_RATE = SensorManager.SENSOR_DELAY_GAME;
+
+    //null if the phone has none, the accelerometer watches for motion instead
+    private Sensor significantMotion = null;
+    private final TriggerEventListener motionTrigger = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            DriveSenseApp.RecordingPipeline().getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    DriveSenseApp.RecordingPipeline().getGovernor().onSignificantMotion(System.currentTimeMillis());
+                }
+            });
+        }
+    };
 
 
     @Override
@@ -68,7 +90,7 @@ public class SensorService extends Service implements SensorEventListener, Locat
             trace.speed = location.getSpeed();
             trace.alt = (float) location.getAltitude();
 
-            sendTrace(trace);
+            sendTrace(trace, location.getElapsedRealtimeNanos());
         }
     }
 
@@ -104,6 +126,13 @@ public class SensorService extends Service implements SensorEventListener, Locat
 
         int type = event.sensor.getType();
         long time = System.currentTimeMillis();
+        if (type == Sensor.TYPE_ACCELEROMETER) {
+            DriveSenseApp.RecordingPipeline().record(FlightRecord.ACCEL, time, event.values);
+        } else if (type == Sensor.TYPE_GYROSCOPE) {
+            DriveSenseApp.RecordingPipeline().record(FlightRecord.GYRO, time, event.values);
+        } else if (type == Sensor.TYPE_MAGNETIC_FIELD) {
+            DriveSenseApp.RecordingPipeline().record(FlightRecord.MAGNETOMETER, time, event.values);
+        }
         if (type == Sensor.TYPE_MAGNETIC_FIELD && (time - tLastMagnetometer) >= Constants.kRecordingInterval) {
             tLastMagnetometer = time;
             System.arraycopy(event.values, 0, mLastMagnetometer, 0, event.values.length);
@@ -113,7 +142,7 @@ public class SensorService extends Service implements SensorEventListener, Locat
             trace.time = time;
             trace.values(event.values);
 
-            sendTrace(trace);
+            sendTrace(trace, event.timestamp);
 
         } else if (type == Sensor.TYPE_ACCELEROMETER && (time - tLastAccelerometer) >= Constants.kRecordingInterval) {
             tLastAccelerometer = time;
@@ -123,7 +152,7 @@ public class SensorService extends Service implements SensorEventListener, Locat
             Trace.Accel trace = new Trace.Accel();
             trace.time = time;
             trace.values(event.values);
-            sendTrace(trace);
+            sendTrace(trace, event.timestamp);
 
         } else if (type == Sensor.TYPE_GYROSCOPE && (time - tLastGyroscope) >= Constants.kRecordingInterval) {
             //Log.e(TAG, tLastGyroscope + "," + time + "," + String.valueOf(time - tLastGyroscope));
@@ -133,20 +162,30 @@ public class SensorService extends Service implements SensorEventListener, Locat
             Trace.Gyro trace = new Trace.Gyro();
             trace.time = time;
             trace.values(event.values);
-            sendTrace(trace);
+            sendTrace(trace, event.timestamp);
+
+        } else if (type == Sensor.TYPE_ROTATION_VECTOR && (time - tLastOrientation) >= Constants.kRecordingInterval) {
+            tLastOrientation = time;
+            SensorManager.getQuaternionFromVector(mQ, event.values);
 
+            Trace.Orientation trace = new Trace.Orientation();
+            trace.time = time;
+            trace.values(mQ);
+            sendTrace(trace, event.timestamp);
         }
 
         /*Marked*/
-        if (mLastAccelerometerSet && mLastMagnetometerSet) {
-            SensorManager.getRotationMatrix(mR, null, mLastAccelerometer, mLastMagnetometer);
+        if (rotationVector == null && mLastAccelerometerSet && mLastMagnetometerSet) {
             mLastMagnetometerSet = false;
             mLastAccelerometerSet = false;
+            if (!SensorManager.getRotationMatrix(mR, null, mLastAccelerometer, mLastMagnetometer)) {
+                //free fall or no field, there is no orientation
+                return;
+            }
 
-            Trace.Rotation trace = new Trace.Rotation();
+            Trace.Orientation trace = Trace.Orientation.fromMatrix(mR);
             trace.time = time;
-            trace.values(mR);
-            sendTrace(trace);
+            sendTrace(trace, event.timestamp);
         }
     }
 
@@ -178,7 +217,11 @@ public class SensorService extends Service implements SensorEventListener, Locat
 
     public void onDestroy() {
         Log.d(TAG, "stop service");
+        DriveSenseApp.RecordingPipeline().setPowerListener(null);
         sensorManager.unregisterListener(this);
+        if (significantMotion != null) {
+            sensorManager.cancelTriggerSensor(motionTrigger, significantMotion);
+        }
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
             locationManager.removeUpdates(this);
         }
@@ -191,10 +234,12 @@ public class SensorService extends Service implements SensorEventListener, Locat
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
 
-        for (int i = 0; i < numberOfSensors; ++i) {
-            Sensor sensor = sensorManager.getDefaultSensor(sensorType[i]);
-            sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
-        }
+        significantMotion = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        rotationVector = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        //callbacks run on the pipeline thread, not the main thread
+        RecordingPipeline pipeline = DriveSenseApp.RecordingPipeline();
+        registerSensors(FULL_RATE, true);
+        pipeline.setPowerListener(this);
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
                 && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
@@ -207,16 +252,75 @@ public class SensorService extends Service implements SensorEventListener, Locat
             return;
         }
         else
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this, pipeline.getLooper());
         isRunning_.set(true);
     }
 
-    private void sendTrace(Trace trace) {
-        //Log.d(TAG, trace.toJson());
-        Intent intent = new Intent("sensor");
-        intent.putExtra("trace", GsonSingleton.toJson(new TraceMessage(trace)));
+    /**
+     * @param accelerometerPeriod a SENSOR_DELAY_ constant or microseconds between samples
+     * @param all false to register only the accelerometer
+     */
+    private void registerSensors(int accelerometerPeriod, boolean all) {
+        Handler handler = DriveSenseApp.RecordingPipeline().getHandler();
+        for (int i = 0; i < numberOfSensors; ++i) {
+            Sensor sensor = sensorManager.getDefaultSensor(sensorType[i]);
+            if (sensorType[i] == Sensor.TYPE_ACCELEROMETER) {
+                sensorManager.registerListener(this, sensor, accelerometerPeriod, handler);
+            } else if (all) {
+                int period = sensorType[i] == Sensor.TYPE_GYROSCOPE ? FULL_RATE : SensorManager.SENSOR_DELAY_NORMAL;
+                sensorManager.registerListener(this, sensor, period, handler);
+            }
+        }
+        if (all && rotationVector != null) {
+            sensorManager.registerListener(this, rotationVector, SensorManager.SENSOR_DELAY_NORMAL, handler);
+        }
+    }
+
+    /**
+     * Called by the PowerGovernor on the pipeline thread
+     * @param state
+     */
+    @Override
+    public void onStateChanged(PowerGovernor.State state) {
+        if (!isRunning_.get()) return;
+        Log.d(TAG, "Sensors going " + state);
+        sensorManager.unregisterListener(this);
+        if (state == PowerGovernor.State.STATIONARY) {
+            //the slow accelerometer keeps traces coming without fixes, in a garage the trip still
+            //ends after the inactivity timeout; it watches for motion too, the trigger is quicker
+            registerSensors(PowerGovernor.WATCH_PERIOD_US, false);
+            if (significantMotion != null) {
+                sensorManager.requestTriggerSensor(motionTrigger, significantMotion);
+            }
+            requestLocation(PowerGovernor.GPS_STATIONARY_INTERVAL_MS);
+        } else {
+            if (significantMotion != null) {
+                sensorManager.cancelTriggerSensor(motionTrigger, significantMotion);
+            }
+            registerSensors(FULL_RATE, true);
+            requestLocation(0);
+        }
+    }
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    /**
+     * Replaces the current location request
+     * @param interval milliseconds between fixes
+     */
+    private void requestLocation(long interval) {
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            locationManager.removeUpdates(this);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, 0, this,
+                    DriveSenseApp.RecordingPipeline().getLooper());
+        }
+    }
+
+    /**
+     * @param trace
+     * @param capturedNanos elapsed realtime of the event
+     */
+    private void sendTrace(Trace trace, long capturedNanos) {
+        //Log.d(TAG, trace.toJson());
+        DriveSenseApp.RecordingPipeline().capture(trace, capturedNanos);
     }
 
 
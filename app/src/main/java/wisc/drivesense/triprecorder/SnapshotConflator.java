@@ -0,0 +1,52 @@
+package wisc.drivesense.triprecorder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the latest of a stream of snapshots to a slower consumer, usually the UI. A snapshot
+ * published while the previous one is still waiting replaces it, so the consumer runs at most
+ * once per delivery of the executor however fast the snapshots come.
+ */
+public class SnapshotConflator<T> {
+
+    public interface Consumer<T> {
+        void accept(T snapshot);
+    }
+
+    private final Executor target;
+    private final Consumer<T> consumer;
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            //cleared first, a snapshot published from now on schedules another delivery
+            scheduled.set(false);
+            T snapshot = latest.getAndSet(null);
+            if(snapshot != null) consumer.accept(snapshot);
+        }
+    };
+
+    /**
+     * @param target runs the consumer, e.g. posting to the main thread
+     * @param consumer
+     */
+    public SnapshotConflator(Executor target, Consumer<T> consumer) {
+        this.target = target;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Thread safe, never blocks
+     * @param snapshot
+     */
+    public void publish(T snapshot) {
+        latest.set(snapshot);
+        if(scheduled.compareAndSet(false, true)) {
+            target.execute(deliver);
+        }
+    }
+}
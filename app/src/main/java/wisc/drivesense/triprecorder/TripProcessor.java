@@ -0,0 +1,118 @@
+package wisc.drivesense.triprecorder;
+
+import wisc.drivesense.utility.RatingCalculation;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.Trip;
+import wisc.drivesense.utility.TripCheckpoint;
+
+/**
+ * What TripService accumulates while recording: the trip, its rating and tilt, and how long the
+ * car has stood still, which pauses the recording and ends the trip. TripService stores and
+ * uploads what it returns, a checkpoint of it continues the trip after Android killed the service.
+ *
+ * Only the pipeline thread calls it, times are those of the traces.
+ */
+public class TripProcessor {
+    private final Trip trip;
+    private final RatingCalculation rating;
+    private final RealTimeTiltCalculation tiltCalc = new RealTimeTiltCalculation();
+    private final long pauseTimeout;
+    private final long endTripTimeout;
+    private long lastSpeedNonzero = 0;
+    private boolean paused = false;
+    private boolean over = false;
+    //latest fix, shown on the map
+    private Trace.GPS lastFix = null;
+
+    /**
+     * @param trip a new trip, or one recorded before the service was killed
+     * @param checkpoint state of the resumed trip, null to start from the trip alone
+     * @param pauseTimeout milliseconds standing still before nothing is kept
+     * @param endTripTimeout milliseconds standing still before the trip is over
+     */
+    public TripProcessor(Trip trip, TripCheckpoint checkpoint, long pauseTimeout, long endTripTimeout) {
+        this.trip = trip;
+        this.pauseTimeout = pauseTimeout;
+        this.endTripTimeout = endTripTimeout;
+        if(checkpoint != null) {
+            trip.resume(checkpoint);
+            rating = checkpoint.rating;
+            tiltCalc.resume(checkpoint);
+            lastSpeedNonzero = checkpoint.lastSpeedNonzero;
+            paused = checkpoint.paused;
+        } else {
+            rating = new RatingCalculation(trip.getGPSPoints().size(), trip.getScore());
+        }
+    }
+
+    /**
+     * Take in a trace of the sensors
+     * @param trace
+     * @param pauseWhenStationary the setting, after standing still for the pause timeout nothing is kept
+     * @return what to store, a fix comes back rated as a Trace.Trip; null while the trip is paused
+     */
+    public Trace process(Trace trace, boolean pauseWhenStationary) {
+        if(lastSpeedNonzero == 0) {
+            lastSpeedNonzero = trace.time;
+        }
+
+        tiltCalc.processTrace(trace);
+
+        Trace result = trace;
+        if(trace instanceof Trace.GPS) {
+            Trace.Trip tt = rating.getRating((Trace.GPS) trace);
+            tt.tilt = (float) tiltCalc.getTilt();
+            if(tt.speed != 0.0) {
+                lastSpeedNonzero = tt.time;
+            }
+            trip.addGPS(tt);
+            trip.setScore(tt.score);
+            trip.setTilt(tt.tilt);
+            lastFix = (Trace.GPS) trace;
+            result = tt;
+        }
+
+        long still = trace.time - lastSpeedNonzero;
+        if(paused) {
+            over = still > endTripTimeout;
+            result = null;
+        }
+        paused = pauseWhenStationary && still > pauseTimeout;
+        return result;
+    }
+
+    /**
+     * @return true if nothing is kept, the car stands still
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return true once the car stood still for the end of trip timeout
+     */
+    public boolean isOver() {
+        return over;
+    }
+
+    /**
+     * @return json of the current state of the trip, cheap enough to take at every GPS fix
+     */
+    public String checkpoint() {
+        TripCheckpoint checkpoint = new TripCheckpoint();
+        trip.checkpoint(checkpoint);
+        checkpoint.rating = rating;
+        tiltCalc.checkpoint(checkpoint);
+        checkpoint.lastSpeedNonzero = lastSpeedNonzero;
+        checkpoint.paused = paused;
+        return checkpoint.toJson();
+    }
+
+    public Trip getTrip() {
+        return trip;
+    }
+
+    public Trace.GPS getLastFix() {
+        return lastFix;
+    }
+}
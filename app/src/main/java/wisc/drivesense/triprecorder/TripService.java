@@ -8,47 +8,56 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import wisc.drivesense.DriveSenseApp;
 import wisc.drivesense.R;
 import wisc.drivesense.activity.MainActivity;
 import wisc.drivesense.activity.SettingActivity;
+import wisc.drivesense.database.StorageManager;
 import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.httpTools.LiveTripStream;
+import wisc.drivesense.httpTools.SyncJobService;
 import wisc.drivesense.httpTools.TripUploadRequest;
 import wisc.drivesense.user.DriveSenseToken;
-import wisc.drivesense.utility.GsonSingleton;
-import wisc.drivesense.utility.RatingCalculation;
+import wisc.drivesense.utility.Clock;
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.FlightRecord;
 import wisc.drivesense.utility.Trace;
 import wisc.drivesense.utility.TraceMessage;
 import wisc.drivesense.utility.Trip;
+import wisc.drivesense.utility.TripCheckpoint;
 
 public class TripService extends Service {
     private final long SEND_INTERVAL = 1000;
     private DriveSenseToken user = null;
-    private Trip curtrip_ = null;
-    private long lastSpeedNonzero = 0;
-    private boolean stoprecording = false;
-    private TraceStorageWorker tsw;
-
-    //TODO
-    private RealTimeTiltCalculation tiltCalc;
-    private RatingCalculation rating;
+    private volatile Trip curtrip_ = null;
+    private volatile TraceStorageWorker tsw;
+    private TripProcessor processor;
 
     public Binder _binder = new TripServiceBinder();
+    private final Handler mainHandler = new Handler();
 
     private final String TAG = "Trip Service";
 
     private final int ONGOING_NOTIFICATION_ID = 1;
     public static final String START_IMMEDIATELY = "startImmediately";
+    public static final String STOP_IMMEDIATELY = "stopImmediately";
     public static final String TRIP_STATUS_CHANGE = "tripStatusChange";
+    public static final String RECORDING_SNAPSHOT = "recordingSnapshot";
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -69,17 +78,30 @@ public class TripService extends Service {
             //Null intent means the service was killed and is being restarted by android
             curtrip_ = DriveSenseApp.DBHelper().getLastTrip();
             if(curtrip_!=null) {
-                List<Trace.Trip> points_ = DriveSenseApp.DBHelper().getGPSPoints(curtrip_.guid.toString());
-                curtrip_.setGPSPoints(points_);
-                Log.d(TAG, "Trip distance: "+curtrip_.getDistance() + " gps length: "+curtrip_.getGPSPoints().size());
+                TripCheckpoint checkpoint = DriveSenseApp.DBHelper().loadCheckpoint(curtrip_.guid);
+                if(checkpoint == null) {
+                    //recorded by a version without checkpoints
+                    List<Trace.Trip> points_ = DriveSenseApp.DBHelper().getGPSPoints(curtrip_.guid.toString());
+                    curtrip_.setGPSPoints(points_);
+                }
                 Log.d(TAG, "Restart driving detection service after being killed by android. UUID: "+curtrip_.guid);
 
-                startRecording();
+                startRecording(checkpoint);
+                Log.d(TAG, "Trip distance: "+curtrip_.getDistance() + " gps length: "+curtrip_.getGPSPoints().size());
             } else {
                 Log.d(TAG, "TripService was restarted, but no unfinalized trip was found");
             }
         } else if (intent.getBooleanExtra(START_IMMEDIATELY, false)) {
-            startRecordingNewTrip();
+            //power connection and the driving detector both start trips, only one is recorded
+            if(curtrip_ == null) startRecordingNewTrip();
+        } else if (intent.getBooleanExtra(STOP_IMMEDIATELY, false)) {
+            //the driving detector saw the trip end
+            if(curtrip_ != null) {
+                stopRecordingTrip();
+            } else {
+                stopSelf();
+            }
+            return START_NOT_STICKY;
         }
 
         registerReceiver(mPowerDisconnectedReceiver, new IntentFilter(Intent.ACTION_POWER_DISCONNECTED));
@@ -112,7 +134,7 @@ public class TripService extends Service {
         curtrip_ = new Trip();
         DriveSenseApp.DBHelper().insertTrip(curtrip_);
 
-        startRecording();
+        startRecording(null);
     }
 
     /**
@@ -120,20 +142,21 @@ public class TripService extends Service {
      * Used to either start recording a new trip or resume recording after TripService was killed by Android
      *
      * If you want to start a new empty trip, call startRecordingNewTrip
+     * @param checkpoint state of the resumed trip, null to start from the trip alone
      */
-    private void startRecording() {
-        lastSpeedNonzero = 0;
-        stoprecording = false;
-
+    private void startRecording(TripCheckpoint checkpoint) {
         Log.d(TAG, "Start driving detection service. UUID: "+curtrip_.guid);
         Toast.makeText(this, "Trip recording service starting in background.", Toast.LENGTH_SHORT).show();
         user = DriveSenseApp.DBHelper().getCurrentUser();
 
-        tsw = new TraceStorageWorker(curtrip_.guid.toString(), this);
+        processor = new TripProcessor(curtrip_, checkpoint,
+                getResources().getInteger(R.integer.default_pause_timeout) * 1000,
+                getResources().getInteger(R.integer.end_trip_inactivity_timeout) * 1000);
+        tsw = new TraceStorageWorker(curtrip_, this);
         tsw.start();
-
-        tiltCalc = new RealTimeTiltCalculation();
-        rating = new RatingCalculation(curtrip_.getGPSPoints().size(), curtrip_.getScore());
+        DriveSenseApp.RecordingPipeline().startTrip();
+        DriveSenseApp.RecordingPipeline().setFlightListener(mFlightListener);
+        DriveSenseApp.RecordingPipeline().setEventListener(mEventListener);
 
         startSensors();
 
@@ -151,26 +174,35 @@ public class TripService extends Service {
     public void stopRecordingTrip() {
         stopForeground(true);
         stopSensors();
+        Trip trip;
+        synchronized (this) {
+            //waits for a trace being processed on the pipeline thread
+            trip = curtrip_;
+            curtrip_ = null;
+        }
         tsw.stopRunning();
         try {
             tsw.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        if(curtrip_ != null) {
+        if(trip != null) {
             //validate the trip based on distance and travel time
-            if(curtrip_.getDistance() >= SettingActivity.getMinimumDistance(this)) {
+            if(trip.getDistance() >= SettingActivity.getMinimumDistance(this)) {
                 Toast.makeText(this, "Saving trip in background!", Toast.LENGTH_LONG).show();
-                curtrip_.setStatus(2);
+                trip.setStatus(2);
 
             } else {
                 Toast.makeText(this, "Trip too short, not saved!", Toast.LENGTH_LONG).show();
-                curtrip_.setStatus(0);
+                trip.setStatus(0);
             }
-            curtrip_.setEndTime(System.currentTimeMillis());
-            DriveSenseApp.DBHelper().updateTrip(curtrip_);
-            TripUploadRequest.Start(this);
-            curtrip_ = null;
+            trip.setEndTime(System.currentTimeMillis());
+            DriveSenseApp.DBHelper().updateTrip(trip);
+            DriveSenseApp.DBHelper().saveCheckpoint(trip.guid, null);
+            TripUploadRequest.EndLive(trip.guid.toString());
+            SyncJobService.requestUpload(this, true);
+            StorageManager.schedule(this);
+            DriveSenseApp.RecordingPipeline().reportTrip();
         }
 
         //broadcast a notification that the trip is ending
@@ -186,12 +218,15 @@ public class TripService extends Service {
         Intent senI = new Intent(this, SensorService.class);
         startService(senI);
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(mSensorMessageReceiver, new IntentFilter("sensor"));
+        DriveSenseApp.RecordingPipeline().setSink(mSensorSink);
     }
     private void stopSensors() {
         Intent senI = new Intent(this, SensorService.class);
         stopService(senI);
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mSensorMessageReceiver);
+        //the storage worker is still running and gets the last flight record
+        DriveSenseApp.RecordingPipeline().stopTrip();
+        DriveSenseApp.RecordingPipeline().setFlightListener(null);
+        DriveSenseApp.RecordingPipeline().setEventListener(null);
     }
 
     public void onDestroy() {
@@ -217,86 +252,152 @@ public class TripService extends Service {
         }
     };
 
+    private final Runnable autoStop = new Runnable() {
+        @Override
+        public void run() {
+            if(curtrip_ != null) stopRecordingTrip();
+        }
+    };
+
     /**
-     * where we get the sensor data
+     * where we get the sensor data, on the pipeline thread
      */
-    private BroadcastReceiver mSensorMessageReceiver = new BroadcastReceiver() {
+    private final RecordingPipeline.Sink mSensorSink = new RecordingPipeline.Sink() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            TraceMessage message = GsonSingleton.fromJson(intent.getStringExtra("trace"), TraceMessage.class);
-            Trace trace = message.value;
-            long curtime = trace.time;
-
-            if(trace == null) return;
-            if(curtrip_ == null) return;
-
-            if(lastSpeedNonzero == 0) {
-                lastSpeedNonzero = trace.time;
+        public void onTrace(Trace trace) {
+            synchronized (TripService.this) {
+                process(trace);
             }
+        }
+    };
 
-            tiltCalc.processTrace(trace);
+    /**
+     * full rate samples around a hard brake or a spike, on the pipeline thread
+     */
+    private final FlightRecorder.Listener mFlightListener = new FlightRecorder.Listener() {
+        @Override
+        public void onRecord(FlightRecord record) {
+            Log.d(TAG, "Flight record of " + record.size() + " samples, " + record.reason);
+            TraceStorageWorker worker = tsw;
+            if(worker != null) worker.addFlightRecord(record);
+        }
+    };
 
-            if(trace instanceof Trace.GPS) {
-                Trace.Trip tt = rating.getRating((Trace.GPS)trace);
-                tt.tilt = (float)tiltCalc.getTilt();
-                if(tt.speed != 0.0) {
-                    lastSpeedNonzero = tt.time;
-                }
+    /**
+     * hard brakes, accelerations, turns and swerves, on the pipeline thread
+     */
+    private final DrivingEventDetector.Listener mEventListener = new DrivingEventDetector.Listener() {
+        @Override
+        public void onEvent(DrivingEvent event) {
+            Log.d(TAG, "Driving event " + event.type + " of " + event.getDuration() + " ms, severity " + event.severity);
+            DriveSenseApp.RecordingPipeline().getFlightRecorder().fire(event.type.name().toLowerCase(Locale.US), event.start);
+            TraceStorageWorker worker = tsw;
+            if(worker != null) worker.addDrivingEvent(event);
+        }
+    };
 
-                curtrip_.addGPS(tt);
-                curtrip_.setScore(tt.score);
-                curtrip_.setTilt(tt.tilt);
+    private void process(Trace trace) {
+        if(trace == null) return;
+        if(curtrip_ == null) return;
+        long curtime = trace.time;
 
-                //replace the contents of message with this triptrace instead of the GPS trace
-                message = new TraceMessage(tt);
-            }
+        boolean wasPaused = processor.isPaused();
+        Trace stored = processor.process(trace, SettingActivity.getPauseWhenStationary(this));
+        if(stored instanceof Trace.Trip && ((Trace.Trip) stored).brake < 0) {
+            DriveSenseApp.RecordingPipeline().getFlightRecorder().fire(FlightRecorder.BRAKING, stored.time);
+        }
 
-            boolean endTripAuto= SettingActivity.getEndTripAuto(context);
-            if(!stoprecording) {
-                try {
-                    tsw.addTrace(message, curtrip_.getDistance());
-                    //update trip async?
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else if ((curtime - lastSpeedNonzero > context.getResources().getInteger(R.integer.end_trip_inactivity_timeout)*1000) && endTripAuto){
-                //send trip ended broadcast
-                stopRecordingTrip();
-            }
-            boolean pauseRecordingPref = SettingActivity.getPauseWhenStationary(context);
-            if(((curtime - lastSpeedNonzero) > context.getResources().getInteger(R.integer.default_pause_timeout) * 1000)
-                    && pauseRecordingPref) {
-                if(stoprecording == false)
-                    Log.d(TAG, "Pausing trip recording because of no movement");
-                stoprecording = true;
-            } else {
-                stoprecording = false;
+        if(stored != null) {
+            try {
+                //a fix is stored as the rated triptrace instead of the GPS trace
+                tsw.addTrace(new TraceMessage(stored), curtrip_.getDistance());
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+        } else if (processor.isOver() && SettingActivity.getEndTripAuto(this)){
+            //the service is started and stopped on the main thread
+            mainHandler.post(autoStop);
+        }
+        if(processor.isPaused() && !wasPaused) {
+            Log.d(TAG, "Pausing trip recording because of no movement");
         }
+        //nothing is kept while paused, the sensors can slow down
+        DriveSenseApp.RecordingPipeline().getGovernor().onPaused(processor.isPaused(), curtime);
 
-    };
+        if(trace instanceof Trace.GPS) {
+            tsw.checkpoint(processor.checkpoint());
+        }
+        if(trace instanceof Trace.GPS || trace instanceof Trace.Accel) {
+            DriveSenseApp.RecordingPipeline().publish(new RecordingSnapshot(processor.getLastFix(), curtrip_.getDistance(), curtrip_.getTilt()));
+        }
+    }
 
     //handle trace, by insert into database or upload
     private class TraceStorageWorker extends Thread {
         private static final String TAG = "TraceStorageWorker";
-        private LinkedBlockingQueue<TraceMessage> traces;
+        //about a hundred seconds of traces of all sensors
+        private static final int QUEUE_CAPACITY = 4096;
+        private IngestQueue traces;
         private String tripUUID;
+        private Trip trip;
         private long lastSent = 0;
         private Context context;
         private volatile double curDistance;
         ArrayList<TraceMessage> unsentMessages = new ArrayList<TraceMessage>();
         private volatile boolean running = true;
-        public TraceStorageWorker(String tripUUID, Context context) {
-            traces = new LinkedBlockingQueue();
-            this.tripUUID = tripUUID;
+        //GPS points go out as they arrive while the stream is up, in batches otherwise
+        private LiveTripStream stream = null;
+        //latest checkpoint, written after the traces queued before it
+        private final AtomicReference<String> checkpoint = new AtomicReference<>();
+        private final ConcurrentLinkedQueue<FlightRecord> flightRecords = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<DrivingEvent> drivingEvents = new ConcurrentLinkedQueue<>();
+        public TraceStorageWorker(Trip trip, Context context) {
+            traces = new IngestQueue(QUEUE_CAPACITY);
+            this.trip = trip;
+            this.tripUUID = trip.guid.toString();
             this.context = context;
         }
-        public void addTrace(TraceMessage tm, double curDistance) {
+
+        private void openStream() {
             try {
-                //traces.put is thread safe
-                traces.put(tm);
-                this.curDistance = curDistance;
-            } catch (InterruptedException e) { e.printStackTrace(); }
+                stream = new LiveTripStream(Constants.kLiveTripURL, user, tripUUID, new LiveTripStream.Listener() {
+                    @Override
+                    public void onAcknowledged(List<TraceMessage> traces) {
+                        Long[] traceids = new Long[traces.size()];
+                        for (int i = 0; i < traceids.length; i++) {
+                            traceids[i] = traces.get(i).rowid;
+                        }
+                        DriveSenseApp.DBHelper().markTracesSynced(traceids);
+                    }
+
+                    @Override
+                    public void onFallback(List<TraceMessage> traces) {
+                        TripPayload payload = new TripPayload();
+                        payload.guid = tripUUID;
+                        payload.traces = new ArrayList<>(traces);
+                        payload.distance = curDistance;
+                        TripUploadRequest.Start(payload, context);
+                    }
+                }, Clock.SYSTEM);
+                stream.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the live stream");
+                stream = null;
+            }
+        }
+        public void addTrace(TraceMessage tm, double curDistance) {
+            //thread safe, sheds the trace instead of blocking when the database falls behind
+            traces.offer(tm);
+            this.curDistance = curDistance;
+        }
+        public void checkpoint(String json) {
+            checkpoint.set(json);
+        }
+        public void addFlightRecord(FlightRecord record) {
+            flightRecords.add(record);
+        }
+        public void addDrivingEvent(DrivingEvent event) {
+            drivingEvents.add(event);
         }
         public void stopRunning() {
             running = false;
@@ -306,20 +407,47 @@ public class TripService extends Service {
             return running;
         }
         public void run() {
+            if(user != null) {
+                openStream();
+            }
+            //a resumed trip keeps counting
+            traces.restoreShed(DriveSenseApp.DBHelper().getShedCounts(tripUUID));
             //even if runnning == false we check size() to drain the queue of traces at the end
             //if it is running, it does not check the size of traces
             while (running || traces.size()!=0) {
                 try {
                     ArrayList<TraceMessage> tmList = new ArrayList<>(traces.size());
-                    traces.drainTo(tmList);
-                    DriveSenseApp.DBHelper().updateTrip(curtrip_);
-                    long[] rowids = DriveSenseApp.DBHelper().insertSensorData(tripUUID, tmList, false);
-                    for (int i = 0; i < tmList.size(); i++) {
-                        TraceMessage tm = tmList.get(i);
-                        tm.rowid = rowids[i];
-                        if(tm.value.getClass() == Trace.Trip.class) {
-                            //only add GPS traces to be sent right now. Other traces will be synced later on WiFi
-                            unsentMessages.add(tm);
+                    String pendingCheckpoint = traces.drainTo(tmList, running ? SEND_INTERVAL : 0, checkpoint);
+                    FlightRecord record;
+                    while ((record = flightRecords.poll()) != null) {
+                        DriveSenseApp.DBHelper().insertFlightRecord(tripUUID, record);
+                    }
+                    DrivingEvent event;
+                    while ((event = drivingEvents.poll()) != null) {
+                        DriveSenseApp.DBHelper().insertDrivingEvent(tripUUID, event);
+                    }
+                    if(!tmList.isEmpty() || pendingCheckpoint != null) {
+                        long start = System.nanoTime();
+                        DriveSenseApp.DBHelper().updateTrip(trip);
+                        long[] rowids = DriveSenseApp.DBHelper().insertSensorData(tripUUID, tmList, false);
+                        DriveSenseApp.RecordingPipeline().measured(PipelineStats.Stage.STORE, System.nanoTime() - start);
+                        for (int i = 0; i < tmList.size(); i++) {
+                            TraceMessage tm = tmList.get(i);
+                            tm.rowid = rowids[i];
+                            if(tm.value.getClass() == Trace.Trip.class) {
+                                //only add GPS traces to be sent right now. Other traces will be synced later on WiFi
+                                if(stream == null || !stream.offer(tm, curDistance)) {
+                                    unsentMessages.add(tm);
+                                }
+                            }
+                        }
+                        if(pendingCheckpoint != null) {
+                            DriveSenseApp.DBHelper().saveCheckpoint(tripUUID, pendingCheckpoint);
+                        }
+                        Map<String, Integer> shed = traces.takeShedUpdate();
+                        if(shed != null) {
+                            Log.d(TAG, "Database behind by " + traces.size() + " traces, shed so far: " + shed);
+                            DriveSenseApp.DBHelper().saveShedCounts(tripUUID, shed);
                         }
                     }
                 } catch (InterruptedException e) {
@@ -344,6 +472,10 @@ public class TripService extends Service {
                     TripUploadRequest.Start(payload, context);
                 }
             }
+            if(stream != null) {
+                //points the server did not acknowledge come back through onFallback
+                stream.stop();
+            }
             Log.d(TAG, "Worker thread done running");
         }
     }
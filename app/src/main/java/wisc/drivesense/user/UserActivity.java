@@ -26,6 +26,7 @@ import wisc.drivesense.R;
 import wisc.drivesense.httpPayloads.LoginPayload;
 import wisc.drivesense.httpPayloads.TokenLoginPayload;
 import wisc.drivesense.httpTools.GsonRequest;
+import wisc.drivesense.httpTools.SyncJobService;
 import wisc.drivesense.utility.Constants;
 
 public class UserActivity extends AppCompatActivity {
@@ -64,6 +65,9 @@ public class UserActivity extends AppCompatActivity {
     public void handleDrivesenseLogin(String driveSenseJWT) {
         DriveSenseToken dsToken = DriveSenseToken.InstantiateFromJWT(driveSenseJWT);
         DriveSenseApp.DBHelper().userLogin(dsToken);
+        //trips recorded before logging in now belong to the user
+        SyncJobService.requestUpload(this, false);
+        SyncJobService.requestDownload(this);
         this.reland();
     }
 
@@ -0,0 +1,15 @@
+package wisc.drivesense.utility;
+
+/**
+ * Source of the current time, so time dependent logic can be driven by a fake clock in tests
+ */
+public interface Clock {
+    long currentTimeMillis();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
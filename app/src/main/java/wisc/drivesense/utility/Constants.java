@@ -22,6 +22,8 @@ public class Constants {
     public static final double kSampleRate = 1.0;
     public static final double kRecordingInterval = 100;
     public static final int kBatchUploadCount = 5000;
+    //uncompressed size up to which backlog trips are packed into one upload
+    public static final int kBatchUploadBytes = 256 * 1024;
 
     public static final int DEFAULT_MINIMUM_TRIP_DIST_METERS = 500;
 
@@ -29,8 +31,14 @@ public class Constants {
     private static final String kDomain = "http://drivesense.io";
 
     public static final String kTripURL = kDomain + "/updateTrip";
+    public static final String kTripBatchURL = kDomain + "/updateTrips";
+    public static final String kLiveTripURL = kDomain + "/liveTrip";
+    public static final String kStoredBatchesURL = kDomain + "/storedBatches";
     public static final String kTripTracesURL = kDomain + "/tripTraces";
+    public static final String kTraceHashesURL = kDomain + "/traceHashes";
+    public static final String kTraceTimesURL = kDomain + "/traceTimes";
     public static final String kAllTripsURL = kDomain + "/allTrips";
+    public static final String kTripChangesURL = kDomain + "/tripChanges";
 
     public static final String kSignInURL = kDomain + "/auth/signin";
     public static final String kSignUpURL = kDomain + "/auth/signup";
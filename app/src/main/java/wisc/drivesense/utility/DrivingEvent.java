@@ -0,0 +1,108 @@
+package wisc.drivesense.utility;
+
+/**
+ * A hard brake, hard acceleration, sharp turn or swerve, found in the motion sensors by
+ * DrivingEventDetector or, for braking, in the GPS speed by RatingCalculation.
+ * Indexed per trip by DatabaseHelper for the map and the history.
+ */
+public class DrivingEvent {
+    public enum Type {
+        HARD_BRAKE, HARD_ACCEL, SHARP_TURN, SWERVE
+    }
+
+    //what found it, the motion sensors are preferred when both did
+    public static final int SENSORS = 0;
+    public static final int GPS = 1;
+    //events of a type this close in time are the same event, fixes are a second apart
+    public static final long OVERLAP_MS = 1500;
+
+    public Type type;
+    //first and last sample beyond the threshold
+    public long start;
+    public long end;
+    //m/s^2 along or across the car, rad/s of yaw for a swerve; negative is braking or to the right
+    public float peak;
+    //the peak over the threshold of the type, 1 is just hard enough
+    public float severity;
+    //the last fix before the event
+    public float lat;
+    public float lng;
+    public int source = SENSORS;
+    //uuid of the trip, set when read from the database
+    public String trip;
+
+    public DrivingEvent(Type type, long start, long end, float peak, float severity) {
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.peak = peak;
+        this.severity = severity;
+    }
+
+    /**
+     * @param point a fix RatingCalculation found hard braking at
+     */
+    public static DrivingEvent fromBraking(Trace.Trip point) {
+        DrivingEvent event = new DrivingEvent(Type.HARD_BRAKE, point.time, point.time, point.brake,
+                (float) (Math.abs(point.brake) / RatingCalculation.BRAKE_THRESHOLD));
+        event.lat = point.lat;
+        event.lng = point.lng;
+        event.source = GPS;
+        return event;
+    }
+
+    public long getDuration() {
+        return end - start;
+    }
+
+    /**
+     * @return the earliest end of an event this one overlaps
+     */
+    public long overlapFrom() {
+        return start - OVERLAP_MS;
+    }
+
+    /**
+     * @return the latest start of an event this one overlaps
+     */
+    public long overlapUntil() {
+        return end + OVERLAP_MS;
+    }
+
+    /**
+     * @return true if the other event is of the same type and within OVERLAP_MS of this one
+     */
+    public boolean overlaps(DrivingEvent other) {
+        return type == other.type && other.start <= overlapUntil() && other.end >= overlapFrom();
+    }
+
+    /**
+     * Take in an overlapping event: from the same source it extends this one, from the sensors
+     * it replaces one from GPS, from GPS it adds nothing to one from the sensors
+     * @return true if this event changed
+     */
+    public boolean merge(DrivingEvent other) {
+        if(source != other.source) {
+            if(other.source != SENSORS) return false;
+            start = other.start;
+            end = other.end;
+            peak = other.peak;
+            severity = other.severity;
+            lat = other.lat;
+            lng = other.lng;
+            source = SENSORS;
+            return true;
+        }
+        boolean changed = other.start < start || other.end > end;
+        start = Math.min(start, other.start);
+        end = Math.max(end, other.end);
+        if(Math.abs(other.peak) > Math.abs(peak)) {
+            peak = other.peak;
+            severity = other.severity;
+            lat = other.lat;
+            lng = other.lng;
+            changed = true;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,78 @@
+package wisc.drivesense.utility;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Raw sensor samples at full rate around a moment of a trip, see FlightRecorder.
+ * Stored as a blob instead of a trace row per sample: a sensor byte, the time as an offset
+ * from the start and the three values.
+ */
+public class FlightRecord {
+    public static final int ACCEL = 0;
+    public static final int GYRO = 1;
+    public static final int MAGNETOMETER = 2;
+
+    private static final int SAMPLE_BYTES = 1 + 4 + 3 * 4;
+
+    //what triggered the record, like "braking"
+    public String reason;
+    //time of the trigger
+    public long time;
+    //triggers that fired while the record was being taken, the first included
+    public int triggers = 1;
+    public long[] times;
+    public byte[] sensors;
+    //x, y, z of every sample
+    public float[] values;
+
+    public FlightRecord(String reason, long time, int size) {
+        this.reason = reason;
+        this.time = time;
+        times = new long[size];
+        sensors = new byte[size];
+        values = new float[size * 3];
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getStartTime() {
+        return times.length == 0 ? time : times[0];
+    }
+
+    public long getEndTime() {
+        return times.length == 0 ? time : times[times.length - 1];
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + size() * SAMPLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long start = getStartTime();
+        buffer.putInt(size());
+        buffer.putLong(start);
+        for (int i = 0; i < size(); i++) {
+            buffer.put(sensors[i]);
+            buffer.putInt((int) (times[i] - start));
+            buffer.putFloat(values[i * 3]);
+            buffer.putFloat(values[i * 3 + 1]);
+            buffer.putFloat(values[i * 3 + 2]);
+        }
+        return buffer.array();
+    }
+
+    public static FlightRecord decode(String reason, long time, byte[] samples) {
+        ByteBuffer buffer = ByteBuffer.wrap(samples).order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.getInt();
+        long start = buffer.getLong();
+        FlightRecord record = new FlightRecord(reason, time, size);
+        for (int i = 0; i < size; i++) {
+            record.sensors[i] = buffer.get();
+            record.times[i] = start + buffer.getInt();
+            record.values[i * 3] = buffer.getFloat();
+            record.values[i * 3 + 1] = buffer.getFloat();
+            record.values[i * 3 + 2] = buffer.getFloat();
+        }
+        return record;
+    }
+}
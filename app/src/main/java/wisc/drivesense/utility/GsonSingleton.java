@@ -30,6 +30,7 @@ public class GsonSingleton implements JsonDeserializer<TraceMessage> {
         typeLookup.put(Trace.Accel.class.getSimpleName(), Trace.Accel.class);
         typeLookup.put(Trace.Gyro.class.getSimpleName(), Trace.Gyro.class);
         typeLookup.put(Trace.Rotation.class.getSimpleName(), Trace.Rotation.class);
+        typeLookup.put(Trace.Orientation.class.getSimpleName(), Trace.Orientation.class);
         typeLookup.put(Trace.Magnetometer.class.getSimpleName(), Trace.Magnetometer.class);
     }
     public static final Map<Type, String> typeNameLookup;
@@ -10,6 +10,9 @@ import wisc.drivesense.triprecorder.RealTimeTiltCalculation;
  * Created by lkang on 4/20/16.
  */
 public class RatingCalculation implements Serializable {
+    //m/s^2 of deceleration between fixes that counts as hard braking
+    public static final double BRAKE_THRESHOLD = 2.5;
+
     private int counter_;
     private Trace.GPS lastTrace_;
     private double lastSpeed_;
@@ -64,7 +67,7 @@ public class RatingCalculation implements Serializable {
 
         lastSpeed_ = curSpeed;
         lastTrace_ = trace;
-        if(a < -2.5) {
+        if(a < -BRAKE_THRESHOLD) {
             double curscore = 3.0 - Math.min(3.0, Math.abs(a));
             score_ = (score_ * (counter_ - 1) + curscore * 10.0)/counter_;
             return (float)a;
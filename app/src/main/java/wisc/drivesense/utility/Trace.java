@@ -40,6 +40,9 @@ public abstract class Trace implements Serializable {
         public float alt;
         public LatLng toLatLng() { return new LatLng(lat, lng); }
     }
+    /**
+     * Rotation matrix, only read from traces recorded before Orientation
+     */
     public static  class Rotation extends Trace implements IVector{
         float[] matrix = new float[9];
         @Override
@@ -51,6 +54,70 @@ public abstract class Trace implements Serializable {
             matrix = v;
         }
     }
+    /**
+     * Orientation of the phone as a unit quaternion, w first like SensorManager.getQuaternionFromVector.
+     * Takes the place of Rotation, which keeps all nine floats of the rotation matrix.
+     * The matrix is only computed when asked for.
+     */
+    public static class Orientation extends Trace implements IVector {
+        public float w = 1, x, y, z;
+        @Override
+        public float[] values() {
+            return new float[] {w,x,y,z};
+        }
+        @Override
+        public void values(float[] v) {
+            w = v[0]; x = v[1]; y = v[2]; z = v[3];
+        }
+
+        /**
+         * @param m row major rotation matrix, like SensorManager.getRotationMatrix
+         * @return the orientation with w >= 0
+         */
+        public static Orientation fromMatrix(float[] m) {
+            double w, x, y, z;
+            double trace = m[0] + m[4] + m[8];
+            //the largest of the four keeps the division precise
+            if(trace > 0) {
+                double s = Math.sqrt(trace + 1) * 2;
+                w = s / 4; x = (m[7] - m[5]) / s; y = (m[2] - m[6]) / s; z = (m[3] - m[1]) / s;
+            } else if(m[0] > m[4] && m[0] > m[8]) {
+                double s = Math.sqrt(1 + m[0] - m[4] - m[8]) * 2;
+                w = (m[7] - m[5]) / s; x = s / 4; y = (m[1] + m[3]) / s; z = (m[2] + m[6]) / s;
+            } else if(m[4] > m[8]) {
+                double s = Math.sqrt(1 + m[4] - m[0] - m[8]) * 2;
+                w = (m[2] - m[6]) / s; x = (m[1] + m[3]) / s; y = s / 4; z = (m[5] + m[7]) / s;
+            } else {
+                double s = Math.sqrt(1 + m[8] - m[0] - m[4]) * 2;
+                w = (m[3] - m[1]) / s; x = (m[2] + m[6]) / s; y = (m[5] + m[7]) / s; z = s / 4;
+            }
+            double norm = Math.sqrt(w * w + x * x + y * y + z * z) * (w < 0 ? -1 : 1);
+            Orientation orientation = new Orientation();
+            orientation.w = (float) (w / norm);
+            orientation.x = (float) (x / norm);
+            orientation.y = (float) (y / norm);
+            orientation.z = (float) (z / norm);
+            return orientation;
+        }
+
+        /**
+         * @return row major rotation matrix, like SensorManager.getRotationMatrixFromVector
+         */
+        public float[] toMatrix() {
+            float[] m = new float[9];
+            toMatrix(m);
+            return m;
+        }
+
+        /**
+         * @param m filled with the row major rotation matrix, for callers that keep one around
+         */
+        public void toMatrix(float[] m) {
+            m[0] = 1 - 2 * y * y - 2 * z * z; m[1] = 2 * x * y - 2 * z * w; m[2] = 2 * x * z + 2 * y * w;
+            m[3] = 2 * x * y + 2 * z * w; m[4] = 1 - 2 * x * x - 2 * z * z; m[5] = 2 * y * z - 2 * x * w;
+            m[6] = 2 * x * z - 2 * y * w; m[7] = 2 * y * z + 2 * x * w; m[8] = 1 - 2 * x * x - 2 * y * y;
+        }
+    }
     @Expose
     public long time;
     public Trace copyTrace() {
@@ -0,0 +1,12 @@
+package wisc.drivesense.utility;
+
+import java.util.List;
+
+/**
+ * Unsent traces of a trip uploaded together, numbered per trip so the server stores a batch
+ * it receives twice only once
+ */
+public class TraceBatch {
+    public int seq;
+    public List<TraceMessage> traces;
+}
@@ -116,6 +116,33 @@ public class Trip extends TripMetadata {
         return gps_;
     }
 
+    /**
+     * Store the accumulated distance, score and last fix of a trip being recorded
+     * @param checkpoint
+     */
+    public void checkpoint(TripCheckpoint checkpoint) {
+        checkpoint.distance = this.distance;
+        checkpoint.score = this.score_;
+        checkpoint.tilt = this.tilt_;
+        checkpoint.endTime = this.endTime_;
+        checkpoint.lastFix = gps_.isEmpty() ? null : gps_.get(gps_.size() - 1);
+    }
+
+    /**
+     * Continue recording from a checkpoint, only the last fix is needed in memory
+     * @param checkpoint
+     */
+    public void resume(TripCheckpoint checkpoint) {
+        this.distance = checkpoint.distance;
+        this.score_ = checkpoint.score;
+        this.tilt_ = checkpoint.tilt;
+        this.endTime_ = checkpoint.endTime;
+        gps_ = new ArrayList<Trace.Trip>();
+        if(checkpoint.lastFix != null) {
+            gps_.add(checkpoint.lastFix);
+        }
+    }
+
 
 
     public static double distance(Trace.GPS gps0, Trace.GPS gps1) {
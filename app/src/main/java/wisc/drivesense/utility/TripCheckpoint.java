@@ -0,0 +1,36 @@
+package wisc.drivesense.utility;
+
+/**
+ * Everything TripService accumulates while recording a trip. It is stored as one value per trip,
+ * so a trip resumed after Android killed the service continues where it was without reading its
+ * GPS points again, however long the trip is.
+ * It refers to the live RatingCalculation, take it with toJson right where it is filled in.
+ */
+public class TripCheckpoint {
+    //Trip accumulators
+    public double distance;
+    public double score;
+    public double tilt;
+    public long endTime;
+    //the next fix adds the distance from this one
+    public Trace.Trip lastFix;
+
+    public RatingCalculation rating;
+
+    //RealTimeTiltCalculation filter state
+    public Trace.Accel smoothedAccel;
+    public Trace.Gyro smoothedGyro;
+    public double curTilt;
+
+    //pause timers of TripService
+    public long lastSpeedNonzero;
+    public boolean paused;
+
+    public String toJson() {
+        return GsonSingleton.toJson(this);
+    }
+
+    public static TripCheckpoint fromJson(String json) {
+        return GsonSingleton.fromJson(json, TripCheckpoint.class);
+    }
+}
@@ -13,6 +13,9 @@ public class TripMetadata {
     public String guid;
     public Integer status; // 0 = deleted, 1 = live (In progress of recording), 2 = finalized (recording is done)
     public Double distance; // in meter
+    // optional, lets a trip be listed before its traces are downloaded
+    public Long starttime;
+    public Long endtime;
 
     public static final int DELETED = 0;
     public static final int LIVE = 1;
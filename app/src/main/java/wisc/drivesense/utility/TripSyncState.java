@@ -0,0 +1,13 @@
+package wisc.drivesense.utility;
+
+/**
+ * What the device knows about a trip when comparing it with the trip list from the server
+ */
+public class TripSyncState {
+    // false if the trip has local changes the server has not seen yet
+    public boolean synced;
+    public int status;
+    public double distance;
+    // false while the traces are only partly on the device, see DatabaseHelper.beginTripDownload
+    public boolean complete;
+}
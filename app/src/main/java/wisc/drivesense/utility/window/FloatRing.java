@@ -0,0 +1,57 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * The last capacity values of a float channel, allocated up front
+ */
+public class FloatRing {
+    private final float[] values;
+    //where the next value goes
+    private int head = 0;
+    private int size = 0;
+
+    public FloatRing(int capacity) {
+        values = new float[capacity];
+    }
+
+    /**
+     * @param value replaces the oldest value once the ring is full
+     */
+    public void add(float value) {
+        values[head] = value;
+        head = head + 1 == values.length ? 0 : head + 1;
+        if(size < values.length) size++;
+    }
+
+    /**
+     * @param i 0 for the oldest value
+     */
+    public float get(int i) {
+        int index = head - size + i;
+        return values[index < 0 ? index + values.length : index];
+    }
+
+    public float oldest() {
+        return get(0);
+    }
+
+    public float newest() {
+        return get(size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public boolean isFull() {
+        return size == values.length;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
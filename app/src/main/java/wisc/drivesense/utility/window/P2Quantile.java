@@ -0,0 +1,99 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * Approximate quantile of a float channel in constant memory, the P-square algorithm of
+ * Jain and Chlamtac. Five markers follow the minimum, the quantile, the maximum and the
+ * quantiles halfway in between, and are moved along a parabola fitted through their neighbours.
+ * It covers everything added since the last clear, so it goes with tumbling windows.
+ */
+public class P2Quantile {
+    private final double p;
+    //marker heights, positions and desired positions
+    private final double[] q = new double[5];
+    private final int[] n = new int[5];
+    private final double[] desired = new double[5];
+    private final double[] increment;
+    private int count = 0;
+
+    /**
+     * @param p the quantile, 0.5 for the median
+     */
+    public P2Quantile(double p) {
+        this.p = p;
+        increment = new double[]{0, p / 2, p, (1 + p) / 2, 1};
+    }
+
+    public void add(float value) {
+        if(count < 5) {
+            //insertion sort of the first five
+            int i = count++;
+            while (i > 0 && q[i - 1] > value) {
+                q[i] = q[i - 1];
+                i--;
+            }
+            q[i] = value;
+            if(count == 5) {
+                for (int j = 0; j < 5; j++) n[j] = j;
+                desired[0] = 0;
+                desired[1] = 2 * p;
+                desired[2] = 4 * p;
+                desired[3] = 2 + 2 * p;
+                desired[4] = 4;
+            }
+            return;
+        }
+        count++;
+        int k;
+        if(value < q[0]) {
+            q[0] = value;
+            k = 0;
+        } else if(value >= q[4]) {
+            q[4] = value;
+            k = 3;
+        } else {
+            k = 0;
+            while (value >= q[k + 1]) k++;
+        }
+        for (int i = k + 1; i < 5; i++) n[i]++;
+        for (int i = 0; i < 5; i++) desired[i] += increment[i];
+        for (int i = 1; i < 4; i++) {
+            double d = desired[i] - n[i];
+            if((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                int step = d > 0 ? 1 : -1;
+                double parabolic = parabolic(i, step);
+                if(q[i - 1] < parabolic && parabolic < q[i + 1]) {
+                    q[i] = parabolic;
+                } else {
+                    q[i] = q[i] + step * (q[i + step] - q[i]) / (n[i + step] - n[i]);
+                }
+                n[i] += step;
+            }
+        }
+    }
+
+    private double parabolic(int i, int d) {
+        return q[i] + (double) d / (n[i + 1] - n[i - 1])
+                * ((n[i] - n[i - 1] + d) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                + (n[i + 1] - n[i] - d) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+    /**
+     * @return the estimate, exact for up to five values, NaN without values
+     */
+    public double getQuantile() {
+        if(count == 0) return Double.NaN;
+        if(count < 5) {
+            //the first values are kept sorted
+            return q[(int) Math.round(p * (count - 1))];
+        }
+        return q[2];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+}
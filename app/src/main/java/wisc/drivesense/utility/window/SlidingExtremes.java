@@ -0,0 +1,99 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * Minimum and maximum of the last capacity values of a float channel, in constant amortized
+ * time per value. Each keeps a monotonic deque of the positions that can still become the
+ * extreme: a value drops every older value it beats from the back.
+ */
+public class SlidingExtremes {
+    private final int capacity;
+    //by position modulo capacity
+    private final float[] values;
+    private final Deque min;
+    private final Deque max;
+    //position of the next value
+    private long position = 0;
+
+    /**
+     * Positions in a ring, oldest at the front
+     */
+    private static class Deque {
+        final long[] positions;
+        int front = 0;
+        int size = 0;
+
+        Deque(int capacity) {
+            positions = new long[capacity];
+        }
+
+        long front() {
+            return positions[front];
+        }
+
+        long back() {
+            return positions[(front + size - 1) % positions.length];
+        }
+
+        void popFront() {
+            front = (front + 1) % positions.length;
+            size--;
+        }
+
+        void popBack() {
+            size--;
+        }
+
+        void pushBack(long position) {
+            positions[(front + size) % positions.length] = position;
+            size++;
+        }
+    }
+
+    public SlidingExtremes(int capacity) {
+        this.capacity = capacity;
+        values = new float[capacity];
+        min = new Deque(capacity);
+        max = new Deque(capacity);
+    }
+
+    public void add(float value) {
+        //the oldest value leaves before its slot is written
+        long expired = position - capacity;
+        if(min.size > 0 && min.front() <= expired) min.popFront();
+        if(max.size > 0 && max.front() <= expired) max.popFront();
+        values[(int) (position % capacity)] = value;
+        while (min.size > 0 && value(min.back()) >= value) min.popBack();
+        min.pushBack(position);
+        while (max.size > 0 && value(max.back()) <= value) max.popBack();
+        max.pushBack(position);
+        position++;
+    }
+
+    private float value(long position) {
+        return values[(int) (position % capacity)];
+    }
+
+    /**
+     * @return NaN without values
+     */
+    public float getMin() {
+        return min.size == 0 ? Float.NaN : value(min.front());
+    }
+
+    /**
+     * @return NaN without values
+     */
+    public float getMax() {
+        return max.size == 0 ? Float.NaN : value(max.front());
+    }
+
+    public int size() {
+        return (int) Math.min(position, capacity);
+    }
+
+    public void clear() {
+        position = 0;
+        min.size = 0;
+        max.size = 0;
+    }
+}
@@ -0,0 +1,82 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * Mean, variance and RMS of the last capacity values of a float channel, updated in constant
+ * time per value. The sums are kept in double with Welford's update for adding a value and
+ * taking the oldest out, and computed again from the ring now and then so rounding errors
+ * don't pile up over a long trip.
+ */
+public class SlidingStats {
+    //values added between two exact computations, in windows
+    private static final int RECOMPUTE_WINDOWS = 64;
+
+    private final FloatRing ring;
+    private double mean = 0;
+    //sum of squared differences from the mean
+    private double m2 = 0;
+    private int sinceRecompute = 0;
+
+    public SlidingStats(int capacity) {
+        ring = new FloatRing(capacity);
+    }
+
+    public void add(float value) {
+        if(ring.isFull()) {
+            float oldest = ring.oldest();
+            ring.add(value);
+            double delta = (double) value - oldest;
+            double oldMean = mean;
+            mean += delta / ring.size();
+            m2 += delta * (value - mean + oldest - oldMean);
+        } else {
+            ring.add(value);
+            double delta = value - mean;
+            mean += delta / ring.size();
+            m2 += delta * (value - mean);
+        }
+        if(m2 < 0) m2 = 0;
+        if(++sinceRecompute >= ring.capacity() * RECOMPUTE_WINDOWS) recompute();
+    }
+
+    private void recompute() {
+        sinceRecompute = 0;
+        double sum = 0;
+        for (int i = 0; i < ring.size(); i++) sum += ring.get(i);
+        mean = sum / ring.size();
+        m2 = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            double d = ring.get(i) - mean;
+            m2 += d * d;
+        }
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return population variance, 0 without values
+     */
+    public double getVariance() {
+        return ring.size() == 0 ? 0 : m2 / ring.size();
+    }
+
+    public double getRms() {
+        return Math.sqrt(getVariance() + mean * mean);
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    public boolean isFull() {
+        return ring.isFull();
+    }
+
+    public void clear() {
+        ring.clear();
+        mean = 0;
+        m2 = 0;
+        sinceRecompute = 0;
+    }
+}
@@ -0,0 +1,118 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * Splits a float channel into consecutive windows of a number of values, and hands the mean,
+ * variance, RMS, extremes, crossings of a level and a quantile of each to the Listener once
+ * it is complete. Nothing is kept of the values but running sums.
+ */
+public class TumblingWindow {
+
+    public interface Listener {
+        /**
+         * The getters of the window describe the window that just completed until this returns
+         */
+        void onWindow(TumblingWindow window);
+    }
+
+    private final int length;
+    private final float level;
+    private final P2Quantile quantile;
+    private final Listener listener;
+
+    private int count = 0;
+    private double mean = 0;
+    private double m2 = 0;
+    private float min = Float.NaN;
+    private float max = Float.NaN;
+    private boolean below;
+    private int crossings = 0;
+    private long windows = 0;
+
+    /**
+     * @param length values per window
+     * @param level crossings of this level are counted
+     * @param p the quantile estimated of every window, like 0.5 for the median
+     * @param listener
+     */
+    public TumblingWindow(int length, float level, double p, Listener listener) {
+        this.length = length;
+        this.level = level;
+        this.quantile = new P2Quantile(p);
+        this.listener = listener;
+    }
+
+    public void add(float value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        boolean nowBelow = value < level;
+        if(count == 1) {
+            min = value;
+            max = value;
+        } else {
+            if(value < min) min = value;
+            if(value > max) max = value;
+            if(nowBelow != below) crossings++;
+        }
+        below = nowBelow;
+        quantile.add(value);
+        if(count == length) {
+            windows++;
+            listener.onWindow(this);
+            clear();
+        }
+    }
+
+    /**
+     * Start the next window, dropping the values of the one not complete yet
+     */
+    public void clear() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Float.NaN;
+        max = Float.NaN;
+        crossings = 0;
+        quantile.clear();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of windows completed
+     */
+    public long getWindows() {
+        return windows;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return count == 0 ? 0 : Math.max(0, m2 / count);
+    }
+
+    public double getRms() {
+        return Math.sqrt(getVariance() + mean * mean);
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public int getCrossings() {
+        return crossings;
+    }
+
+    public double getQuantile() {
+        return quantile.getQuantile();
+    }
+}
@@ -0,0 +1,49 @@
+package wisc.drivesense.utility.window;
+
+/**
+ * Number of times the last capacity values of a float channel cross a level. A crossing
+ * between two values is counted with the newer one, and leaves the window with the older one.
+ */
+public class ZeroCrossings {
+    private final float level;
+    //whether the value at a position crossed from the value before it
+    private final boolean[] crossed;
+    private long position = 0;
+    private boolean below;
+    //crossings of the values in the window, including the one of the oldest
+    private int count = 0;
+
+    /**
+     * @param capacity
+     * @param level like 0 for the gyroscope, or gravity for the accelerometer magnitude
+     */
+    public ZeroCrossings(int capacity, float level) {
+        this.level = level;
+        crossed = new boolean[capacity];
+    }
+
+    public void add(float value) {
+        int index = (int) (position % crossed.length);
+        if(position >= crossed.length && crossed[index]) count--;
+        boolean nowBelow = value < level;
+        crossed[index] = position > 0 && nowBelow != below;
+        if(crossed[index]) count++;
+        below = nowBelow;
+        position++;
+    }
+
+    /**
+     * @return crossings between the values in the window
+     */
+    public int getCrossings() {
+        if(position == 0) return 0;
+        //the crossing of the oldest value was with a value that already left
+        int oldest = (int) (position < crossed.length ? 0 : position % crossed.length);
+        return crossed[oldest] ? count - 1 : count;
+    }
+
+    public void clear() {
+        position = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,14 @@
+package wisc.drivesense;
+
+/**
+ * Sizes and timings the tests measure, printed only when the tests run with
+ * ./gradlew test -Pbenchmark so that a normal run stays quiet. Timings depend on the machine and
+ * are never asserted.
+ */
+class Benchmark {
+    static final boolean ENABLED = Boolean.getBoolean("benchmark");
+
+    static void report(String report) {
+        if(ENABLED) System.out.println(report);
+    }
+}
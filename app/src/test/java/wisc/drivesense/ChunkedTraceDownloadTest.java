@@ -0,0 +1,127 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wisc.drivesense.httpTools.ChunkedTraceDownload;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedTraceDownloadTest {
+
+    /**
+     * Serves pages of a trip and drops the connection on every n-th request
+     */
+    private static class MockServer implements ChunkedTraceDownload.PageSource {
+        private final int points;
+        private final int dropEvery;
+        private final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger drops = new AtomicInteger();
+
+        MockServer(int points, int dropEvery) {
+            this.points = points;
+            this.dropEvery = dropEvery;
+        }
+
+        @Override
+        public List<TraceMessage> fetch(long start, int limit) throws IOException {
+            if(dropEvery > 0 && requests.incrementAndGet() % dropEvery == 0) {
+                drops.incrementAndGet();
+                throw new IOException("Connection reset");
+            }
+            List<TraceMessage> page = new ArrayList<>();
+            for (long i = start; i < Math.min(points, start + limit); i++) {
+                Trace.Trip p = new Trace.Trip();
+                p.time = i;
+                page.add(new TraceMessage(p));
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Stands in for the database, the stored count is the persisted progress
+     */
+    private static class Store implements ChunkedTraceDownload.PageSink {
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public synchronized void store(List<TraceMessage> page) {
+            for (TraceMessage tm : page) {
+                times.add(tm.value.time);
+            }
+        }
+    }
+
+    private static int downloadWithRetries(MockServer server, Store store, int parallel, ExecutorService executor) {
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            assertTrue("too many attempts", attempts < 1000);
+            //every attempt starts from the progress that was stored, as after the app is restarted
+            ChunkedTraceDownload download = new ChunkedTraceDownload(server, store, 100, executor);
+            try {
+                download.download(store.times.size(), parallel);
+                return attempts;
+            } catch (IOException e) {
+                //connection dropped, retry
+            }
+        }
+    }
+
+    private static void assertComplete(Store store, int points) {
+        assertEquals(points, store.times.size());
+        for (int i = 0; i < points; i++) {
+            assertEquals((long) i, (long) store.times.get(i));
+        }
+    }
+
+    @Test
+    public void sequentialWithoutDrops() {
+        MockServer server = new MockServer(1050, 0);
+        Store store = new Store();
+        assertEquals(1, downloadWithRetries(server, store, 1, null));
+        assertComplete(store, 1050);
+    }
+
+    @Test
+    public void exactMultipleOfPageSize() {
+        MockServer server = new MockServer(1000, 0);
+        Store store = new Store();
+        downloadWithRetries(server, store, 1, null);
+        assertComplete(store, 1000);
+    }
+
+    @Test
+    public void resumeAfterDrops() {
+        MockServer server = new MockServer(5000, 3);
+        Store store = new Store();
+        int attempts = downloadWithRetries(server, store, 1, null);
+        assertTrue(server.drops.get() > 0);
+        assertEquals(server.drops.get() + 1, attempts);
+        assertComplete(store, 5000);
+    }
+
+    @Test
+    public void parallelPagesStayInOrder() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MockServer server = new MockServer(20000, 7);
+            Store store = new Store();
+            downloadWithRetries(server, store, 4, executor);
+            assertTrue(server.drops.get() > 0);
+            assertComplete(store, 20000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.DrivingDetector;
+import wisc.drivesense.utility.Trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recordings of a day through the duty cycle of DrivingDetectionService: the sensors
+ * are only sampled for the windows the detector asks for, coarse fixes only when it needs them.
+ */
+public class DrivingDetectorTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    private enum Activity {
+        DESK,
+        WALKING,
+        DRIVING,
+        //in the car with the engine on, at a light or in a jam
+        WAITING
+    }
+
+    private static class Segment {
+        final Activity activity;
+        final long duration;
+
+        Segment(Activity activity, long duration) {
+            this.activity = activity;
+            this.duration = duration;
+        }
+    }
+
+    private static class Replay implements DrivingDetector.Listener {
+        final DrivingDetector detector = new DrivingDetector(this);
+        final Random random = new Random(17);
+        final List<Long> starts = new ArrayList<>();
+        final List<Long> stops = new ArrayList<>();
+        long cpuNanos = 0;
+        //position along the road, the car drives north
+        double meters = 0;
+
+        @Override
+        public void onDrivingStarted(long time) {
+            starts.add(time);
+        }
+
+        @Override
+        public void onDrivingStopped(long time) {
+            stops.add(time);
+        }
+
+        void run(Segment... segments) {
+            long end = 0;
+            for (Segment segment : segments) end += segment.duration;
+            long t = 0;
+            while (t < end) {
+                boolean location = detector.needsLocation();
+                long windowEnd = Math.min(end, t + DrivingDetector.WINDOW_MS);
+                long start = System.nanoTime();
+                for (long s = t; s < windowEnd; s += DrivingDetector.WINDOW_PERIOD_US / 1000) {
+                    detector.onAccel(accel(activity(s, segments), s));
+                }
+                if(location) detector.onLocation(fix(t));
+                detector.endWindow(windowEnd, windowEnd - t);
+                cpuNanos += System.nanoTime() - start;
+                long next = windowEnd + detector.getInterval();
+                for (long s = windowEnd; s < next && s < end; s += SECOND) {
+                    Activity activity = activity(s, segments);
+                    if(activity == Activity.DRIVING) meters += 15;
+                }
+                t = next;
+            }
+        }
+
+        private static Activity activity(long t, Segment... segments) {
+            long start = 0;
+            for (Segment segment : segments) {
+                if(t < start + segment.duration) return segment.activity;
+                start += segment.duration;
+            }
+            return segments[segments.length - 1].activity;
+        }
+
+        private Trace.Accel accel(Activity activity, long t) {
+            Trace.Accel accel = new Trace.Accel();
+            accel.time = t;
+            double noise;
+            double bounce = 0;
+            switch (activity) {
+                case WALKING:
+                    noise = 0.5;
+                    //two steps a second
+                    bounce = 2.5 * Math.sin(2 * Math.PI * 2 * t / 1000.0);
+                    break;
+                case DRIVING:
+                    noise = 0.3;
+                    break;
+                case WAITING:
+                    noise = 0.06;
+                    break;
+                default:
+                    noise = 0.01;
+            }
+            accel.x = (float) (random.nextGaussian() * noise);
+            accel.y = (float) (random.nextGaussian() * noise);
+            accel.z = (float) (9.8 + bounce + random.nextGaussian() * noise);
+            return accel;
+        }
+
+        /**
+         * A network location, no speed and off by a few tens of meters
+         */
+        private Trace.GPS fix(long t) {
+            Trace.GPS fix = new Trace.GPS();
+            fix.time = t;
+            fix.lat = (float) (43.07 + (meters + random.nextGaussian() * 30) / 111000);
+            fix.lng = (float) (-89.4 + random.nextGaussian() * 30 / 81000);
+            return fix;
+        }
+    }
+
+    /**
+     * An hour at the desk, a walk to the car, a drive with a stop at a light and a jam,
+     * a walk to the office and another hour at the desk
+     */
+    private static Segment[] commute() {
+        return new Segment[]{
+                new Segment(Activity.DESK, HOUR),
+                new Segment(Activity.WALKING, 3 * MINUTE),
+                new Segment(Activity.WAITING, MINUTE),
+                new Segment(Activity.DRIVING, 8 * MINUTE),
+                new Segment(Activity.WAITING, 2 * MINUTE),
+                new Segment(Activity.DRIVING, 5 * MINUTE),
+                new Segment(Activity.WAITING, 4 * MINUTE),
+                new Segment(Activity.DRIVING, 6 * MINUTE),
+                new Segment(Activity.WALKING, 3 * MINUTE),
+                new Segment(Activity.DESK, HOUR)
+        };
+    }
+
+    @Test
+    public void commuteStartsAndStopsOneTrip() {
+        Replay replay = new Replay();
+        replay.run(commute());
+        assertEquals(1, replay.starts.size());
+        assertEquals(1, replay.stops.size());
+        long drivingFrom = HOUR + 4 * MINUTE;
+        long parked = drivingFrom + 25 * MINUTE;
+        long started = replay.starts.get(0) - drivingFrom;
+        long stopped = replay.stops.get(0) - parked;
+        assertTrue("started after " + started, started >= 0 && started <= 3 * MINUTE);
+        //walking away ends it, without waiting for STOP_MS
+        assertTrue("stopped after " + stopped, stopped >= 0 && stopped <= 2 * MINUTE);
+        assertEquals(DrivingDetector.State.IDLE, replay.detector.getState());
+        Benchmark.report("Commute: started " + started / 1000 + " s into the drive, stopped " + stopped / 1000
+                + " s after parking, " + replay.detector.report());
+    }
+
+    @Test
+    public void idleHourCostsLittle() {
+        Replay replay = new Replay();
+        replay.run(new Segment(Activity.DESK, HOUR));
+        assertTrue(replay.starts.isEmpty());
+        //about one window a minute, no location
+        assertEquals(HOUR / (DrivingDetector.WINDOW_MS + DrivingDetector.IDLE_INTERVAL_MS), replay.detector.getWindows(), 1);
+        assertEquals(0, replay.detector.getFixes());
+        double duty = replay.detector.getListenedMillis() / (double) HOUR;
+        assertTrue(duty < 0.1);
+
+        Replay walking = new Replay();
+        walking.run(new Segment(Activity.WALKING, HOUR));
+        assertTrue(walking.starts.isEmpty());
+        assertEquals(0, walking.detector.getFixes());
+
+        Benchmark.report("Idle hour: " + replay.detector.report() + ", accelerometer on "
+                + String.format("%.1f", duty * 100) + "% of the time instead of always, "
+                + replay.cpuNanos / 1000 + " us of detector cpu in the JVM");
+    }
+
+    @Test
+    public void standingInTrafficDoesNotEndTheTrip() {
+        Replay replay = new Replay();
+        replay.run(new Segment(Activity.DRIVING, 10 * MINUTE),
+                new Segment(Activity.WAITING, 4 * MINUTE),
+                new Segment(Activity.DRIVING, 10 * MINUTE),
+                new Segment(Activity.WAITING, 10 * MINUTE));
+        assertEquals(1, replay.starts.size());
+        //only the last wait, longer than STOP_MS, ends it
+        assertEquals(1, replay.stops.size());
+        assertTrue(replay.stops.get(0) >= 24 * MINUTE + 5 * MINUTE);
+    }
+
+    @Test
+    public void busyPhoneWithoutMovingDoesNotStartATrip() {
+        Replay replay = new Replay();
+        //vibrates like a car, but the fixes stay put
+        replay.run(new Segment(Activity.WAITING, HOUR));
+        assertTrue(replay.starts.isEmpty());
+        //fixes are only asked for while it vibrates
+        assertTrue(replay.detector.getFixes() > 0);
+    }
+}
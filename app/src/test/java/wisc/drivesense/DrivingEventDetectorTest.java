@@ -0,0 +1,289 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.DrivingEventDetector;
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.FlightRecord;
+import wisc.drivesense.utility.RatingCalculation;
+import wisc.drivesense.utility.Trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays trips with the phone in some mount: the accelerometer and gyroscope at 50 Hz in the
+ * frame of the phone, orientations at 5 Hz a little off, GPS at 1 Hz, the way SensorService
+ * feeds the pipeline
+ */
+public class DrivingEventDetectorTest {
+    private static final long SECOND = 1000;
+    private static final long STEP = 20;
+
+    /**
+     * Acceleration along the car and yaw rate from start for duration
+     */
+    private static class Maneuver {
+        final long start, duration;
+        final double accel, yawRate;
+
+        Maneuver(long start, long duration, double accel, double yawRate) {
+            this.start = start;
+            this.duration = duration;
+            this.accel = accel;
+            this.yawRate = yawRate;
+        }
+    }
+
+    private static class Replay implements DrivingEventDetector.Listener {
+        final List<DrivingEvent> events = new ArrayList<>();
+        final DrivingEventDetector detector = new DrivingEventDetector(this);
+        final RatingCalculation rating = new RatingCalculation();
+        final List<Maneuver> maneuvers = new ArrayList<>();
+        final Random random = new Random(7);
+        final Trace.Orientation mount = new Trace.Orientation();
+        final float[] r;
+        int gpsBrakes = 0;
+        double speed;
+        //counterclockwise from east
+        double heading = 0.7;
+        double east = 0, north = 0;
+
+        Replay(double speed) {
+            this.speed = speed;
+            double w = random.nextGaussian(), x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+            double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+            mount.values(new float[]{(float) (w / norm), (float) (x / norm), (float) (y / norm), (float) (z / norm)});
+            r = mount.toMatrix();
+        }
+
+        @Override
+        public void onEvent(DrivingEvent event) {
+            events.add(event);
+        }
+
+        Replay with(long start, long duration, double accel, double yawRate) {
+            maneuvers.add(new Maneuver(start, duration, accel, yawRate));
+            return this;
+        }
+
+        void run(long duration) {
+            for (long t = STEP; t <= duration; t += STEP) {
+                double accel = 0, yawRate = 0;
+                for (Maneuver m : maneuvers) {
+                    if(t >= m.start && t < m.start + m.duration) {
+                        accel += m.accel;
+                        yawRate += m.yawRate;
+                    }
+                }
+                if(speed + accel * STEP / 1000.0 < 0) accel = -speed * 1000.0 / STEP;
+                speed += accel * STEP / 1000.0;
+                heading += yawRate * STEP / 1000.0;
+                east += speed * Math.cos(heading) * STEP / 1000.0;
+                north += speed * Math.sin(heading) * STEP / 1000.0;
+                //east, north and up, the accelerometer feels gravity as up
+                double lateral = speed * yawRate;
+                double[] world = {
+                        accel * Math.cos(heading) - lateral * Math.sin(heading),
+                        accel * Math.sin(heading) + lateral * Math.cos(heading),
+                        Constants.kEarthGravity};
+                float[] a = toPhone(world, 0.3);
+                detector.onSample(FlightRecord.ACCEL, t, a[0], a[1], a[2]);
+                float[] g = toPhone(new double[]{0, 0, yawRate}, 0.02);
+                detector.onSample(FlightRecord.GYRO, t, g[0], g[1], g[2]);
+                if(t % 200 == 0) {
+                    detector.onTrace(orientation(t));
+                }
+                if(t % SECOND == 0) {
+                    Trace.GPS gps = new Trace.GPS();
+                    gps.time = t;
+                    gps.lat = (float) (43.07 + Math.toDegrees(north / Constants.kEarthRadius));
+                    gps.lng = (float) (-89.4 + Math.toDegrees(east / Constants.kEarthRadius / Math.cos(Math.toRadians(43.07))));
+                    detector.onTrace(gps);
+                    if(rating.getRating(gps).brake < 0) gpsBrakes++;
+                }
+            }
+        }
+
+        /**
+         * The world vector in the frame of the phone, with noise
+         */
+        float[] toPhone(double[] v, double noise) {
+            float[] phone = new float[3];
+            for (int i = 0; i < 3; i++) {
+                phone[i] = (float) (r[i] * v[0] + r[3 + i] * v[1] + r[6 + i] * v[2] + random.nextGaussian() * noise);
+            }
+            return phone;
+        }
+
+        /**
+         * The mount, off by a degree or two like the rotation vector
+         */
+        Trace.Orientation orientation(long t) {
+            float[] q = mount.values();
+            double norm = 0;
+            for (int i = 0; i < 4; i++) {
+                q[i] += (float) (random.nextGaussian() * 0.01);
+                norm += q[i] * q[i];
+            }
+            for (int i = 0; i < 4; i++) q[i] /= Math.sqrt(norm);
+            Trace.Orientation orientation = new Trace.Orientation();
+            orientation.values(q);
+            orientation.time = t;
+            return orientation;
+        }
+
+        DrivingEvent only() {
+            assertEquals(events.toString(), 1, events.size());
+            return events.get(0);
+        }
+    }
+
+    private static String describe(List<DrivingEvent> events) {
+        StringBuilder builder = new StringBuilder();
+        for (DrivingEvent event : events) {
+            builder.append(event.type).append(' ').append(event.start).append('-').append(event.end)
+                    .append(" peak ").append(event.peak).append("; ");
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void calmDrivingHasNoEvents() {
+        Replay replay = new Replay(15);
+        for (long t = 10 * SECOND; t < 280 * SECOND; t += 30 * SECOND) {
+            //pulling away, easing off, lane changes and long bends
+            replay.with(t, 4 * SECOND, 1.2, 0).with(t + 6 * SECOND, 4 * SECOND, -1.2, 0)
+                    .with(t + 12 * SECOND, 2 * SECOND, 0, 0.06).with(t + 14 * SECOND, 2 * SECOND, 0, -0.06)
+                    .with(t + 18 * SECOND, 10 * SECOND, 0, 0.12);
+        }
+        replay.run(300 * SECOND);
+        assertTrue(describe(replay.events), replay.events.isEmpty());
+    }
+
+    @Test
+    public void hardBrake() {
+        Replay replay = new Replay(15).with(60 * SECOND, 2 * SECOND, -5, 0);
+        replay.run(90 * SECOND);
+        DrivingEvent event = replay.only();
+        assertEquals(DrivingEvent.Type.HARD_BRAKE, event.type);
+        assertEquals(60 * SECOND, event.start, 300);
+        assertEquals(62 * SECOND, event.end, 300);
+        assertEquals(-5, event.peak, 1);
+        assertEquals(5 / DrivingEventDetector.BRAKE_THRESHOLD, event.severity, 0.4);
+        assertTrue(event.lat > 43);
+    }
+
+    /**
+     * Half a second of hard braking, the speeds of the fixes a second apart barely change
+     */
+    @Test
+    public void shortBrakeMissedByGps() {
+        Replay replay = new Replay(15).with(60 * SECOND + 300, 600, -5, 0);
+        replay.run(90 * SECOND);
+        assertEquals(DrivingEvent.Type.HARD_BRAKE, replay.only().type);
+        assertEquals(0, replay.gpsBrakes);
+    }
+
+    @Test
+    public void hardAccelerationAfterAStop() {
+        //stopped at a light for 20 seconds, then floored
+        Replay replay = new Replay(10).with(30 * SECOND, 4 * SECOND, -2.5, 0).with(54 * SECOND, 4 * SECOND, 3.5, 0);
+        replay.run(80 * SECOND);
+        DrivingEvent event = replay.only();
+        assertEquals(DrivingEvent.Type.HARD_ACCEL, event.type);
+        assertEquals(54 * SECOND, event.start, 500);
+        assertEquals(3.5, event.peak, 0.7);
+    }
+
+    @Test
+    public void sharpTurnsBothWays() {
+        //a quarter turn at 10 m/s in 3.5 s, 4.5 m/s^2 across the car
+        Replay replay = new Replay(10).with(30 * SECOND, 3500, 0, Math.PI / 7).with(60 * SECOND, 3500, 0, -Math.PI / 7);
+        replay.run(90 * SECOND);
+        assertEquals(describe(replay.events), 2, replay.events.size());
+        DrivingEvent left = replay.events.get(0), right = replay.events.get(1);
+        assertEquals(DrivingEvent.Type.SHARP_TURN, left.type);
+        assertEquals(DrivingEvent.Type.SHARP_TURN, right.type);
+        assertTrue(left.peak > 0 && right.peak < 0);
+        assertEquals(10 * Math.PI / 7, left.peak, 0.7);
+        assertEquals(30 * SECOND, left.start, 500);
+    }
+
+    @Test
+    public void swerve() {
+        //around something in the lane at 15 m/s and back
+        Replay replay = new Replay(15).with(40 * SECOND, 700, 0, 0.35).with(40 * SECOND + 700, 700, 0, -0.35);
+        replay.run(60 * SECOND);
+        DrivingEvent event = replay.only();
+        assertEquals(DrivingEvent.Type.SWERVE, event.type);
+        assertEquals(40 * SECOND, event.start, 300);
+        assertEquals(41 * SECOND + 400, event.end, 300);
+        assertEquals(0.35, Math.abs(event.peak), 0.1);
+    }
+
+    /**
+     * The phone picked up and put down once parked, before the first fixes and after a trip
+     */
+    @Test
+    public void nothingWhileParked() {
+        handlePhone(new Replay(0), 20 * SECOND);
+        Replay replay = new Replay(10).with(20 * SECOND, 5 * SECOND, -2, 0);
+        handlePhone(replay, 200 * SECOND);
+    }
+
+    private static void handlePhone(Replay replay, long parked) {
+        replay.run(parked);
+        Random random = new Random(1);
+        for (long t = parked; t < parked + 60 * SECOND; t += STEP) {
+            replay.detector.onSample(FlightRecord.ACCEL, t, (float) random.nextGaussian() * 5, (float) random.nextGaussian() * 5, 9.8f);
+            replay.detector.onSample(FlightRecord.GYRO, t, (float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian());
+        }
+        assertTrue(describe(replay.events), replay.events.isEmpty());
+    }
+
+    /**
+     * HotSpot counts the bytes a thread allocates
+     */
+    @Test
+    public void samplesAreCheapAndDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        //an hour of driving, without the events
+        Replay replay = new Replay(15);
+        replay.run(5 * SECOND);
+        int samples = 2 * 180000;
+        float[] values = new float[samples * 3];
+        Random random = new Random(2);
+        for (int i = 0; i < values.length; i++) values[i] = (float) (random.nextGaussian() * 0.3);
+        Trace.GPS fix = new Trace.GPS();
+        long nanos = 0, allocated = 0, time = 5 * SECOND;
+        for (int round = 0; round < 3; round++) {
+            //the last round is measured, the others warm up
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                if(i % 2 == 0) time += STEP;
+                replay.detector.onSample(i % 2, time, values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+            }
+            nanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+            //keeps the heading
+            fix.time = time;
+            fix.lat = 43.07f + round * 0.001f;
+            fix.lng = -89.4f;
+            replay.detector.onTrace(fix);
+        }
+        String report = samples + " samples in " + nanos / 1000000 + " ms, " + nanos / samples + " ns per sample, "
+                + allocated + " bytes allocated";
+        Benchmark.report(report);
+        assertTrue(report, replay.events.isEmpty());
+        assertTrue(report, allocated < 1024);
+    }
+}
@@ -0,0 +1,205 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.database.DrivingEventIndex;
+import wisc.drivesense.utility.DrivingEvent;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The rules DatabaseHelper.insertDrivingEvent stores events of a trip by, run over the events
+ * of a trip in memory
+ */
+public class DrivingEventIndexTest {
+    private static final long SECOND = 1000;
+
+    /**
+     * The rows of one trip in the drivingevent table, by id
+     */
+    private static class TripEvents implements DrivingEventIndex.Events {
+        final List<DrivingEvent> rows = new ArrayList<>();
+        int updates = 0;
+        private int found = -1;
+
+        private static DrivingEvent copy(DrivingEvent event) {
+            DrivingEvent row = new DrivingEvent(event.type, event.start, event.end, event.peak, event.severity);
+            row.lat = event.lat;
+            row.lng = event.lng;
+            row.source = event.source;
+            return row;
+        }
+
+        @Override
+        public DrivingEvent firstOverlapping(DrivingEvent event) {
+            for (found = 0; found < rows.size(); found++) {
+                DrivingEvent row = rows.get(found);
+                if(row.type == event.type && row.start <= event.overlapUntil() && row.end >= event.overlapFrom()) {
+                    return copy(row);
+                }
+            }
+            found = -1;
+            return null;
+        }
+
+        @Override
+        public void insert(DrivingEvent event) {
+            rows.add(copy(event));
+        }
+
+        @Override
+        public void update(DrivingEvent existing) {
+            rows.set(found, copy(existing));
+            updates++;
+        }
+
+        DrivingEvent get(int i) {
+            return rows.get(i);
+        }
+
+        int size() {
+            return rows.size();
+        }
+    }
+
+    private static boolean index(TripEvents trip, DrivingEvent event) {
+        return DrivingEventIndex.index(trip, event);
+    }
+
+    private static Trace.Trip braking(long time, float brake) {
+        Trace.Trip point = new Trace.Trip();
+        point.time = time;
+        point.brake = brake;
+        point.lat = 43.07f;
+        point.lng = -89.4f;
+        return point;
+    }
+
+    @Test
+    public void gpsBrakingOfConsecutiveFixesIsOneEvent() {
+        TripEvents trip = new TripEvents();
+        index(trip, DrivingEvent.fromBraking(braking(60 * SECOND, -2.8f)));
+        index(trip, DrivingEvent.fromBraking(braking(61 * SECOND, -4.0f)));
+        index(trip, DrivingEvent.fromBraking(braking(62 * SECOND, -3.0f)));
+        index(trip, DrivingEvent.fromBraking(braking(90 * SECOND, -3.0f)));
+        assertEquals(2, trip.size());
+        DrivingEvent event = trip.get(0);
+        assertEquals(DrivingEvent.GPS, event.source);
+        assertEquals(60 * SECOND, event.start);
+        assertEquals(62 * SECOND, event.end);
+        assertEquals(-4.0, event.peak, 0);
+        assertEquals(4.0 / 2.5, event.severity, 1e-6);
+    }
+
+    @Test
+    public void sensorsReplaceGpsAndGpsAddsNothingToSensors() {
+        TripEvents trip = new TripEvents();
+        //GPS sees the braking a second into it, the detector reports it once it is over
+        index(trip, DrivingEvent.fromBraking(braking(61 * SECOND, -3.5f)));
+        DrivingEvent sensed = new DrivingEvent(DrivingEvent.Type.HARD_BRAKE, 60 * SECOND, 62 * SECOND, -5, 5 / 3f);
+        index(trip, sensed);
+        index(trip, DrivingEvent.fromBraking(braking(63 * SECOND, -2.6f)));
+        assertEquals(1, trip.size());
+        DrivingEvent event = trip.get(0);
+        assertEquals(DrivingEvent.SENSORS, event.source);
+        assertEquals(60 * SECOND, event.start);
+        assertEquals(62 * SECOND, event.end);
+        assertEquals(-5, event.peak, 0);
+
+        //downloading the trip again indexes its braking again, nothing changes
+        int updates = trip.updates;
+        assertFalse(index(trip, DrivingEvent.fromBraking(braking(61 * SECOND, -3.5f))));
+        assertEquals(updates, trip.updates);
+        assertEquals(1, trip.size());
+    }
+
+    @Test
+    public void eventsOverlapUpToTheWindow() {
+        TripEvents trip = new TripEvents();
+        index(trip, DrivingEvent.fromBraking(braking(60 * SECOND, -3f)));
+        index(trip, DrivingEvent.fromBraking(braking(60 * SECOND + DrivingEvent.OVERLAP_MS, -3f)));
+        assertEquals(1, trip.size());
+        index(trip, DrivingEvent.fromBraking(braking(60 * SECOND + 2 * DrivingEvent.OVERLAP_MS + 1, -3f)));
+        assertEquals(2, trip.size());
+        //overlaps both, merged into the first
+        index(trip, new DrivingEvent(DrivingEvent.Type.HARD_BRAKE, 61 * SECOND, 62 * SECOND, -2.9f, 2.9f / 3));
+        assertEquals(2, trip.size());
+        assertEquals(62 * SECOND, trip.get(0).end);
+        assertEquals(DrivingEvent.SENSORS, trip.get(0).source);
+        assertEquals(DrivingEvent.GPS, trip.get(1).source);
+    }
+
+    @Test
+    public void otherTypesAndLaterEventsAreSeparate() {
+        TripEvents trip = new TripEvents();
+        index(trip, new DrivingEvent(DrivingEvent.Type.HARD_BRAKE, 60 * SECOND, 62 * SECOND, -5, 5 / 3f));
+        index(trip, new DrivingEvent(DrivingEvent.Type.SHARP_TURN, 61 * SECOND, 64 * SECOND, 4, 4 / 3.5f));
+        index(trip, new DrivingEvent(DrivingEvent.Type.HARD_BRAKE, 64 * SECOND, 65 * SECOND, -4, 4 / 3f));
+        assertEquals(3, trip.size());
+    }
+
+    /**
+     * The hard brakes of a month counted from the indexed events of every trip match the braking
+     * found by parsing the GPS rows. How long the query takes on the table was not measured here.
+     */
+    @Test
+    public void monthOfHardBrakesMatchesTheGpsRows() {
+        Random random = new Random(11);
+        int trips = 200;
+        int fixes = 600;
+        List<List<String>> rows = new ArrayList<>();
+        List<DrivingEvent> indexed = new ArrayList<>();
+        long time = 1500000000000L;
+        for (int i = 0; i < trips; i++) {
+            List<String> trip = new ArrayList<>(fixes);
+            TripEvents events = new TripEvents();
+            for (int j = 0; j < fixes; j++) {
+                Trace.Trip point = braking(time, random.nextInt(150) == 0 ? -3 - random.nextFloat() : 0);
+                point.speed = 15;
+                point.score = 9.5f;
+                trip.add(GsonSingleton.toJson(new TraceMessage(point)));
+                if(point.brake < 0) index(events, DrivingEvent.fromBraking(point));
+                time += SECOND;
+            }
+            indexed.addAll(events.rows);
+            rows.add(trip);
+            //a trip or two a day
+            time += 12 * 3600 * SECOND;
+        }
+        long from = 1500000000000L + 30L * 24 * 3600 * SECOND;
+        long until = from + 30L * 24 * 3600 * SECOND;
+
+        int scanned = 0;
+        DrivingEvent last = null;
+        for (List<String> trip : rows) {
+            for (String row : trip) {
+                Trace.Trip point = (Trace.Trip) GsonSingleton.fromJson(row, TraceMessage.class).value;
+                if(point.time < from || point.time >= until || point.brake >= 0) continue;
+                DrivingEvent event = DrivingEvent.fromBraking(point);
+                if(last != null && last.overlaps(event)) {
+                    last.merge(event);
+                } else {
+                    last = event;
+                    scanned++;
+                }
+            }
+        }
+
+        //what eventRange asks the table for
+        int inMonth = 0;
+        for (DrivingEvent event : indexed) {
+            if(event.start >= from && event.start < until) inMonth++;
+        }
+        assertEquals(scanned, inMonth);
+        assertTrue(inMonth > 0);
+    }
+}
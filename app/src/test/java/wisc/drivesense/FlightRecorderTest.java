@@ -0,0 +1,183 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.FlightRecorder;
+import wisc.drivesense.utility.FlightRecord;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.RatingCalculation;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays trips with the accelerometer and gyroscope at 50 Hz and GPS at 1 Hz, the way
+ * SensorService and TripService feed the recorder on the pipeline thread
+ */
+public class FlightRecorderTest {
+    private static final long SECOND = 1000;
+    private static final double RATE = 50;
+
+    private static class Replay implements FlightRecorder.Listener {
+        final List<FlightRecord> records = new ArrayList<>();
+        final FlightRecorder recorder = new FlightRecorder(this);
+        final RatingCalculation rating = new RatingCalculation();
+        final Random random = new Random(3);
+        //the car drives north
+        double meters = 0;
+        double speed = 15;
+        //hard brake from 15 m/s to 3 m/s, pothole
+        long brakeFrom = -1;
+        long potholeAt = -1;
+
+        @Override
+        public void onRecord(FlightRecord record) {
+            records.add(record);
+        }
+
+        void run(long duration) {
+            long step = (long) (SECOND / RATE);
+            for (long t = 0; t < duration; t += step) {
+                double decel = brakeFrom >= 0 && t >= brakeFrom && speed > 3 ? 4.0 : 0;
+                speed -= decel * step / 1000.0;
+                meters += speed * step / 1000.0;
+                float bump = potholeAt >= 0 && t >= potholeAt && t < potholeAt + 60 ? 12 : 0;
+                recorder.record(FlightRecord.ACCEL, t, (float) (random.nextGaussian() * 0.3),
+                        (float) (-decel + random.nextGaussian() * 0.3), (float) (9.8 + bump + random.nextGaussian() * 0.3));
+                recorder.record(FlightRecord.GYRO, t, (float) (random.nextGaussian() * 0.01), 0, 0);
+                if(t % (5 * step) == 0) {
+                    recorder.record(FlightRecord.MAGNETOMETER, t, 20, -5, -40);
+                }
+                if(t % SECOND == 0) {
+                    Trace.GPS gps = new Trace.GPS();
+                    gps.time = t;
+                    gps.lat = (float) (43.07 + meters / 111000);
+                    gps.lng = -89.4f;
+                    Trace.Trip tt = rating.getRating(gps);
+                    if(tt.brake < 0) recorder.fire(FlightRecorder.BRAKING, tt.time);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hardBrakeIsRecordedAtFullRate() {
+        Replay replay = new Replay();
+        replay.brakeFrom = 60 * SECOND;
+        replay.run(120 * SECOND);
+        assertEquals(1, replay.records.size());
+        FlightRecord record = replay.records.get(0);
+        assertEquals(FlightRecorder.BRAKING, record.reason);
+        //GPS sees the braking a second or two after it started, and keeps seeing it
+        assertTrue(record.time >= replay.brakeFrom && record.time <= replay.brakeFrom + 3 * SECOND);
+        assertTrue(record.triggers > 1);
+        assertEquals(record.time - FlightRecorder.PRE_MS, record.getStartTime());
+        assertEquals(record.time + FlightRecorder.POST_MS, record.getEndTime(), 20);
+        int accel = 0;
+        for (int i = 0; i < record.size(); i++) {
+            if(i > 0) assertTrue(record.times[i] >= record.times[i - 1]);
+            if(record.sensors[i] == FlightRecord.ACCEL) accel++;
+        }
+        //every accelerometer sample of the 15 seconds, not the 10 Hz the trip stores
+        assertEquals((FlightRecorder.PRE_MS + FlightRecorder.POST_MS) * RATE / SECOND, accel, 2);
+    }
+
+    @Test
+    public void spikeTriggerIsPluggable() {
+        Replay replay = new Replay();
+        replay.recorder.addTrigger(new FlightRecorder.AccelSpike(8.0));
+        replay.potholeAt = 30 * SECOND;
+        replay.run(60 * SECOND);
+        assertEquals(1, replay.records.size());
+        assertEquals(FlightRecorder.AccelSpike.REASON, replay.records.get(0).reason);
+        assertEquals(replay.potholeAt, replay.records.get(0).time);
+    }
+
+    @Test
+    public void tripEndingAfterTheTriggerKeepsTheRecord() {
+        Replay replay = new Replay();
+        replay.recorder.addTrigger(new FlightRecorder.AccelSpike(8.0));
+        replay.potholeAt = 58 * SECOND;
+        replay.run(60 * SECOND);
+        assertTrue(replay.records.isEmpty());
+        replay.recorder.flush();
+        assertEquals(1, replay.records.size());
+        FlightRecord record = replay.records.get(0);
+        assertEquals(replay.potholeAt, record.time);
+        assertEquals(replay.potholeAt - FlightRecorder.PRE_MS, record.getStartTime());
+        assertTrue(record.getEndTime() < 60 * SECOND);
+        //nothing is left to take
+        replay.recorder.flush();
+        assertEquals(1, replay.records.size());
+    }
+
+    @Test
+    public void calmDriveRecordsNothing() {
+        Replay replay = new Replay();
+        replay.recorder.addTrigger(new FlightRecorder.AccelSpike(8.0));
+        replay.run(300 * SECOND);
+        assertTrue(replay.records.isEmpty());
+        assertEquals(FlightRecorder.CAPACITY, replay.recorder.size());
+    }
+
+    @Test
+    public void encodedRecordDecodes() {
+        Replay replay = new Replay();
+        replay.brakeFrom = 20 * SECOND;
+        replay.run(40 * SECOND);
+        FlightRecord record = replay.records.get(0);
+        byte[] blob = record.encode();
+        FlightRecord back = FlightRecord.decode(record.reason, record.time, blob);
+        assertTrue(Arrays.equals(record.times, back.times));
+        assertTrue(Arrays.equals(record.sensors, back.sensors));
+        assertTrue(Arrays.equals(record.values, back.values));
+        //the same samples as JSON trace rows
+        long json = 0;
+        for (int i = 0; i < record.size(); i++) {
+            Trace.Vector3 trace = record.sensors[i] == FlightRecord.ACCEL ? new Trace.Accel()
+                    : record.sensors[i] == FlightRecord.GYRO ? new Trace.Gyro() : new Trace.Magnetometer();
+            trace.time = record.times[i];
+            trace.values(Arrays.copyOfRange(record.values, i * 3, i * 3 + 3));
+            json += GsonSingleton.toJson(new TraceMessage(trace)).length();
+        }
+        Benchmark.report("Flight record of a hard brake: " + record.size() + " samples, " + blob.length
+                + " bytes, " + json + " bytes as trace rows");
+    }
+
+    /**
+     * HotSpot counts the bytes a thread allocates
+     */
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        FlightRecorder recorder = new FlightRecorder(new FlightRecorder.Listener() {
+            @Override
+            public void onRecord(FlightRecord record) {
+            }
+        });
+        recorder.addTrigger(new FlightRecorder.AccelSpike(8.0));
+        //warm up, so the JIT is not counted
+        for (int i = 0; i < 200000; i++) {
+            recorder.record(i % 2, i, 0.1f, 0.2f, 9.8f);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        int samples = 1000000;
+        for (int i = 0; i < samples; i++) {
+            recorder.record(i % 2, 200000 + i, 0.1f, 0.2f, 9.8f);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        Benchmark.report(samples + " samples recorded in " + nanos / 1000000 + " ms, " + allocated + " bytes allocated");
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+}
@@ -0,0 +1,252 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import wisc.drivesense.triprecorder.IngestQueue;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the traces of a drive into the queue of the storage worker while a stand-in for the
+ * database stalls
+ */
+public class IngestQueueTest {
+    private static final String GPS = GsonSingleton.typeNameLookup.get(Trace.Trip.class);
+    private static final String ACCEL = GsonSingleton.typeNameLookup.get(Trace.Accel.class);
+    private static final String GYRO = GsonSingleton.typeNameLookup.get(Trace.Gyro.class);
+    private static final String MAGNETOMETER = GsonSingleton.typeNameLookup.get(Trace.Magnetometer.class);
+    private static final String ROTATION = GsonSingleton.typeNameLookup.get(Trace.Rotation.class);
+
+    /**
+     * One second of what TripService stores: a GPS point and ten samples of every other sensor
+     */
+    private static List<TraceMessage> second(int s) {
+        List<TraceMessage> traces = new ArrayList<>();
+        long time = 1500000000000L + 1000L * s;
+        Trace.Trip gps = new Trace.Trip();
+        gps.time = time;
+        traces.add(new TraceMessage(gps));
+        for (int i = 0; i < 10; i++) {
+            Trace.Accel accel = new Trace.Accel();
+            accel.time = time + 100 * i;
+            traces.add(new TraceMessage(accel));
+            Trace.Gyro gyro = new Trace.Gyro();
+            gyro.time = accel.time;
+            traces.add(new TraceMessage(gyro));
+            Trace.Magnetometer magnetometer = new Trace.Magnetometer();
+            magnetometer.time = accel.time;
+            traces.add(new TraceMessage(magnetometer));
+            Trace.Rotation rotation = new Trace.Rotation();
+            rotation.time = accel.time;
+            traces.add(new TraceMessage(rotation));
+        }
+        return traces;
+    }
+
+    private static int count(Map<String, Integer> counts, String type) {
+        Integer count = counts.get(type);
+        return count == null ? 0 : count;
+    }
+
+    @Test
+    public void shedsRotationFirstThenDecimatesAndKeepsEveryGPSPoint() throws Exception {
+        IngestQueue queue = new IngestQueue(400);
+        //nothing is drained, like a database that stopped
+        int gps = 0;
+        boolean rotationShed = false;
+        for (int s = 0; s < 60; s++) {
+            for (TraceMessage tm : second(s)) {
+                boolean queued = queue.offer(tm);
+                if(tm.type.equals(GPS)) {
+                    assertTrue(queued);
+                    gps++;
+                } else if(tm.type.equals(ROTATION)) {
+                    rotationShed |= !queued;
+                } else if(!queued) {
+                    //the other sensors only go once rotation does
+                    assertTrue(rotationShed);
+                    assertTrue(queue.size() >= 300);
+                }
+                assertTrue(queue.size() <= 400 + gps);
+            }
+        }
+        List<TraceMessage> left = new ArrayList<>();
+        queue.drainTo(left, 0);
+        Map<String, Integer> kept = new HashMap<>();
+        for (TraceMessage tm : left) {
+            kept.put(tm.type, count(kept, tm.type) + 1);
+        }
+        Map<String, Integer> shed = queue.getShed();
+        assertEquals(60, count(kept, GPS));
+        assertEquals(0, count(shed, GPS));
+        for (String type : new String[]{ACCEL, GYRO, MAGNETOMETER, ROTATION}) {
+            assertEquals(600, count(kept, type) + count(shed, type));
+        }
+        //rotation stopped at half full, the sensors went on until full
+        assertEquals(200 * 10 / 41.0, count(kept, ROTATION), 2);
+        assertTrue(count(kept, ACCEL) > count(kept, ROTATION));
+        //GPS points went past the capacity once it was full
+        assertTrue(left.size() > 400 && left.size() <= 400 + 60);
+    }
+
+    @Test
+    public void shedCountsAreReportedOnceAndRestored() throws Exception {
+        IngestQueue queue = new IngestQueue(1);
+        assertNull(queue.takeShedUpdate());
+        Map<String, Integer> before = new HashMap<>();
+        before.put(ACCEL, 5);
+        queue.restoreShed(before);
+        assertTrue(queue.offer(second(0).get(1)));
+        assertFalse(queue.offer(second(0).get(5)));
+        Map<String, Integer> update = queue.takeShedUpdate();
+        assertEquals(6, count(update, ACCEL));
+        assertNull(queue.takeShedUpdate());
+    }
+
+    /**
+     * A fix and its checkpoint queued while the worker drains: the checkpoint it saves never
+     * covers a point it did not store in the same pass or before
+     */
+    @Test
+    public void checkpointNeverAheadOfTheStoredTraces() throws Exception {
+        final AtomicReference<String> checkpoint = new AtomicReference<>();
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        IngestQueue queue = new IngestQueue(100) {
+            @Override
+            public synchronized int drainTo(List<TraceMessage> list, long timeout) throws InterruptedException {
+                int n = super.drainTo(list, timeout);
+                if(producing.getAndSet(false)) {
+                    //the pipeline thread queues the next fix and its checkpoint right after the drain
+                    offer(second(1).get(0));
+                    checkpoint.set("1");
+                }
+                return n;
+            }
+        };
+        queue.offer(second(0).get(0));
+        checkpoint.set("0");
+
+        List<TraceMessage> stored = new ArrayList<>();
+        List<TraceMessage> pass = new ArrayList<>();
+        String saved = queue.drainTo(pass, 0, checkpoint);
+        stored.addAll(pass);
+        //the checkpoint of a second covers its fix
+        assertEquals("0", saved);
+        assertEquals(1, stored.size());
+
+        pass.clear();
+        saved = queue.drainTo(pass, 0, checkpoint);
+        stored.addAll(pass);
+        assertEquals("1", saved);
+        assertEquals(2, stored.size());
+        assertNull(queue.drainTo(pass, 0, checkpoint));
+    }
+
+    /**
+     * A ten minute drive, the database stalls for more than three minutes in the middle.
+     * The producer runs about a thousand times faster than real time.
+     */
+    @Test
+    public void staysBoundedWhileStorageStalls() throws Exception {
+        final int seconds = 600;
+        final int stallFrom = 200;
+        final int stallUntil = 400;
+        final int capacity = 4096;
+        final IngestQueue queue = new IngestQueue(capacity);
+        final CountDownLatch stallOver = new CountDownLatch(1);
+        final AtomicReference<Map<String, Integer>> shedBeforeStall = new AtomicReference<>();
+        final List<TraceMessage> stored = new ArrayList<>();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger unboundedPeak = new AtomicInteger();
+        final int[] produced = new int[1];
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Thread storage = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean stalled = false;
+                    while (true) {
+                        boolean last = done.get();
+                        List<TraceMessage> batch = new ArrayList<>();
+                        queue.drainTo(batch, 10);
+                        if(last && batch.isEmpty()) return;
+                        for (TraceMessage tm : batch) {
+                            if(!stalled && tm.type.equals(GPS) && tm.value.time >= 1500000000000L + 1000L * stallFrom) {
+                                //a long checkpoint or a download transaction holding the database
+                                stalled = true;
+                                shedBeforeStall.set(queue.getShed());
+                                assertTrue(stallOver.await(60, TimeUnit.SECONDS));
+                            }
+                            stored.add(tm);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        storage.start();
+
+        //an unbounded queue would hold everything produced while the database is stalled
+        int waitingSinceStall = 0;
+        for (int s = 0; s < seconds; s++) {
+            for (TraceMessage tm : second(s)) {
+                queue.offer(tm);
+                produced[0]++;
+                peak.set(Math.max(peak.get(), queue.size()));
+                if(s >= stallFrom && s < stallUntil) {
+                    waitingSinceStall++;
+                    unboundedPeak.set(Math.max(unboundedPeak.get(), waitingSinceStall));
+                }
+            }
+            if(s == stallUntil) stallOver.countDown();
+            Thread.sleep(1);
+        }
+        done.set(true);
+        storage.join(60 * 1000);
+        assertFalse(storage.isAlive());
+
+        Map<String, Integer> kept = new HashMap<>();
+        long lastGPS = 0;
+        for (TraceMessage tm : stored) {
+            kept.put(tm.type, count(kept, tm.type) + 1);
+            if(tm.type.equals(GPS)) {
+                assertTrue(tm.value.time > lastGPS);
+                lastGPS = tm.value.time;
+            }
+        }
+        Map<String, Integer> shed = queue.getShed();
+        assertEquals(seconds, count(kept, GPS));
+        assertEquals(0, count(shed, GPS));
+        assertTrue(shedBeforeStall.get().isEmpty());
+        int shedTotal = 0;
+        for (String type : new String[]{ACCEL, GYRO, MAGNETOMETER, ROTATION}) {
+            assertEquals(seconds * 10, count(kept, type) + count(shed, type));
+            shedTotal += count(shed, type);
+        }
+        assertTrue(count(shed, ROTATION) > count(shed, ACCEL));
+        assertTrue(peak.get() <= capacity + (stallUntil - stallFrom) + 2);
+        String report = produced[0] + " traces, database stalled for " + (stallUntil - stallFrom) + " s: "
+                + unboundedPeak.get() + " traces queued at most without a bound, " + peak.get() + " with, "
+                + shedTotal + " shed " + shed;
+        Benchmark.report(report);
+        assertTrue(report, unboundedPeak.get() > peak.get());
+    }
+}
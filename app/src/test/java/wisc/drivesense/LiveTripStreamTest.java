@@ -0,0 +1,213 @@
+package wisc.drivesense;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wisc.drivesense.httpTools.LiveTripStream;
+import wisc.drivesense.httpTools.SyncQueue;
+import wisc.drivesense.utility.Clock;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams points to a local server that acknowledges every line it receives
+ */
+public class LiveTripStreamTest {
+
+    private HttpServer server;
+    //the server drops the connection after this many points
+    private volatile int dropAfter = Integer.MAX_VALUE;
+    private final AtomicInteger received = new AtomicInteger();
+    //seqs of the lines the server stored
+    private final List<Long> seqs = Collections.synchronizedList(new ArrayList<Long>());
+
+    private final List<TraceMessage> acknowledged = Collections.synchronizedList(new ArrayList<TraceMessage>());
+    private final List<TraceMessage> fallback = Collections.synchronizedList(new ArrayList<TraceMessage>());
+    private final LiveTripStream.Listener listener = new LiveTripStream.Listener() {
+        @Override
+        public void onAcknowledged(List<TraceMessage> traces) {
+            acknowledged.addAll(traces);
+        }
+
+        @Override
+        public void onFallback(List<TraceMessage> traces) {
+            fallback.addAll(traces);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        //acknowledgements are tiny, a real server sends them without waiting either
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/liveTrip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if(received.incrementAndGet() > dropAfter) {
+                        //like a lost connection, nothing more is acknowledged
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                server.stop(0);
+                            }
+                        }).start();
+                        return;
+                    }
+                    String seq = line.substring(line.indexOf("\"seq\":") + 6, line.indexOf(','));
+                    seqs.add(Long.parseLong(seq));
+                    out.write((seq + "\n").getBytes("US-ASCII"));
+                    out.flush();
+                }
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/liveTrip";
+    }
+
+    private static TraceMessage point(int i) {
+        Trace.Trip p = new Trace.Trip();
+        p.time = 1500000000000L + 1000L * i;
+        p.lat = 43.07f + i * 1e-4f;
+        p.lng = -89.4f;
+        p.speed = 12.5f;
+        TraceMessage tm = new TraceMessage(p);
+        //stored after other rows of the device
+        tm.rowid = 5000 + i;
+        return tm;
+    }
+
+    private void waitFor(int count, List<TraceMessage> list) throws InterruptedException {
+        for (int i = 0; i < 500 && list.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void pointsAreAcknowledgedAsTheyArrive() throws Exception {
+        LiveTripStream stream = new LiveTripStream(url(), null, "trip", listener, Clock.SYSTEM);
+        stream.start();
+        //the first point also pays for the connection
+        assertTrue(stream.offer(point(0), 0));
+        waitFor(1, acknowledged);
+        SyncQueue.Stats first = stream.getLatency();
+        int points = 100;
+        for (int i = 1; i <= points; i++) {
+            assertTrue(stream.offer(point(i), i));
+            //GPS arrives at 1 Hz, sped up
+            Thread.sleep(5);
+        }
+        waitFor(points + 1, acknowledged);
+        assertTrue(stream.isConnected());
+        stream.stop();
+        assertEquals(points + 1, acknowledged.size());
+        assertEquals(0, fallback.size());
+        assertEquals(points + 1, received.get());
+        SyncQueue.Stats all = stream.getLatency();
+        long mean = (all.totalLatency - first.totalLatency) / points;
+        String report = "first point " + first.totalLatency + " ms with the connection, then " + points
+                + " points with " + mean + " ms mean latency, " + all.maxLatency + " ms max";
+        Benchmark.report(report);
+        //a batch upload holds a point for up to the 1 s send interval before the request even starts
+        assertTrue(report, mean < 50);
+    }
+
+    @Test
+    public void droppedStreamFallsBack() throws Exception {
+        dropAfter = 10;
+        LiveTripStream stream = new LiveTripStream(url(), null, "trip", listener, Clock.SYSTEM);
+        stream.start();
+        int offered = 0;
+        for (int i = 0; i < 20; i++) {
+            if(stream.offer(point(i), i)) offered++;
+            Thread.sleep(10);
+        }
+        waitFor(offered - 10, fallback);
+        //refused points went to the batch upload right away
+        assertTrue(offered < 20);
+        assertFalse(stream.offer(point(20), 20));
+        stream.stop();
+        assertEquals(10, acknowledged.size());
+        assertEquals(offered, acknowledged.size() + fallback.size());
+        //in order, right after the acknowledged ones
+        for (int i = 0; i < fallback.size(); i++) {
+            assertEquals(point(acknowledged.size() + i).value.time, fallback.get(i).value.time);
+        }
+    }
+
+    @Test
+    public void serverDownFallsBack() throws Exception {
+        String url = url();
+        server.stop(0);
+        LiveTripStream stream = new LiveTripStream(url, null, "trip", listener, Clock.SYSTEM);
+        stream.start();
+        assertTrue(stream.offer(point(0), 0));
+        waitFor(1, fallback);
+        assertEquals(1, fallback.size());
+        assertFalse(stream.offer(point(1), 1));
+        stream.stop();
+        assertEquals(0, acknowledged.size());
+    }
+
+    /**
+     * A trip resumed after the service was killed streams with a new LiveTripStream,
+     * its points must not reuse the seqs the server already stored
+     */
+    @Test
+    public void resumedTripKeepsCountingSeqs() throws Exception {
+        LiveTripStream stream = new LiveTripStream(url(), null, "trip", listener, Clock.SYSTEM);
+        stream.start();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(stream.offer(point(i), i));
+        }
+        waitFor(5, acknowledged);
+        stream.stop();
+
+        stream = new LiveTripStream(url(), null, "trip", listener, Clock.SYSTEM);
+        stream.start();
+        for (int i = 5; i < 10; i++) {
+            assertTrue(stream.offer(point(i), i));
+        }
+        waitFor(10, acknowledged);
+        stream.stop();
+        assertEquals(10, acknowledged.size());
+        assertEquals(10, seqs.size());
+        for (int i = 0; i < seqs.size(); i++) {
+            assertEquals(point(i).rowid, (long) seqs.get(i));
+        }
+    }
+}
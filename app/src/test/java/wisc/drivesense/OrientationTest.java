@@ -0,0 +1,121 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.RealTimeTiltCalculation;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrientationTest {
+
+    /**
+     * Random orientations, as rotation matrices like SensorManager.getRotationMatrix gives
+     */
+    private static List<float[]> matrices(int n) {
+        Random random = new Random(5);
+        List<float[]> matrices = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Trace.Orientation q = new Trace.Orientation();
+            double w = random.nextGaussian(), x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+            double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+            q.values(new float[]{(float) (w / norm), (float) (x / norm), (float) (y / norm), (float) (z / norm)});
+            matrices.add(q.toMatrix());
+        }
+        return matrices;
+    }
+
+    @Test
+    public void matrixRoundTrips() {
+        for (float[] m : matrices(10000)) {
+            Trace.Orientation q = Trace.Orientation.fromMatrix(m);
+            assertTrue(q.w >= 0);
+            assertEquals(1, q.w * q.w + q.x * q.x + q.y * q.y + q.z * q.z, 1e-5);
+            float[] back = q.toMatrix();
+            for (int i = 0; i < 9; i++) {
+                assertEquals(m[i], back[i], 1e-5);
+            }
+        }
+        //no rotation, and half a turn around z where the trace of the matrix is negative
+        float[] identity = Trace.Orientation.fromMatrix(new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1}).values();
+        assertEquals(1, identity[0], 0);
+        float[] halfTurn = Trace.Orientation.fromMatrix(new float[]{-1, 0, 0, 0, -1, 0, 0, 0, 1}).values();
+        assertEquals(0, halfTurn[0], 1e-6);
+        assertEquals(1, halfTurn[3], 1e-6);
+    }
+
+    @Test
+    public void serializesBothTypes() {
+        Trace.Orientation q = Trace.Orientation.fromMatrix(matrices(1).get(0));
+        q.time = 1500000000000L;
+        TraceMessage m = new TraceMessage(q);
+        assertEquals("Orientation", m.type);
+        TraceMessage back = GsonSingleton.fromJson(GsonSingleton.toJson(m), TraceMessage.class);
+        assertTrue(back.value instanceof Trace.Orientation);
+        assertEquals(q.z, ((Trace.Orientation) back.value).z, 0);
+
+        //the tilt only follows the accelerometer, old rows and quaternions leave it alone
+        Trace.Rotation rotation = new Trace.Rotation();
+        rotation.values(matrices(1).get(0));
+        RealTimeTiltCalculation tilt = new RealTimeTiltCalculation();
+        tilt.processTrace(rotation);
+        tilt.processTrace(q);
+        assertEquals(0, tilt.getTilt(), 0);
+    }
+
+    /**
+     * What storage and upload pay per orientation sample: the JSON of the trace message
+     */
+    @Test
+    public void quaternionsAreSmallerAndCheaperToStore() {
+        List<float[]> matrices = matrices(20000);
+        List<TraceMessage> rotations = new ArrayList<>();
+        List<TraceMessage> orientations = new ArrayList<>();
+        long time = 1500000000000L;
+        for (float[] m : matrices) {
+            Trace.Rotation rotation = new Trace.Rotation();
+            rotation.time = time;
+            rotation.values(m);
+            rotations.add(new TraceMessage(rotation));
+            Trace.Orientation orientation = Trace.Orientation.fromMatrix(m);
+            orientation.time = time;
+            orientations.add(new TraceMessage(orientation));
+            time += 100;
+        }
+        //warm up
+        serialize(rotations);
+        serialize(orientations);
+
+        long start = System.nanoTime();
+        long rotationBytes = serialize(rotations);
+        long rotationNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long orientationBytes = serialize(orientations);
+        long orientationNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (float[] m : matrices) Trace.Orientation.fromMatrix(m);
+        long convertNanos = System.nanoTime() - start;
+
+        int n = matrices.size();
+        String report = "Per sample: rotation matrix " + rotationBytes / n + " bytes, " + rotationNanos / n
+                + " ns to serialize; quaternion " + orientationBytes / n + " bytes, " + orientationNanos / n
+                + " ns to serialize, " + convertNanos / n + " ns to convert from a matrix";
+        Benchmark.report(report);
+        assertTrue(report, orientationBytes * 4 < rotationBytes * 3);
+    }
+
+    private static long serialize(List<TraceMessage> messages) {
+        long bytes = 0;
+        for (TraceMessage m : messages) {
+            bytes += GsonSingleton.toJson(m).length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.PowerGovernor;
+import wisc.drivesense.utility.Trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a trip with a stop in the middle. The sensors only deliver what the governor has left
+ * on, and the trip is paused by the rule of TripService: no speed for PAUSE_MS.
+ */
+public class PowerGovernorTest {
+    private static final long PAUSE_MS = 120 * 1000;
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+
+    private static class Replay implements PowerGovernor.Listener {
+        //the phone has a significant motion sensor, and whether it fires
+        boolean significantMotion = true;
+        boolean significantMotionFires = true;
+        //the phone is handled while the car is parked
+        long bumpFrom = -1;
+        long bumpUntil = -1;
+
+        final PowerGovernor governor = new PowerGovernor(this);
+        final Random random = new Random(9);
+        long lastSpeedNonzero = -1;
+        boolean paused = false;
+        boolean triggerArmed = false;
+        int transitions = 0;
+        //samples delivered while recording was paused, all thrown away
+        int discarded = 0;
+        long stationaryAt = -1;
+        long resumedAt = -1;
+
+        @Override
+        public void onStateChanged(PowerGovernor.State state) {
+            transitions++;
+            triggerArmed = state == PowerGovernor.State.STATIONARY && significantMotion;
+        }
+
+        /**
+         * @param driveSeconds seconds driving, parked, driving...
+         */
+        void run(int... driveSeconds) {
+            long end = 0;
+            for (int seconds : driveSeconds) end += seconds * SECOND;
+            long moveAgain = -1;
+            for (long t = 0; t < end; t += 100) {
+                boolean moving = moving(t, driveSeconds);
+                if(moving && moveAgain == -1 && t > 0 && !moving(t - 100, driveSeconds)) moveAgain = t;
+                boolean active = governor.getState() == PowerGovernor.State.ACTIVE;
+                if(active ? t % 1000 == 0 : t % PowerGovernor.GPS_STATIONARY_INTERVAL_MS == 0) {
+                    Trace.GPS gps = new Trace.GPS();
+                    gps.time = t;
+                    gps.speed = moving ? 12 : 0;
+                    deliver(gps);
+                }
+                if(active || (!significantMotion && t % (PowerGovernor.WATCH_PERIOD_US / 1000) == 0)) {
+                    Trace.Accel accel = new Trace.Accel();
+                    accel.time = t;
+                    double noise = moving || (t >= bumpFrom && t < bumpUntil) ? 0.5 : 0.02;
+                    accel.x = (float) (random.nextGaussian() * noise);
+                    accel.y = (float) (random.nextGaussian() * noise);
+                    accel.z = (float) (9.8 + random.nextGaussian() * noise);
+                    deliver(accel);
+                }
+                if(active) {
+                    Trace.Gyro gyro = new Trace.Gyro();
+                    gyro.time = t;
+                    deliver(gyro);
+                }
+                //the trigger needs a couple of seconds of motion
+                if(triggerArmed && significantMotionFires && moveAgain != -1 && t - moveAgain >= 2000) {
+                    triggerArmed = false;
+                    governor.onSignificantMotion(t);
+                }
+                if(moveAgain != -1 && resumedAt == -1 && !paused) resumedAt = t - moveAgain;
+            }
+            //the end of the trip, the last interval counts too
+            governor.onPaused(paused, end);
+        }
+
+        private static boolean moving(long t, int... driveSeconds) {
+            long start = 0;
+            for (int i = 0; i < driveSeconds.length; i++) {
+                long until = start + driveSeconds[i] * SECOND;
+                if(t < until) return i % 2 == 0;
+                start = until;
+            }
+            return false;
+        }
+
+        private void deliver(Trace trace) {
+            governor.onTrace(trace);
+            if(lastSpeedNonzero == -1) lastSpeedNonzero = trace.time;
+            if(trace instanceof Trace.GPS && ((Trace.GPS) trace).speed != 0) lastSpeedNonzero = trace.time;
+            paused = trace.time - lastSpeedNonzero > PAUSE_MS;
+            if(paused) discarded++;
+            governor.onPaused(paused, trace.time);
+            if(governor.getState() == PowerGovernor.State.STATIONARY && stationaryAt == -1) stationaryAt = trace.time;
+        }
+    }
+
+    @Test
+    public void parkedCarTurnsSensorsDownAndDrivingTurnsThemUp() {
+        Replay replay = new Replay();
+        replay.run(600, 1215, 585);
+        //right when the trip pauses, the car parked after 10 minutes and drives off again
+        //between two of the slowed down GPS fixes
+        assertEquals(12 * MINUTE, replay.stationaryAt, 1000);
+        assertTrue("resumed after " + replay.resumedAt + " ms", replay.resumedAt >= 0 && replay.resumedAt <= 5000);
+        assertEquals(2, replay.transitions);
+        assertEquals(40 * MINUTE - replay.governor.getImuMillis(), replay.governor.getGpsSlowMillis());
+        assertEquals((600 + 120 + 585) * SECOND, replay.governor.getImuMillis(), 5000);
+
+        Replay alwaysOn = new Replay();
+        //never paused, like before the governor
+        alwaysOn.run(2400);
+        String report = "40 minute trip parked for 20: always on " + alwaysOn.governor.getImuMillis() / 1000
+                + " s of IMU, governed " + replay.governor.report() + ", " + replay.discarded
+                + " samples delivered while paused instead of about " + (18 * 60 * 21) + ", resumed after "
+                + replay.resumedAt + " ms";
+        Benchmark.report(report);
+        assertTrue(report, replay.discarded < 18 * 60);
+    }
+
+    @Test
+    public void accelerometerWatchesWithoutSignificantMotionSensor() {
+        Replay replay = new Replay();
+        replay.significantMotion = false;
+        replay.run(600, 1215, 585);
+        assertEquals(2, replay.transitions);
+        assertTrue("resumed after " + replay.resumedAt + " ms", replay.resumedAt >= 0 && replay.resumedAt <= 8000);
+    }
+
+    @Test
+    public void gpsWakesUpWhenNothingElseDoes() {
+        Replay replay = new Replay();
+        replay.significantMotionFires = false;
+        replay.run(600, 1215, 585);
+        assertEquals(2, replay.transitions);
+        assertTrue("resumed after " + replay.resumedAt + " ms",
+                replay.resumedAt >= 0 && replay.resumedAt <= PowerGovernor.GPS_STATIONARY_INTERVAL_MS + 1000);
+    }
+
+    @Test
+    public void handlingTheParkedPhoneOnlyWakesItBriefly() {
+        Replay replay = new Replay();
+        replay.significantMotion = false;
+        replay.bumpFrom = 20 * MINUTE;
+        replay.bumpUntil = 20 * MINUTE + 10000;
+        replay.run(600, 1215, 585);
+        //up for the bump, down again after the grace period, up for the drive
+        assertEquals(4, replay.transitions);
+        assertTrue(replay.governor.getImuMillis() < 23 * MINUTE);
+    }
+}
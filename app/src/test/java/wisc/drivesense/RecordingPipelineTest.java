@@ -0,0 +1,212 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import wisc.drivesense.triprecorder.PipelineStats;
+import wisc.drivesense.triprecorder.SnapshotConflator;
+import wisc.drivesense.triprecorder.TripProcessor;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+import wisc.drivesense.utility.Trip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a drive through the recording, once the way it ran on the main thread with a JSON
+ * broadcast per trace and once on its own thread with conflated snapshots for the UI,
+ * a single thread executor standing in for the main thread
+ */
+public class RecordingPipelineTest {
+
+    private static class Snapshot {
+        final int index;
+        final double distance;
+
+        Snapshot(int index, double distance) {
+            this.index = index;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * GPS at 1 Hz, accelerometer, gyroscope and magnetometer at 10 Hz, as SensorService sends them
+     */
+    private static List<Trace> drive(int seconds) {
+        Random random = new Random(3);
+        List<Trace> traces = new ArrayList<>();
+        long start = 1500000000000L;
+        double lat = 43.07, lng = -89.4, speed = 10;
+        for (int s = 0; s < seconds; s++) {
+            speed = Math.min(30, Math.max(0, speed + random.nextGaussian()));
+            lat += speed / 111000.0;
+            Trace.GPS gps = new Trace.GPS();
+            gps.time = start + 1000L * s;
+            gps.lat = (float) lat;
+            gps.lng = (float) lng;
+            gps.speed = (float) speed;
+            traces.add(gps);
+            for (int i = 1; i < 10; i++) {
+                Trace.Accel accel = new Trace.Accel();
+                accel.time = gps.time + 100 * i;
+                accel.values(new float[]{(float) random.nextGaussian(), (float) random.nextGaussian(), 9.8f});
+                traces.add(accel);
+                Trace.Gyro gyro = new Trace.Gyro();
+                gyro.time = accel.time;
+                gyro.values(new float[]{(float) random.nextGaussian() * 0.1f, 0, 0});
+                traces.add(gyro);
+                Trace.Magnetometer magnetometer = new Trace.Magnetometer();
+                magnetometer.time = accel.time;
+                magnetometer.values(new float[]{20, -5, 40});
+                traces.add(magnetometer);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * What TripService processes a trace with, the drive never pauses
+     */
+    private static TripProcessor processor() {
+        return new TripProcessor(new Trip(), null, 60 * 1000, 5 * 60 * 1000);
+    }
+
+    private static void await(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void latestSnapshotIsDeliveredAndTheRestConflated() throws Exception {
+        ExecutorService main = Executors.newSingleThreadExecutor();
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicReference<Snapshot> last = new AtomicReference<>();
+        SnapshotConflator<Snapshot> conflator = new SnapshotConflator<>(main, new SnapshotConflator.Consumer<Snapshot>() {
+            @Override
+            public void accept(Snapshot snapshot) {
+                delivered.incrementAndGet();
+                last.set(snapshot);
+                try {
+                    //drawing a frame
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        int published = 2000;
+        for (int i = 0; i < published; i++) {
+            conflator.publish(new Snapshot(i, i));
+        }
+        await(main);
+        assertEquals(published - 1, last.get().index);
+        assertTrue(delivered.get() + " deliveries", delivered.get() < published / 10);
+    }
+
+    @Test
+    public void stats() {
+        PipelineStats stats = new PipelineStats();
+        stats.record(PipelineStats.Stage.PROCESS, 2000000);
+        stats.record(PipelineStats.Stage.PROCESS, 4000000);
+        stats.onMainThread(5000000);
+        stats.drove(1000);
+        stats.drove(11000);
+        PipelineStats.Latency process = stats.get(PipelineStats.Stage.PROCESS);
+        assertEquals(2, process.count);
+        assertEquals(3000, process.getMean());
+        assertEquals(4000, process.max);
+        assertEquals(0.5, stats.getMainThreadPerSecond(), 1e-9);
+        //waited 150 ms for the interval, then 3 ms for the main thread
+        stats.delivered(0, 150000000, 153000000);
+        //published after the delivery was due
+        stats.delivered(160000000, 150000000, 161000000);
+        assertEquals(150000, stats.get(PipelineStats.Stage.CONFLATE).max);
+        assertEquals(75000, stats.get(PipelineStats.Stage.CONFLATE).getMean());
+        assertEquals(3000, stats.get(PipelineStats.Stage.UI).max);
+        assertEquals(2000, stats.get(PipelineStats.Stage.UI).getMean());
+        stats.reset();
+        assertEquals(0, stats.get(PipelineStats.Stage.PROCESS).count);
+        assertEquals(0, stats.getDrivingMillis());
+    }
+
+    @Test
+    public void mainThreadOnlyShowsSnapshots() throws Exception {
+        final List<Trace> traces = drive(600);
+        final List<String> broadcasts = new ArrayList<>();
+        for (Trace trace : traces) {
+            broadcasts.add(GsonSingleton.toJson(new TraceMessage(trace)));
+        }
+        for (int round = 0; round < 2; round++) {
+            //warm up the JIT with the first round
+            final PipelineStats before = new PipelineStats();
+            final TripProcessor onMain = processor();
+            ExecutorService main = Executors.newSingleThreadExecutor();
+            for (final String json : broadcasts) {
+                main.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        Trace trace = GsonSingleton.fromJson(json, TraceMessage.class).value;
+                        onMain.process(trace, false);
+                        before.drove(trace.time);
+                        before.onMainThread(System.nanoTime() - start);
+                    }
+                });
+            }
+            await(main);
+
+            final PipelineStats after = new PipelineStats();
+            final TripProcessor onPipeline = processor();
+            main = Executors.newSingleThreadExecutor();
+            final AtomicReference<Snapshot> shown = new AtomicReference<>();
+            final SnapshotConflator<Snapshot> ui = new SnapshotConflator<>(main, new SnapshotConflator.Consumer<Snapshot>() {
+                @Override
+                public void accept(Snapshot snapshot) {
+                    long start = System.nanoTime();
+                    shown.set(snapshot);
+                    after.onMainThread(System.nanoTime() - start);
+                }
+            });
+            ExecutorService pipeline = Executors.newSingleThreadExecutor();
+            for (int i = 0; i < traces.size(); i++) {
+                final int index = i;
+                pipeline.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Trace trace = traces.get(index);
+                        long start = System.nanoTime();
+                        onPipeline.process(trace, false);
+                        after.record(PipelineStats.Stage.PROCESS, System.nanoTime() - start);
+                        after.drove(trace.time);
+                        if(trace instanceof Trace.GPS || trace instanceof Trace.Accel) {
+                            ui.publish(new Snapshot(index, onPipeline.getTrip().getDistance()));
+                        }
+                    }
+                });
+            }
+            await(pipeline);
+            await(main);
+
+            assertEquals(onMain.getTrip().getDistance(), onPipeline.getTrip().getDistance(), 0);
+            assertEquals(onMain.getTrip().getScore(), onPipeline.getTrip().getScore(), 0);
+            assertEquals(onPipeline.getTrip().getDistance(), shown.get().distance, 0);
+            if(round == 1) {
+                String report = String.format("main thread per second of driving: %.3f ms with a broadcast per trace, "
+                        + "%.3f ms with snapshots; ", before.getMainThreadPerSecond(), after.getMainThreadPerSecond())
+                        + after.report();
+                Benchmark.report(report);
+                assertTrue(report, after.getMainThreadPerSecond() * 10 < before.getMainThreadPerSecond());
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package wisc.drivesense;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wisc.drivesense.httpTools.RequestCoordinator;
+import wisc.drivesense.utility.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends many concurrent requests for the same trips through the coordinator to a local server
+ */
+public class RequestCoordinatorTest {
+
+    private HttpServer server;
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    //the server holds every response until released, so all callers pile up on the requests in flight
+    private CountDownLatch release;
+    private ExecutorService network;
+
+    @Before
+    public void setUp() throws IOException {
+        release = new CountDownLatch(1);
+        network = Executors.newFixedThreadPool(8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                AtomicInteger count = hits.get(path);
+                if(count == null) {
+                    hits.put(path, new AtomicInteger());
+                    count = hits.get(path);
+                }
+                count.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = path.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+        network.shutdownNow();
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * GET the path on a network thread and complete with the response body
+     */
+    private RequestCoordinator.Call<String> get(final String path) {
+        return new RequestCoordinator.Call<String>() {
+            @Override
+            public void start(final RequestCoordinator.Callback<String> done) {
+                network.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            HttpURLConnection connection = (HttpURLConnection) new URL(url(path)).openConnection();
+                            InputStream in = connection.getInputStream();
+                            StringBuilder body = new StringBuilder();
+                            int c;
+                            while ((c = in.read()) != -1) {
+                                body.append((char) c);
+                            }
+                            in.close();
+                            connection.disconnect();
+                            done.onComplete(body.toString(), true);
+                        } catch (IOException e) {
+                            done.onComplete(null, false);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private static class Waiter implements RequestCoordinator.Callback<String> {
+        final CountDownLatch finished;
+        volatile String result;
+        volatile boolean success;
+
+        Waiter(CountDownLatch finished) {
+            this.finished = finished;
+        }
+
+        @Override
+        public void onComplete(String result, boolean success) {
+            this.result = result;
+            this.success = success;
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void duplicatesShareOneRequest() throws Exception {
+        final RequestCoordinator coordinator = new RequestCoordinator(Clock.SYSTEM);
+        final int callers = 50;
+        final String[] trips = {"a", "b", "c"};
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(callers);
+        final AtomicInteger started = new AtomicInteger();
+        final List<Waiter> waiters = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            final String path = "/tripTraces/" + trips[i % trips.length];
+            final Waiter waiter = new Waiter(finished);
+            waiters.add(waiter);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if(coordinator.submit(RequestCoordinator.key("/tripTraces", path), get(path), waiter)) {
+                        started.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(trips.length, started.get());
+        assertEquals(trips.length, coordinator.getInFlight().size());
+        int waiting = 0;
+        for (RequestCoordinator.InFlight flight : coordinator.getInFlight()) {
+            waiting += flight.waiters;
+        }
+        assertEquals(callers, waiting);
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        for (String trip : trips) {
+            assertEquals(1, hits.get("/tripTraces/" + trip).get());
+        }
+        for (int i = 0; i < callers; i++) {
+            assertTrue(waiters.get(i).success);
+            assertEquals("/tripTraces/" + trips[i % trips.length], waiters.get(i).result);
+        }
+        assertEquals(0, coordinator.getInFlight().size());
+    }
+
+    @Test
+    public void finishedRequestIsSentAgain() throws Exception {
+        RequestCoordinator coordinator = new RequestCoordinator(Clock.SYSTEM);
+        release.countDown();
+        String key = RequestCoordinator.key("/tripChanges", "user");
+        for (int i = 0; i < 3; i++) {
+            CountDownLatch finished = new CountDownLatch(1);
+            assertTrue(coordinator.submit(key, get("/tripChanges"), new Waiter(finished)));
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertFalse(coordinator.isInFlight(key));
+        }
+        assertEquals(3, hits.get("/tripChanges").get());
+    }
+
+    @Test
+    public void failureReachesEveryWaiter() throws Exception {
+        RequestCoordinator coordinator = new RequestCoordinator(Clock.SYSTEM);
+        release.countDown();
+        server.stop(0);
+        CountDownLatch finished = new CountDownLatch(2);
+        Waiter first = new Waiter(finished);
+        Waiter second = new Waiter(finished);
+        String key = RequestCoordinator.key("/tripTraces", "gone");
+        coordinator.submit(key, get("/tripTraces/gone"), first);
+        coordinator.submit(key, get("/tripTraces/gone"), second);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertFalse(first.success);
+        assertFalse(second.success);
+        assertFalse(coordinator.isInFlight(key));
+    }
+}
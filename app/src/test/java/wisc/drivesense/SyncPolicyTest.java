@@ -0,0 +1,199 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import wisc.drivesense.httpTools.SyncConstraints;
+import wisc.drivesense.httpTools.SyncPolicy;
+import wisc.drivesense.utility.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncPolicyTest {
+
+    private static class FakeClock implements Clock {
+        long now = 1000000;
+        public long currentTimeMillis() { return now; }
+    }
+
+    private static class FakeConstraints implements SyncConstraints {
+        boolean connected = true;
+        boolean unmetered = true;
+        boolean charging = false;
+        int battery = 80;
+        public boolean isConnected() { return connected; }
+        public boolean isUnmetered() { return unmetered; }
+        public boolean isCharging() { return charging; }
+        public int getBatteryPercent() { return battery; }
+    }
+
+    private FakeClock clock = new FakeClock();
+    private FakeConstraints device = new FakeConstraints();
+    private SyncPolicy policy = new SyncPolicy(clock);
+
+    @Test
+    public void nothingPending() {
+        assertEquals(-1, policy.getDelay());
+        assertTrue(policy.startWindow(device, true).isEmpty());
+    }
+
+    @Test
+    public void coalesceTripUploads() {
+        policy.requestUpload(true);
+        assertEquals(SyncPolicy.COALESCE_DELAY, policy.getDelay());
+        clock.now += 20000;
+        policy.requestUpload(true);
+        //the second request joins the first window instead of pushing it back
+        assertEquals(SyncPolicy.COALESCE_DELAY - 20000, policy.getDelay());
+        assertTrue(policy.startWindow(device, true).isEmpty());
+
+        clock.now += SyncPolicy.COALESCE_DELAY;
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertFalse(window.vitalOnly);
+        assertFalse(policy.hasPendingWork());
+    }
+
+    @Test
+    public void immediateRequestOverridesCoalescing() {
+        policy.requestUpload(true);
+        policy.requestDownload();
+        assertEquals(0, policy.getDelay());
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertTrue(window.download);
+    }
+
+    @Test
+    public void backoffGrowsAndResets() {
+        assertEquals(SyncPolicy.MIN_BACKOFF, SyncPolicy.getBackoff(1));
+        assertEquals(2 * SyncPolicy.MIN_BACKOFF, SyncPolicy.getBackoff(2));
+        assertEquals(SyncPolicy.MAX_BACKOFF, SyncPolicy.getBackoff(100));
+
+        policy.requestUpload(false);
+        for (int i = 1; i <= 3; i++) {
+            SyncPolicy.Window window = policy.startWindow(device, true);
+            assertTrue(window.upload);
+            policy.finishWindow(window, false, false);
+            assertEquals(i, policy.getFailureCount());
+            assertEquals(SyncPolicy.getBackoff(i), policy.getDelay());
+            clock.now += policy.getDelay();
+        }
+
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        policy.finishWindow(window, true, false);
+        assertEquals(0, policy.getFailureCount());
+        assertFalse(policy.hasPendingWork());
+        policy.requestUpload(false);
+        assertEquals(0, policy.getDelay());
+    }
+
+    @Test
+    public void cancelledWindowIsNotBackedOff() {
+        policy.requestDownload();
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        policy.cancelWindow(window);
+        assertEquals(0, policy.getFailureCount());
+        assertEquals(0, policy.getDelay());
+        assertTrue(policy.startWindow(device, true).download);
+    }
+
+    @Test
+    public void meteredNetworkOnlySendsGps() {
+        device.unmetered = false;
+        policy.requestUpload(false);
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertTrue(window.vitalOnly);
+        policy.finishWindow(window, true, true);
+
+        //sensor data waits for WiFi instead of running again right away
+        assertTrue(policy.hasPendingWork());
+        assertTrue(policy.requiresUnmetered());
+        assertTrue(policy.startWindow(device, true).isEmpty());
+
+        device.unmetered = true;
+        window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertFalse(window.vitalOnly);
+        policy.finishWindow(window, true, false);
+        assertFalse(policy.hasPendingWork());
+    }
+
+    @Test
+    public void meteredNetworkAllowedBySetting() {
+        device.unmetered = false;
+        policy.requestUpload(false);
+        SyncPolicy.Window window = policy.startWindow(device, false);
+        assertFalse(window.vitalOnly);
+    }
+
+    @Test
+    public void lowBatterySkipsSensorsAndDownloads() {
+        device.battery = 10;
+        policy.requestUpload(false);
+        policy.requestDownload();
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertTrue(window.vitalOnly);
+        assertFalse(window.download);
+        policy.finishWindow(window, true, true);
+        assertFalse(policy.requiresUnmetered());
+        assertTrue(policy.requiresCharging());
+
+        device.charging = true;
+        window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertFalse(window.vitalOnly);
+        assertTrue(window.download);
+    }
+
+    @Test
+    public void disconnectedKeepsWork() {
+        device.connected = false;
+        policy.requestUpload(false);
+        assertTrue(policy.startWindow(device, true).isEmpty());
+        assertTrue(policy.hasPendingWork());
+    }
+
+    private static class MemoryStore implements SyncPolicy.Store {
+        SyncPolicy.State saved = null;
+        public SyncPolicy.State load() { return saved; }
+        public void save(SyncPolicy.State state) { saved = state; }
+    }
+
+    @Test
+    public void backoffOutlivesTheProcess() {
+        MemoryStore store = new MemoryStore();
+        policy = new SyncPolicy(clock, store);
+        policy.requestUpload(false);
+        policy.requestDownload();
+        SyncPolicy.Window window = policy.startWindow(device, true);
+        policy.finishWindow(window, false, false);
+        long backoff = SyncPolicy.getBackoff(1);
+        assertEquals(backoff, policy.getDelay());
+
+        clock.now += 1000;
+        policy = new SyncPolicy(clock, store);
+        assertEquals(1, policy.getFailureCount());
+        assertEquals(backoff - 1000, policy.getDelay());
+        clock.now += backoff;
+        window = policy.startWindow(device, true);
+        assertTrue(window.upload);
+        assertTrue(window.download);
+    }
+
+    @Test
+    public void windowCutShortByTheProcessRunsAgain() {
+        MemoryStore store = new MemoryStore();
+        policy = new SyncPolicy(clock, store);
+        policy.requestDownload();
+        assertTrue(policy.startWindow(device, true).download);
+        assertFalse(policy.hasPendingWork());
+
+        policy = new SyncPolicy(clock, store);
+        assertEquals(0, policy.getDelay());
+        assertTrue(policy.startWindow(device, true).download);
+    }
+}
@@ -0,0 +1,259 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wisc.drivesense.httpTools.SyncQueue;
+import wisc.drivesense.utility.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SyncQueueTest {
+
+    private static class FakeClock implements Clock {
+        long now = 1000000;
+        public long currentTimeMillis() { return now; }
+    }
+
+    private static final long AGING_STEP = 60 * 1000;
+
+    private FakeClock clock = new FakeClock();
+    private SyncQueue<Integer> queue = new SyncQueue<>(clock, 2, AGING_STEP);
+
+    @Test
+    public void lastSlotIsKeptForLivePoints() {
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "a", 0);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "b", 0);
+        SyncQueue.Job<Integer> first = queue.poll();
+        assertEquals("a", first.guid);
+        assertNull(queue.poll());
+
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 0);
+        SyncQueue.Job<Integer> live = queue.poll();
+        assertEquals(SyncQueue.Priority.LIVE_GPS, live.priority);
+        assertNull(queue.poll());
+
+        queue.finish(first);
+        assertEquals("b", queue.poll().guid);
+    }
+
+    @Test
+    public void metadataBeforeTraces() {
+        queue.offer(SyncQueue.Priority.IMU, "a", 0);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "b", 0);
+        queue.offer(SyncQueue.Priority.METADATA, "c", 0);
+        List<String> order = new ArrayList<>();
+        SyncQueue.Job<Integer> job;
+        while ((job = queue.poll()) != null) {
+            order.add(job.guid);
+            queue.finish(job);
+        }
+        assertEquals("c", order.get(0));
+        assertEquals("b", order.get(1));
+        assertEquals("a", order.get(2));
+    }
+
+    @Test
+    public void oneJobPerTripInFlight() {
+        SyncQueue<Integer> wide = new SyncQueue<>(clock, 4, AGING_STEP);
+        wide.offer(SyncQueue.Priority.METADATA, "a", 0);
+        wide.offer(SyncQueue.Priority.TRIP_GPS, "a", 0);
+        wide.offer(SyncQueue.Priority.TRIP_GPS, "b", 0);
+        SyncQueue.Job<Integer> metadata = wide.poll();
+        assertEquals(SyncQueue.Priority.METADATA, metadata.priority);
+        assertEquals("b", wide.poll().guid);
+        assertNull(wide.poll());
+        wide.finish(metadata);
+        SyncQueue.Job<Integer> traces = wide.poll();
+        assertEquals("a", traces.guid);
+        assertEquals(SyncQueue.Priority.TRIP_GPS, traces.priority);
+    }
+
+    @Test
+    public void duplicatesAreMerged() {
+        assertTrue(queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 1));
+        assertFalse(queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 2));
+        assertNotNull(queue.find(SyncQueue.Priority.LIVE_GPS, "live"));
+        assertEquals(1, queue.size(SyncQueue.Priority.LIVE_GPS));
+        queue.clearBacklog();
+        assertEquals(1, queue.size(SyncQueue.Priority.LIVE_GPS));
+    }
+
+    @Test
+    public void sensorDataIsNotStarved() {
+        SyncQueue.Job<Integer> imu = null;
+        queue.offer(SyncQueue.Priority.IMU, "imu", 0);
+        int trip = 0;
+        //GPS uploads of new trips keep arriving faster than they are sent
+        for (int step = 0; step < 1000 && imu == null; step++) {
+            queue.offer(SyncQueue.Priority.TRIP_GPS, "gps" + trip++, 0);
+            queue.offer(SyncQueue.Priority.TRIP_GPS, "gps" + trip++, 0);
+            SyncQueue.Job<Integer> job = queue.poll();
+            clock.now += 10 * 1000;
+            queue.finish(job);
+            if(job.priority == SyncQueue.Priority.IMU) imu = job;
+        }
+        assertNotNull(imu);
+        //IMU is two classes behind GPS, it wins once it has waited two aging steps longer than the GPS at the head
+        assertTrue(queue.getStats(SyncQueue.Priority.IMU).maxLatency <= 6 * AGING_STEP);
+    }
+
+    /**
+     * Simulates a trip being recorded while 100 past trips are uploaded over a slow network.
+     * A batch of live points is queued every 5 seconds and takes 1 second to send,
+     * every backlog upload takes 8 seconds.
+     */
+    @Test
+    public void liveFreshnessWhileBacklogDrains() {
+        final long step = 100;
+        final long liveInterval = 5 * 1000;
+        final long liveDuration = 1000;
+        final long backlogDuration = 8 * 1000;
+        SyncQueue<List<Integer>> queue = new SyncQueue<>(clock, 2, AGING_STEP);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(SyncQueue.Priority.TRIP_GPS, "trip" + i, null);
+        }
+        List<SyncQueue.Job<List<Integer>>> inFlight = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        int batches = 0;
+        int sent = 0;
+        long start = clock.now;
+        while (queue.backlogSize() > 0) {
+            assertTrue("backlog did not drain", clock.now - start < 2 * 3600 * 1000);
+            if((clock.now - start) % liveInterval == 0) {
+                List<Integer> batch = new ArrayList<>();
+                batch.add(batches++);
+                SyncQueue.Job<List<Integer>> waiting = queue.find(SyncQueue.Priority.LIVE_GPS, "live");
+                if(waiting != null) {
+                    waiting.value.addAll(batch);
+                } else {
+                    queue.offer(SyncQueue.Priority.LIVE_GPS, "live", batch);
+                }
+            }
+            for (int i = inFlight.size() - 1; i >= 0; i--) {
+                if(ends.get(i) <= clock.now) {
+                    SyncQueue.Job<List<Integer>> job = inFlight.remove(i);
+                    ends.remove(i);
+                    if(job.priority == SyncQueue.Priority.LIVE_GPS) sent += job.value.size();
+                    queue.finish(job);
+                }
+            }
+            SyncQueue.Job<List<Integer>> job;
+            while ((job = queue.poll()) != null) {
+                inFlight.add(job);
+                ends.add(clock.now + (job.priority == SyncQueue.Priority.LIVE_GPS ? liveDuration : backlogDuration));
+            }
+            clock.now += step;
+        }
+
+        assertEquals(100, queue.getStats(SyncQueue.Priority.TRIP_GPS).count);
+        SyncQueue.Stats live = queue.getStats(SyncQueue.Priority.LIVE_GPS);
+        assertTrue(sent >= batches - 1);
+        assertTrue("live points waited up to " + live.maxLatency + " ms", live.maxLatency <= liveDuration + step);
+    }
+
+    @Test
+    public void jobsOfOneClassShareARequest() {
+        queue.offer(SyncQueue.Priority.METADATA, "a", 0);
+        queue.offer(SyncQueue.Priority.METADATA, "b", 0);
+        queue.offer(SyncQueue.Priority.METADATA, "c", 0);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "d", 0);
+        SyncQueue.Job<Integer> first = queue.poll();
+        SyncQueue.Job<Integer> second = queue.pollWith(first);
+        assertEquals("b", second.guid);
+        SyncQueue.Job<Integer> third = queue.pollWith(first);
+        //does not fit, it goes first with the next request
+        queue.putBack(third);
+        assertNull(queue.pollWith(null));
+        queue.finish(first);
+        queue.finish(second);
+        assertEquals("c", queue.poll().guid);
+    }
+
+    @Test
+    public void failedLiveBatchGoesAgainBeforeTheNextOne() {
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 1);
+        SyncQueue.Job<Integer> failed = queue.poll();
+        //points that arrived while the first batch was in flight
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 2);
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "other", 3);
+        queue.retry(failed, 5000);
+        //nothing is merged into the failed batch, the points after it wait behind it
+        assertEquals(2, (int) queue.find(SyncQueue.Priority.LIVE_GPS, "live").value);
+        SyncQueue.Job<Integer> other = queue.poll();
+        assertEquals("other", other.guid);
+        queue.finish(other);
+        assertNull(queue.poll());
+
+        clock.now += 5000;
+        SyncQueue.Job<Integer> again = queue.poll();
+        assertSame(failed, again);
+        assertNull(queue.poll());
+        queue.finish(again);
+        assertEquals(2, (int) queue.poll().value);
+        assertEquals(2, queue.getStats(SyncQueue.Priority.LIVE_GPS).count);
+    }
+
+    @Test
+    public void backlogOfATripWaitsForItsRetriedLiveBatch() {
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "trip", 1);
+        SyncQueue.Job<Integer> failed = queue.poll();
+        queue.retry(failed, 5000);
+        //the trip ended, the backlog would read the same pending batch from the database
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "trip", 2);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "other", 3);
+        SyncQueue.Job<Integer> other = queue.poll();
+        assertEquals("other", other.guid);
+        assertNull(queue.pollWith(other));
+        queue.finish(other);
+        assertNull(queue.poll());
+
+        clock.now += 5000;
+        assertSame(failed, queue.poll());
+        assertNull(queue.poll());
+        queue.finish(failed);
+        assertEquals(2, (int) queue.poll().value);
+    }
+
+    @Test
+    public void droppedRetryReleasesTheTrip() {
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "trip", 1);
+        SyncQueue.Job<Integer> failed = queue.poll();
+        queue.retry(failed, 5000);
+        assertEquals(1, failed.failures);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "trip", 2);
+        assertNull(queue.poll());
+        assertSame(failed, queue.dropRetry("trip"));
+        assertNull(queue.dropRetry("trip"));
+        assertEquals(0, queue.size(SyncQueue.Priority.LIVE_GPS));
+        assertEquals(2, (int) queue.poll().value);
+    }
+
+    @Test
+    public void clearDropsLiveJobsToo() {
+        queue.offer(SyncQueue.Priority.LIVE_GPS, "live", 1);
+        queue.offer(SyncQueue.Priority.TRIP_GPS, "a", 0);
+        queue.clear();
+        assertEquals(0, queue.size(SyncQueue.Priority.LIVE_GPS));
+        assertEquals(0, queue.backlogSize());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void finishIsIdempotent() {
+        queue.offer(SyncQueue.Priority.METADATA, "a", 0);
+        SyncQueue.Job<Integer> job = queue.poll();
+        queue.finish(job);
+        queue.finish(job);
+        assertEquals(1, queue.getStats(SyncQueue.Priority.METADATA).count);
+        assertEquals(0, queue.backlogSize());
+        assertSame(null, queue.poll());
+    }
+}
@@ -0,0 +1,143 @@
+package wisc.drivesense;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a preset dictionary for TraceDictionary from sample upload bodies. A desktop tool, it
+ * lives with the tests and is not part of the app.
+ * Splits the samples into the structure between numbers, key names and trace skeletons, and the
+ * leading digits of numbers, and keeps the pieces that save the most. The most valuable go at
+ * the end of the dictionary where deflate reaches them with the shortest distances.
+ *
+ * Run from the unit test classes with files of payloads exported from real drives, one JSON
+ * body per line:
+ *   java wisc.drivesense.TraceDictionaryBuilder size file...
+ * and paste the printed literal into TraceDictionary as the next version.
+ */
+public class TraceDictionaryBuilder {
+    //leading characters of a number that are kept, coordinates and timestamps share them
+    private static final int NUMBER_PREFIX = 5;
+    //shorter pieces cost more to reference than they save
+    private static final int MIN_LENGTH = 4;
+
+    private static class Candidate {
+        final String text;
+        final long score;
+
+        Candidate(String text, long score) {
+            this.text = text;
+            this.score = score;
+        }
+    }
+
+    private static boolean isNumeric(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == '-';
+    }
+
+    /**
+     * @param samples upload bodies
+     * @param size maximum dictionary size in characters
+     * @return the dictionary
+     */
+    public static String build(List<String> samples, int size) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            int start = 0;
+            while (start < sample.length()) {
+                boolean numeric = isNumeric(sample.charAt(start));
+                int end = start + 1;
+                while (end < sample.length() && isNumeric(sample.charAt(end)) == numeric) {
+                    end++;
+                }
+                String piece = sample.substring(start, numeric ? Math.min(end, start + NUMBER_PREFIX) : end);
+                if(piece.length() >= MIN_LENGTH) {
+                    Integer count = counts.get(piece);
+                    counts.put(piece, count == null ? 1 : count + 1);
+                }
+                start = end;
+            }
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            //a string seen once is a value, not structure
+            if(entry.getValue() < 2) continue;
+            candidates.add(new Candidate(entry.getKey(), (long) entry.getValue() * (entry.getKey().length() - MIN_LENGTH + 1)));
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                if(a.score != b.score) return a.score > b.score ? -1 : 1;
+                return a.text.compareTo(b.text);
+            }
+        });
+
+        List<String> picked = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        int total = 0;
+        for (Candidate candidate : candidates) {
+            if(total + candidate.text.length() > size) continue;
+            if(all.indexOf(candidate.text) >= 0) continue;
+            picked.add(candidate.text);
+            all.append(candidate.text).append('\0');
+            total += candidate.text.length();
+        }
+        StringBuilder dictionary = new StringBuilder(total);
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            dictionary.append(picked.get(i));
+        }
+        return dictionary.toString();
+    }
+
+    /**
+     * @return the dictionary as a Java string literal
+     */
+    public static String toLiteral(String dictionary) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('"');
+        for (int i = 0; i < dictionary.length(); i++) {
+            char c = dictionary.charAt(i);
+            if(c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if(c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+            if(i % 100 == 99 && i + 1 < dictionary.length()) {
+                sb.append("\"\n            + \"");
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("usage: TraceDictionaryBuilder size file...");
+            System.exit(1);
+        }
+        int size = Integer.parseInt(args[0]);
+        List<String> samples = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if(line.length() > 0) samples.add(line);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        System.out.println(toLiteral(build(samples, size)));
+    }
+}
@@ -0,0 +1,139 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.httpTools.PayloadCompression;
+import wisc.drivesense.httpTools.TraceDictionary;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+import wisc.drivesense.utility.TripMetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceDictionaryTest {
+
+    /**
+     * A payload like the ones TraceStorageWorker uploads while driving, a GPS point every second
+     */
+    private static byte[] livePayload(Random random, int traces) {
+        TripPayload payload = new TripPayload();
+        payload.guid = UUID.randomUUID().toString();
+        payload.distance = random.nextDouble() * 20000;
+        payload.status = TripMetadata.FINALIZED;
+        payload.traces = new ArrayList<>();
+        long time = 1500000000000L + random.nextInt(100000000);
+        float lat = 43 + random.nextFloat(), lng = -90 + random.nextFloat(), speed = random.nextFloat() * 30;
+        for (int i = 0; i < traces; i++) {
+            Trace.Trip p = new Trace.Trip();
+            lat += (random.nextFloat() - 0.5f) * 1e-4f;
+            lng += (random.nextFloat() - 0.5f) * 1e-4f;
+            speed = Math.max(0, speed + (random.nextFloat() - 0.5f) * 2);
+            p.lat = lat;
+            p.lng = lng;
+            p.speed = speed;
+            p.alt = 250 + random.nextFloat() * 30;
+            p.tilt = random.nextFloat() * 5;
+            p.score = 10 - random.nextFloat();
+            p.time = time + 1000L * i;
+            payload.traces.add(new TraceMessage(p));
+        }
+        return GsonSingleton.toJson(payload).getBytes();
+    }
+
+    /**
+     * A dictionary the way a version would be built, from bodies other than the ones compressed
+     */
+    private static byte[] builtDictionary() {
+        Random random = new Random(7);
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            samples.add(new String(livePayload(random, 1 + random.nextInt(10))));
+        }
+        return TraceDictionaryBuilder.build(samples, 1024).getBytes();
+    }
+
+    @Test
+    public void noDictionaryIsReleasedYet() {
+        assertEquals(0, TraceDictionary.VERSION);
+        assertNull(TraceDictionary.get(1));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] body = livePayload(new Random(1), 10);
+        byte[] dictionary = builtDictionary();
+        assertArrayEquals(body, PayloadCompression.inflate(PayloadCompression.deflate(body, dictionary), dictionary));
+    }
+
+    @Test
+    public void wrongDictionaryIsRejected() {
+        byte[] body = livePayload(new Random(2), 10);
+        byte[] compressed = PayloadCompression.deflate(body, builtDictionary());
+        try {
+            PayloadCompression.inflate(compressed, "something else".getBytes());
+            assertTrue("inflated with the wrong dictionary", false);
+        } catch (Exception e) {
+            //expected
+        }
+    }
+
+    /**
+     * Compression ratio and CPU time per body for gzip and the preset dictionary
+     */
+    @Test
+    public void dictionaryHelpsSmallPayloads() {
+        Random random = new Random(42);
+        byte[] dictionary = builtDictionary();
+        int[] sizes = {1, 10, 100, 5000};
+        for (int traces : sizes) {
+            byte[] body = livePayload(random, traces);
+            int repeat = Math.max(1, 20000 / traces);
+            byte[] gzip = null, deflate = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < repeat; i++) {
+                gzip = PayloadCompression.gzip(body);
+            }
+            long gzipNanos = (System.nanoTime() - start) / repeat;
+            start = System.nanoTime();
+            for (int i = 0; i < repeat; i++) {
+                deflate = PayloadCompression.deflate(body, dictionary);
+            }
+            long deflateNanos = (System.nanoTime() - start) / repeat;
+            String report = traces + " traces, " + body.length + " bytes: gzip " + gzip.length + " bytes ("
+                    + String.format("%.2f", (double) gzip.length / body.length) + ", " + gzipNanos / 1000 + " us), dictionary "
+                    + deflate.length + " bytes (" + String.format("%.2f", (double) deflate.length / body.length) + ", "
+                    + deflateNanos / 1000 + " us)";
+            Benchmark.report(report);
+            if(traces == 1) {
+                assertTrue(report, deflate.length * 10 < gzip.length * 7);
+            } else if(traces == 10) {
+                assertTrue(report, deflate.length * 100 < gzip.length * 85);
+            } else {
+                assertTrue(report, deflate.length <= gzip.length);
+            }
+        }
+    }
+
+    @Test
+    public void builderKeepsTraceStructure() {
+        Random random = new Random(3);
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            samples.add(new String(livePayload(random, 1 + random.nextInt(10))));
+        }
+        String dictionary = TraceDictionaryBuilder.build(samples, 512);
+        assertTrue(dictionary.length() <= 512);
+        assertTrue(dictionary, dictionary.contains("},{\"type\":\"Trip\",\"value\":{\"tilt\":"));
+        assertTrue(dictionary, dictionary.contains(",\"speed\":"));
+    }
+}
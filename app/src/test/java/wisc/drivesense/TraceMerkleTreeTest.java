@@ -0,0 +1,169 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import wisc.drivesense.httpTools.TraceMerkleTree;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceMerkleTreeTest {
+
+    private static final long START = 1500000000000L;
+
+    /**
+     * Reference implementation of the server side, it answers from its own tree
+     * and counts the bytes of every request and response
+     */
+    private static class ReferenceServer implements TraceMerkleTree.Remote {
+        final TreeMap<Long, TraceMessage> traces = new TreeMap<>();
+        long bytes = 0;
+
+        TraceMerkleTree tree() {
+            long[] times = new long[traces.size()];
+            int i = 0;
+            for (Long time : traces.keySet()) {
+                times[i++] = time;
+            }
+            return new TraceMerkleTree(times);
+        }
+
+        @Override
+        public long[] hashes(int level, long[] indexes) throws IOException {
+            bytes += 8 * (1 + 2 * indexes.length);
+            return tree().hashes(level, indexes);
+        }
+
+        @Override
+        public long[] times(long[] blocks) throws IOException {
+            long[] times = tree().times(blocks);
+            bytes += 8 * (blocks.length + times.length);
+            return times;
+        }
+
+        List<TraceMessage> download(List<Long> times) {
+            List<TraceMessage> result = new ArrayList<>();
+            for (Long time : times) {
+                result.add(traces.get(time));
+            }
+            bytes += 8 * times.size() + GsonSingleton.toJson(result).length();
+            return result;
+        }
+
+        void upload(List<TraceMessage> uploaded) {
+            bytes += GsonSingleton.toJson(uploaded).length();
+            for (TraceMessage tm : uploaded) {
+                traces.put(tm.value.time, tm);
+            }
+        }
+    }
+
+    private static TraceMessage point(long time) {
+        Trace.Trip p = new Trace.Trip();
+        p.time = time;
+        p.lat = 43.07f + (time - START) * 1e-8f;
+        p.lng = -89.4f;
+        p.speed = 12.5f;
+        p.alt = 260;
+        return new TraceMessage(p);
+    }
+
+    private static long[] times(TreeMap<Long, TraceMessage> traces) {
+        long[] times = new long[traces.size()];
+        int i = 0;
+        for (Long time : traces.keySet()) {
+            times[i++] = time;
+        }
+        return times;
+    }
+
+    @Test
+    public void sameTracesNeedOneRoundTrip() throws Exception {
+        ReferenceServer server = new ReferenceServer();
+        for (int i = 0; i < 600; i++) {
+            server.traces.put(START + 1000L * i, point(START + 1000L * i));
+        }
+        TraceMerkleTree local = new TraceMerkleTree(times(server.traces));
+        TraceMerkleTree.Diff diff = local.compare(server, START, START + 599 * 1000L);
+        assertTrue(diff.isEmpty());
+        assertEquals(1, diff.roundTrips);
+    }
+
+    @Test
+    public void orderAndDuplicatesDoNotMatter() {
+        long[] times = {START + 3000, START, START + 15000, START + 3000};
+        long[] sorted = {START, START + 3000, START + 15000};
+        TraceMerkleTree a = new TraceMerkleTree(times);
+        TraceMerkleTree b = new TraceMerkleTree(sorted);
+        for (int level = 0; level < 5; level++) {
+            long index = TraceMerkleTree.block(START) >> level;
+            assertEquals(a.hash(level, index), b.hash(level, index));
+        }
+        assertTrue(Arrays.equals(sorted, a.times(new long[]{TraceMerkleTree.block(START), TraceMerkleTree.block(START + 15000)})));
+    }
+
+    @Test
+    public void emptySide() throws Exception {
+        ReferenceServer server = new ReferenceServer();
+        for (int i = 0; i < 100; i++) {
+            server.traces.put(START + 1000L * i, point(START + 1000L * i));
+        }
+        TraceMerkleTree.Diff diff = new TraceMerkleTree(new long[0]).compare(server, START, START + 99 * 1000L);
+        assertEquals(100, diff.missingLocally.size());
+        assertEquals(0, diff.missingRemotely.size());
+    }
+
+    /**
+     * A 1 hour trip at 1 Hz where 1% of the points are missing on the device and another 1% on the server
+     */
+    @Test
+    public void repairOneHourTrip() throws Exception {
+        Random random = new Random(7);
+        ReferenceServer server = new ReferenceServer();
+        TreeMap<Long, TraceMessage> device = new TreeMap<>();
+        int points = 3600;
+        for (int i = 0; i < points; i++) {
+            long time = START + 1000L * i;
+            double r = random.nextDouble();
+            if(r >= 0.01) server.traces.put(time, point(time));
+            if(r < 0.01 || r >= 0.02) device.put(time, point(time));
+        }
+        int missingOnDevice = points - device.size();
+        int missingOnServer = points - server.traces.size();
+
+        TraceMerkleTree local = new TraceMerkleTree(times(device));
+        TraceMerkleTree.Diff diff = local.compare(server, START, START + (points - 1) * 1000L);
+        assertEquals(missingOnDevice, diff.missingLocally.size());
+        assertEquals(missingOnServer, diff.missingRemotely.size());
+
+        for (TraceMessage tm : server.download(diff.missingLocally)) {
+            device.put(tm.value.time, tm);
+        }
+        List<TraceMessage> upload = new ArrayList<>();
+        for (Long time : diff.missingRemotely) {
+            upload.add(device.get(time));
+        }
+        server.upload(upload);
+
+        assertEquals(points, device.size());
+        assertEquals(points, server.traces.size());
+        assertTrue(new TraceMerkleTree(times(device)).compare(server, START, START + (points - 1) * 1000L).isEmpty());
+
+        //what the device would download to replace its copy of the trip
+        long full = GsonSingleton.toJson(new ArrayList<>(server.traces.values())).length();
+        String report = "repaired " + missingOnDevice + " + " + missingOnServer + " traces in " + diff.roundTrips
+                + " round trips with " + server.bytes + " bytes, a full download is " + full + " bytes";
+        Benchmark.report(report);
+        assertTrue(report, server.bytes * 5 < full);
+    }
+}
@@ -0,0 +1,110 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+import wisc.drivesense.httpTools.TraceStreamParser;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceStreamParserTest {
+
+    /**
+     * Produces a JSON array of GPS points on the fly, like a server streaming a long trip,
+     * without ever holding the whole body in memory
+     */
+    private static class GeneratedTripReader extends Reader {
+        private final int points;
+        private int next = 0;
+        private String pending = "[";
+        private int offset = 0;
+        private boolean closed = false;
+
+        GeneratedTripReader(int points) {
+            this.points = points;
+        }
+
+        private boolean fill() {
+            if(offset < pending.length()) return true;
+            if(closed) return false;
+            offset = 0;
+            if(next < points) {
+                pending = (next > 0 ? "," : "") + "{\"lat\":43." + next + ",\"lng\":-89.4,\"speed\":12.5,\"time\":" + (1000L * next)
+                        + ",\"tilt\":0.5,\"score\":10,\"brake\":0}";
+                next++;
+            } else {
+                pending = "]";
+                closed = true;
+            }
+            return true;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if(!fill()) return -1;
+            int n = Math.min(len, pending.length() - offset);
+            pending.getChars(offset, offset + n, buf, off);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CountingHandler implements TraceStreamParser.ChunkHandler {
+        int chunks = 0;
+        long traces = 0;
+        int largest = 0;
+        long lastTime = -1;
+        boolean ordered = true;
+
+        @Override
+        public void onChunk(List<TraceMessage> chunk) {
+            chunks++;
+            traces += chunk.size();
+            largest = Math.max(largest, chunk.size());
+            for (TraceMessage tm : chunk) {
+                if(tm.value.time <= lastTime) ordered = false;
+                lastTime = tm.value.time;
+            }
+        }
+    }
+
+    @Test
+    public void smallArray() throws IOException {
+        String json = "[{\"lat\":1,\"lng\":2,\"time\":5},{\"lat\":3,\"lng\":4,\"time\":6},{\"lat\":5,\"lng\":6,\"time\":7}]";
+        CountingHandler handler = new CountingHandler();
+        long count = TraceStreamParser.parse(new StringReader(json), Trace.Trip.class, 2, handler);
+        assertEquals(3, count);
+        assertEquals(2, handler.chunks);
+        assertTrue(handler.ordered);
+    }
+
+    @Test
+    public void emptyArray() throws IOException {
+        CountingHandler handler = new CountingHandler();
+        assertEquals(0, TraceStreamParser.parse(new StringReader("[]"), Trace.Trip.class, 100, handler));
+        assertEquals(0, handler.chunks);
+    }
+
+    @Test
+    public void longTripInBoundedChunks() throws IOException {
+        int points = 500000;
+        CountingHandler handler = new CountingHandler();
+        long count = TraceStreamParser.parse(new GeneratedTripReader(points), Trace.Trip.class, 1000, handler);
+        assertEquals(points, count);
+        assertEquals(points, handler.traces);
+        assertEquals(500, handler.chunks);
+        assertEquals(1000, handler.largest);
+        assertTrue(handler.ordered);
+    }
+}
@@ -0,0 +1,159 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import wisc.drivesense.httpPayloads.TripBatchAck;
+import wisc.drivesense.httpPayloads.TripBatchPayload;
+import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.httpTools.TripBatcher;
+import wisc.drivesense.utility.Constants;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceMessage;
+import wisc.drivesense.utility.TripMetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TripBatcherTest {
+
+    /**
+     * Stores uploaded trips and charges every request a round trip plus the time to transfer its body
+     */
+    private static class MockServer {
+        static final long ROUND_TRIP_MS = 300;
+        //about 1 Mbit/s
+        static final double BYTES_PER_MS = 125;
+
+        final Map<String, Integer> stored = new HashMap<>();
+        final Set<String> rejectOnce = new HashSet<>();
+        int requests = 0;
+        double elapsed = 0;
+
+        TripBatchAck upload(String body) {
+            requests++;
+            elapsed += ROUND_TRIP_MS + body.length() / BYTES_PER_MS;
+            TripBatchPayload batch = GsonSingleton.fromJson(body, TripBatchPayload.class);
+            TripBatchAck ack = new TripBatchAck();
+            ack.accepted = new ArrayList<>();
+            for (TripPayload trip : batch.trips) {
+                if(rejectOnce.remove(trip.guid)) continue;
+                Integer count = stored.get(trip.guid);
+                stored.put(trip.guid, (count == null ? 0 : count) + trip.traces.size());
+                ack.accepted.add(trip.guid);
+            }
+            return ack;
+        }
+    }
+
+    private static TripPayload oneMinuteTrip(int n) {
+        TripPayload trip = new TripPayload();
+        trip.guid = "trip" + n;
+        trip.status = TripMetadata.FINALIZED;
+        trip.distance = 1000.0;
+        trip.traces = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Trace.Trip p = new Trace.Trip();
+            p.time = 1000L * i;
+            p.lat = 43.07f + i * 1e-4f;
+            p.lng = -89.4f;
+            p.speed = 12.5f;
+            trip.traces.add(new TraceMessage(p));
+        }
+        return trip;
+    }
+
+    /**
+     * Drain the trips through the server, trips it did not acknowledge are sent again
+     */
+    private static void drain(MockServer server, List<TripPayload> trips, int budget) {
+        LinkedList<TripPayload> pending = new LinkedList<>(trips);
+        while (!pending.isEmpty()) {
+            TripBatcher batcher = new TripBatcher(budget);
+            while (!pending.isEmpty() && batcher.add(pending.peekFirst())) {
+                pending.removeFirst();
+            }
+            List<TripPayload> accepted = batcher.accepted(server.upload(batcher.toJson()));
+            for (TripPayload trip : batcher.getTrips()) {
+                if(!accepted.contains(trip)) pending.addLast(trip);
+            }
+        }
+    }
+
+    @Test
+    public void batchingCutsRoundTrips() {
+        List<TripPayload> trips = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            trips.add(oneMinuteTrip(i));
+        }
+
+        MockServer single = new MockServer();
+        long start = System.currentTimeMillis();
+        //a budget of one byte sends every trip on its own, like one request per trip
+        drain(single, trips, 1);
+        long singleCpu = System.currentTimeMillis() - start;
+
+        MockServer batched = new MockServer();
+        start = System.currentTimeMillis();
+        drain(batched, trips, Constants.kBatchUploadBytes);
+        long batchedCpu = System.currentTimeMillis() - start;
+
+        assertEquals(200, single.requests);
+        assertEquals(200, batched.stored.size());
+        for (Integer count : batched.stored.values()) {
+            assertEquals(60, (int) count);
+        }
+        String report = "per trip: " + single.requests + " requests, " + (long) single.elapsed + " ms network, " + singleCpu + " ms cpu; "
+                + "batched: " + batched.requests + " requests, " + (long) batched.elapsed + " ms network, " + batchedCpu + " ms cpu";
+        assertTrue(report, batched.requests * 10 <= single.requests);
+        assertTrue(report, batched.elapsed * 2 < single.elapsed);
+    }
+
+    @Test
+    public void rejectedTripsAreSentAgain() {
+        List<TripPayload> trips = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            trips.add(oneMinuteTrip(i));
+        }
+        MockServer server = new MockServer();
+        server.rejectOnce.add("trip3");
+        server.rejectOnce.add("trip17");
+        drain(server, trips, Constants.kBatchUploadBytes);
+        assertEquals(2, server.requests);
+        assertEquals(20, server.stored.size());
+        for (Integer count : server.stored.values()) {
+            assertEquals(60, (int) count);
+        }
+    }
+
+    @Test
+    public void budgetIsKept() {
+        TripBatcher batcher = new TripBatcher(20 * 1024);
+        int i = 0;
+        while (batcher.add(oneMinuteTrip(i))) {
+            i++;
+        }
+        assertTrue(batcher.size() > 1);
+        assertTrue(batcher.toJson().length() <= 20 * 1024);
+        TripBatchPayload parsed = GsonSingleton.fromJson(batcher.toJson(), TripBatchPayload.class);
+        assertEquals(batcher.size(), parsed.trips.size());
+        assertEquals("trip0", parsed.trips.get(0).guid);
+    }
+
+    @Test
+    public void largeTripGoesAlone() {
+        TripBatcher batcher = new TripBatcher(100);
+        assertTrue(batcher.add(oneMinuteTrip(0)));
+        assertTrue(batcher.toJson().length() > 100);
+        assertEquals(false, batcher.add(oneMinuteTrip(1)));
+        assertEquals(1, batcher.size());
+    }
+}
@@ -0,0 +1,151 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wisc.drivesense.httpPayloads.TripChangesPayload;
+import wisc.drivesense.httpTools.TripReconciler;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.TripMetadata;
+import wisc.drivesense.utility.TripSyncState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the client side of the trip change feed against a stand-in server
+ */
+public class TripChangesTest {
+
+    /**
+     * Keeps a sequence number per trip change, serves full lists and changes since a cursor
+     */
+    private static class ChangeFeedServer {
+        private final Map<String, TripMetadata> trips = new LinkedHashMap<>();
+        private final Map<String, Long> changedAt = new HashMap<>();
+        private long sequence = 0;
+        //changes before this sequence are no longer kept
+        private long oldest = 0;
+
+        void put(String guid, int status, double distance) {
+            TripMetadata trip = new TripMetadata();
+            trip.guid = guid;
+            trip.status = status;
+            trip.distance = distance;
+            trips.put(guid, trip);
+            changedAt.put(guid, ++sequence);
+        }
+
+        void compact() {
+            oldest = sequence;
+        }
+
+        String respond(String since) {
+            TripChangesPayload payload = new TripChangesPayload();
+            payload.trips = new ArrayList<>();
+            payload.reset = since == null || Long.parseLong(since) < oldest;
+            long from = payload.reset ? -1 : Long.parseLong(since);
+            for (TripMetadata trip : trips.values()) {
+                if(changedAt.get(trip.guid) > from) {
+                    payload.trips.add(trip);
+                }
+            }
+            payload.cursor = Long.toString(sequence);
+            return GsonSingleton.toJson(payload);
+        }
+    }
+
+    /**
+     * Device side: local trips and the stored cursor
+     */
+    private static class Client {
+        final Map<String, TripSyncState> local = new HashMap<>();
+        String cursor = null;
+        int bytes = 0;
+
+        void sync(ChangeFeedServer server) {
+            String json = server.respond(cursor);
+            bytes = json.length();
+            TripChangesPayload payload = GsonSingleton.fromJson(json, TripChangesPayload.class);
+            TripReconciler.Result result = TripReconciler.reconcile(payload.trips, local);
+            for (TripMetadata trip : result.missing) {
+                store(trip);
+            }
+            for (TripMetadata trip : result.toUpdate) {
+                store(trip);
+            }
+            cursor = payload.cursor;
+        }
+
+        private void store(TripMetadata trip) {
+            TripSyncState state = new TripSyncState();
+            state.synced = true;
+            state.status = trip.status;
+            state.distance = trip.distance;
+            local.put(trip.guid, state);
+        }
+    }
+
+    private static void assertConverged(ChangeFeedServer server, Client client) {
+        for (TripMetadata trip : server.trips.values()) {
+            TripSyncState state = client.local.get(trip.guid);
+            if(trip.status == TripMetadata.FINALIZED) {
+                assertEquals(trip.status.intValue(), state.status);
+                assertEquals(trip.distance, state.distance, 1e-9);
+            } else if(state != null) {
+                assertEquals(trip.status.intValue(), state.status);
+            }
+        }
+    }
+
+    @Test
+    public void incrementalMatchesFullSync() {
+        ChangeFeedServer server = new ChangeFeedServer();
+        for (int i = 0; i < 3000; i++) {
+            server.put("trip" + i, TripMetadata.FINALIZED, i);
+        }
+        Client client = new Client();
+        client.sync(server);
+        int fullBytes = client.bytes;
+        assertEquals(3000, client.local.size());
+
+        server.put("trip3000", TripMetadata.FINALIZED, 5);
+        server.put("trip12", TripMetadata.DELETED, 12);
+        client.sync(server);
+        int incrementalBytes = client.bytes;
+        assertEquals(3001, client.local.size());
+        assertEquals(TripMetadata.DELETED, client.local.get("trip12").status);
+        assertConverged(server, client);
+        assertTrue("full " + fullBytes + " bytes, incremental " + incrementalBytes + " bytes", incrementalBytes * 100 < fullBytes);
+
+        //nothing changed, nothing but the cursor comes back
+        client.sync(server);
+        assertTrue(client.bytes < 100);
+    }
+
+    @Test
+    public void resetFallsBackToFullList() {
+        ChangeFeedServer server = new ChangeFeedServer();
+        server.put("a", TripMetadata.FINALIZED, 1);
+        Client client = new Client();
+        client.sync(server);
+
+        server.put("b", TripMetadata.FINALIZED, 2);
+        server.put("a", TripMetadata.FINALIZED, 3);
+        server.compact();
+        TripChangesPayload payload = GsonSingleton.fromJson(server.respond(client.cursor), TripChangesPayload.class);
+        assertTrue(payload.reset);
+        assertEquals(2, payload.trips.size());
+
+        client.sync(server);
+        assertConverged(server, client);
+        payload = GsonSingleton.fromJson(server.respond(client.cursor), TripChangesPayload.class);
+        assertFalse(payload.reset);
+    }
+}
@@ -0,0 +1,210 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.triprecorder.TripProcessor;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.Trip;
+import wisc.drivesense.utility.TripCheckpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded drive through the TripProcessor of TripService, once without interruption
+ * and once resumed from a checkpoint, the way the service continues after Android killed it
+ */
+public class TripCheckpointTest {
+    private static final long PAUSE_TIMEOUT = 60 * 1000;
+    private static final long END_TRIP_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * A TripProcessor and the points it had stored
+     */
+    private static class Recorder {
+        final TripProcessor processor;
+        final List<Trace.Trip> output = new ArrayList<>();
+        boolean pauseWhenStationary = false;
+
+        Recorder(Trip trip, TripCheckpoint checkpoint) {
+            processor = new TripProcessor(trip, checkpoint, PAUSE_TIMEOUT, END_TRIP_TIMEOUT);
+        }
+
+        Recorder() {
+            this(new Trip(), null);
+        }
+
+        Trace process(Trace trace) {
+            Trace stored = processor.process(trace, pauseWhenStationary);
+            if(stored instanceof Trace.Trip) output.add((Trace.Trip) stored);
+            return stored;
+        }
+
+        Trip trip() {
+            return processor.getTrip();
+        }
+
+        /**
+         * A new service with the trip row and the stored checkpoint
+         */
+        static Recorder resume(String json) {
+            return new Recorder(new Trip(), TripCheckpoint.fromJson(json));
+        }
+    }
+
+    /**
+     * GPS at 1 Hz with accelerometer and gyroscope at 10 Hz, with hard braking now and then
+     */
+    private static List<Trace> drive(int seconds, long seed) {
+        Random random = new Random(seed);
+        List<Trace> traces = new ArrayList<>();
+        long start = 1500000000000L;
+        double lat = 43.07, lng = -89.4, speed = 10, heading = 0;
+        for (int s = 0; s < seconds; s++) {
+            if(random.nextInt(60) == 0) {
+                speed = Math.max(0, speed - 8);
+            } else {
+                speed = Math.min(30, Math.max(0, speed + random.nextGaussian()));
+            }
+            heading += random.nextGaussian() * 0.05;
+            lat += speed * Math.cos(heading) / 111000.0;
+            lng += speed * Math.sin(heading) / 80000.0;
+            Trace.GPS gps = new Trace.GPS();
+            gps.time = start + 1000L * s;
+            gps.lat = (float) lat;
+            gps.lng = (float) lng;
+            gps.speed = (float) speed;
+            traces.add(gps);
+            for (int i = 1; i < 10; i++) {
+                Trace.Accel accel = new Trace.Accel();
+                accel.time = gps.time + 100 * i;
+                accel.x = (float) (random.nextGaussian() * 0.5);
+                accel.y = (float) (random.nextGaussian() * 0.5);
+                accel.z = (float) (9.8 + random.nextGaussian() * 0.2);
+                traces.add(accel);
+                Trace.Gyro gyro = new Trace.Gyro();
+                gyro.time = accel.time;
+                gyro.x = (float) (random.nextGaussian() * 0.1);
+                traces.add(gyro);
+            }
+        }
+        return traces;
+    }
+
+    @Test
+    public void resumedTripMatchesUninterrupted() {
+        Recorder uninterrupted = new Recorder();
+        for (Trace trace : drive(3600, 5)) {
+            uninterrupted.process(trace);
+        }
+        //the filters write into the traces they are given, the second run gets fresh ones
+        List<Trace> traces = drive(3600, 5);
+
+        //killed right after each of these GPS fixes was checkpointed, resumed from the last checkpoint
+        int[] kills = {1, 2, 3, 600, 1801, 3599};
+        int fix = 0;
+        int kill = 0;
+        Recorder recorder = new Recorder();
+        List<Trace.Trip> output = new ArrayList<>();
+        int maxSize = 0;
+        for (Trace trace : traces) {
+            recorder.process(trace);
+            if(!(trace instanceof Trace.GPS)) continue;
+            fix++;
+            if(kill < kills.length && fix == kills[kill]) {
+                String json = recorder.processor.checkpoint();
+                maxSize = Math.max(maxSize, json.length());
+                output.addAll(recorder.output);
+                recorder = Recorder.resume(json);
+                kill++;
+            }
+        }
+        output.addAll(recorder.output);
+
+        assertEquals(kills.length, kill);
+        assertEquals(uninterrupted.trip().getDistance(), recorder.trip().getDistance(), 0);
+        assertEquals(uninterrupted.trip().getScore(), recorder.trip().getScore(), 0);
+        assertEquals(uninterrupted.trip().getTilt(), recorder.trip().getTilt(), 0);
+        assertEquals(uninterrupted.trip().getEndTime(), recorder.trip().getEndTime());
+        assertEquals(uninterrupted.output.size(), output.size());
+        for (int i = 0; i < output.size(); i++) {
+            assertEquals(uninterrupted.output.get(i).score, output.get(i).score, 0);
+            assertEquals(uninterrupted.output.get(i).brake, output.get(i).brake, 0);
+            assertEquals(uninterrupted.output.get(i).tilt, output.get(i).tilt, 0);
+        }
+        assertTrue(uninterrupted.trip().getScore() < 10);
+        //one small row whatever the length of the trip
+        assertTrue("checkpoint of " + maxSize + " bytes", maxSize < 1024);
+    }
+
+    /**
+     * What resuming did before checkpoints: every point read back, the rating seeded from the point count
+     */
+    @Test
+    public void reseededRatingDrifts() {
+        Recorder uninterrupted = new Recorder();
+        for (Trace trace : drive(600, 6)) {
+            uninterrupted.process(trace);
+        }
+        Recorder killed = new Recorder();
+        int fix = 0;
+        for (Trace trace : drive(600, 6)) {
+            killed.process(trace);
+            if(trace instanceof Trace.GPS && ++fix == 300) {
+                //the trip row and its points, without a checkpoint
+                Trip stored = new Trip();
+                stored.setScore(killed.trip().getScore());
+                stored.setGPSPoints(new ArrayList<>(killed.output));
+                killed = new Recorder(stored, null);
+            }
+        }
+        assertTrue(uninterrupted.trip().getScore() != killed.trip().getScore());
+    }
+
+    /**
+     * Parked for ten minutes with pausing on, killed while paused: the resumed service keeps
+     * nothing and ends the trip once the end of trip timeout has passed since the car stopped
+     */
+    @Test
+    public void pauseAndEndOfTripSurviveTheCheckpoint() {
+        List<Trace> traces = new ArrayList<>();
+        for (Trace trace : drive(120, 7)) {
+            if(trace instanceof Trace.GPS) traces.add(trace);
+        }
+        long parked = traces.get(traces.size() - 1).time;
+        for (int s = 1; s <= 600; s++) {
+            Trace.GPS gps = new Trace.GPS();
+            gps.time = parked + 1000L * s;
+            gps.lat = 43.1f;
+            gps.lng = -89.4f;
+            traces.add(gps);
+        }
+
+        Recorder recorder = new Recorder();
+        recorder.pauseWhenStationary = true;
+        long over = 0;
+        boolean killed = false;
+        for (Trace trace : traces) {
+            Trace stored = recorder.process(trace);
+            if(trace.time > parked + PAUSE_TIMEOUT + 1000) assertNull(stored);
+            if(!killed && trace.time == parked + 3 * 60 * 1000) {
+                assertTrue(recorder.processor.isPaused());
+                recorder = Recorder.resume(recorder.processor.checkpoint());
+                recorder.pauseWhenStationary = true;
+                killed = true;
+            }
+            if(over == 0 && recorder.processor.isOver()) over = trace.time;
+        }
+        assertTrue(killed);
+        assertTrue(recorder.output.isEmpty());
+        //the speed of the last moving fix counts from there
+        assertEquals(END_TRIP_TIMEOUT, over - parked, 2000);
+        assertFalse(new Recorder().processor.isOver());
+    }
+}
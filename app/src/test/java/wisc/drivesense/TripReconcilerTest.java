@@ -0,0 +1,106 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wisc.drivesense.httpTools.TripReconciler;
+import wisc.drivesense.utility.TripMetadata;
+import wisc.drivesense.utility.TripSyncState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TripReconcilerTest {
+
+    private static TripMetadata serverTrip(String guid, int status, double distance) {
+        TripMetadata trip = new TripMetadata();
+        trip.guid = guid;
+        trip.status = status;
+        trip.distance = distance;
+        return trip;
+    }
+
+    private static TripSyncState localTrip(boolean synced, int status, double distance) {
+        TripSyncState state = new TripSyncState();
+        state.synced = synced;
+        state.status = status;
+        state.distance = distance;
+        return state;
+    }
+
+    @Test
+    public void classifyTrips() {
+        List<TripMetadata> server = new ArrayList<>();
+        server.add(serverTrip("new", TripMetadata.FINALIZED, 10));
+        server.add(serverTrip("live", TripMetadata.LIVE, 10));
+        server.add(serverTrip("deletedRemote", TripMetadata.DELETED, 10));
+        server.add(serverTrip("same", TripMetadata.FINALIZED, 10));
+        server.add(serverTrip("renamed", TripMetadata.DELETED, 10));
+        server.add(serverTrip("dirty", TripMetadata.DELETED, 10));
+
+        Map<String, TripSyncState> local = new HashMap<>();
+        local.put("same", localTrip(true, TripMetadata.FINALIZED, 10));
+        local.put("renamed", localTrip(true, TripMetadata.FINALIZED, 10));
+        local.put("dirty", localTrip(false, TripMetadata.FINALIZED, 10));
+
+        TripReconciler.Result result = TripReconciler.reconcile(server, local);
+        assertEquals(1, result.missing.size());
+        assertEquals("new", result.missing.get(0).guid);
+        assertEquals(1, result.toUpdate.size());
+        assertEquals("renamed", result.toUpdate.get(0).guid);
+        assertEquals(1, result.unchanged);
+        assertEquals(3, result.skipped);
+    }
+
+    @Test
+    public void distanceChange() {
+        List<TripMetadata> server = new ArrayList<>();
+        server.add(serverTrip("a", TripMetadata.FINALIZED, 12.5));
+        Map<String, TripSyncState> local = new HashMap<>();
+        local.put("a", localTrip(true, TripMetadata.FINALIZED, 10));
+        assertEquals(1, TripReconciler.reconcile(server, local).toUpdate.size());
+    }
+
+    @Test
+    public void divergedTraces() {
+        List<TripMetadata> server = new ArrayList<>();
+        server.add(serverTrip("complete", TripMetadata.FINALIZED, 12.5));
+        server.add(serverTrip("partial", TripMetadata.FINALIZED, 12.5));
+        Map<String, TripSyncState> local = new HashMap<>();
+        TripSyncState complete = localTrip(true, TripMetadata.FINALIZED, 10);
+        complete.complete = true;
+        local.put("complete", complete);
+        //still downloading, the distance is expected to differ
+        local.put("partial", localTrip(true, TripMetadata.FINALIZED, 10));
+        TripReconciler.Result result = TripReconciler.reconcile(server, local);
+        //the distance of the diverged trip waits for its repair
+        assertEquals(1, result.toUpdate.size());
+        assertEquals("partial", result.toUpdate.get(0).guid);
+        assertEquals(1, result.diverged.size());
+        assertEquals("complete", result.diverged.get(0).guid);
+    }
+
+    @Test
+    public void tenThousandTrips() {
+        int n = 10000;
+        List<TripMetadata> server = new ArrayList<>(n);
+        Map<String, TripSyncState> local = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            server.add(serverTrip("trip" + i, TripMetadata.FINALIZED, i));
+            //the device has every other trip
+            if(i % 2 == 0) {
+                local.put("trip" + i, localTrip(true, TripMetadata.FINALIZED, i));
+            }
+        }
+        long start = System.currentTimeMillis();
+        TripReconciler.Result result = TripReconciler.reconcile(server, local);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(n / 2, result.missing.size());
+        assertEquals(n / 2, result.unchanged);
+        assertTrue("reconciling took " + elapsed + " ms", elapsed < 1000);
+    }
+}
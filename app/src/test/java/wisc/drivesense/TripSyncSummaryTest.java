@@ -0,0 +1,163 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import wisc.drivesense.database.TripSyncSummary;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Inserts, acknowledgements and repairs of trace rows in any order, the tripsync counts of every
+ * trip always match its unsent rows
+ */
+public class TripSyncSummaryTest {
+
+    private static class Row {
+        final long tripid;
+        final boolean gps;
+        boolean synced = false;
+
+        Row(long tripid, boolean gps) {
+            this.tripid = tripid;
+            this.gps = gps;
+        }
+    }
+
+    /**
+     * The trace table by id and the tripsync row of each trip: unsent GPS, unsent other, last sent
+     */
+    private static class Device implements TripSyncSummary.Table {
+        final Map<Long, Row> traces = new TreeMap<>();
+        final Map<Long, long[]> summary = new HashMap<>();
+        long nextId = 1;
+
+        void insert(long tripid, int gps, int imu) {
+            if(!summary.containsKey(tripid)) summary.put(tripid, new long[3]);
+            for (int i = 0; i < gps + imu; i++) {
+                traces.put(nextId++, new Row(tripid, i < gps));
+            }
+            TripSyncSummary.inserted(this, tripid, gps, imu);
+        }
+
+        @Override
+        public List<TripSyncSummary.Group> group(Long[] traceids, boolean synced) {
+            Map<String, long[]> groups = new TreeMap<>();
+            for (Long id : traceids) {
+                Row row = traces.get(id);
+                if(row == null || row.synced != synced) continue;
+                String key = row.tripid + "/" + row.gps;
+                if(!groups.containsKey(key)) groups.put(key, new long[]{row.tripid, row.gps ? 1 : 0, 0, 0});
+                long[] group = groups.get(key);
+                group[2]++;
+                group[3] = Math.max(group[3], id);
+            }
+            List<TripSyncSummary.Group> result = new ArrayList<>();
+            for (long[] group : groups.values()) {
+                result.add(new TripSyncSummary.Group(group[0], group[1] != 0, (int) group[2], group[3]));
+            }
+            return result;
+        }
+
+        @Override
+        public void setSynced(Long[] traceids, boolean synced) {
+            for (Long id : traceids) {
+                if(traces.containsKey(id)) traces.get(id).synced = synced;
+            }
+        }
+
+        @Override
+        public void addUnsent(long tripid, int gps, int imu) {
+            long[] row = summary.get(tripid);
+            row[0] = Math.max(0, row[0] + gps);
+            row[1] = Math.max(0, row[1] + imu);
+        }
+
+        @Override
+        public void acknowledged(long tripid, long last) {
+            long[] row = summary.get(tripid);
+            row[2] = Math.max(row[2], last);
+        }
+
+        void assertConsistent() {
+            Map<Long, long[]> counted = new HashMap<>();
+            for (Long tripid : summary.keySet()) counted.put(tripid, new long[2]);
+            for (Row row : traces.values()) {
+                if(!row.synced) counted.get(row.tripid)[row.gps ? 0 : 1]++;
+            }
+            for (Long tripid : summary.keySet()) {
+                assertEquals("unsent GPS of trip " + tripid, counted.get(tripid)[0], summary.get(tripid)[0]);
+                assertEquals("unsent IMU of trip " + tripid, counted.get(tripid)[1], summary.get(tripid)[1]);
+            }
+        }
+    }
+
+    private static Long[] ids(long from, long until) {
+        Long[] ids = new Long[(int) (until - from)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = from + i;
+        }
+        return ids;
+    }
+
+    @Test
+    public void acknowledgingTwiceCountsOnce() {
+        Device device = new Device();
+        device.insert(1, 10, 90);
+        device.insert(2, 5, 0);
+        TripSyncSummary.sent(device, ids(1, 51));
+        TripSyncSummary.sent(device, ids(1, 51));
+        device.assertConsistent();
+        assertEquals(0, device.summary.get(1L)[0]);
+        assertEquals(50, device.summary.get(1L)[1]);
+        assertEquals(50, device.summary.get(1L)[2]);
+        assertEquals(0, device.summary.get(2L)[2]);
+
+        //a batch across both trips
+        TripSyncSummary.sent(device, ids(95, 106));
+        device.assertConsistent();
+        assertEquals(100, device.summary.get(1L)[2]);
+        assertEquals(105, device.summary.get(2L)[2]);
+    }
+
+    @Test
+    public void onlySentRowsAreSentAgain() {
+        Device device = new Device();
+        device.insert(1, 10, 10);
+        TripSyncSummary.sent(device, ids(1, 11));
+        //half of them were sent, the rest never were
+        TripSyncSummary.unsent(device, ids(6, 16));
+        device.assertConsistent();
+        assertEquals(5, device.summary.get(1L)[0]);
+        assertEquals(10, device.summary.get(1L)[1]);
+        //the server still had up to 10
+        assertEquals(10, device.summary.get(1L)[2]);
+    }
+
+    @Test
+    public void countsFollowTheRowsWhateverTheOrder() {
+        Random random = new Random(26);
+        Device device = new Device();
+        for (int step = 0; step < 5000; step++) {
+            int op = random.nextInt(4);
+            if(op == 0 || device.nextId == 1) {
+                device.insert(random.nextInt(20), random.nextInt(5), random.nextInt(50));
+                continue;
+            }
+            long from = 1 + random.nextInt((int) device.nextId);
+            Long[] ids = ids(from, Math.min(device.nextId + 10, from + random.nextInt(200)));
+            if(op == 3) {
+                TripSyncSummary.unsent(device, ids);
+            } else {
+                TripSyncSummary.sent(device, ids);
+            }
+            device.assertConsistent();
+        }
+    }
+}
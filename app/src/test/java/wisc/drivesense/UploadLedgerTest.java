@@ -0,0 +1,476 @@
+package wisc.drivesense;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import wisc.drivesense.httpPayloads.StoredBatchesPayload;
+import wisc.drivesense.httpPayloads.TripPayload;
+import wisc.drivesense.database.TraceBatchNumbering;
+import wisc.drivesense.httpTools.UploadLedger;
+import wisc.drivesense.utility.GsonSingleton;
+import wisc.drivesense.utility.Trace;
+import wisc.drivesense.utility.TraceBatch;
+import wisc.drivesense.utility.TraceMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads trips to a local stand-in server that stores every request but loses 20% of the responses,
+ * the client only sees a timeout then
+ */
+public class UploadLedgerTest {
+    private static final int TIMEOUT_MS = 150;
+    private static final double RESPONSE_LOSS = 0.2;
+    private static final int TRIPS = 10;
+    private static final int TRACES = 300;
+    private static final int BATCH = 100;
+
+    private HttpServer server;
+    private final Random random = new Random(11);
+    //times of the traces the server stored by trip, a trace stored twice counts twice
+    private final Map<String, List<Long>> stored = new HashMap<>();
+    //batch numbers the server stored, guid#seq
+    private final Set<String> batches = new HashSet<>();
+    private long bytes = 0;
+    private long wasted = 0;
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private void respond(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        boolean lost;
+        synchronized (this) {
+            bytes += body.length;
+            lost = random.nextDouble() < RESPONSE_LOSS;
+        }
+        if(lost) {
+            try {
+                Thread.sleep(3 * TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/updateTrip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = readAll(exchange.getRequestBody());
+                TripPayload trip = GsonSingleton.fromJson(body, TripPayload.class);
+                synchronized (UploadLedgerTest.this) {
+                    bytes += body.length();
+                    List<Long> times = stored.get(trip.guid);
+                    if(times == null) {
+                        times = new ArrayList<>();
+                        stored.put(trip.guid, times);
+                    }
+                    boolean duplicate = trip.seq != null ? batches.contains(trip.guid + "#" + trip.seq)
+                            : times.contains(trip.traces.get(0).value.time);
+                    if(duplicate) {
+                        wasted += body.length();
+                    }
+                    //a numbered batch is stored once, without a number the server can't tell
+                    if(trip.seq == null || !duplicate) {
+                        for (TraceMessage tm : trip.traces) {
+                            times.add(tm.value.time);
+                        }
+                    }
+                    if(trip.seq != null) batches.add(trip.guid + "#" + trip.seq);
+                }
+                respond(exchange, "{}");
+            }
+        });
+        server.createContext("/storedBatches", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = readAll(exchange.getRequestBody());
+                StoredBatchesPayload query = GsonSingleton.fromJson(body, StoredBatchesPayload.class);
+                StoredBatchesPayload answer = new StoredBatchesPayload();
+                answer.batches = new HashMap<>();
+                synchronized (UploadLedgerTest.this) {
+                    bytes += body.length();
+                    for (Map.Entry<String, List<Integer>> entry : query.batches.entrySet()) {
+                        List<Integer> has = new ArrayList<>();
+                        for (Integer seq : entry.getValue()) {
+                            if(batches.contains(entry.getKey() + "#" + seq)) has.add(seq);
+                        }
+                        answer.batches.put(entry.getKey(), has);
+                    }
+                }
+                respond(exchange, GsonSingleton.toJson(answer));
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * @return the response, null if it timed out
+     */
+    private String post(String path, String body) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        try {
+            return readAll(connection.getInputStream());
+        } catch (java.net.SocketTimeoutException e) {
+            return null;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The trace rows of one trip: synced flag and batch number per row, and the next number
+     */
+    private static class TripRows implements TraceBatchNumbering.Rows {
+        final List<TraceMessage> rows = new ArrayList<>();
+        final Map<Long, Integer> numbered = new HashMap<>();
+        final Set<Long> synced = new HashSet<>();
+        int nextBatch = 0;
+
+        TraceMessage add(Trace trace) {
+            TraceMessage tm = new TraceMessage(trace);
+            tm.rowid = rows.size() + 1;
+            rows.add(tm);
+            return tm;
+        }
+
+        @Override
+        public Integer lowestPendingBatch(boolean vitalOnly) {
+            Set<Integer> mixed = new HashSet<>();
+            for (TraceMessage tm : rows) {
+                Integer seq = numbered.get(tm.rowid);
+                if(seq != null && !synced.contains(tm.rowid) && !(tm.value instanceof Trace.Trip)) mixed.add(seq);
+            }
+            Integer lowest = null;
+            for (Map.Entry<Long, Integer> entry : numbered.entrySet()) {
+                if(synced.contains(entry.getKey()) || (vitalOnly && mixed.contains(entry.getValue()))) continue;
+                if(lowest == null || entry.getValue() < lowest) lowest = entry.getValue();
+            }
+            return lowest;
+        }
+
+        @Override
+        public List<TraceMessage> pendingRows(int seq) {
+            List<TraceMessage> pending = new ArrayList<>();
+            for (TraceMessage tm : rows) {
+                if(!synced.contains(tm.rowid) && Integer.valueOf(seq).equals(numbered.get(tm.rowid))) pending.add(tm);
+            }
+            return pending;
+        }
+
+        @Override
+        public List<TraceMessage> newRows(int limit, boolean vitalOnly) {
+            List<TraceMessage> fresh = new ArrayList<>();
+            for (TraceMessage tm : rows) {
+                if(fresh.size() == limit) break;
+                if(synced.contains(tm.rowid) || numbered.containsKey(tm.rowid)) continue;
+                if(!vitalOnly || tm.value instanceof Trace.Trip) fresh.add(tm);
+            }
+            return fresh;
+        }
+
+        @Override
+        public int nextBatch() {
+            return nextBatch;
+        }
+
+        @Override
+        public void number(List<TraceMessage> traces, int seq) {
+            for (TraceMessage tm : traces) numbered.put(tm.rowid, seq);
+            nextBatch = seq + 1;
+        }
+
+        void markSynced(List<TraceMessage> traces) {
+            for (TraceMessage tm : traces) synced.add(tm.rowid);
+        }
+    }
+
+    /**
+     * The traces of the device, batches are taken by the rules of DatabaseHelper.getUnsentBatch
+     */
+    private static class DeviceStore implements UploadLedger.Store {
+        final Map<String, TripRows> trips = new TreeMap<>();
+
+        TripRows trip(String guid) {
+            if(!trips.containsKey(guid)) trips.put(guid, new TripRows());
+            return trips.get(guid);
+        }
+
+        /**
+         * @param numbers false to send the first unsynced traces without a number, the way it was before
+         */
+        TripPayload nextBatch(String guid, boolean numbers) {
+            TripRows rows = trips.get(guid);
+            TripPayload payload = new TripPayload();
+            payload.guid = guid;
+            if(numbers) {
+                TraceBatch batch = TraceBatchNumbering.next(rows, BATCH, false);
+                if(batch == null) return null;
+                payload.traces = batch.traces;
+                payload.seq = batch.seq;
+            } else {
+                payload.traces = new ArrayList<>();
+                for (TraceMessage tm : rows.rows) {
+                    if(payload.traces.size() < BATCH && !rows.synced.contains(tm.rowid)) payload.traces.add(tm);
+                }
+                if(payload.traces.isEmpty()) return null;
+            }
+            return payload;
+        }
+
+        void markSynced(TripPayload payload) {
+            trips.get(payload.guid).markSynced(payload.traces);
+        }
+
+        @Override
+        public Map<String, List<Integer>> getPendingBatches() {
+            Map<String, List<Integer>> pending = new TreeMap<>();
+            for (Map.Entry<String, TripRows> trip : trips.entrySet()) {
+                TripRows rows = trip.getValue();
+                for (Map.Entry<Long, Integer> entry : rows.numbered.entrySet()) {
+                    if(rows.synced.contains(entry.getKey())) continue;
+                    if(!pending.containsKey(trip.getKey())) pending.put(trip.getKey(), new ArrayList<Integer>());
+                    if(!pending.get(trip.getKey()).contains(entry.getValue())) pending.get(trip.getKey()).add(entry.getValue());
+                }
+            }
+            return pending;
+        }
+
+        @Override
+        public void markBatchSynced(String guid, int seq) {
+            TripRows rows = trips.get(guid);
+            rows.markSynced(rows.pendingRows(seq));
+        }
+    }
+
+    private static DeviceStore device() {
+        DeviceStore device = new DeviceStore();
+        for (int t = 0; t < TRIPS; t++) {
+            for (int i = 0; i < TRACES; i++) {
+                Trace.Trip p = new Trace.Trip();
+                p.time = 1500000000000L + 1000L * i;
+                p.lat = 43.07f + i * 1e-4f;
+                p.lng = -89.4f;
+                p.speed = 12.5f;
+                device.trip("trip" + t).add(p);
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Upload windows until every trace is acknowledged, a window ends at the first timeout
+     * @return number of windows
+     */
+    private int drain(DeviceStore device, boolean numbers) throws IOException {
+        UploadLedger ledger = new UploadLedger(device);
+        int windows = 0;
+        boolean done = false;
+        while (!done) {
+            windows++;
+            assertTrue("did not converge", windows < 1000);
+            if(numbers) {
+                StoredBatchesPayload query = ledger.query();
+                if(query != null) {
+                    String answer = post("/storedBatches", GsonSingleton.toJson(query));
+                    if(answer != null) ledger.settle(query, GsonSingleton.fromJson(answer, StoredBatchesPayload.class));
+                }
+            }
+            done = true;
+            window:
+            for (String guid : device.trips.keySet()) {
+                TripPayload payload;
+                while ((payload = device.nextBatch(guid, numbers)) != null) {
+                    done = false;
+                    if(post("/updateTrip", GsonSingleton.toJson(payload)) == null) break window;
+                    device.markSynced(payload);
+                }
+            }
+        }
+        return windows;
+    }
+
+    @Test
+    public void numberedBatchesAreStoredOnce() throws Exception {
+        DeviceStore device = device();
+        int windows = drain(device, true);
+        assertEquals(TRIPS, stored.size());
+        for (List<Long> times : stored.values()) {
+            assertEquals(TRACES, times.size());
+            assertEquals(TRACES, new HashSet<>(times).size());
+        }
+        Benchmark.report("numbered batches: " + windows + " windows, " + bytes + " bytes, " + wasted + " bytes wasted");
+    }
+
+    @Test
+    public void askingSavesResends() throws Exception {
+        long total = (long) TRIPS * GsonSingleton.toJson(device().nextBatch("trip0", false)).length() * TRACES / BATCH;
+
+        drain(device(), false);
+        long blindWasted = wasted;
+        long blindBytes = bytes;
+        int duplicates = 0;
+        for (List<Long> times : stored.values()) {
+            duplicates += times.size() - new HashSet<>(times).size();
+        }
+
+        stored.clear();
+        batches.clear();
+        bytes = 0;
+        wasted = 0;
+        drain(device(), true);
+
+        String report = "about " + total + " bytes of traces; resent blindly: " + blindBytes + " bytes, " + blindWasted
+                + " wasted, " + duplicates + " traces stored twice; numbered: " + bytes + " bytes, " + wasted + " wasted";
+        Benchmark.report(report);
+        assertTrue(report, duplicates > 0);
+        assertTrue(report, blindWasted > 0);
+        assertTrue(report, wasted * 2 < blindWasted);
+    }
+
+    private static List<Long> rowids(List<TraceMessage> traces) {
+        List<Long> ids = new ArrayList<>();
+        for (TraceMessage tm : traces) ids.add(tm.rowid);
+        return ids;
+    }
+
+    /**
+     * A GPS point and two accelerometer samples a second
+     */
+    private static TripRows mixedTrip(int seconds) {
+        TripRows rows = new TripRows();
+        for (int i = 0; i < seconds; i++) {
+            Trace.Trip p = new Trace.Trip();
+            p.time = 1500000000000L + 1000L * i;
+            rows.add(p);
+            for (int j = 1; j <= 2; j++) {
+                Trace.Accel accel = new Trace.Accel();
+                accel.time = p.time + 300 * j;
+                rows.add(accel);
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void pendingBatchIsSentAgainWholeWithItsNumber() {
+        TripRows rows = mixedTrip(10);
+        TraceBatch first = TraceBatchNumbering.next(rows, 4, true);
+        assertEquals(0, first.seq);
+        assertEquals(Arrays.asList(1L, 4L, 7L, 10L), rowids(first.traces));
+
+        //never acknowledged: the same rows and number, whatever is asked for now
+        TraceBatch again = TraceBatchNumbering.next(rows, 100, false);
+        assertEquals(0, again.seq);
+        assertEquals(rowids(first.traces), rowids(again.traces));
+
+        rows.markSynced(again.traces);
+        TraceBatch next = TraceBatchNumbering.next(rows, 5, false);
+        assertEquals(1, next.seq);
+        //the accelerometer samples skipped by the GPS only batch come first
+        assertEquals(Arrays.asList(2L, 3L, 5L, 6L, 8L), rowids(next.traces));
+        assertEquals(2, rows.nextBatch);
+    }
+
+    @Test
+    public void gpsOnlyUploadLeavesPendingSensorBatches() {
+        TripRows rows = mixedTrip(10);
+        TraceBatch mixed = TraceBatchNumbering.next(rows, 6, false);
+        assertEquals(0, mixed.seq);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), rowids(mixed.traces));
+
+        //never acknowledged, and now only GPS may go out
+        TraceBatch gps = TraceBatchNumbering.next(rows, 3, true);
+        assertEquals(1, gps.seq);
+        assertEquals(Arrays.asList(7L, 10L, 13L), rowids(gps.traces));
+        rows.markSynced(gps.traces);
+        gps = TraceBatchNumbering.next(rows, 100, true);
+        assertEquals(2, gps.seq);
+        rows.markSynced(gps.traces);
+        assertNull(TraceBatchNumbering.next(rows, 100, true));
+
+        //the sensor data goes out with its number once it may
+        TraceBatch again = TraceBatchNumbering.next(rows, 100, false);
+        assertEquals(0, again.seq);
+        assertEquals(rowids(mixed.traces), rowids(again.traces));
+    }
+
+    @Test
+    public void lowestPendingBatchFirstAndNumbersAreNeverReused() {
+        TripRows rows = mixedTrip(10);
+        //two live uploads of the trip being recorded lost their responses
+        int live0 = TraceBatchNumbering.number(rows, rows.rows.subList(0, 3));
+        int live1 = TraceBatchNumbering.number(rows, rows.rows.subList(3, 6));
+        assertEquals(0, live0);
+        assertEquals(1, live1);
+
+        TraceBatch batch = TraceBatchNumbering.next(rows, 100, false);
+        assertEquals(0, batch.seq);
+        rows.markSynced(batch.traces);
+        batch = TraceBatchNumbering.next(rows, 100, false);
+        assertEquals(1, batch.seq);
+        assertEquals(Arrays.asList(4L, 5L, 6L), rowids(batch.traces));
+        rows.markSynced(batch.traces);
+
+        batch = TraceBatchNumbering.next(rows, 100, false);
+        assertEquals(2, batch.seq);
+        assertEquals(24, batch.traces.size());
+        rows.markSynced(batch.traces);
+        assertNull(TraceBatchNumbering.next(rows, 100, false));
+        assertEquals(3, rows.nextBatch);
+    }
+}
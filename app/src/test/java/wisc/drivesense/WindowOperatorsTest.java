@@ -0,0 +1,203 @@
+package wisc.drivesense;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import wisc.drivesense.utility.window.FloatRing;
+import wisc.drivesense.utility.window.P2Quantile;
+import wisc.drivesense.utility.window.SlidingExtremes;
+import wisc.drivesense.utility.window.SlidingStats;
+import wisc.drivesense.utility.window.TumblingWindow;
+import wisc.drivesense.utility.window.ZeroCrossings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the operators against computing every window again from its values
+ */
+public class WindowOperatorsTest {
+
+    /**
+     * Accelerometer like: gravity, road noise and now and then a bump
+     */
+    private static float[] channel(int n, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (float) (9.8 + random.nextGaussian() * 0.5 + (random.nextInt(200) == 0 ? 8 : 0));
+        }
+        return values;
+    }
+
+    private static double naiveMean(float[] values, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) sum += values[i];
+        return sum / (to - from);
+    }
+
+    private static double naiveVariance(float[] values, int from, int to) {
+        double mean = naiveMean(values, from, to);
+        double sum = 0;
+        for (int i = from; i < to; i++) sum += (values[i] - mean) * (values[i] - mean);
+        return sum / (to - from);
+    }
+
+    private static int naiveCrossings(float[] values, int from, int to, float level) {
+        int crossings = 0;
+        for (int i = from + 1; i < to; i++) {
+            if((values[i] < level) != (values[i - 1] < level)) crossings++;
+        }
+        return crossings;
+    }
+
+    private static double exactQuantile(float[] values, int from, int to, double p) {
+        float[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.round(p * (sorted.length - 1))];
+    }
+
+    @Test
+    public void ringKeepsTheLastValues() {
+        FloatRing ring = new FloatRing(3);
+        for (int i = 1; i <= 5; i++) ring.add(i);
+        assertEquals(3, ring.size());
+        assertEquals(3, ring.oldest(), 0);
+        assertEquals(5, ring.newest(), 0);
+        assertEquals(4, ring.get(1), 0);
+    }
+
+    @Test
+    public void slidingOperatorsMatchNaive() {
+        float[] values = channel(200000, 1);
+        for (int capacity : new int[]{1, 2, 5, 64, 1000}) {
+            SlidingStats stats = new SlidingStats(capacity);
+            SlidingExtremes extremes = new SlidingExtremes(capacity);
+            ZeroCrossings crossings = new ZeroCrossings(capacity, 9.8f);
+            for (int i = 0; i < values.length; i++) {
+                stats.add(values[i]);
+                extremes.add(values[i]);
+                crossings.add(values[i]);
+                int from = Math.max(0, i + 1 - capacity);
+                //checking every window of the long ones is too slow
+                if(capacity > 64 && i % 997 != 0) continue;
+                double variance = naiveVariance(values, from, i + 1);
+                assertEquals(naiveMean(values, from, i + 1), stats.getMean(), 1e-9);
+                assertEquals(variance, stats.getVariance(), 1e-9);
+                assertEquals(Math.sqrt(variance + stats.getMean() * stats.getMean()), stats.getRms(), 1e-9);
+                float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+                for (int j = from; j <= i; j++) {
+                    min = Math.min(min, values[j]);
+                    max = Math.max(max, values[j]);
+                }
+                assertEquals(min, extremes.getMin(), 0);
+                assertEquals(max, extremes.getMax(), 0);
+                assertEquals(naiveCrossings(values, from, i + 1, 9.8f), crossings.getCrossings());
+            }
+        }
+    }
+
+    @Test
+    public void tumblingWindowsMatchNaive() {
+        final float[] values = channel(100000, 2);
+        final int length = 500;
+        final List<String> failures = new ArrayList<>();
+        final double[] worstQuantileError = new double[1];
+        TumblingWindow window = new TumblingWindow(length, 9.8f, 0.9, new TumblingWindow.Listener() {
+            int from = 0;
+
+            @Override
+            public void onWindow(TumblingWindow window) {
+                int to = from + length;
+                if(Math.abs(naiveMean(values, from, to) - window.getMean()) > 1e-9) failures.add("mean " + from);
+                if(Math.abs(naiveVariance(values, from, to) - window.getVariance()) > 1e-9) failures.add("variance " + from);
+                float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+                for (int j = from; j < to; j++) {
+                    min = Math.min(min, values[j]);
+                    max = Math.max(max, values[j]);
+                }
+                if(min != window.getMin() || max != window.getMax()) failures.add("extremes " + from);
+                if(naiveCrossings(values, from, to, 9.8f) != window.getCrossings()) failures.add("crossings " + from);
+                //as a rank, how far the estimate is from the 90th percentile
+                float[] sorted = Arrays.copyOfRange(values, from, to);
+                Arrays.sort(sorted);
+                int rank = 0;
+                while (rank < sorted.length && sorted[rank] < window.getQuantile()) rank++;
+                worstQuantileError[0] = Math.max(worstQuantileError[0], Math.abs(rank / (double) length - 0.9));
+                from = to;
+            }
+        });
+        for (float value : values) window.add(value);
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(values.length / length, window.getWindows());
+        assertTrue("quantile off by " + worstQuantileError[0], worstQuantileError[0] < 0.05);
+    }
+
+    @Test
+    public void quantileEstimateConverges() {
+        float[] values = channel(100000, 3);
+        for (double p : new double[]{0.05, 0.5, 0.95}) {
+            P2Quantile quantile = new P2Quantile(p);
+            for (int i = 0; i < 4; i++) quantile.add(values[i]);
+            assertEquals(exactQuantile(values, 0, 4, p), quantile.getQuantile(), 0);
+            for (int i = 4; i < values.length; i++) quantile.add(values[i]);
+            assertEquals(exactQuantile(values, 0, values.length, p), quantile.getQuantile(), 0.02);
+        }
+    }
+
+    /**
+     * Instead of JMH, which the Android build does not have: the operators against the
+     * LinkedList windows the app had, computed again on every value
+     */
+    @Test
+    public void benchmarkAgainstObjectLists() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        float[] values = channel(2000000, 4);
+        int capacity = 50;
+        double sink = 0;
+        long naiveNanos = 0, operatorNanos = 0, allocated = 0;
+        for (int round = 0; round < 3; round++) {
+            //the last round is measured, the others warm up
+            long start = System.nanoTime();
+            LinkedList<Float> list = new LinkedList<>();
+            for (float value : values) {
+                list.add(value);
+                if(list.size() > capacity) list.remove(0);
+                double sum = 0, squares = 0;
+                float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+                for (float v : list) {
+                    sum += v;
+                    squares += v * v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                sink += squares / list.size() - (sum / list.size()) * (sum / list.size()) + min + max;
+            }
+            naiveNanos = System.nanoTime() - start;
+
+            SlidingStats stats = new SlidingStats(capacity);
+            SlidingExtremes extremes = new SlidingExtremes(capacity);
+            long before = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for (float value : values) {
+                stats.add(value);
+                extremes.add(value);
+                sink += stats.getVariance() + extremes.getMin() + extremes.getMax();
+            }
+            operatorNanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        String report = "Window of " + capacity + ": variance, min and max per value " + naiveNanos / values.length
+                + " ns with a LinkedList, " + operatorNanos / values.length + " ns with the operators, "
+                + allocated + " bytes allocated for " + values.length + " values (" + (int) (sink % 10) + ")";
+        Benchmark.report(report);
+        assertTrue(report, allocated < 1024);
+    }
+}